@@ -41,6 +41,14 @@ public class LdapAttributeType {
         this.flags = unmodifiableSet(flags);
     }
 
+    Class<?> getType() {
+        return type;
+    }
+
+    Set<Flags> getFlags() {
+        return flags;
+    }
+
     public AttributeInfo createAttributeInfo(String realName, Set<Flags> add, Set<Flags> remove) {
         EnumSet<Flags> realFlags = flags.isEmpty() ? EnumSet.noneOf(Flags.class) : EnumSet.copyOf(flags);
         if (add != null) {
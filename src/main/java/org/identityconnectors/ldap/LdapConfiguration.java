@@ -28,6 +28,7 @@ import static org.identityconnectors.common.CollectionUtil.newList;
 import static org.identityconnectors.common.StringUtil.isBlank;
 import static org.identityconnectors.ldap.LdapUtil.nullAsEmpty;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -192,6 +193,51 @@ public class LdapConfiguration extends AbstractConfiguration implements Stateful
      */
     private boolean usePagedResultControl = false;
 
+    /**
+     * If true, simple paged and VLV index searches request the next block
+     * on a second context while the current block is being handled.
+     */
+    private boolean prefetchBlocks = false;
+
+    /**
+     * If true, the block sizes used by paged, VLV and change log reads are tuned
+     * between {@link #minBlockSize} and {@link #maxBlockSize} according to the
+     * observed response times and entry sizes.
+     */
+    private boolean adaptiveBlockSize = false;
+
+    /**
+     * The lower bound of an adaptive block size.
+     */
+    private int minBlockSize = 10;
+
+    /**
+     * The upper bound of an adaptive block size.
+     */
+    private int maxBlockSize = 1000;
+
+    /**
+     * The response time, in milliseconds, an adaptive block size aims at.
+     */
+    private int targetBlockResponseTime = 2000;
+
+    /**
+     * The amount of data, in bytes, an adaptive block size aims at.
+     */
+    private int targetBlockBytes = 1048576;
+
+    /**
+     * If true, a search failing because of a server size, time or lookthrough
+     * limit is split into smaller searches which are run instead.
+     */
+    private boolean splitSearchesOnLimits = false;
+
+    /**
+     * The attribute whose value prefixes are used to split a search hitting a
+     * server limit. If blank, searches are split by one-level child entries.
+     */
+    private String splitSearchAttribute;
+
     /**
      * The attribute used as the sort key for the VLV index.
      */
@@ -207,6 +253,12 @@ public class LdapConfiguration extends AbstractConfiguration implements Stateful
      */
     private boolean readSchema = true;
 
+    /**
+     * The directory of the files holding the schema read from the servers,
+     * or null.
+     */
+    private String schemaCacheDirectory;
+
     /**
      * Whether to use DNS SRV records to find hostname
      */
@@ -235,6 +287,82 @@ public class LdapConfiguration extends AbstractConfiguration implements Stateful
 
     private String changeNumberAttribute = "changeNumber";
 
+    /**
+     * Whether to read the OpenDJ external change log by cookie instead of by
+     * change number.
+     */
+    private boolean useChangeLogCookie = false;
+
+    /**
+     * Whether to build the change log deltas from the content of the change
+     * instead of reading the modified entry.
+     */
+    private boolean useChangeLogContent = false;
+
+    /**
+     * The number of threads building the sync deltas of a change log block,
+     * or 0 to build them on the calling thread.
+     */
+    private int changeLogWorkerThreads = 0;
+
+    /**
+     * The number of change log entries kept in memory for the syncs of the
+     * other object classes, or 0 to read the change log for every sync.
+     */
+    private int changeLogCacheSize = 0;
+
+    /**
+     * Whether the change log search leaves out the changes outside of the
+     * base contexts to synchronize and the changes made by the modifiers names
+     * to filter out.
+     */
+    private boolean filterChangeLogOnServer = false;
+
+    /**
+     * The number of uSNChanged values read at once by the Active Directory sync.
+     */
+    private int usnWindowSize = 10000;
+
+    /**
+     * Whether to synchronize Active Directory accounts and groups with the
+     * DirSync control.
+     */
+    private boolean useDirSync = false;
+
+    /**
+     * Whether the change log and Active Directory USN syncs stay on the server
+     * recorded in their token, and map their position by time when they have
+     * to move to another one.
+     */
+    private boolean pinSyncToServer = false;
+
+    /**
+     * The number of changes after which the sync reports its token, or 0.
+     */
+    private int syncCheckpointChanges = 0;
+
+    /**
+     * The number of seconds after which the sync reports its token, or 0.
+     */
+    private int syncCheckpointInterval = 0;
+
+    /**
+     * The number of seconds before the last synchronized timestamp the
+     * timestamps sync reads again.
+     */
+    private int timestampSyncOverlap = 0;
+
+    /**
+     * The directory of the files holding the digests of the synchronized
+     * objects, or null.
+     */
+    private String syncDigestDirectory;
+
+    /**
+     * The directory of the snapshots compared by the snapshot sync, or null.
+     */
+    private String syncSnapshotDirectory;
+
     private boolean filterWithOrInsteadOfAnd;
 
     private boolean removeLogEntryObjectClassFromFilter = true;
@@ -249,6 +377,24 @@ public class LdapConfiguration extends AbstractConfiguration implements Stateful
 
     private boolean useTimestampsForSync = false;
 
+    /**
+     * Whether to synchronize with the LDAP Content Synchronization control
+     * (RFC 4533) when the server supports it and has no change log.
+     */
+    private boolean useContentSynchronization = false;
+
+    /**
+     * How long, in seconds, a content synchronization search stays open in
+     * refreshAndPersist mode to wait for further changes. 0 means refreshOnly.
+     */
+    private int contentSynchronizationPersistTime = 0;
+
+    /**
+     * Whether to listen for changes with a persistent search between two
+     * sync operations, when the server supports it.
+     */
+    private boolean usePersistentSearch = false;
+
     // Other state.
 
     private final ObjectClassMappingConfig accountConfig = new ObjectClassMappingConfig(ObjectClass.ACCOUNT,
@@ -300,6 +446,21 @@ public class LdapConfiguration extends AbstractConfiguration implements Stateful
             failValidation("blockSize.legalValue");
         }
 
+        if (adaptiveBlockSize) {
+            if (minBlockSize <= 0) {
+                failValidation("minBlockSize.legalValue");
+            }
+            if (maxBlockSize < minBlockSize) {
+                failValidation("maxBlockSize.legalValue");
+            }
+            if (targetBlockResponseTime <= 0) {
+                failValidation("targetBlockResponseTime.legalValue");
+            }
+            if (targetBlockBytes <= 0) {
+                failValidation("targetBlockBytes.legalValue");
+            }
+        }
+
         checkNotBlank(vlvSortAttribute, "vlvSortAttribute.notBlank");
 
         checkNotBlank(uidAttribute, "uidAttribute.notBlank");
@@ -326,6 +487,40 @@ public class LdapConfiguration extends AbstractConfiguration implements Stateful
         if (changeLogBlockSize <= 0) {
             failValidation("changeLogBlockSize.legalValue");
         }
+        if (changeLogWorkerThreads < 0) {
+            failValidation("changeLogWorkerThreads.legalValue");
+        }
+        if (changeLogCacheSize < 0) {
+            failValidation("changeLogCacheSize.legalValue");
+        }
+        if (usnWindowSize <= 0) {
+            failValidation("usnWindowSize.legalValue");
+        }
+        if (syncCheckpointChanges < 0) {
+            failValidation("syncCheckpointChanges.legalValue");
+        }
+        if (syncCheckpointInterval < 0) {
+            failValidation("syncCheckpointInterval.legalValue");
+        }
+        if (timestampSyncOverlap < 0) {
+            failValidation("timestampSyncOverlap.legalValue");
+        }
+        if (syncDigestDirectory != null && new File(syncDigestDirectory).isFile()) {
+            failValidation("syncDigestDirectory.legalValue");
+        }
+        if (syncSnapshotDirectory != null && new File(syncSnapshotDirectory).isFile()) {
+            failValidation("syncSnapshotDirectory.legalValue");
+        }
+        if (schemaCacheDirectory != null && new File(schemaCacheDirectory).isFile()) {
+            failValidation("schemaCacheDirectory.legalValue");
+        }
+        if (contentSynchronizationPersistTime < 0) {
+            failValidation("contentSynchronizationPersistTime.legalValue");
+        }
+        if (usePersistentSearch && (nullAsEmpty(attributesToSynchronize).length > 0 || synchronizePasswords)) {
+            // The notifications do not tell the changed attributes.
+            failValidation("usePersistentSearch.legalValue");
+        }
 
         if (synchronizePasswords) {
             checkNotBlank(passwordAttributeToSynchronize, "passwordAttributeToSynchronize.notBlank");
@@ -619,6 +814,70 @@ public class LdapConfiguration extends AbstractConfiguration implements Stateful
         this.usePagedResultControl = usePagedResultControl;
     }
 
+    public boolean isPrefetchBlocks() {
+        return prefetchBlocks;
+    }
+
+    public void setPrefetchBlocks(boolean prefetchBlocks) {
+        this.prefetchBlocks = prefetchBlocks;
+    }
+
+    public boolean isAdaptiveBlockSize() {
+        return adaptiveBlockSize;
+    }
+
+    public void setAdaptiveBlockSize(boolean adaptiveBlockSize) {
+        this.adaptiveBlockSize = adaptiveBlockSize;
+    }
+
+    public int getMinBlockSize() {
+        return minBlockSize;
+    }
+
+    public void setMinBlockSize(int minBlockSize) {
+        this.minBlockSize = minBlockSize;
+    }
+
+    public int getMaxBlockSize() {
+        return maxBlockSize;
+    }
+
+    public void setMaxBlockSize(int maxBlockSize) {
+        this.maxBlockSize = maxBlockSize;
+    }
+
+    public int getTargetBlockResponseTime() {
+        return targetBlockResponseTime;
+    }
+
+    public void setTargetBlockResponseTime(int targetBlockResponseTime) {
+        this.targetBlockResponseTime = targetBlockResponseTime;
+    }
+
+    public int getTargetBlockBytes() {
+        return targetBlockBytes;
+    }
+
+    public void setTargetBlockBytes(int targetBlockBytes) {
+        this.targetBlockBytes = targetBlockBytes;
+    }
+
+    public boolean isSplitSearchesOnLimits() {
+        return splitSearchesOnLimits;
+    }
+
+    public void setSplitSearchesOnLimits(boolean splitSearchesOnLimits) {
+        this.splitSearchesOnLimits = splitSearchesOnLimits;
+    }
+
+    public String getSplitSearchAttribute() {
+        return splitSearchAttribute;
+    }
+
+    public void setSplitSearchAttribute(String splitSearchAttribute) {
+        this.splitSearchAttribute = splitSearchAttribute;
+    }
+
     public String getVlvSortAttribute() {
         return vlvSortAttribute;
     }
@@ -643,6 +902,14 @@ public class LdapConfiguration extends AbstractConfiguration implements Stateful
         this.readSchema = readSchema;
     }
 
+    public String getSchemaCacheDirectory() {
+        return schemaCacheDirectory;
+    }
+
+    public void setSchemaCacheDirectory(String schemaCacheDirectory) {
+        this.schemaCacheDirectory = schemaCacheDirectory;
+    }
+
     public boolean isUseDNSSRVRecord() {
         return useDNSSRVRecord;
     }
@@ -729,6 +996,123 @@ public class LdapConfiguration extends AbstractConfiguration implements Stateful
         this.changeNumberAttribute = changeNumberAttribute;
     }
 
+    @ConfigurationProperty(operations = { SyncOp.class })
+    public boolean isUseChangeLogCookie() {
+        return useChangeLogCookie;
+    }
+
+    public void setUseChangeLogCookie(boolean useChangeLogCookie) {
+        this.useChangeLogCookie = useChangeLogCookie;
+    }
+
+    @ConfigurationProperty(operations = { SyncOp.class })
+    public boolean isUseChangeLogContent() {
+        return useChangeLogContent;
+    }
+
+    public void setUseChangeLogContent(boolean useChangeLogContent) {
+        this.useChangeLogContent = useChangeLogContent;
+    }
+
+    @ConfigurationProperty(operations = { SyncOp.class })
+    public int getChangeLogWorkerThreads() {
+        return changeLogWorkerThreads;
+    }
+
+    public void setChangeLogWorkerThreads(int changeLogWorkerThreads) {
+        this.changeLogWorkerThreads = changeLogWorkerThreads;
+    }
+
+    @ConfigurationProperty(operations = { SyncOp.class })
+    public int getChangeLogCacheSize() {
+        return changeLogCacheSize;
+    }
+
+    public void setChangeLogCacheSize(int changeLogCacheSize) {
+        this.changeLogCacheSize = changeLogCacheSize;
+    }
+
+    @ConfigurationProperty(operations = { SyncOp.class })
+    public boolean isFilterChangeLogOnServer() {
+        return filterChangeLogOnServer;
+    }
+
+    public void setFilterChangeLogOnServer(boolean filterChangeLogOnServer) {
+        this.filterChangeLogOnServer = filterChangeLogOnServer;
+    }
+
+    @ConfigurationProperty(operations = { SyncOp.class })
+    public int getUsnWindowSize() {
+        return usnWindowSize;
+    }
+
+    public void setUsnWindowSize(int usnWindowSize) {
+        this.usnWindowSize = usnWindowSize;
+    }
+
+    @ConfigurationProperty(operations = { SyncOp.class })
+    public boolean isUseDirSync() {
+        return useDirSync;
+    }
+
+    public void setUseDirSync(boolean useDirSync) {
+        this.useDirSync = useDirSync;
+    }
+
+    @ConfigurationProperty(operations = { SyncOp.class })
+    public boolean isPinSyncToServer() {
+        return pinSyncToServer;
+    }
+
+    public void setPinSyncToServer(boolean pinSyncToServer) {
+        this.pinSyncToServer = pinSyncToServer;
+    }
+
+    @ConfigurationProperty(operations = { SyncOp.class })
+    public int getSyncCheckpointChanges() {
+        return syncCheckpointChanges;
+    }
+
+    public void setSyncCheckpointChanges(int syncCheckpointChanges) {
+        this.syncCheckpointChanges = syncCheckpointChanges;
+    }
+
+    @ConfigurationProperty(operations = { SyncOp.class })
+    public int getSyncCheckpointInterval() {
+        return syncCheckpointInterval;
+    }
+
+    public void setSyncCheckpointInterval(int syncCheckpointInterval) {
+        this.syncCheckpointInterval = syncCheckpointInterval;
+    }
+
+    @ConfigurationProperty(operations = { SyncOp.class })
+    public int getTimestampSyncOverlap() {
+        return timestampSyncOverlap;
+    }
+
+    public void setTimestampSyncOverlap(int timestampSyncOverlap) {
+        this.timestampSyncOverlap = timestampSyncOverlap;
+    }
+
+    @ConfigurationProperty(operations = { SyncOp.class })
+    public String getSyncDigestDirectory() {
+        return syncDigestDirectory;
+    }
+
+    public void setSyncDigestDirectory(String syncDigestDirectory) {
+        this.syncDigestDirectory = syncDigestDirectory;
+    }
+
+    @ConfigurationProperty(operations = { SyncOp.class })
+    public String getSyncSnapshotDirectory() {
+        return syncSnapshotDirectory;
+    }
+
+    public void setSyncSnapshotDirectory(String syncSnapshotDirectory) {
+        this.syncSnapshotDirectory = syncSnapshotDirectory;
+    }
+
     @ConfigurationProperty(operations = { SyncOp.class }, required = false)
     public boolean isUseTimestampsForSync() {
         return useTimestampsForSync;
@@ -738,6 +1122,33 @@ public class LdapConfiguration extends AbstractConfiguration implements Stateful
         this.useTimestampsForSync = useTimestampsForSync;
     }
 
+    @ConfigurationProperty(operations = { SyncOp.class })
+    public boolean isUseContentSynchronization() {
+        return useContentSynchronization;
+    }
+
+    public void setUseContentSynchronization(boolean useContentSynchronization) {
+        this.useContentSynchronization = useContentSynchronization;
+    }
+
+    @ConfigurationProperty(operations = { SyncOp.class })
+    public int getContentSynchronizationPersistTime() {
+        return contentSynchronizationPersistTime;
+    }
+
+    public void setContentSynchronizationPersistTime(int contentSynchronizationPersistTime) {
+        this.contentSynchronizationPersistTime = contentSynchronizationPersistTime;
+    }
+
+    @ConfigurationProperty(operations = { SyncOp.class })
+    public boolean isUsePersistentSearch() {
+        return usePersistentSearch;
+    }
+
+    public void setUsePersistentSearch(boolean usePersistentSearch) {
+        this.usePersistentSearch = usePersistentSearch;
+    }
+
     @ConfigurationProperty(operations = { SyncOp.class })
     public boolean isFilterWithOrInsteadOfAnd() {
         return filterWithOrInsteadOfAnd;
@@ -870,9 +1281,18 @@ public class LdapConfiguration extends AbstractConfiguration implements Stateful
         builder.append(useBlocks);
         builder.append(blockSize);
         builder.append(usePagedResultControl);
+        builder.append(prefetchBlocks);
+        builder.append(adaptiveBlockSize);
+        builder.append(minBlockSize);
+        builder.append(maxBlockSize);
+        builder.append(targetBlockResponseTime);
+        builder.append(targetBlockBytes);
+        builder.append(splitSearchesOnLimits);
+        builder.append(splitSearchAttribute);
         builder.append(vlvSortAttribute);
         builder.append(uidAttribute);
         builder.append(readSchema);
+        builder.append(schemaCacheDirectory);
         builder.append(useDNSSRVRecord);
         // Sync configuration properties.
         for (String baseContextToSynchronize : baseContextsToSynchronize) {
@@ -890,6 +1310,19 @@ public class LdapConfiguration extends AbstractConfiguration implements Stateful
         builder.append(accountSynchronizationFilter);
         builder.append(changeLogBlockSize);
         builder.append(changeNumberAttribute);
+        builder.append(useChangeLogCookie);
+        builder.append(useChangeLogContent);
+        builder.append(changeLogWorkerThreads);
+        builder.append(changeLogCacheSize);
+        builder.append(filterChangeLogOnServer);
+        builder.append(usnWindowSize);
+        builder.append(useDirSync);
+        builder.append(pinSyncToServer);
+        builder.append(syncCheckpointChanges);
+        builder.append(syncCheckpointInterval);
+        builder.append(timestampSyncOverlap);
+        builder.append(syncDigestDirectory);
+        builder.append(syncSnapshotDirectory);
         builder.append(filterWithOrInsteadOfAnd);
         builder.append(removeLogEntryObjectClassFromFilter);
         builder.append(synchronizePasswords);
@@ -897,6 +1330,9 @@ public class LdapConfiguration extends AbstractConfiguration implements Stateful
         builder.append(passwordDecryptionKey);
         builder.append(passwordDecryptionInitializationVector);
         builder.append(resetSyncToken);
+        builder.append(useContentSynchronization);
+        builder.append(contentSynchronizationPersistTime);
+        builder.append(usePersistentSearch);
         // Other state.
         builder.append(accountConfig);
         builder.append(groupConfig);
@@ -68,6 +68,7 @@ import org.identityconnectors.ldap.schema.ADStaticSchema;
 import static org.identityconnectors.ldap.ADLdapUtil.isServerMSADFamily;
 import org.identityconnectors.ldap.LdapConstants.ServerType;
 import org.identityconnectors.ldap.schema.LdapStaticSchema;
+import org.identityconnectors.ldap.sync.ServerSyncToken;
 
 public class LdapConnection {
 
@@ -119,6 +120,11 @@ public class LdapConnection {
         LDAP_BINARY_SYNTAX_ATTRS.add(LdapConstants.MS_TOKEN_GROUPS_ATTR);
     }
     private static final String LDAP_CTX_FACTORY = "com.sun.jndi.ldap.LdapCtxFactory";
+    private static final String SERVER_NAME_ATTR = "dsServiceName";
+    /**
+     * How often the schema read from the server is checked for changes.
+     */
+    static final long NATIVE_SCHEMA_CHECK_MILLIS = 5 * 60 * 1000L;
     public static final String SASL_GSSAPI = "SASL-GSSAPI";
     public static final String PASSWORD_EXPIRED_OID = "2.16.840.1.113730.3.4.4";
     private static final Log log = Log.getLog(LdapConnection.class);
@@ -128,6 +134,16 @@ public class LdapConnection {
     private StartTlsResponse startTlsResponse;
     private Set<String> supportedControls;
     private ServerType serverType;
+    // Read by the threads building the sync deltas.
+    private volatile LdapNativeSchema nativeSchema;
+    // When the stamp of the native schema was last checked.
+    private volatile long nativeSchemaChecked;
+    // The only server to connect to, or null for the host and failover servers.
+    private String pinnedUrl;
+    // The pinned server the initial context was created for, if any.
+    private String connectedUrl;
+    // The identifier of the server of the initial context, once read.
+    private String serverId;
 
     public LdapConnection(LdapConfiguration config) {
         this.config = config;
@@ -149,7 +165,7 @@ public class LdapConnection {
                 LdapConstants.MS_SID_ATTR + " " + 
                 LdapConstants.MS_TOKEN_GROUPS_ATTR);
         env.put(Context.INITIAL_CONTEXT_FACTORY, LDAP_CTX_FACTORY);
-        env.put(Context.PROVIDER_URL, getLdapUrls());
+        env.put(Context.PROVIDER_URL, getLdapUrls(pinnedUrl));
         env.put(Context.REFERRAL, "follow");
         env.put(Context.SECURITY_AUTHENTICATION, "simple");
         if (config.isSsl()) {
@@ -186,9 +202,60 @@ public class LdapConnection {
         } else {
             initCtx = connect(config.getPrincipal(), config.getCredentials());
         }
+        connectedUrl = pinnedUrl;
         
         return initCtx;
     }
+
+    /**
+     * Connects to the given server only, until called again with
+     * {@code null}. The initial context is closed if it was created for
+     * another server. It is kept when the server is unpinned.
+     */
+    public void pinServer(String url) {
+        if (url != null && initCtx != null && !url.equals(connectedUrl)) {
+            close();
+        }
+        pinnedUrl = url;
+    }
+
+    /**
+     * Returns the only server to connect to, or {@code null} if the
+     * connection is not pinned to a server.
+     */
+    public String getPinnedUrl() {
+        return pinnedUrl;
+    }
+
+    /**
+     * Returns the short identifier of the server connected to, from its
+     * dsServiceName if it has one, or an empty string.
+     */
+    public String getServerId() {
+        if (serverId == null) {
+            try {
+                Attributes attrs = getInitialContext().getAttributes("", new String[] { SERVER_NAME_ATTR });
+                serverId = ServerSyncToken.createServerId(getStringAttrValue(attrs, SERVER_NAME_ATTR));
+            } catch (NamingException e) {
+                throw new ConnectorException(e);
+            }
+        }
+        return serverId;
+    }
+
+    /**
+     * Returns the URLs of the host and the failover servers, in the order
+     * they are tried.
+     */
+    public List<String> getServerUrls() {
+        List<String> urls = new ArrayList<String>();
+        for (String url : getLdapUrls(null).split(" ")) {
+            if (url.length() > 0) {
+                urls.add(url);
+            }
+        }
+        return urls;
+    }
     
     public LdapContext getRunAsContext(String principal, GuardedString credentials) {
         return connect(principal, credentials);
@@ -312,7 +379,10 @@ public class LdapConnection {
         return false;
     }
 
-    private String getLdapUrls() {
+    private String getLdapUrls(String pinnedUrl) {
+        if (pinnedUrl != null) {
+            return pinnedUrl;
+        }
         if (config.isUseDNSSRVRecord()) {
             String ldapUrl = getSRVRecords(config.getHost());
             log.info("LDAP url built with SRV records: {0}", ldapUrl);
@@ -339,6 +409,8 @@ public class LdapConnection {
             quietClose(initCtx);
         } finally {
             initCtx = null;
+            connectedUrl = null;
+            serverId = null;
         }
     }
 
@@ -366,10 +438,44 @@ public class LdapConnection {
         return schemaMapping;
     }
 
+    /**
+     * Returns the native schema of the server. The schema read from the
+     * server is shared by the connections to it, and checked for changes
+     * every {@link #NATIVE_SCHEMA_CHECK_MILLIS} when the server tells when
+     * its schema changed.
+     */
+    public LdapNativeSchema getNativeSchema() {
+        LdapNativeSchema schema = nativeSchema;
+        if (schema == null || isNativeSchemaToCheck(schema)) {
+            synchronized (this) {
+                schema = nativeSchema;
+                if (schema == null) {
+                    schema = createNativeSchema();
+                    nativeSchemaChecked = System.currentTimeMillis();
+                    nativeSchema = schema;
+                } else if (isNativeSchemaToCheck(schema)) {
+                    try {
+                        schema = createNativeSchema();
+                        nativeSchema = schema;
+                    } catch (ConnectorException e) {
+                        log.warn(e, "Unable to check the schema of the server for changes, keeping the current one");
+                    }
+                    nativeSchemaChecked = System.currentTimeMillis();
+                }
+            }
+        }
+        return schema;
+    }
+
+    private boolean isNativeSchemaToCheck(LdapNativeSchema schema) {
+        return schema instanceof NativeSchemaSnapshot && ((NativeSchemaSnapshot) schema).isStamped()
+                && System.currentTimeMillis() - nativeSchemaChecked >= NATIVE_SCHEMA_CHECK_MILLIS;
+    }
+
     public LdapNativeSchema createNativeSchema() {
         try {
             if (config.isReadSchema()) {
-                return new ServerNativeSchema(this);
+                return NativeSchemaSnapshot.get(this);
             } else {
                 if (isServerMSADFamily(getServerType())){
                     return new ADStaticSchema();
@@ -26,7 +26,9 @@ package org.identityconnectors.ldap;
 
 import java.security.PrivilegedAction;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import javax.naming.NamingException;
 import javax.security.auth.Subject;
@@ -61,9 +63,23 @@ import org.identityconnectors.ldap.modify.LdapUpdate;
 import org.identityconnectors.ldap.search.LdapFilter;
 import org.identityconnectors.ldap.search.LdapFilterTranslator;
 import org.identityconnectors.ldap.search.LdapSearch;
+import org.identityconnectors.ldap.sync.LdapSyncStrategy;
+import org.identityconnectors.ldap.sync.PinnedServerSyncStrategy;
+import org.identityconnectors.ldap.sync.ServerPositionMapping;
 import org.identityconnectors.ldap.sync.activedirectory.ActiveDirectoryChangeLogSyncStrategy;
+import org.identityconnectors.ldap.sync.activedirectory.DirSyncControl;
+import org.identityconnectors.ldap.sync.activedirectory.DirSyncSyncStrategy;
 import org.identityconnectors.ldap.sync.ibm.IBMDSChangeLogSyncStrategy;
+import org.identityconnectors.ldap.sync.opendj.ExternalChangelogRequestControl;
+import org.identityconnectors.ldap.sync.opendj.OpenDJChangeLogSyncStrategy;
+import org.identityconnectors.ldap.sync.psearch.PersistentSearch;
+import org.identityconnectors.ldap.sync.psearch.PersistentSearchControl;
+import org.identityconnectors.ldap.sync.psearch.PersistentSearchSyncStrategy;
+import org.identityconnectors.ldap.sync.snapshot.SnapshotSyncStrategy;
+import org.identityconnectors.ldap.sync.sunds.ChangeLogBlockCache;
 import org.identityconnectors.ldap.sync.sunds.SunDSChangeLogSyncStrategy;
+import org.identityconnectors.ldap.sync.syncrepl.ContentSyncStrategy;
+import org.identityconnectors.ldap.sync.syncrepl.SyncRequestControl;
 import org.identityconnectors.ldap.sync.timestamps.TimestampsSyncStrategy;
 
 @ConnectorClass(configurationClass = LdapConfiguration.class, displayNameKey = "LdapConnector")
@@ -83,6 +99,12 @@ public class LdapConnector implements TestOp, PoolableConnector, SchemaOp, Searc
      * The connection to the LDAP server.
      */
     private LdapConnection conn;
+    /**
+     * The persistent searches feeding the sync operation, per object class.
+     * They are shared with the other connector instances synchronizing the
+     * same changes.
+     */
+    private final Map<ObjectClass, PersistentSearch> persistentSearches = new HashMap<ObjectClass, PersistentSearch>();
     
     private enum UpdateType {
         REPLACE, ADD, REMOVE
@@ -112,6 +134,14 @@ public class LdapConnector implements TestOp, PoolableConnector, SchemaOp, Searc
     }
 
     public void dispose() {
+        synchronized (persistentSearches) {
+            for (PersistentSearch search : persistentSearches.values()) {
+                search.release();
+            }
+            persistentSearches.clear();
+        }
+        ChangeLogBlockCache.release(conn);
+        NativeSchemaSnapshot.release(conn);
         conn.close();
     }
 
@@ -285,48 +315,86 @@ public class LdapConnector implements TestOp, PoolableConnector, SchemaOp, Searc
     }
     
     private SyncToken lastSyncToken(ObjectClass objectClass){
-          if (config.isUseTimestampsForSync()) {
-            return new TimestampsSyncStrategy(conn, objectClass).getLatestSyncToken();
-        } else {
-            switch (conn.getServerType()) {
-                case UNKNOWN:
-                case OPENLDAP:
-                case MSAD_GC:
-                    return new TimestampsSyncStrategy(conn, objectClass).getLatestSyncToken();
-                case IBM:
-                    return new IBMDSChangeLogSyncStrategy(conn, objectClass).getLatestSyncToken();
-                case MSAD:
-                case MSAD_LDS:
-                    return new ActiveDirectoryChangeLogSyncStrategy(conn, objectClass).getLatestSyncToken();
-                default:
-                    return new SunDSChangeLogSyncStrategy(conn, objectClass).getLatestSyncToken();
-            }
-        }
+        return getSyncStrategy(objectClass).getLatestSyncToken();
     }
     
     private void doSync(ObjectClass objectClass, SyncToken token, SyncResultsHandler handler, OperationOptions options) {
+        getSyncStrategy(objectClass).sync(token, handler, options);
+    }
+
+    private LdapSyncStrategy getSyncStrategy(ObjectClass objectClass) {
+        LdapSyncStrategy strategy;
         if (config.isUseTimestampsForSync()) {
-            new TimestampsSyncStrategy(conn, objectClass).sync(token, handler, options);
+            strategy = new TimestampsSyncStrategy(conn, objectClass);
         } else {
             switch (conn.getServerType()) {
                 case UNKNOWN:
                 case OPENLDAP:
                 case MSAD_GC:
-                    new TimestampsSyncStrategy(conn, objectClass).sync(token, handler, options);
+                    if (useContentSynchronization()) {
+                        strategy = new ContentSyncStrategy(conn, objectClass);
+                    } else if (SnapshotSyncStrategy.isConfigured(conn)) {
+                        strategy = new SnapshotSyncStrategy(conn, objectClass);
+                    } else {
+                        strategy = new TimestampsSyncStrategy(conn, objectClass);
+                    }
                     break;
                 case IBM:
-                    new IBMDSChangeLogSyncStrategy(conn, objectClass).sync(token, handler, options);
+                    strategy = new IBMDSChangeLogSyncStrategy(conn, objectClass);
                     break;
                 case MSAD:
                 case MSAD_LDS:
-                    new ActiveDirectoryChangeLogSyncStrategy(conn, objectClass).sync(token, handler, options);
+                    if (useDirSync(objectClass)) {
+                        strategy = new DirSyncSyncStrategy(conn, objectClass);
+                    } else {
+                        strategy = new ActiveDirectoryChangeLogSyncStrategy(conn, objectClass);
+                    }
+                    break;
+                case OPENDS:
+                case OPENDJ:
+                    if (config.isUseChangeLogCookie() && conn.supportsControl(ExternalChangelogRequestControl.OID)) {
+                        strategy = new OpenDJChangeLogSyncStrategy(conn, objectClass);
+                    } else {
+                        strategy = new SunDSChangeLogSyncStrategy(conn, objectClass);
+                    }
                     break;
                 default:
-                    new SunDSChangeLogSyncStrategy(conn, objectClass).sync(token, handler, options);
+                    strategy = new SunDSChangeLogSyncStrategy(conn, objectClass);
             }
         }
+        // The cookies of the OpenDJ external change log are valid on every
+        // replica, so the sync does not need to stay on one server.
+        ServerPositionMapping mapping = strategy instanceof ServerPositionMapping
+                && !(strategy instanceof OpenDJChangeLogSyncStrategy) ? (ServerPositionMapping) strategy : null;
+        if (config.isUsePersistentSearch() && conn.supportsControl(PersistentSearchControl.OID)) {
+            strategy = new PersistentSearchSyncStrategy(conn, objectClass, strategy, getPersistentSearch(objectClass));
+        }
+        if (config.isPinSyncToServer() && mapping != null) {
+            strategy = new PinnedServerSyncStrategy(conn, strategy, mapping);
+        }
+        return strategy;
+    }
+
+    private PersistentSearch getPersistentSearch(ObjectClass objectClass) {
+        synchronized (persistentSearches) {
+            PersistentSearch search = persistentSearches.get(objectClass);
+            if (search == null) {
+                search = PersistentSearch.acquire(config, LdapUtil.getSynchronizationFilter(conn, objectClass));
+                persistentSearches.put(objectClass, search);
+            }
+            return search;
+        }
     }
     
+    private boolean useContentSynchronization() {
+        return config.isUseContentSynchronization() && conn.supportsControl(SyncRequestControl.OID);
+    }
+
+    private boolean useDirSync(ObjectClass objectClass) {
+        return config.isUseDirSync() && conn.supportsControl(DirSyncControl.OID)
+                && (ObjectClass.ACCOUNT.equals(objectClass) || ObjectClass.GROUP.equals(objectClass) || ObjectClass.ALL.equals(objectClass));
+    }
+
     private void doTest(){
          List<String> badBC = new ArrayList<String>();
         List<String> badBCS = new ArrayList<String>();
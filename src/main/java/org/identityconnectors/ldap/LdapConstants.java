@@ -44,6 +44,19 @@ public class LdapConstants {
     public static final String SEARCH_FILTER_NAME = "searchFilter";
 
     public static final String OP_SEARCH_FILTER = "searchFilter";
+
+    /**
+     * Operation option asking a search for the number of matching entries only,
+     * returned as the remaining results of the search result. The handler of
+     * the search must be a {@code SearchResultsHandler}.
+     */
+    public static final String COUNT_ONLY_NAME = "countOnly";
+
+    /**
+     * Attribute of the change log sync deltas built from the content of the
+     * change, listing the names of the changed attributes.
+     */
+    public static final String CHANGED_ATTRIBUTES_NAME = "changedAttributes";
     
     public static final String MS_GUID_ATTR = "objectGUID";
     
@@ -100,5 +113,9 @@ public class LdapConstants {
         return (String) options.getOptions().get(SEARCH_FILTER_NAME);
     }
 
+    public static boolean isCountOnly(OperationOptions options) {
+        return Boolean.TRUE.equals(options.getOptions().get(COUNT_ONLY_NAME));
+    }
+
     private LdapConstants() { }
 }
@@ -41,6 +41,7 @@ import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
+import javax.naming.directory.SearchResult;
 import javax.naming.ldap.LdapContext;
 import javax.naming.ldap.LdapName;
 
@@ -49,9 +50,12 @@ import org.identityconnectors.common.StringUtil;
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.framework.common.exceptions.ConnectorException;
 import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
 import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
 import org.identityconnectors.framework.common.objects.ObjectClass;
 import org.identityconnectors.framework.common.objects.ResultsHandler;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.identityconnectors.ldap.LdapConstants.ServerType;
 
 public class LdapUtil {
 
@@ -603,6 +607,152 @@ public class LdapUtil {
        return UNKNOWN_OBJCLASS;
     }
    
+    /**
+     * Returns the filter matching the entries of the given object class that
+     * are to be synchronized, including the configured synchronization filter.
+     */
+    public static String getSynchronizationFilter(LdapConnection conn, ObjectClass oclass) {
+        LdapConfiguration config = conn.getConfiguration();
+        StringBuilder filter = new StringBuilder("(&");
+        if (ObjectClass.ACCOUNT.equals(oclass)) {
+            filter.append(getObjectClassFilter(config.getAccountObjectClasses()));
+            if (config.getAccountSynchronizationFilter() != null) {
+                filter.append(config.getAccountSynchronizationFilter());
+            }
+        } else if (ObjectClass.GROUP.equals(oclass)) {
+            filter.append(getObjectClassFilter(config.getGroupObjectClasses()));
+            if (config.getGroupSynchronizationFilter() != null) {
+                filter.append(config.getGroupSynchronizationFilter());
+            }
+        } else if (ObjectClass.ALL.equals(oclass)) {
+            filter.append(getObjectClassFilter(config.getObjectClassesToSynchronize()));
+        } else { // we use the ObjectClass value as the filter...
+            filter.append("(objectClass=");
+            filter.append(oclass.getObjectClassValue());
+            filter.append(")");
+        }
+        filter.append(")");
+        return filter.toString();
+    }
+
+    /**
+     * Creates the {@link ConnectorObject} of a sync delta from an entry read
+     * by a synchronization search, with all the attributes returned by the
+     * server. For {@link ObjectClass#ALL} the object class is guessed from the
+     * objectClass attribute, which must then have been requested.
+     */
+    public static ConnectorObject createSyncObject(LdapConnection conn, ObjectClass oclass, String baseDN, SearchResult result) throws NamingException {
+        return createSyncObject(conn, oclass, conn.getSchemaMapping().createUid(oclass, LdapEntry.create(baseDN, result)), result);
+    }
+
+    /**
+     * Creates the {@link ConnectorObject} of a sync delta from an entry read
+     * by a synchronization search, whose Uid is already known. The Active
+     * Directory attributes are converted as in a search, which removes them
+     * from the attributes of the result.
+     */
+    public static ConnectorObject createSyncObject(LdapConnection conn, ObjectClass oclass, Uid uid, SearchResult result) throws NamingException {
+        Attributes attrs = result.getAttributes();
+        ServerType server = conn.getServerType();
+        ConnectorObjectBuilder cob = new ConnectorObjectBuilder();
+        cob.setUid(uid);
+        if (ObjectClass.ALL.equals(oclass)) {
+            cob.setObjectClass(guessObjectClass(conn, attrs.get(LdapConstants.OBJECTCLASS_ATTR)));
+        } else {
+            cob.setObjectClass(oclass);
+        }
+        cob.setName(result.getNameInNamespace());
+
+        // Let's process AD specifics...
+        if (ADLdapUtil.isServerMSADFamily(server)) {
+            if (ObjectClass.ACCOUNT.equals(oclass)) {
+                if (ServerType.MSAD_LDS.equals(server)) {
+                    if (attrs.get(LdapConstants.MS_DS_USER_ACCOUNT_DISABLED) != null) {
+                        cob.addAttribute(AttributeBuilder.buildEnabled(!Boolean.parseBoolean(attrs.get(LdapConstants.MS_DS_USER_ACCOUNT_DISABLED).get().toString())));
+                    } else if (attrs.get(LdapConstants.MS_DS_USER_PASSWORD_EXPIRED) != null) {
+                        cob.addAttribute(AttributeBuilder.buildPasswordExpired(Boolean.parseBoolean(attrs.get(LdapConstants.MS_DS_USER_PASSWORD_EXPIRED).get().toString())));
+                    } else if (attrs.get(LdapConstants.MS_DS_USER_ACCOUNT_AUTOLOCKED) != null) {
+                        cob.addAttribute(AttributeBuilder.buildLockOut(Boolean.parseBoolean(attrs.get(LdapConstants.MS_DS_USER_ACCOUNT_AUTOLOCKED).get().toString())));
+                    }
+                } else {
+                    if (attrs.get(ADUserAccountControl.MS_USR_ACCT_CTRL_ATTR) != null) {
+                        String uac = attrs.get(ADUserAccountControl.MS_USR_ACCT_CTRL_ATTR).get().toString();
+                        cob.addAttribute(AttributeBuilder.buildEnabled(!ADUserAccountControl.isAccountDisabled(uac)));
+                        cob.addAttribute(AttributeBuilder.build(ADUserAccountControl.DONT_EXPIRE_PASSWORD_NAME, ADUserAccountControl.isDontExpirePassword(uac)));
+                        cob.addAttribute(AttributeBuilder.build(ADUserAccountControl.PASSWORD_NOTREQD_NAME, ADUserAccountControl.isPasswordNotReq(uac)));
+                        cob.addAttribute(AttributeBuilder.build(ADUserAccountControl.SMARTCARD_REQUIRED_NAME, ADUserAccountControl.isSmartCardRequired(uac)));
+                    }
+                    if (attrs.get(ADUserAccountControl.MSDS_USR_ACCT_CTRL_ATTR) != null) {
+                        String uac2 = attrs.get(ADUserAccountControl.MSDS_USR_ACCT_CTRL_ATTR).get().toString();
+                        cob.addAttribute(AttributeBuilder.buildLockOut(ADUserAccountControl.isAccountLockOut(uac2)));
+                        cob.addAttribute(AttributeBuilder.buildPasswordExpired(ADUserAccountControl.isPasswordExpired(uac2)));
+                    }
+                }
+                if (attrs.get(ADUserAccountControl.ACCOUNT_EXPIRES) != null) {
+                    cob.addAttribute(ADLdapUtil.convertMSEpochToISO8601(attrs.get(ADUserAccountControl.ACCOUNT_EXPIRES)));
+                    attrs.remove(ADUserAccountControl.ACCOUNT_EXPIRES);
+                }
+                if (attrs.get(ADUserAccountControl.PWD_LAST_SET) != null) {
+                    cob.addAttribute(ADLdapUtil.convertMSEpochToISO8601(attrs.get(ADUserAccountControl.PWD_LAST_SET)));
+                    attrs.remove(ADUserAccountControl.PWD_LAST_SET);
+                }
+                if (attrs.get(ADUserAccountControl.LAST_LOGON) != null) {
+                    cob.addAttribute(ADLdapUtil.convertMSEpochToISO8601(attrs.get(ADUserAccountControl.LAST_LOGON)));
+                    attrs.remove(ADUserAccountControl.LAST_LOGON);
+                }
+                if (attrs.get(ADUserAccountControl.LOCKOUT_TIME) != null) {
+                    cob.addAttribute(ADLdapUtil.convertMSEpochToISO8601(attrs.get(ADUserAccountControl.LOCKOUT_TIME)));
+                    attrs.remove(ADUserAccountControl.LOCKOUT_TIME);
+                }
+            }
+            if (ObjectClass.GROUP.equals(oclass)) {
+                // Make sure we're not hitting AD large group issue
+                // see: http://msdn.microsoft.com/en-us/library/ms817827.aspx
+                if (attrs.get("member;range=0-1499") != null) {
+                    // we're in the limitation
+                    org.identityconnectors.framework.common.objects.Attribute range = AttributeBuilder.build("member", ADLdapUtil.fetchGroupMembersByRange(conn, result));
+                    cob.addAttribute(range);
+                    if (conn.getConfiguration().isGetGroupMemberId()) {
+                        cob.addAttribute(buildMemberIdAttribute(conn, range));
+                    }
+                    attrs.remove("member;range=0-1499");
+                    attrs.remove("member");
+                }
+                try {
+                    if (attrs.get(ADGroupType.GROUPTYPE) != null) {
+                        String groupType = attrs.get(ADGroupType.GROUPTYPE).get().toString();
+                        cob.addAttribute(AttributeBuilder.build(ADGroupType.GROUP_SCOPE_NAME, ADGroupType.getScope(groupType)));
+                        cob.addAttribute(AttributeBuilder.build(ADGroupType.GROUP_TYPE_NAME, ADGroupType.getType(groupType)));
+                    }
+                } catch (NamingException e) {
+                    log.warn(e, "Can't read groupType attribute: " + e.getExplanation());
+                }
+            }
+            Attribute guid = attrs.get(LdapConstants.MS_GUID_ATTR);
+            if (guid != null) {
+                cob.addAttribute(AttributeBuilder.build(LdapConstants.MS_GUID_ATTR, ADLdapUtil.objectGUIDtoString(guid)));
+                attrs.remove(LdapConstants.MS_GUID_ATTR);
+            }
+        }
+        // Set all Attributes
+        NamingEnumeration<? extends Attribute> attrsEnum = attrs.getAll();
+        while (attrsEnum.hasMore()) {
+            Attribute attr = attrsEnum.next();
+            String id = attr.getID();
+            NamingEnumeration<?> vals = attr.getAll();
+            List<Object> values = new ArrayList<Object>();
+            while (vals.hasMore()) {
+                values.add(vals.next());
+            }
+            if (conn.getConfiguration().isGetGroupMemberId() && ObjectClass.GROUP.equals(oclass)
+                    && id.equalsIgnoreCase(conn.getConfiguration().getGroupMemberAttribute())) {
+                cob.addAttribute(buildMemberIdAttribute(conn, attr));
+            }
+            cob.addAttribute(AttributeBuilder.build(id, values));
+        }
+        return cob.build();
+    }
+
    public static boolean isSameDistinguishedName(String first, LdapContext context) {
         try {
             LdapName lfirst = new LdapName(first);
@@ -0,0 +1,197 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap;
+
+import static org.identityconnectors.common.StringUtil.isBlank;
+import static org.identityconnectors.ldap.LdapUtil.getStringAttrValue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+
+import org.identityconnectors.common.Pair;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+/**
+ * Keeps the schema read from a server in a file of the configured
+ * directory, so that the next connections to the server do not read every
+ * object class and attribute definition again. The file of a server is
+ * used as long as the modifyTimestamp of the subschema entry, which every
+ * schema change updates, is the one it was written with.
+ */
+final class NativeSchemaCache {
+
+    private static final Log log = Log.getLog(NativeSchemaCache.class);
+
+    private static final int MAGIC = 0x4c44534d;
+    private static final String SUFFIX = ".schema";
+
+    private static final String SUBSCHEMA_ATTR = "subschemaSubentry";
+    private static final String MODIFY_TIMESTAMP_ATTR = "modifyTimestamp";
+
+    private NativeSchemaCache() {
+    }
+
+    /**
+     * Returns the DN of the subschema entry of the server and its
+     * modifyTimestamp, or {@code null} if the server does not tell when its
+     * schema changed.
+     */
+    static Pair<String, String> getSchemaStamp(LdapConnection conn) throws NamingException {
+        Attributes rootAttrs = conn.getInitialContext().getAttributes("", new String[] { SUBSCHEMA_ATTR });
+        String subschema = getStringAttrValue(rootAttrs, SUBSCHEMA_ATTR);
+        if (subschema == null) {
+            return null;
+        }
+        Attributes attrs = conn.getInitialContext().getAttributes(subschema, new String[] { MODIFY_TIMESTAMP_ATTR });
+        String stamp = getStringAttrValue(attrs, MODIFY_TIMESTAMP_ATTR);
+        return stamp != null ? new Pair<String, String>(subschema, stamp) : null;
+    }
+
+    /**
+     * Returns the schema of the server, from the cache file if it is still
+     * current, or else read from the server and written to the cache file.
+     *
+     * @param schemaStamp the stamp returned by {@link #getSchemaStamp}.
+     */
+    static ServerNativeSchema getSchema(LdapConnection conn, Pair<String, String> schemaStamp) throws NamingException {
+        String directory = conn.getConfiguration().getSchemaCacheDirectory();
+        if (isBlank(directory)) {
+            return new ServerNativeSchema(conn);
+        }
+        if (schemaStamp == null) {
+            log.info("The server does not tell when its schema changed, the schema is not cached");
+            return new ServerNativeSchema(conn);
+        }
+        String key = conn.getConfiguration().getHost() + ':' + conn.getConfiguration().getPort() + '/' + schemaStamp.first;
+        String stamp = schemaStamp.second;
+        File file = new File(directory, createFileName(key));
+        ServerNativeSchema schema = read(file, key, stamp);
+        if (schema != null) {
+            log.ok("Read the schema of {0} from {1}", key, file);
+            return schema;
+        }
+        schema = new ServerNativeSchema(conn);
+        write(file, key, stamp, schema);
+        return schema;
+    }
+
+    /**
+     * Returns the schema in the given file, or {@code null} if there is none
+     * for the given server and schema modifyTimestamp.
+     */
+    static ServerNativeSchema read(File file, String key, String stamp) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || !key.equals(in.readUTF())) {
+                    log.warn("Ignoring the schema cache file {0}, which has an unknown format", file);
+                    return null;
+                }
+                String fileStamp = in.readUTF();
+                if (!stamp.equals(fileStamp)) {
+                    log.info("The schema of {0} changed at {1}, reading it again", key, stamp);
+                    return null;
+                }
+                return ServerNativeSchema.read(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            log.warn(e, "Ignoring the schema cache file {0}, which cannot be read", file);
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the given file with the given schema. The schema is only
+     * read from the server again when the file cannot be written.
+     */
+    static void write(File file, String key, String stamp, ServerNativeSchema schema) {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            log.warn("Cannot create the schema cache directory {0}", parent);
+            return;
+        }
+        File tmp = null;
+        try {
+            // Other connections may write the same file at the same time.
+            tmp = File.createTempFile(file.getName(), ".tmp", parent);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeUTF(key);
+                out.writeUTF(stamp);
+                schema.write(out);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                // Some platforms do not rename over an existing file.
+                if (!file.delete() || !tmp.renameTo(file)) {
+                    log.warn("Cannot replace the schema cache file {0}", file);
+                    return;
+                }
+            }
+            tmp = null;
+            log.ok("Saved the schema of {0} to {1}", key, file);
+        } catch (IOException e) {
+            log.warn(e, "Cannot write the schema cache file {0}", file);
+        } finally {
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+    }
+
+    private static String createFileName(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.toLowerCase().getBytes("UTF-8"));
+            StringBuilder builder = new StringBuilder(32 + SUFFIX.length());
+            for (byte b : digest) {
+                builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return builder.append(SUFFIX).toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new ConnectorException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new ConnectorException(e);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap;
+
+import static java.util.Collections.emptySet;
+import static java.util.Collections.unmodifiableMap;
+import static java.util.Collections.unmodifiableSet;
+import static org.identityconnectors.common.CollectionUtil.newCaseInsensitiveMap;
+import static org.identityconnectors.common.CollectionUtil.newCaseInsensitiveSet;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import javax.naming.NamingException;
+
+import org.identityconnectors.common.Pair;
+import org.identityconnectors.common.logging.Log;
+
+/**
+ * An immutable copy of the schema read from a server, shared by all the
+ * connections to that server. The superior classes and the required and
+ * optional attributes of every object class are computed once, so that
+ * lookups do not walk the class hierarchy. The snapshot of a server is
+ * replaced as a whole when the modifyTimestamp of its subschema entry
+ * changes: the connections holding the previous one keep a consistent view.
+ * A snapshot is dropped once every connection which used it has been
+ * released.
+ */
+final class NativeSchemaSnapshot implements LdapNativeSchema {
+
+    private static final Log log = Log.getLog(NativeSchemaSnapshot.class);
+
+    private static final Map<String, NativeSchemaSnapshot> snapshots = new HashMap<String, NativeSchemaSnapshot>();
+
+    private final String stamp;
+    /**
+     * The connections which used the snapshot, as its references.
+     */
+    private final Map<LdapConnection, Boolean> users = new IdentityHashMap<LdapConnection, Boolean>();
+    private final Set<String> structuralLdapClasses;
+    private final Map<String, Set<String>> ldapClass2Effective;
+    private final Map<String, Set<String>> ldapClass2MustAttrs;
+    private final Map<String, Set<String>> ldapClass2MayAttrs;
+    private final Map<String, LdapAttributeType> attrName2Type;
+
+    NativeSchemaSnapshot(ServerNativeSchema schema, String stamp) {
+        this.stamp = stamp;
+        structuralLdapClasses = unmodifiableSet(copy(schema.getStructuralObjectClasses()));
+        Map<String, Set<String>> effective = newCaseInsensitiveMap();
+        Map<String, Set<String>> must = newCaseInsensitiveMap();
+        Map<String, Set<String>> may = newCaseInsensitiveMap();
+        for (String ldapClass : schema.getObjectClasses()) {
+            effective.put(ldapClass, unmodifiableSet(copy(schema.getEffectiveObjectClasses(ldapClass))));
+            must.put(ldapClass, unmodifiableSet(copy(schema.getRequiredAttributes(ldapClass))));
+            may.put(ldapClass, unmodifiableSet(copy(schema.getOptionalAttributes(ldapClass))));
+        }
+        ldapClass2Effective = unmodifiableMap(effective);
+        ldapClass2MustAttrs = unmodifiableMap(must);
+        ldapClass2MayAttrs = unmodifiableMap(may);
+        Map<String, LdapAttributeType> types = newCaseInsensitiveMap();
+        for (String attrName : schema.getAttributeNames()) {
+            types.put(attrName, schema.getAttributeDescription(attrName));
+        }
+        attrName2Type = unmodifiableMap(types);
+    }
+
+    /**
+     * Returns the snapshot of the schema of the server of the given
+     * connection, reading the schema if it changed since the snapshot was
+     * taken. A server which does not tell when its schema changed gets a
+     * snapshot of its own for each connection. The snapshot is referenced by
+     * the connection until {@link #release(LdapConnection)}.
+     */
+    static NativeSchemaSnapshot get(LdapConnection conn) throws NamingException {
+        Pair<String, String> schemaStamp = NativeSchemaCache.getSchemaStamp(conn);
+        if (schemaStamp == null) {
+            return new NativeSchemaSnapshot(NativeSchemaCache.getSchema(conn, null), null);
+        }
+        LdapConfiguration config = conn.getConfiguration();
+        String key = config.getHost() + ':' + config.getPort() + '/' + schemaStamp.first + '|' + config.getPrincipal();
+        NativeSchemaSnapshot snapshot = acquire(key, schemaStamp.second, conn);
+        if (snapshot != null) {
+            return snapshot;
+        }
+        // Read without holding the lock, since it takes long. Connections
+        // reading it at the same time each take a snapshot, and the last
+        // one is kept.
+        snapshot = new NativeSchemaSnapshot(NativeSchemaCache.getSchema(conn, schemaStamp), schemaStamp.second);
+        register(key, snapshot, conn);
+        log.info("Took a snapshot of the schema of {0} modified at {1}", key, schemaStamp.second);
+        return snapshot;
+    }
+
+    /**
+     * Returns the snapshot of the given key if it has the given stamp, taking
+     * a reference on it for the connection, or {@code null}.
+     */
+    static NativeSchemaSnapshot acquire(String key, String stamp, LdapConnection conn) {
+        synchronized (snapshots) {
+            NativeSchemaSnapshot snapshot = snapshots.get(key);
+            if (snapshot == null || !snapshot.stamp.equals(stamp)) {
+                return null;
+            }
+            snapshot.users.put(conn, Boolean.TRUE);
+            return snapshot;
+        }
+    }
+
+    /**
+     * Shares the given snapshot under the given key, replacing the previous
+     * one, with a reference for the connection.
+     */
+    static void register(String key, NativeSchemaSnapshot snapshot, LdapConnection conn) {
+        synchronized (snapshots) {
+            snapshot.users.put(conn, Boolean.TRUE);
+            snapshots.put(key, snapshot);
+        }
+    }
+
+    /**
+     * Gives back the references the given connection took on the snapshots.
+     * A snapshot no other connection uses is dropped.
+     */
+    static void release(LdapConnection conn) {
+        synchronized (snapshots) {
+            Iterator<NativeSchemaSnapshot> iter = snapshots.values().iterator();
+            while (iter.hasNext()) {
+                NativeSchemaSnapshot snapshot = iter.next();
+                if (snapshot.users.remove(conn) != null && snapshot.users.isEmpty()) {
+                    iter.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns whether the server tells when its schema changes, so that the
+     * snapshot can be checked cheaply for changes.
+     */
+    boolean isStamped() {
+        return stamp != null;
+    }
+
+    public Set<String> getStructuralObjectClasses() {
+        return structuralLdapClasses;
+    }
+
+    public Set<String> getRequiredAttributes(String ldapClass) {
+        Set<String> result = ldapClass2MustAttrs.get(ldapClass);
+        if (result == null) {
+            return emptySet();
+        }
+        return result;
+    }
+
+    public Set<String> getOptionalAttributes(String ldapClass) {
+        Set<String> result = ldapClass2MayAttrs.get(ldapClass);
+        if (result == null) {
+            return emptySet();
+        }
+        return result;
+    }
+
+    public Set<String> getEffectiveObjectClasses(String ldapClass) {
+        Set<String> result = ldapClass2Effective.get(ldapClass);
+        if (result == null) {
+            // An object class the server does not know is its own only class.
+            result = newCaseInsensitiveSet();
+            result.add(ldapClass);
+            result = unmodifiableSet(result);
+        }
+        return result;
+    }
+
+    public LdapAttributeType getAttributeDescription(String ldapAttrName) {
+        return attrName2Type.get(ldapAttrName);
+    }
+
+    private static Set<String> copy(Set<String> names) {
+        Set<String> result = newCaseInsensitiveSet();
+        result.addAll(names);
+        return result;
+    }
+}
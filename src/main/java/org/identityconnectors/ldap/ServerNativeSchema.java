@@ -29,6 +29,9 @@ import static org.identityconnectors.ldap.LdapUtil.addStringAttrValues;
 import static org.identityconnectors.ldap.LdapUtil.attrNameEquals;
 import static org.identityconnectors.ldap.LdapUtil.getStringAttrValue;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -52,8 +55,9 @@ public class ServerNativeSchema implements LdapNativeSchema {
     // The LDAP directory attributes to expose as framework attributes.
     private static final Set<String> LDAP_DIRECTORY_ATTRS;
 
-    private final LdapConnection conn;
-    private final DirContext schemaCtx;
+    // Only used while reading the schema from the server.
+    private LdapConnection conn;
+    private DirContext schemaCtx;
 
     private final Set<String> structuralLdapClasses = newCaseInsensitiveSet();
     private final Map<String, Set<String>> ldapClass2MustAttrs = newCaseInsensitiveMap();
@@ -79,9 +83,95 @@ public class ServerNativeSchema implements LdapNativeSchema {
             initAttributeDescriptions();
         } finally {
             schemaCtx.close();
+            schemaCtx = null;
+            this.conn = null;
         }
     }
 
+    private ServerNativeSchema() {
+    }
+
+    /**
+     * Reads a schema written by {@link #write(DataOutput)}.
+     */
+    static ServerNativeSchema read(DataInput in) throws IOException {
+        ServerNativeSchema schema = new ServerNativeSchema();
+        readSet(in, schema.structuralLdapClasses);
+        for (int i = in.readInt(); i > 0; i--) {
+            String name = in.readUTF();
+            schema.ldapClass2MustAttrs.put(name, readSet(in, newCaseInsensitiveSet()));
+            schema.ldapClass2MayAttrs.put(name, readSet(in, newCaseInsensitiveSet()));
+            schema.ldapClass2Sup.put(name, readSet(in, newCaseInsensitiveSet()));
+        }
+        for (int i = in.readInt(); i > 0; i--) {
+            String name = in.readUTF();
+            Class<?> type = in.readBoolean() ? byte[].class : String.class;
+            Set<Flags> flags = EnumSet.noneOf(Flags.class);
+            for (int j = in.readInt(); j > 0; j--) {
+                String flag = in.readUTF();
+                try {
+                    flags.add(Flags.valueOf(flag));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Unknown attribute flag " + flag);
+                }
+            }
+            schema.attrName2Type.put(name, new LdapAttributeType(type, flags));
+        }
+        return schema;
+    }
+
+    /**
+     * Writes the schema, so that it can be read again without the server.
+     */
+    void write(DataOutput out) throws IOException {
+        writeSet(out, structuralLdapClasses);
+        out.writeInt(ldapClass2Sup.size());
+        for (Map.Entry<String, Set<String>> entry : ldapClass2Sup.entrySet()) {
+            out.writeUTF(entry.getKey());
+            writeSet(out, ldapClass2MustAttrs.get(entry.getKey()));
+            writeSet(out, ldapClass2MayAttrs.get(entry.getKey()));
+            writeSet(out, entry.getValue());
+        }
+        out.writeInt(attrName2Type.size());
+        for (Map.Entry<String, LdapAttributeType> entry : attrName2Type.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeBoolean(entry.getValue().getType() == byte[].class);
+            Set<Flags> flags = entry.getValue().getFlags();
+            out.writeInt(flags.size());
+            for (Flags flag : flags) {
+                out.writeUTF(flag.name());
+            }
+        }
+    }
+
+    private static Set<String> readSet(DataInput in, Set<String> set) throws IOException {
+        for (int i = in.readInt(); i > 0; i--) {
+            set.add(in.readUTF());
+        }
+        return set;
+    }
+
+    private static void writeSet(DataOutput out, Set<String> set) throws IOException {
+        out.writeInt(set.size());
+        for (String value : set) {
+            out.writeUTF(value);
+        }
+    }
+
+    /**
+     * Returns the names of all the object classes.
+     */
+    Set<String> getObjectClasses() {
+        return unmodifiableSet(ldapClass2Sup.keySet());
+    }
+
+    /**
+     * Returns the names of all the attributes.
+     */
+    Set<String> getAttributeNames() {
+        return unmodifiableSet(attrName2Type.keySet());
+    }
+
     public Set<String> getStructuralObjectClasses() {
         return unmodifiableSet(structuralLdapClasses);
     }
@@ -63,7 +63,7 @@ class LdapSchemaBuilder {
 
     public LdapSchemaBuilder(LdapConnection conn) {
         this.conn = conn;
-        this.nativeSchema = conn.createNativeSchema();
+        this.nativeSchema = conn.getNativeSchema();
     }
 
     public Schema getSchema() {
@@ -26,7 +26,6 @@ package org.identityconnectors.ldap.schema;
 
 import static java.util.Collections.emptyList;
 import static java.util.Collections.unmodifiableSet;
-import static org.identityconnectors.common.CollectionUtil.newCaseInsensitiveMap;
 import static org.identityconnectors.common.CollectionUtil.newCaseInsensitiveSet;
 import static org.identityconnectors.common.CollectionUtil.newReadOnlyList;
 import static org.identityconnectors.ldap.LdapEntry.isDNAttribute;
@@ -37,7 +36,6 @@ import static org.identityconnectors.ldap.ADLdapUtil.objectGUIDtoString;
 
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import javax.naming.NameAlreadyBoundException;
 
@@ -100,7 +98,6 @@ public class LdapSchemaMapping {
     static final String DEFAULT_LDAP_NAME_ATTR = "entryDN";
 
     private final LdapConnection conn;
-    private final Map<String, Set<String>> ldapClass2Effective = newCaseInsensitiveMap();
 
     private Schema schema;
 
@@ -116,12 +113,7 @@ public class LdapSchemaMapping {
     }
 
     private Set<String> getEffectiveLdapClasses(String ldapClass) {
-        Set<String> result = ldapClass2Effective.get(ldapClass);
-        if (result == null) {
-            result = conn.createNativeSchema().getEffectiveObjectClasses(ldapClass);
-            ldapClass2Effective.put(ldapClass, result);
-        }
-        return result;
+        return conn.getNativeSchema().getEffectiveObjectClasses(ldapClass);
     }
 
     /**
@@ -239,11 +231,15 @@ public class LdapSchemaMapping {
         String ldapUidAttr = getLdapUidAttribute(oclass);
         if (isDNAttribute(ldapUidAttr)) {
             try{
-                //we do an exact search to get the DN as normalized by the server
-                NamingEnumeration<SearchResult> ne = conn.getInitialContext().search(entryDN, "objectclass=*", new SearchControls(SearchControls.OBJECT_SCOPE,0,0,null,false,false));
-                // TODO: ne might be null if entry can not be read back (ACI issues for instances)
-                SearchResult sr = ne.next();
-                return new Uid(sr.getNameInNamespace());
+                //we do an exact search to get the DN as normalized by the server, no attributes are needed
+                NamingEnumeration<SearchResult> ne = conn.getInitialContext().search(entryDN, "objectclass=*", new SearchControls(SearchControls.OBJECT_SCOPE,0,0,new String[] { "1.1" },false,false));
+                try {
+                    // TODO: ne might be null if entry can not be read back (ACI issues for instances)
+                    SearchResult sr = ne.next();
+                    return new Uid(sr.getNameInNamespace());
+                } finally {
+                    ne.close();
+                }
             } catch (NamingException e) {
                 throw new ConnectorException(e);
             }
@@ -0,0 +1,165 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.search;
+
+import java.util.List;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.SearchResult;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.ldap.LdapConfiguration;
+
+/**
+ * The size of the blocks read by a paged, VLV or change log search. When
+ * adaptive, the size is tuned after each block so that a block takes about the
+ * target response time and carries no more than the target amount of data.
+ * Otherwise it is simply the configured block size.
+ */
+public class AdaptiveBlockSize {
+
+    private static final Log log = Log.getLog(AdaptiveBlockSize.class);
+
+    private final int minSize;
+    private final int maxSize;
+    private final long targetMillis;
+    private final long targetBytes;
+
+    private int size;
+
+    public AdaptiveBlockSize(int initialSize, int minSize, int maxSize, long targetMillis, long targetBytes) {
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.targetMillis = targetMillis;
+        this.targetBytes = targetBytes;
+        this.size = clamp(initialSize);
+    }
+
+    /**
+     * Returns a block size which never changes.
+     */
+    public static AdaptiveBlockSize fixed(int size) {
+        return new AdaptiveBlockSize(size, size, size, 0, 0);
+    }
+
+    /**
+     * Returns the block size to use for the given configured block size,
+     * adaptive if the configuration asks for it.
+     */
+    public static AdaptiveBlockSize create(LdapConfiguration config, int configuredSize) {
+        if (!config.isAdaptiveBlockSize()) {
+            return fixed(configuredSize);
+        }
+        return new AdaptiveBlockSize(configuredSize, config.getMinBlockSize(), config.getMaxBlockSize(),
+                config.getTargetBlockResponseTime(), config.getTargetBlockBytes());
+    }
+
+    public boolean isAdaptive() {
+        return minSize < maxSize;
+    }
+
+    public synchronized int get() {
+        return size;
+    }
+
+    /**
+     * Records how long a block took to read and how much data it carried, and
+     * tunes the block size accordingly.
+     *
+     * @param entries the number of entries in the block.
+     * @param elapsedMillis the time spent reading the block.
+     * @param bytes the estimated size of the block, or 0 if unknown.
+     */
+    public synchronized void record(int entries, long elapsedMillis, long bytes) {
+        if (!isAdaptive() || entries <= 0) {
+            return;
+        }
+        double wanted = maxSize;
+        if (elapsedMillis > 0) {
+            wanted = Math.min(wanted, (double) targetMillis * entries / elapsedMillis);
+        }
+        if (bytes > 0) {
+            wanted = Math.min(wanted, (double) targetBytes * entries / bytes);
+        }
+        // Only move half way, so that a single slow block does not make the size swing.
+        int newSize = clamp((int) Math.round((size + wanted) / 2));
+        if (newSize != size) {
+            log.ok("Block size changed from {0} to {1} after reading {2} entries ({3} bytes) in {4} ms",
+                    size, newSize, entries, bytes, elapsedMillis);
+            size = newSize;
+        }
+    }
+
+    /**
+     * Records a block which has been read completely before being handled.
+     */
+    public void record(List<SearchResult> results, long elapsedMillis) {
+        if (!isAdaptive()) {
+            return;
+        }
+        long bytes = 0;
+        for (SearchResult result : results) {
+            bytes += estimateSize(result);
+        }
+        record(results.size(), elapsedMillis, bytes);
+    }
+
+    /**
+     * Returns a rough estimate, in characters or bytes, of the size of the
+     * given search result.
+     */
+    public static long estimateSize(SearchResult result) {
+        long total = result.getName() != null ? result.getName().length() : 0;
+        Attributes attrs = result.getAttributes();
+        if (attrs == null) {
+            return total;
+        }
+        try {
+            NamingEnumeration<? extends Attribute> attrEnum = attrs.getAll();
+            while (attrEnum.hasMore()) {
+                Attribute attr = attrEnum.next();
+                total += attr.getID().length();
+                NamingEnumeration<?> values = attr.getAll();
+                while (values.hasMore()) {
+                    Object value = values.next();
+                    if (value instanceof byte[]) {
+                        total += ((byte[]) value).length;
+                    } else if (value != null) {
+                        total += value.toString().length();
+                    }
+                }
+            }
+        } catch (NamingException e) {
+            log.warn(e, "Cannot estimate the size of {0}", result.getName());
+        }
+        return total;
+    }
+
+    private int clamp(int value) {
+        return Math.max(minSize, Math.min(maxSize, value));
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.search;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.PartialResultException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+/**
+ * Fetches the blocks of a paged or VLV search on a context of its own, so that
+ * the request for the next block can be sent while the caller is still handling
+ * the current one.
+ *
+ * <p>JNDI only exposes the response controls of a search once all its results
+ * have been read, so a block is always read completely before being returned.
+ * At most one block is in flight at any time.</p>
+ */
+public class BlockPrefetcher {
+
+    private static final Log log = Log.getLog(BlockPrefetcher.class);
+
+    private final LdapContext ctx;
+    private final ExecutorService executor;
+    private Future<Block> pending;
+
+    public BlockPrefetcher(LdapContext initCtx) throws NamingException {
+        this.ctx = initCtx.newInstance(null);
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "LDAP block prefetch");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Sends the search for the next block. The previous block must have been
+     * retrieved by {@link #take()} first.
+     */
+    public void submit(final String baseDN, final String query, final SearchControls searchControls, final Control[] requestControls) {
+        if (pending != null) {
+            throw new IllegalStateException("A block is already being fetched");
+        }
+        pending = executor.submit(new Callable<Block>() {
+            public Block call() throws NamingException {
+                return fetch(baseDN, query, searchControls, requestControls);
+            }
+        });
+    }
+
+    /**
+     * Waits for the block sent by the last call to {@link #submit}.
+     */
+    public Block take() throws IOException, NamingException {
+        if (pending == null) {
+            throw new IllegalStateException("No block is being fetched");
+        }
+        Future<Block> future = pending;
+        pending = null;
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new ConnectorException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NamingException) {
+                throw (NamingException) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new ConnectorException(cause);
+        }
+    }
+
+    /**
+     * Abandons any block still in flight and closes the context. The context
+     * is closed by the worker thread once the search it may still be running
+     * is over, so that the search is never cut off in the middle of a
+     * response.
+     */
+    public void close() {
+        if (pending != null) {
+            pending.cancel(true);
+            pending = null;
+        }
+        executor.submit(new Runnable() {
+            public void run() {
+                try {
+                    ctx.close();
+                } catch (NamingException e) {
+                    log.warn(e, "Failed to close the prefetch context");
+                }
+            }
+        });
+        executor.shutdown();
+    }
+
+    private Block fetch(String baseDN, String query, SearchControls searchControls, Control[] requestControls) throws NamingException {
+        log.ok("Prefetching block in {0} with filter {1}", baseDN, query);
+        long start = System.currentTimeMillis();
+        ctx.setRequestControls(requestControls);
+        List<SearchResult> results = new ArrayList<SearchResult>();
+        boolean partial = false;
+        NamingEnumeration<SearchResult> enumeration = ctx.search(baseDN, query, searchControls);
+        try {
+            while (enumeration.hasMore()) {
+                results.add(enumeration.next());
+            }
+        } catch (PartialResultException e) {
+            log.ok("PartialResultException caught: {0}", e.getRemainingName());
+            partial = true;
+        } finally {
+            enumeration.close();
+        }
+        return new Block(results, ctx.getResponseControls(), partial, System.currentTimeMillis() - start);
+    }
+
+    public static final class Block {
+
+        private final List<SearchResult> results;
+        private final Control[] responseControls;
+        private final boolean partial;
+        private final long elapsedMillis;
+
+        Block(List<SearchResult> results, Control[] responseControls, boolean partial, long elapsedMillis) {
+            this.results = results;
+            this.responseControls = responseControls;
+            this.partial = partial;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public List<SearchResult> getResults() {
+            return results;
+        }
+
+        public Control[] getResponseControls() {
+            return responseControls;
+        }
+
+        /**
+         * Returns true if the server reported a referral or partial result
+         * for this block.
+         */
+        public boolean isPartial() {
+            return partial;
+        }
+
+        /**
+         * Returns the time it took to read this block from the server.
+         */
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+    }
+}
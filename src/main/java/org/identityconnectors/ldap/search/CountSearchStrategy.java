@@ -0,0 +1,190 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.search;
+
+import java.io.IOException;
+import java.util.List;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+
+import org.identityconnectors.common.logging.Log;
+
+/**
+ * Counts the entries matching a search without transferring them. The count
+ * is the content count of a VLV response or the result size estimate of a
+ * simple paged results response when the server supports these controls and
+ * returns them. Otherwise the DNs of the matching entries are counted, page by
+ * page when the server supports simple paged results, which is still much
+ * cheaper than reading the entries. The search results handler
+ * is never called.
+ */
+public class CountSearchStrategy extends LdapSearchStrategy {
+
+    private static final Log log = Log.getLog(CountSearchStrategy.class);
+
+    /**
+     * The attribute list which asks the server to return no attributes.
+     */
+    public static final String NO_ATTRIBUTES = "1.1";
+
+    /**
+     * The page size used to count DNs, below the default page size limit of
+     * Active Directory.
+     */
+    static final int COUNT_PAGE_SIZE = 500;
+
+    private final String vlvSortAttr;
+    private final boolean usePagedResults;
+
+    private int count;
+
+    /**
+     * @param vlvSortAttr the VLV sort attribute, or {@code null} if the server
+     *            does not support VLV.
+     * @param usePagedResults whether the server supports simple paged results.
+     */
+    public CountSearchStrategy(String vlvSortAttr, boolean usePagedResults) {
+        this.vlvSortAttr = vlvSortAttr;
+        this.usePagedResults = usePagedResults;
+    }
+
+    @Override
+    public void doSearch(LdapContext initCtx, List<String> baseDNs, String query, SearchControls searchControls, LdapSearchResultsHandler handler) throws IOException, NamingException {
+        log.ok("Counting in {0} with filter {1} and {2}", baseDNs, query, searchControlsToString(searchControls));
+
+        SearchControls countControls = new SearchControls(searchControls.getSearchScope(), searchControls.getCountLimit(),
+                searchControls.getTimeLimit(), new String[] { NO_ATTRIBUTES }, false, searchControls.getDerefLinkFlag());
+        count = 0;
+        LdapContext ctx = initCtx.newInstance(null);
+        try {
+            for (String baseDN : baseDNs) {
+                count += countBaseDN(ctx, baseDN, query, countControls);
+            }
+        } finally {
+            ctx.close();
+        }
+    }
+
+    @Override
+    public boolean isRestartable() {
+        return false;
+    }
+
+    /**
+     * Returns the number of entries counted by the last search.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    private int countBaseDN(LdapContext ctx, String baseDN, String query, SearchControls searchControls) throws IOException, NamingException {
+        if (vlvSortAttr != null) {
+            try {
+                ctx.setRequestControls(VlvIndexSearchStrategy.createCountRequestControls(vlvSortAttr));
+                drain(ctx.search(baseDN, query, searchControls));
+                int contentCount = VlvIndexSearchStrategy.getContentCount(ctx.getResponseControls());
+                if (contentCount >= 0) {
+                    log.ok("VLV content count in {0}: {1}", baseDN, contentCount);
+                    return contentCount;
+                }
+            } catch (NamingException e) {
+                // No VLV index matching this search, for example.
+                log.ok("VLV count failed in {0}: {1}", baseDN, e.getMessage());
+            }
+        }
+        if (usePagedResults) {
+            return countPaged(ctx, baseDN, query, searchControls);
+        }
+        log.ok("No count estimate from the server for {0}, counting DNs", baseDN);
+        ctx.setRequestControls(null);
+        return drain(ctx.search(baseDN, query, searchControls));
+    }
+
+    /**
+     * Asks for a first page of one entry to get the result size estimate of the
+     * server. Without one, which is always the case with Active Directory, the
+     * DNs are counted page by page, so that the search stays within the size
+     * limits of the server.
+     */
+    private int countPaged(LdapContext ctx, String baseDN, String query, SearchControls searchControls) throws IOException, NamingException {
+        int read = 0;
+        byte[] cookie = null;
+        do {
+            int pageSize = cookie == null ? 1 : COUNT_PAGE_SIZE;
+            ctx.setRequestControls(new Control[] { new PagedResultsControl(pageSize, cookie, Control.CRITICAL) });
+            read += drain(ctx.search(baseDN, query, searchControls));
+            PagedResultsResponseControl pagedControl = getPagedControl(ctx.getResponseControls());
+            if (pagedControl == null) {
+                return read;
+            }
+            if (cookie == null && pagedControl.getResultSize() > 0 && !isLastPage(pagedControl.getCookie())) {
+                // Abandon the paged search on the server side.
+                ctx.setRequestControls(new Control[] { new PagedResultsControl(0, pagedControl.getCookie(), Control.CRITICAL) });
+                drain(ctx.search(baseDN, query, searchControls));
+                log.ok("Paged results size in {0}: {1}", baseDN, pagedControl.getResultSize());
+                return pagedControl.getResultSize();
+            }
+            if (cookie == null && !isLastPage(pagedControl.getCookie())) {
+                log.ok("No count estimate from the server for {0}, counting DNs", baseDN);
+            }
+            cookie = pagedControl.getCookie();
+        } while (!isLastPage(cookie));
+        return read;
+    }
+
+    private static boolean isLastPage(byte[] cookie) {
+        return cookie == null || cookie.length == 0;
+    }
+
+    private static int drain(NamingEnumeration<SearchResult> results) throws NamingException {
+        int read = 0;
+        try {
+            while (results.hasMore()) {
+                results.next();
+                read++;
+            }
+        } finally {
+            results.close();
+        }
+        return read;
+    }
+
+    private static PagedResultsResponseControl getPagedControl(Control[] controls) {
+        if (controls != null) {
+            for (Control control : controls) {
+                if (control instanceof PagedResultsResponseControl) {
+                    return (PagedResultsResponseControl) control;
+                }
+            }
+        }
+        return null;
+    }
+}
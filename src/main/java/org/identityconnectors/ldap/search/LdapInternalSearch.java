@@ -32,6 +32,7 @@ import javax.naming.NameNotFoundException;
 import javax.naming.NamingException;
 import javax.naming.PartialResultException;
 import javax.naming.directory.SearchControls;
+import javax.naming.ldap.PagedResultsControl;
 
 import org.identityconnectors.framework.common.exceptions.ConnectorException;
 import org.identityconnectors.ldap.LdapConnection;
@@ -61,7 +62,12 @@ public class LdapInternalSearch {
     public void execute(LdapSearchResultsHandler handler) {
         String filter = blankAsAllObjects(this.filter);
         try {
-            strategy.doSearch(conn.getInitialContext(), baseDNs, filter, controls, handler);
+            if (conn.getConfiguration().isSplitSearchesOnLimits() && strategy.isRestartable()) {
+                new SearchPartitioner(conn.getInitialContext(), strategy, conn.getConfiguration().getSplitSearchAttribute(),
+                        getChildrenStrategy(), handler).search(baseDNs, filter, controls);
+            } else {
+                strategy.doSearch(conn.getInitialContext(), baseDNs, filter, controls, handler);
+            }
         } catch (IOException e) {
             throw new ConnectorException(e);
         } catch (PartialResultException e) {
@@ -85,6 +91,17 @@ public class LdapInternalSearch {
         }
     }
 
+    /**
+     * Returns the strategy listing the children of an entry to split a search,
+     * paged when the server allows it.
+     */
+    private LdapSearchStrategy getChildrenStrategy() {
+        if (conn.supportsControl(PagedResultsControl.OID)) {
+            return new SimplePagedSearchStrategy(conn.getConfiguration().getBlockSize());
+        }
+        return new DefaultSearchStrategy(false);
+    }
+
     private static String blankAsAllObjects(String query) {
         return isNotBlank(query) ? query : "(objectClass=*)";
     }
@@ -38,6 +38,7 @@ import org.forgerock.opendj.ldap.controls.VirtualListViewRequestControl;
 
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
 import org.identityconnectors.framework.common.objects.Attribute;
 import org.identityconnectors.framework.common.objects.AttributeBuilder;
 import org.identityconnectors.framework.common.objects.AttributeInfo;
@@ -134,9 +135,17 @@ public class LdapSearch {
      * @throws NamingException if a JNDI exception occurs.
      */
     public final void execute(final ResultsHandler handler) {
+        if (LdapConstants.isCountOnly(options)) {
+            // Returning the entries instead of the count would defeat the purpose of the option.
+            if (!(handler instanceof SearchResultsHandler)) {
+                throw new ConnectorException("The " + LdapConstants.COUNT_ONLY_NAME + " option needs a handler accepting the search result");
+            }
+            ((SearchResultsHandler) handler).handleResult(new org.identityconnectors.framework.common.objects.SearchResult(null, count()));
+            return;
+        }
         final String[] attrsToGetOption = options.getAttributesToGet();
         final Set<String> attrsToGet = getAttributesToGet(attrsToGetOption);
-        LdapInternalSearch search = getInternalSearch(attrsToGet);
+        LdapInternalSearch search = getInternalSearch(attrsToGet, null);
         search.execute(new LdapSearchResultsHandler() {
             public boolean handle(String baseDN, SearchResult result) throws NamingException {
                 return handler.handle(createConnectorObject(baseDN, result, attrsToGet, attrsToGetOption != null));
@@ -152,7 +161,7 @@ public class LdapSearch {
         final String[] attrsToGetOption = options.getAttributesToGet();
         final Set<String> attrsToGet = getAttributesToGet(attrsToGetOption);
         final ConnectorObject[] results = new ConnectorObject[]{null};
-        LdapInternalSearch search = getInternalSearch(attrsToGet);
+        LdapInternalSearch search = getInternalSearch(attrsToGet, null);
         search.execute(new LdapSearchResultsHandler() {
             public boolean handle(String baseDN, SearchResult result) throws NamingException {
                 results[0] = createConnectorObject(baseDN, result, attrsToGet, attrsToGetOption != null);
@@ -162,7 +171,54 @@ public class LdapSearch {
         return results[0];
     }
 
-    private LdapInternalSearch getInternalSearch(Set<String> attrsToGet) {
+    /**
+     * Returns the number of entries matching the query, estimated by the
+     * server when it supports the VLV or simple paged results control. No
+     * entries are transferred.
+     */
+    public final int count() {
+        final int[] results = new int[]{0};
+        CountSearchStrategy countStrategy = null;
+        if (filter == null || filter.getEntryDN() == null) {
+            countStrategy = getCountStrategy();
+        }
+        LdapInternalSearch search = getInternalSearch(new String[]{CountSearchStrategy.NO_ATTRIBUTES}, countStrategy);
+        search.execute(new LdapSearchResultsHandler() {
+            public boolean handle(String baseDN, SearchResult result) throws NamingException {
+                results[0]++;
+                return true;
+            }
+        });
+        return countStrategy != null ? countStrategy.getCount() : results[0];
+    }
+
+    /**
+     * Executes the query against all configured base DNs and returns the DN of
+     * the first matching entry or {@code null}. No attributes are requested
+     * and no {@link ConnectorObject} is created.
+     */
+    public final String getSingleEntryDN() {
+        final String[] results = new String[]{null};
+        LdapInternalSearch search = getInternalSearch(new String[]{CountSearchStrategy.NO_ATTRIBUTES}, new DefaultSearchStrategy(false));
+        search.execute(new LdapSearchResultsHandler() {
+            public boolean handle(String baseDN, SearchResult result) throws NamingException {
+                results[0] = LdapEntry.create(baseDN, result).getDN().toString();
+                return false;
+            }
+        });
+        return results[0];
+    }
+
+    private LdapInternalSearch getInternalSearch(Set<String> attrsToGet, LdapSearchStrategy strategy) {
+        Set<String> ldapAttrsToGet = getLdapAttributesToGet(attrsToGet);
+        return getInternalSearch(ldapAttrsToGet.toArray(new String[ldapAttrsToGet.size()]), strategy);
+    }
+
+    /**
+     * @param strategy the strategy to use, or {@code null} to choose it from
+     *            the configuration and the options.
+     */
+    private LdapInternalSearch getInternalSearch(String[] ldapAttrsToGet, LdapSearchStrategy strategy) {
         // This is a bit tricky. If the LdapFilter has an entry DN,
         // we only need to look at that entry and check whether it matches
         // the native filter. Moreover, when looking at the entry DN
@@ -174,7 +230,6 @@ public class LdapSearch {
         // will just search over our base DNs looking for entries
         // matching the native filter.
 
-        LdapSearchStrategy strategy;
         List<String> baseDNs;
         int searchScope;
 
@@ -187,14 +242,15 @@ public class LdapSearch {
             baseDNs = singletonList(filterEntryDN);
             searchScope = SearchControls.OBJECT_SCOPE;
         } else {
-            strategy = getSearchStrategy();
+            if (strategy == null) {
+                strategy = getSearchStrategy();
+            }
             baseDNs = getBaseDNs();
             searchScope = getLdapSearchScope();
         }
 
         SearchControls controls = LdapInternalSearch.createDefaultSearchControls();
-        Set<String> ldapAttrsToGet = getLdapAttributesToGet(attrsToGet);
-        controls.setReturningAttributes(ldapAttrsToGet.toArray(new String[ldapAttrsToGet.size()]));
+        controls.setReturningAttributes(ldapAttrsToGet);
         controls.setSearchScope(searchScope);
 
         String optionsFilter = LdapConstants.getSearchFilter(options);
@@ -416,12 +472,22 @@ public class LdapSearch {
         return result;
     }
 
+    private CountSearchStrategy getCountStrategy() {
+        String vlvSortAttr = null;
+        if (conn.getConfiguration().isUseBlocks() && !conn.getConfiguration().isUsePagedResultControl()
+                && conn.supportsControl(VirtualListViewRequestControl.OID)) {
+            vlvSortAttr = conn.getConfiguration().getVlvSortAttribute();
+        }
+        return new CountSearchStrategy(vlvSortAttr, conn.supportsControl(PagedResultsControl.OID));
+    }
+
     private LdapSearchStrategy getSearchStrategy() {
         LdapSearchStrategy strategy;
 
         boolean useBlocks = conn.getConfiguration().isUseBlocks();
         boolean usePagedResultsControl = conn.getConfiguration().isUsePagedResultControl();
-        int pageSize = conn.getConfiguration().getBlockSize();
+        AdaptiveBlockSize pageSize = AdaptiveBlockSize.create(conn.getConfiguration(), conn.getConfiguration().getBlockSize());
+        boolean prefetch = conn.getConfiguration().isPrefetchBlocks();
         SortKey[] sortKeys = null;
 
         if (options.getSortKeys() != null && options.getSortKeys().length > 0) {
@@ -434,9 +500,9 @@ public class LdapSearch {
             strategy = new PagedSearchStrategy(options.getPageSize(), options.getPagedResultsCookie(), options.getPagedResultsOffset(), (SearchResultsHandler) handler, sortKeys);
         } else if (useBlocks && !usePagedResultsControl && conn.supportsControl(VirtualListViewRequestControl.OID)) {
             String vlvSortAttr = conn.getConfiguration().getVlvSortAttribute();
-            strategy = new VlvIndexSearchStrategy(vlvSortAttr, pageSize);
+            strategy = new VlvIndexSearchStrategy(vlvSortAttr, pageSize, prefetch);
         } else if (useBlocks && conn.supportsControl(PagedResultsControl.OID)) {
-            strategy = new SimplePagedSearchStrategy(pageSize, sortKeys);
+            strategy = new SimplePagedSearchStrategy(pageSize, sortKeys, prefetch);
         } else {
             strategy = new DefaultSearchStrategy(false, sortKeys);
         }
@@ -36,6 +36,14 @@ public abstract class LdapSearchStrategy {
     public abstract void doSearch(LdapContext initCtx, List<String> baseDNs, String query, SearchControls searchControls, LdapSearchResultsHandler handler)
             throws IOException, NamingException;
 
+    /**
+     * Returns true if this strategy may be run again over other base DNs,
+     * filters or scopes, which is needed to split a search hitting a server limit.
+     */
+    public boolean isRestartable() {
+        return true;
+    }
+
     static String searchControlsToString(SearchControls controls) {
         StringBuilder builder = new StringBuilder();
         builder.append("SearchControls: {returningAttributes=");
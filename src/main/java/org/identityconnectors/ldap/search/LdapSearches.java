@@ -38,7 +38,6 @@ import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.framework.common.exceptions.ConnectorException;
 import org.identityconnectors.framework.common.exceptions.UnknownUidException;
 import org.identityconnectors.framework.common.objects.Attribute;
-import org.identityconnectors.framework.common.objects.AttributeUtil;
 import org.identityconnectors.framework.common.objects.ConnectorObject;
 import org.identityconnectors.framework.common.objects.ObjectClass;
 import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
@@ -112,13 +111,11 @@ public class LdapSearches {
         }
         assert ldapFilter != null;
 
-        OperationOptionsBuilder builder = new OperationOptionsBuilder();
-        builder.setAttributesToGet("entryDN");
-
-        LdapSearch search = new LdapSearch(conn, oclass, ldapFilter, null, builder.build());
-        ConnectorObject object = search.getSingleResult();
-        if (object != null) {
-            return AttributeUtil.getStringValue(object.getAttributeByName("entryDN"));
+        // Only the DN is needed, so no attributes are requested and no ConnectorObject is created.
+        LdapSearch search = new LdapSearch(conn, oclass, ldapFilter, null, new OperationOptionsBuilder().build());
+        String entryDN = search.getSingleEntryDN();
+        if (entryDN != null) {
+            return entryDN;
         }
         throw new UnknownUidException(uid, oclass);
     }
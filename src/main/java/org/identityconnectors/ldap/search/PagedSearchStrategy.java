@@ -68,6 +68,8 @@ public class PagedSearchStrategy extends LdapSearchStrategy {
 
         String returnedCookie = null;
         int context = 0;
+        // Entries already read from the current base context, in previous pages or skipped.
+        int consumed = 0;
         int remainingResults = -1;
         boolean proceed = true;
         boolean needMore = false;
@@ -88,19 +90,10 @@ public class PagedSearchStrategy extends LdapSearchStrategy {
         // Cookie
         if (StringUtil.isNotBlank(pagedResultsCookie)) {
             // we need to determine which base context we're dealing with...
-            // The cookie value is <base64 encoded LDAP cookie>:<index in baseDNs>
-            String[] split = pagedResultsCookie.split(":", 2);
-            // bit of sanity check...
-            if (split.length == 2) {
-                try {
-                    cookie = Base64.decode(split[0]);
-                } catch (RuntimeException e) {
-                    throw new ConnectorException("PagedResultsCookie is not properly encoded", e);
-                }
-                context = Integer.valueOf(split[1]);
-            } else {
-                throw new ConnectorException("PagedResultsCookie is not properly formatted");
-            }
+            ResultsCookie resultsCookie = ResultsCookie.parse(pagedResultsCookie);
+            cookie = resultsCookie.getCookie();
+            context = resultsCookie.getContext();
+            consumed = resultsCookie.getConsumed();
         }
 
         LdapContext ctx = initCtx.newInstance(null);
@@ -134,11 +127,13 @@ public class PagedSearchStrategy extends LdapSearchStrategy {
                         while (results.hasMore()) {
                             results.next();
                             records++;
+                            consumed++;
                         }
                         // We have less results than the pageSize and we're spanning multiple contexts...
                         if ((records < pageSize) && (context + 1 < baseDNs.size())) {
                             needMore = true;
                             context++;
+                            consumed = 0;
                             cookie = null;
                         } else {
                             needMore = false;
@@ -149,6 +144,7 @@ public class PagedSearchStrategy extends LdapSearchStrategy {
                                 // make sure we iterate over the suffix
                                 if ((null == cookie) && (context + 1 < baseDNs.size())) {
                                     context++;
+                                    consumed = 0;
                                 }
                             }
                         }
@@ -163,11 +159,13 @@ public class PagedSearchStrategy extends LdapSearchStrategy {
                         while (results.hasMore()) {
                             results.next();
                             records++;
+                            consumed++;
                         }
                         // We have less results than the pageSize and we're spanning multiple contexts...
                         if ((records < left) && (context + 1 < baseDNs.size())) {
                             needMore = true;
                             context++;
+                            consumed = 0;
                             cookie = null;
                         } else {
                             needMore = false;
@@ -178,6 +176,7 @@ public class PagedSearchStrategy extends LdapSearchStrategy {
                                 // make sure we iterate over the suffix
                                 if ((null == cookie) && (context + 1 < baseDNs.size())) {
                                     context++;
+                                    consumed = 0;
                                 }
                             }
                         }
@@ -194,11 +193,13 @@ public class PagedSearchStrategy extends LdapSearchStrategy {
                 while (proceed && results.hasMore()) {
                     proceed = handler.handle(baseDNs.get(context), results.next());
                     records++;
+                    consumed++;
                 }
                 // We have less results than the pageSize and we're spanning multiple contexts...
                 if ((records < pageSize) && (context + 1 < baseDNs.size())) {
                     needMore = true;
                     context++;
+                    consumed = 0;
                     cookie = null;
                 } else {
                     needMore = false;
@@ -208,9 +209,10 @@ public class PagedSearchStrategy extends LdapSearchStrategy {
                         // if ever cookie is null, we've just reached the last page of that suffix
                         // make sure we iterate over the suffix and prepare a special cookie for next request
                         if ((null == cookie) && (context + 1 < baseDNs.size())) {
-                            returnedCookie = ":"+ (context+1);
+                            returnedCookie = new ResultsCookie(null, context + 1, 0).encode();
                         }
                     }
+                    remainingResults = getRemainingResults(pagedControl, cookie, context + 1 == baseDNs.size(), consumed);
                 }
                 results.close();
             } while (needMore);
@@ -223,11 +225,20 @@ public class PagedSearchStrategy extends LdapSearchStrategy {
             ctx.close();
         }
         if (cookie != null) {
-            returnedCookie = Base64.encode(cookie).concat(":" + context);
+            returnedCookie = new ResultsCookie(cookie, context, consumed).encode();
         }
         searchResultHandler.handleResult(new org.identityconnectors.framework.common.objects.SearchResult(returnedCookie, remainingResults));
     }
 
+    /**
+     * The page returned to the caller and its cookie only make sense for the
+     * search as a whole, so it cannot be split.
+     */
+    @Override
+    public boolean isRestartable() {
+        return false;
+    }
+
     private void setControls(LdapContext ctx, int pageSize, byte[] cookie, SortControl sortControl) {
         try {
             if (sortControl != null) {
@@ -241,17 +252,77 @@ public class PagedSearchStrategy extends LdapSearchStrategy {
         }
     }
 
-    private byte[] getResponseCookie(Control[] controls) {
-        if (controls != null) {
-            for (Control control : controls) {
-                if (control instanceof PagedResultsResponseControl) {
-                    PagedResultsResponseControl pagedControl = (PagedResultsResponseControl) control;
-                    pagedControl.getResultSize();
-                    return pagedControl.getCookie();
+    /**
+     * Returns the number of results left after this page, based on the result
+     * set size estimated by the server, or -1 if unknown.
+     */
+    static int getRemainingResults(PagedResultsResponseControl pagedControl, byte[] cookie, boolean lastContext, int consumed) {
+        if (cookie == null || cookie.length == 0) {
+            // Last page of this base context.
+            return lastContext ? 0 : -1;
+        }
+        // The result size is only known for the current base context,
+        // and servers send 0 when they have no estimate.
+        if (!lastContext || pagedControl == null || pagedControl.getResultSize() <= 0) {
+            return -1;
+        }
+        return Math.max(0, pagedControl.getResultSize() - consumed);
+    }
+
+    /**
+     * The cookie returned to the caller. Its value is
+     * {@code <base64 encoded LDAP cookie>:<index in baseDNs>:<entries read in that base DN>},
+     * where the last part is missing from the cookies of older versions.
+     */
+    static final class ResultsCookie {
+
+        private final byte[] cookie;
+        private final int context;
+        private final int consumed;
+
+        ResultsCookie(byte[] cookie, int context, int consumed) {
+            this.cookie = cookie;
+            this.context = context;
+            this.consumed = consumed;
+        }
+
+        static ResultsCookie parse(String value) {
+            String[] split = value.split(":", 3);
+            // bit of sanity check...
+            if (split.length < 2) {
+                throw new ConnectorException("PagedResultsCookie is not properly formatted");
+            }
+            try {
+                byte[] cookie = Base64.decode(split[0]);
+                int context = Integer.valueOf(split[1]);
+                int consumed = split.length == 3 ? Integer.valueOf(split[2]) : 0;
+                if (context < 0 || consumed < 0) {
+                    throw new ConnectorException("PagedResultsCookie is not properly formatted");
                 }
+                return new ResultsCookie(cookie, context, consumed);
+            } catch (ConnectorException e) {
+                throw e;
+            } catch (RuntimeException e) {
+                throw new ConnectorException("PagedResultsCookie is not properly encoded", e);
             }
         }
-        return null;
+
+        String encode() {
+            String encoded = cookie != null ? Base64.encode(cookie) : "";
+            return encoded + ":" + context + ":" + consumed;
+        }
+
+        byte[] getCookie() {
+            return cookie;
+        }
+
+        int getContext() {
+            return context;
+        }
+
+        int getConsumed() {
+            return consumed;
+        }
     }
 
     private PagedResultsResponseControl getPagedControl(Control[] controls) {
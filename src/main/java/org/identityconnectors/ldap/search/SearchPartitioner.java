@@ -0,0 +1,250 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.search;
+
+import static java.util.Collections.singletonList;
+import static org.identityconnectors.common.StringUtil.isBlank;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.naming.LimitExceededException;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.LdapContext;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.ldap.LdapEntry;
+
+/**
+ * Runs a search which, when it fails because a server size, time or
+ * lookthrough limit was exceeded, is split into smaller searches run in its
+ * place. A search is split either by the prefixes of the values of a key
+ * attribute, or, for subtree searches, into a search of the base entry and one
+ * subtree search per child entry. Split searches which fail again are split
+ * further.
+ *
+ * <p>The DNs of the entries returned by a search which did not complete, and
+ * of all the entries returned once a search has been split, are remembered, so
+ * that no entry is passed twice to the handler. A multi-valued key attribute
+ * may match an entry in several partitions.</p>
+ *
+ * <p>Without a key attribute, the children of the base entry are listed with
+ * a strategy of their own, which should page them. When even that listing
+ * exceeds a server limit, the key attribute must be configured.</p>
+ */
+class SearchPartitioner {
+
+    private static final Log log = Log.getLog(SearchPartitioner.class);
+
+    /**
+     * The characters appended to a prefix when splitting by key attribute.
+     * Values are expected to be matched case insensitively.
+     */
+    static final String PREFIX_CHARS = "abcdefghijklmnopqrstuvwxyz0123456789";
+
+    /**
+     * The longest prefix a search is split by.
+     */
+    static final int MAX_PREFIX_LENGTH = 4;
+
+    private final LdapContext ctx;
+    private final LdapSearchStrategy strategy;
+    private final String keyAttr;
+    private final LdapSearchStrategy childrenStrategy;
+    private final LdapSearchResultsHandler handler;
+
+    private final Set<String> returned = new HashSet<String>();
+    private boolean split;
+    private boolean stopped;
+
+    /**
+     * @param childrenStrategy the strategy listing the children of an entry
+     *            when there is no key attribute.
+     */
+    SearchPartitioner(LdapContext ctx, LdapSearchStrategy strategy, String keyAttr, LdapSearchStrategy childrenStrategy, LdapSearchResultsHandler handler) {
+        this.ctx = ctx;
+        this.strategy = strategy;
+        this.keyAttr = isBlank(keyAttr) ? null : keyAttr;
+        this.childrenStrategy = childrenStrategy;
+        this.handler = handler;
+    }
+
+    void search(List<String> baseDNs, String filter, SearchControls controls) throws IOException, NamingException {
+        LimitExceededException limit = tryPartition(baseDNs, filter, controls);
+        if (limit == null) {
+            return;
+        }
+        // The failing base DN is not known, so each one is searched again on its own.
+        for (String baseDN : baseDNs) {
+            if (stopped) {
+                return;
+            }
+            List<String> single = new ArrayList<String>(1);
+            single.add(baseDN);
+            searchPartition(single, filter, controls, "");
+        }
+    }
+
+    private void searchPartition(List<String> baseDNs, String filter, SearchControls controls, String prefix) throws IOException, NamingException {
+        LimitExceededException limit = tryPartition(baseDNs, filter, controls);
+        if (limit == null || stopped) {
+            return;
+        }
+        if (keyAttr != null) {
+            if (prefix.length() >= MAX_PREFIX_LENGTH) {
+                throw limit;
+            }
+            for (int i = 0; i < PREFIX_CHARS.length() && !stopped; i++) {
+                String childPrefix = prefix + PREFIX_CHARS.charAt(i);
+                searchPartition(baseDNs, andFilter(filter, prefixFilter(keyAttr, childPrefix)), controls, childPrefix);
+            }
+            if (!stopped) {
+                // Values equal to the prefix or followed by other characters, and entries without the attribute.
+                String remainder = andFilter(filter, remainderFilter(keyAttr, prefix));
+                LimitExceededException remainderLimit = tryPartition(baseDNs, remainder, controls);
+                if (remainderLimit != null && !stopped) {
+                    throw remainderLimit;
+                }
+            }
+        } else if (controls.getSearchScope() == SearchControls.SUBTREE_SCOPE) {
+            String baseDN = baseDNs.get(0);
+            List<String> children = getChildren(baseDN);
+            log.info("Splitting search in {0} into {1} child searches", baseDN, children.size());
+            List<String> single = new ArrayList<String>(1);
+            single.add(baseDN);
+            LimitExceededException baseLimit = tryPartition(single, filter, withScope(controls, SearchControls.OBJECT_SCOPE));
+            if (baseLimit != null && !stopped) {
+                throw baseLimit;
+            }
+            for (String child : children) {
+                if (stopped) {
+                    return;
+                }
+                List<String> childDN = new ArrayList<String>(1);
+                childDN.add(child);
+                searchPartition(childDN, filter, controls, prefix);
+            }
+        } else {
+            throw limit;
+        }
+    }
+
+    /**
+     * Runs a search, returning the limit it exceeded, or {@code null} if it
+     * completed or the handler asked to stop.
+     */
+    private LimitExceededException tryPartition(List<String> baseDNs, String filter, SearchControls controls) throws IOException, NamingException {
+        // Until the search is split, the DNs are only needed if it fails.
+        final Set<String> partitionReturned = split ? returned : new HashSet<String>();
+        final int[] count = { 0 };
+        try {
+            strategy.doSearch(ctx, baseDNs, filter, controls, new LdapSearchResultsHandler() {
+                public boolean handle(String baseDN, SearchResult result) throws NamingException {
+                    String dn = LdapEntry.create(baseDN, result).getDN().toString();
+                    if (returned.contains(dn)) {
+                        return true;
+                    }
+                    partitionReturned.add(dn);
+                    count[0]++;
+                    if (!handler.handle(baseDN, result)) {
+                        stopped = true;
+                    }
+                    return !stopped;
+                }
+            });
+            return null;
+        } catch (LimitExceededException e) {
+            if (stopped) {
+                return null;
+            }
+            log.info("Search in {0} with filter {1} exceeded a server limit after {2} entries: {3}",
+                    baseDNs, filter, count[0], e.getMessage());
+            if (!split) {
+                returned.addAll(partitionReturned);
+                split = true;
+            }
+            return e;
+        }
+    }
+
+    private List<String> getChildren(String baseDN) throws IOException, NamingException {
+        final List<String> result = new ArrayList<String>();
+        SearchControls controls = new SearchControls(SearchControls.ONELEVEL_SCOPE, 0, 0, new String[] { CountSearchStrategy.NO_ATTRIBUTES }, false, false);
+        try {
+            childrenStrategy.doSearch(ctx, singletonList(baseDN), "(objectClass=*)", controls, new LdapSearchResultsHandler() {
+                public boolean handle(String baseDN, SearchResult searchResult) throws NamingException {
+                    result.add(LdapEntry.create(baseDN, searchResult).getDN().toString());
+                    return true;
+                }
+            });
+        } catch (LimitExceededException e) {
+            throw new ConnectorException("Unable to list the children of " + baseDN
+                    + " to split a search exceeding a server limit, set a split search attribute", e);
+        }
+        return result;
+    }
+
+    private static SearchControls withScope(SearchControls controls, int scope) {
+        return new SearchControls(scope, controls.getCountLimit(), controls.getTimeLimit(),
+                controls.getReturningAttributes(), controls.getReturningObjFlag(), controls.getDerefLinkFlag());
+    }
+
+    static String andFilter(String filter, String clause) {
+        if (!filter.startsWith("(")) {
+            filter = "(" + filter + ")";
+        }
+        return "(&" + filter + clause + ")";
+    }
+
+    static String prefixFilter(String attr, String prefix) {
+        return "(" + attr + "=" + prefix + "*)";
+    }
+
+    /**
+     * Returns the filter matching the entries not matched by any of the
+     * prefix filters one character longer than the given prefix.
+     */
+    static String remainderFilter(String attr, String prefix) {
+        StringBuilder builder = new StringBuilder();
+        if (prefix.length() > 0) {
+            builder.append("(&");
+            builder.append(prefixFilter(attr, prefix));
+        }
+        builder.append("(!(|");
+        for (int i = 0; i < PREFIX_CHARS.length(); i++) {
+            builder.append(prefixFilter(attr, prefix + PREFIX_CHARS.charAt(i)));
+        }
+        builder.append("))");
+        if (prefix.length() > 0) {
+            builder.append(')');
+        }
+        return builder.toString();
+    }
+}
@@ -45,24 +45,36 @@ public class SimplePagedSearchStrategy extends LdapSearchStrategy {
 
     private static final Log log = Log.getLog(SimplePagedSearchStrategy.class);
 
-    private final int pageSize;
+    private final AdaptiveBlockSize pageSize;
     private final SortKey[] sortKeys;
+    private final boolean prefetch;
 
     public SimplePagedSearchStrategy(int pageSize) {
-        this.pageSize = pageSize;
-        this.sortKeys = null;
+        this(pageSize, null, false);
     }
     
     public SimplePagedSearchStrategy(int pageSize, SortKey[] sortKeys) {
+        this(pageSize, sortKeys, false);
+    }
+
+    /**
+     * @param prefetch if true, the next page is requested on a second context
+     *            while the current one is being handled.
+     */
+    public SimplePagedSearchStrategy(int pageSize, SortKey[] sortKeys, boolean prefetch) {
+        this(AdaptiveBlockSize.fixed(pageSize), sortKeys, prefetch);
+    }
+
+    public SimplePagedSearchStrategy(AdaptiveBlockSize pageSize, SortKey[] sortKeys, boolean prefetch) {
         this.pageSize = pageSize;
         this.sortKeys = sortKeys;
+        this.prefetch = prefetch;
     }
 
     @Override
     public void doSearch(LdapContext initCtx, List<String> baseDNs, String query, SearchControls searchControls, LdapSearchResultsHandler handler) throws IOException, NamingException {
         log.ok("Searching in {0} with filter {1} and {2}", baseDNs, query, searchControlsToString(searchControls));
 
-        LdapContext ctx = initCtx.newInstance(null);
         SortControl sortControl = null;
         
         if (sortKeys != null && sortKeys.length > 0){
@@ -73,7 +85,13 @@ public class SimplePagedSearchStrategy extends LdapSearchStrategy {
             // We don't want to make this critical... better return unsorted results than nothing.
             sortControl = new SortControl(skis, Control.NONCRITICAL);
         }
-        
+
+        if (prefetch) {
+            doPrefetchedSearch(initCtx, baseDNs, query, searchControls, sortControl, handler);
+            return;
+        }
+
+        LdapContext ctx = initCtx.newInstance(null);
         try {
             Iterator<String> baseDNIter = baseDNs.iterator();
             boolean proceed = true;
@@ -82,20 +100,29 @@ public class SimplePagedSearchStrategy extends LdapSearchStrategy {
                 String baseDN = baseDNIter.next();
                 byte[] cookie = null;
                 do {
-                    if (sortControl != null) {
-                        ctx.setRequestControls(new Control[]{new PagedResultsControl(pageSize, cookie, Control.CRITICAL), sortControl});
-                    } else {
-                        ctx.setRequestControls(new Control[]{new PagedResultsControl(pageSize, cookie, Control.CRITICAL)});
-                    }
+                    ctx.setRequestControls(createRequestControls(cookie, sortControl));
+                    // The time spent in the handler is not part of the page response time.
+                    long start = System.currentTimeMillis();
+                    long handlerMillis = 0;
+                    int entries = 0;
+                    long bytes = 0;
                     NamingEnumeration<SearchResult> results = ctx.search(baseDN, query, searchControls);
                     try {
                         while (proceed && results.hasMore()) {
-                            proceed = handler.handle(baseDN, results.next());
+                            SearchResult result = results.next();
+                            entries++;
+                            if (pageSize.isAdaptive()) {
+                                bytes += AdaptiveBlockSize.estimateSize(result);
+                            }
+                            long handlerStart = System.currentTimeMillis();
+                            proceed = handler.handle(baseDN, result);
+                            handlerMillis += System.currentTimeMillis() - handlerStart;
                         }
                     } catch (PartialResultException e) {
                         log.ok("PartialResultException caught: {0}",e.getRemainingName());
                         results.close();
                     } 
+                    pageSize.record(entries, System.currentTimeMillis() - start - handlerMillis, bytes);
                     cookie = getResponseCookie(ctx.getResponseControls());
                 } while (cookie != null);
             }
@@ -104,6 +131,61 @@ public class SimplePagedSearchStrategy extends LdapSearchStrategy {
         }
     }
 
+    private void doPrefetchedSearch(LdapContext initCtx, List<String> baseDNs, String query, SearchControls searchControls, SortControl sortControl, LdapSearchResultsHandler handler) throws IOException, NamingException {
+        BlockPrefetcher prefetcher = new BlockPrefetcher(initCtx);
+        try {
+            Iterator<String> baseDNIter = baseDNs.iterator();
+            boolean proceed = true;
+
+            while (baseDNIter.hasNext() && proceed) {
+                String baseDN = baseDNIter.next();
+                prefetcher.submit(baseDN, query, searchControls, createRequestControls(null, sortControl));
+                byte[] cookie;
+                do {
+                    BlockPrefetcher.Block block = prefetcher.take();
+                    pageSize.record(block.getResults(), block.getElapsedMillis());
+                    cookie = getResponseCookie(block.getResponseControls());
+                    // Send the request for the next page before handing this one over.
+                    if (cookie != null) {
+                        prefetcher.submit(baseDN, query, searchControls, createRequestControls(cookie, sortControl));
+                    }
+                    Iterator<SearchResult> resultIter = block.getResults().iterator();
+                    while (proceed && resultIter.hasNext()) {
+                        proceed = handler.handle(baseDN, resultIter.next());
+                    }
+                } while (proceed && cookie != null);
+                if (cookie != null) {
+                    abandonSearch(prefetcher, baseDN, query, searchControls);
+                }
+            }
+        } finally {
+            prefetcher.close();
+        }
+    }
+
+    /**
+     * Ends the paged search whose next page is in flight, when the handler
+     * stopped before its last page, so that the server can release it.
+     */
+    private void abandonSearch(BlockPrefetcher prefetcher, String baseDN, String query, SearchControls searchControls) {
+        try {
+            byte[] cookie = getResponseCookie(prefetcher.take().getResponseControls());
+            if (cookie != null) {
+                prefetcher.submit(baseDN, query, searchControls, new Control[] { new PagedResultsControl(0, cookie, Control.CRITICAL) });
+                prefetcher.take();
+            }
+        } catch (Exception e) {
+            log.ok("Failed to abandon the paged search in {0}: {1}", baseDN, e.getMessage());
+        }
+    }
+
+    private Control[] createRequestControls(byte[] cookie, SortControl sortControl) throws IOException {
+        if (sortControl != null) {
+            return new Control[]{new PagedResultsControl(pageSize.get(), cookie, Control.CRITICAL), sortControl};
+        }
+        return new Control[]{new PagedResultsControl(pageSize.get(), cookie, Control.CRITICAL)};
+    }
+
     private byte[] getResponseCookie(Control[] controls) {
         if (controls != null) {
             for (Control control : controls) {
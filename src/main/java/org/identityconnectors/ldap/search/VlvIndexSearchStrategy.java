@@ -54,7 +54,8 @@ public class VlvIndexSearchStrategy extends LdapSearchStrategy {
     private static Log log;
 
     private final String vlvIndexAttr;
-    private final int blockSize;
+    private final AdaptiveBlockSize blockSize;
+    private final boolean prefetch;
 
     private int index;
     private int lastListSize;
@@ -72,8 +73,21 @@ public class VlvIndexSearchStrategy extends LdapSearchStrategy {
     }
 
     public VlvIndexSearchStrategy(String vlvSortAttr, int blockSize) {
+        this(vlvSortAttr, blockSize, false);
+    }
+
+    /**
+     * @param prefetch if true, the next block is requested on a second context
+     *            while the current one is being handled.
+     */
+    public VlvIndexSearchStrategy(String vlvSortAttr, int blockSize, boolean prefetch) {
+        this(vlvSortAttr, AdaptiveBlockSize.fixed(blockSize), prefetch);
+    }
+
+    public VlvIndexSearchStrategy(String vlvSortAttr, AdaptiveBlockSize blockSize, boolean prefetch) {
         this.vlvIndexAttr = isNotBlank(vlvSortAttr) ? vlvSortAttr : "uid";
         this.blockSize = blockSize;
+        this.prefetch = prefetch;
     }
 
     @Override
@@ -83,6 +97,18 @@ public class VlvIndexSearchStrategy extends LdapSearchStrategy {
         Iterator<String> baseDNIter = baseDNs.iterator();
         boolean proceed = true;
 
+        if (prefetch) {
+            BlockPrefetcher prefetcher = new BlockPrefetcher(initCtx);
+            try {
+                while (baseDNIter.hasNext() && proceed) {
+                    proceed = searchBaseDN(prefetcher, baseDNIter.next(), query, searchControls, handler);
+                }
+            } finally {
+                prefetcher.close();
+            }
+            return;
+        }
+
         LdapContext ctx = initCtx.newInstance(null);
         try {
             while (baseDNIter.hasNext() && proceed) {
@@ -103,22 +129,15 @@ public class VlvIndexSearchStrategy extends LdapSearchStrategy {
         String lastResultName = null;
 
         for (;;) {
-            SortControl sortControl = new SortControl(vlvIndexAttr, Control.CRITICAL);
-
-            int afterCount = blockSize - 1;
-
-            VirtualListViewRequestControl vlvreq = VirtualListViewRequestControl.newOffsetControl(Control.CRITICAL, index, lastListSize, 0, afterCount, ByteString.valueOf(cookie));
-            BasicControl vlvControl = new BasicControl(VirtualListViewRequestControl.OID, Control.CRITICAL, vlvreq.getValue().toByteArray());
-
-            getLog().ok("New search: target = {0}, afterCount = {1}", index, afterCount);
-            ctx.setRequestControls(new Control[]{sortControl, vlvControl});
+            ctx.setRequestControls(createRequestControls(index));
+            long start = System.currentTimeMillis();
 
             // Need to process the response controls, which are available after
             // all results have been processed, before sending anything to the caller
             // (because processing the response controls might throw exceptions that
             // invalidate anything we might have sent otherwise).
             // So storing the results before actually sending them to the handler.
-            List<SearchResult> resultList = new ArrayList<SearchResult>(blockSize);
+            List<SearchResult> resultList = new ArrayList<SearchResult>(blockSize.get());
 
             NamingEnumeration<SearchResult> results = ctx.search(baseDN, query, searchControls);
             try {
@@ -143,6 +162,7 @@ public class VlvIndexSearchStrategy extends LdapSearchStrategy {
             }
 
             processResponseControls(ctx.getResponseControls());
+            blockSize.record(resultList, System.currentTimeMillis() - start);
 
             SearchResult result = null;
             Iterator<SearchResult> resultIter = resultList.iterator();
@@ -174,6 +194,74 @@ public class VlvIndexSearchStrategy extends LdapSearchStrategy {
         return true;
     }
 
+    private boolean searchBaseDN(BlockPrefetcher prefetcher, String baseDN, String query, SearchControls searchControls, LdapSearchResultsHandler handler) throws IOException, NamingException {
+        getLog().ok("Searching in {0}", baseDN);
+
+        index = 1;
+        lastListSize = 0;
+        cookie = new byte[0];
+
+        String lastResultName = null;
+
+        prefetcher.submit(baseDN, query, searchControls, createRequestControls(index));
+        for (;;) {
+            BlockPrefetcher.Block block = prefetcher.take();
+
+            // The response controls must be processed before sending anything
+            // to the caller, and they also give the list size and context ID
+            // needed for the next request.
+            processResponseControls(block.getResponseControls());
+            blockSize.record(block.getResults(), block.getElapsedMillis());
+
+            List<SearchResult> resultList = block.getResults();
+            if (lastResultName != null && !resultList.isEmpty() && lastResultName.equals(resultList.get(0).getName())) {
+                getLog().warn("Working around rounding error overlap at index " + index);
+                resultList = resultList.subList(1, resultList.size());
+            }
+
+            int nextIndex = index + resultList.size();
+            boolean done = nextIndex > lastListSize;
+            // See the non prefetching search about DSEE and empty blocks.
+            if (!done && resultList.isEmpty()) {
+                getLog().warn("Ending search because received no results");
+                done = true;
+            }
+            if (!done) {
+                prefetcher.submit(baseDN, query, searchControls, createRequestControls(nextIndex));
+            }
+
+            SearchResult result = null;
+            Iterator<SearchResult> resultIter = resultList.iterator();
+            while (resultIter.hasNext()) {
+                result = resultIter.next();
+                index++;
+                if (!handler.handle(baseDN, result)) {
+                    return false;
+                }
+            }
+            if (result != null) {
+                lastResultName = result.getName();
+            }
+
+            if (done) {
+                break;
+            }
+        }
+        return true;
+    }
+
+    private Control[] createRequestControls(int target) throws IOException {
+        SortControl sortControl = new SortControl(vlvIndexAttr, Control.CRITICAL);
+
+        int afterCount = blockSize.get() - 1;
+
+        VirtualListViewRequestControl vlvreq = VirtualListViewRequestControl.newOffsetControl(Control.CRITICAL, target, lastListSize, 0, afterCount, ByteString.valueOf(cookie));
+        BasicControl vlvControl = new BasicControl(VirtualListViewRequestControl.OID, Control.CRITICAL, vlvreq.getValue().toByteArray());
+
+        getLog().ok("New search: target = {0}, afterCount = {1}", target, afterCount);
+        return new Control[]{sortControl, vlvControl};
+    }
+
     private void processResponseControls(Control[] controls) throws NamingException {
         if (controls != null) {
             for (Control control : controls) {
@@ -209,4 +297,45 @@ public class VlvIndexSearchStrategy extends LdapSearchStrategy {
             }
         }
     }
+
+    /**
+     * Returns the content count, that is the server's estimate of the size of
+     * the list, from the VLV response control among the given controls, or -1
+     * if there is no such control.
+     */
+    static int getContentCount(Control[] controls) throws NamingException {
+        if (controls != null) {
+            for (Control control : controls) {
+                if (control.getID().equalsIgnoreCase(VirtualListViewResponseControl.OID)) {
+                    byte[] value = control.getEncodedValue();
+                    if ((value != null) && (value.length > 0)) {
+                        final ASN1Reader reader = ASN1.getReader(value);
+                        try {
+                            reader.readStartSequence();
+                            reader.readInteger();
+                            final int contentCount = (int) reader.readInteger();
+                            if (reader.readEnumerated() != 0) {
+                                throw new NamingException("The view operation has failed on LDAP server");
+                            }
+                            return contentCount;
+                        } catch (IOException ex) {
+                            getLog().error("Can't decode response control");
+                        }
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the request controls asking for a single entry of the list,
+     * which is enough to get its content count.
+     */
+    static Control[] createCountRequestControls(String vlvSortAttr) throws IOException {
+        String sortAttr = isNotBlank(vlvSortAttr) ? vlvSortAttr : "uid";
+        VirtualListViewRequestControl vlvreq = VirtualListViewRequestControl.newOffsetControl(Control.CRITICAL, 1, 0, 0, 0, ByteString.empty());
+        BasicControl vlvControl = new BasicControl(VirtualListViewRequestControl.OID, Control.CRITICAL, vlvreq.getValue().toByteArray());
+        return new Control[]{new SortControl(sortAttr, Control.CRITICAL), vlvControl};
+    }
 }
@@ -0,0 +1,209 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.sync;
+
+import java.util.Date;
+import java.util.List;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectionFailedException;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.SyncDelta;
+import org.identityconnectors.framework.common.objects.SyncDeltaBuilder;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.identityconnectors.framework.spi.SyncTokenResultsHandler;
+import org.identityconnectors.ldap.LdapConnection;
+
+/**
+ * Keeps a sync strategy on the server recorded in its token, since change
+ * numbers and USNs differ from one replica to the other. The tokens are
+ * {@link ServerSyncToken}s wrapping the tokens of the strategy.
+ * <p>
+ * When the server cannot be reached, or the URL now leads to another server,
+ * the sync moves to the first reachable server and resumes from the first
+ * change that server logged since the previous sync started, as told by the
+ * {@link ServerPositionMapping} of the strategy. Changes may then be
+ * delivered twice, but none is missed. The tokens of earlier versions do not
+ * tell when their sync started, so until a sync has completed the sync
+ * cannot move to another server and fails instead of replaying every change.
+ */
+public class PinnedServerSyncStrategy implements LdapSyncStrategy {
+
+    private static final Log log = Log.getLog(PinnedServerSyncStrategy.class);
+
+    /**
+     * The time before the start of the previous sync from which the changes
+     * are read again on another server, for the clock differences between
+     * the servers and the connector.
+     */
+    static final long FAILOVER_OVERLAP_MILLIS = 5 * 60 * 1000L;
+
+    private final LdapConnection conn;
+    private final LdapSyncStrategy strategy;
+    private final ServerPositionMapping mapping;
+
+    public PinnedServerSyncStrategy(LdapConnection conn, LdapSyncStrategy strategy, ServerPositionMapping mapping) {
+        this.conn = conn;
+        this.strategy = strategy;
+        this.mapping = mapping;
+    }
+
+    public SyncToken getLatestSyncToken() {
+        long now = System.currentTimeMillis();
+        try {
+            String url = pinFirstReachableServer(null);
+            return new ServerSyncToken(url, conn.getServerId(), now, strategy.getLatestSyncToken().getValue()).toSyncToken();
+        } finally {
+            conn.pinServer(null);
+        }
+    }
+
+    public void sync(SyncToken token, SyncResultsHandler handler, OperationOptions options) {
+        long start = System.currentTimeMillis();
+        ServerSyncToken previous = ServerSyncToken.decode(token);
+        try {
+            String url;
+            String serverId;
+            SyncToken strategyToken;
+            // Changes before this time have all been delivered.
+            long since;
+            if (previous == null) {
+                // A token of an earlier version or no token: the server
+                // reached first is taken as the one of the token.
+                url = pinFirstReachableServer(null);
+                serverId = conn.getServerId();
+                strategyToken = token;
+                since = 0;
+                log.info("Pinning the sync to {0}", url);
+            } else {
+                boolean reachable = pinServer(previous.getUrl());
+                serverId = reachable ? conn.getServerId() : null;
+                if (reachable && serverId.equals(previous.getServerId())) {
+                    url = previous.getUrl();
+                    strategyToken = previous.getSyncToken();
+                } else {
+                    if (previous.getSince() == 0) {
+                        // No time to resume from, the whole change log would be replayed.
+                        throw new ConnectorException("The sync cannot move from " + previous.getUrl()
+                                + ", since its token does not tell when the previous sync started. Reset the sync token to resume on another server");
+                    }
+                    if (reachable) {
+                        log.warn("The sync server {0} is no longer the same server", previous.getUrl());
+                        url = previous.getUrl();
+                    } else {
+                        url = pinFirstReachableServer(previous.getUrl());
+                        serverId = conn.getServerId();
+                    }
+                    strategyToken = mapping.getSyncTokenSince(previous.getSince() - FAILOVER_OVERLAP_MILLIS);
+                    log.warn("Moving the sync from {0} to {1}, resuming from {2} for the changes since {3}",
+                            previous.getUrl(), url, strategyToken.getValue(), new Date(previous.getSince()));
+                }
+                since = previous.getSince();
+            }
+            PinnedHandler pinnedHandler = new PinnedHandler(handler, url, serverId, since);
+            strategy.sync(strategyToken, pinnedHandler, options);
+            pinnedHandler.complete(start);
+        } finally {
+            conn.pinServer(null);
+        }
+    }
+
+    /**
+     * Connects to the given server only, and returns {@code true} if it can
+     * be reached.
+     */
+    private boolean pinServer(String url) {
+        conn.pinServer(url);
+        try {
+            conn.getInitialContext();
+            return true;
+        } catch (ConnectionFailedException e) {
+            log.warn(e, "The sync server {0} cannot be reached", url);
+            return false;
+        }
+    }
+
+    /**
+     * Connects to the first reachable server, other than the given one.
+     */
+    private String pinFirstReachableServer(String excludedUrl) {
+        List<String> urls = conn.getServerUrls();
+        for (String url : urls) {
+            if (!url.equals(excludedUrl) && pinServer(url)) {
+                return url;
+            }
+        }
+        throw new ConnectionFailedException("None of the servers " + urls + " can be reached to synchronize");
+    }
+
+    /**
+     * Wraps the tokens of the strategy. The tokens reported during the sync
+     * keep the time of the previous sync; the last one gets the start time
+     * of this sync once it has completed.
+     */
+    private static final class PinnedHandler implements SyncTokenResultsHandler {
+
+        private final SyncResultsHandler handler;
+        private final String url;
+        private final String serverId;
+        private final long since;
+        private SyncToken lastToken;
+        private boolean stopped;
+
+        PinnedHandler(SyncResultsHandler handler, String url, String serverId, long since) {
+            this.handler = handler;
+            this.url = url;
+            this.serverId = serverId;
+            this.since = since;
+        }
+
+        public boolean handle(SyncDelta delta) {
+            SyncDeltaBuilder builder = new SyncDeltaBuilder(delta);
+            builder.setToken(wrap(delta.getToken(), since));
+            if (!handler.handle(builder.build())) {
+                stopped = true;
+            }
+            return !stopped;
+        }
+
+        public void handleResult(SyncToken token) {
+            lastToken = token;
+            if (handler instanceof SyncTokenResultsHandler) {
+                ((SyncTokenResultsHandler) handler).handleResult(wrap(token, since));
+            }
+        }
+
+        void complete(long start) {
+            if (!stopped && lastToken != null && handler instanceof SyncTokenResultsHandler) {
+                ((SyncTokenResultsHandler) handler).handleResult(wrap(lastToken, start));
+            }
+        }
+
+        private SyncToken wrap(SyncToken token, long time) {
+            return new ServerSyncToken(url, serverId, time, token.getValue()).toSyncToken();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.sync;
+
+import org.identityconnectors.framework.common.objects.SyncToken;
+
+/**
+ * Implemented by the sync strategies whose tokens are only meaningful on the
+ * server which returned them, such as change numbers and USNs, to find the
+ * matching position on another server.
+ */
+public interface ServerPositionMapping {
+
+    /**
+     * Returns a token from which the sync resumes on the current server
+     * without missing a change the server logged at or after the given time,
+     * in milliseconds. The changes logged before may be missed or delivered
+     * again.
+     */
+    SyncToken getSyncTokenSince(long millis);
+}
@@ -0,0 +1,156 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.sync;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.SyncToken;
+
+/**
+ * The token of a sync pinned to one server: the LDAP URL of the server, a
+ * short identifier of the server it reached, the time from which the
+ * changes may not all have been delivered, and the token of the sync
+ * strategy, for instance
+ * {@code ldap://ds1.example.com:389#1a2b3c#1445256000000#L12345}. The token of
+ * the strategy starts with {@code L} for a number and {@code S} for a string.
+ * The server identifier is empty when the server does not tell.
+ */
+public final class ServerSyncToken {
+
+    private static final char SEPARATOR = '#';
+    private static final char NUMBER = 'L';
+    private static final char STRING = 'S';
+
+    private final String url;
+    private final String serverId;
+    private final long since;
+    private final Object value;
+
+    public ServerSyncToken(String url, String serverId, long since, Object value) {
+        this.url = url;
+        this.serverId = serverId != null ? serverId : "";
+        this.since = since;
+        this.value = value;
+    }
+
+    /**
+     * Returns the given token, or {@code null} if it is not the token of a
+     * pinned sync, like the tokens of earlier versions.
+     */
+    public static ServerSyncToken decode(SyncToken token) {
+        if (token == null || !(token.getValue() instanceof String)) {
+            return null;
+        }
+        String str = (String) token.getValue();
+        if (!str.startsWith("ldap://") && !str.startsWith("ldaps://")) {
+            return null;
+        }
+        int urlEnd = str.indexOf(SEPARATOR);
+        int serverIdEnd = urlEnd < 0 ? -1 : str.indexOf(SEPARATOR, urlEnd + 1);
+        int sinceEnd = serverIdEnd < 0 ? -1 : str.indexOf(SEPARATOR, serverIdEnd + 1);
+        if (sinceEnd < 0 || sinceEnd + 1 >= str.length()) {
+            throw new ConnectorException("Invalid sync token: " + str);
+        }
+        Object value = str.substring(sinceEnd + 2);
+        try {
+            long since = Long.parseLong(str.substring(serverIdEnd + 1, sinceEnd));
+            if (str.charAt(sinceEnd + 1) == NUMBER) {
+                value = Long.valueOf((String) value);
+            } else if (str.charAt(sinceEnd + 1) != STRING) {
+                throw new ConnectorException("Invalid sync token: " + str);
+            }
+            return new ServerSyncToken(str.substring(0, urlEnd), str.substring(urlEnd + 1, serverIdEnd), since, value);
+        } catch (NumberFormatException e) {
+            throw new ConnectorException("Invalid sync token: " + str, e);
+        }
+    }
+
+    public String encode() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(url).append(SEPARATOR);
+        builder.append(serverId).append(SEPARATOR);
+        builder.append(since).append(SEPARATOR);
+        builder.append(value instanceof Number ? NUMBER : STRING);
+        builder.append(value instanceof Number ? Long.toString(((Number) value).longValue()) : value.toString());
+        return builder.toString();
+    }
+
+    public SyncToken toSyncToken() {
+        return new SyncToken(encode());
+    }
+
+    /**
+     * Returns the LDAP URL of the server the token belongs to.
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Returns the short identifier of the server, or an empty string.
+     */
+    public String getServerId() {
+        return serverId;
+    }
+
+    /**
+     * Returns the time in milliseconds from which the changes may not all
+     * have been delivered.
+     */
+    public long getSince() {
+        return since;
+    }
+
+    /**
+     * Returns the token of the sync strategy.
+     */
+    public SyncToken getSyncToken() {
+        return new SyncToken(value);
+    }
+
+    /**
+     * Returns the short identifier of a server name: a 64 bit hash of it, or
+     * an empty string for no name.
+     */
+    public static String createServerId(String serverName) {
+        if (serverName == null || serverName.length() == 0) {
+            return "";
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(serverName.toLowerCase().getBytes("UTF-8"));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xff);
+            }
+            return Long.toString(hash, Character.MAX_RADIX);
+        } catch (NoSuchAlgorithmException e) {
+            throw new ConnectorException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new ConnectorException(e);
+        }
+    }
+}
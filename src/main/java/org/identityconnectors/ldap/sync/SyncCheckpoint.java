@@ -0,0 +1,129 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.sync;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.identityconnectors.framework.spi.SyncTokenResultsHandler;
+import org.identityconnectors.ldap.LdapConfiguration;
+
+/**
+ * Reports the token of a running sync every so many changes and/or seconds,
+ * so that an interrupted sync resumes from the last checkpoint instead of
+ * starting over. The strategies only pass tokens from which the sync can
+ * resume without missing a change, that is tokens covering every change
+ * before them.
+ */
+public class SyncCheckpoint {
+
+    private static final Log log = Log.getLog(SyncCheckpoint.class);
+
+    private final SyncResultsHandler handler;
+    private final int changes;
+    private final long intervalMillis;
+
+    private int pendingChanges;
+    private long lastMillis;
+    private Runnable beforeReport;
+
+    public SyncCheckpoint(SyncResultsHandler handler, int changes, long intervalMillis) {
+        this.handler = handler instanceof SyncTokenResultsHandler ? handler : null;
+        this.changes = changes;
+        this.intervalMillis = intervalMillis;
+        this.lastMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the checkpoint policy of the given configuration.
+     */
+    public static SyncCheckpoint create(LdapConfiguration config, SyncResultsHandler handler) {
+        return new SyncCheckpoint(handler, config.getSyncCheckpointChanges(), config.getSyncCheckpointInterval() * 1000L);
+    }
+
+    /**
+     * Sets an action to run before a token is reported, for instance to save
+     * state which has to match the token.
+     */
+    public void setBeforeReport(Runnable beforeReport) {
+        this.beforeReport = beforeReport;
+    }
+
+    public boolean isEnabled() {
+        return handler != null && (changes > 0 || intervalMillis > 0);
+    }
+
+    /**
+     * Records that a change has been handled, and that the sync can resume
+     * from the given token. Reports the token if a checkpoint is due.
+     */
+    public void handled(SyncToken token) {
+        if (handled()) {
+            report(token);
+        }
+    }
+
+    /**
+     * Records that a change has been handled, and returns {@code true} if a
+     * checkpoint is due, for the callers which build their token only then.
+     */
+    public boolean handled() {
+        pendingChanges++;
+        return isDue();
+    }
+
+    /**
+     * Records that the sync can resume from the given token, without a change
+     * having been handled, for instance at the end of a range without
+     * changes. Reports the token if a checkpoint is due.
+     */
+    public void advanced(SyncToken token) {
+        if (isDue()) {
+            report(token);
+        }
+    }
+
+    private boolean isDue() {
+        if (!isEnabled()) {
+            return false;
+        }
+        if (changes > 0 && pendingChanges >= changes) {
+            return true;
+        }
+        return intervalMillis > 0 && System.currentTimeMillis() - lastMillis >= intervalMillis;
+    }
+
+    /**
+     * Reports a token from which the sync can resume.
+     */
+    public void report(SyncToken token) {
+        log.ok("Sync checkpoint after {0} changes: {1}", pendingChanges, token.getValue());
+        if (beforeReport != null) {
+            beforeReport.run();
+        }
+        ((SyncTokenResultsHandler) handler).handleResult(token);
+        pendingChanges = 0;
+        lastMillis = System.currentTimeMillis();
+    }
+}
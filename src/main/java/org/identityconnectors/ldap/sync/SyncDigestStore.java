@@ -0,0 +1,381 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.sync;
+
+import static org.identityconnectors.common.StringUtil.isBlank;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.identityconnectors.ldap.LdapConfiguration;
+
+/**
+ * Remembers a digest of the content last delivered for each object, so that
+ * a sync which only sees that an entry changed, like the timestamps and the
+ * Active Directory USN sync, can leave out the changes which did not touch
+ * the synchronized attributes, such as logon timestamps. The digests of an
+ * object class are kept in a file of the configured directory, which is
+ * read when the sync starts and replaced when it reports its token. The file
+ * is locked from {@link #open} to {@link #close}.
+ */
+public class SyncDigestStore {
+
+    private static final Log log = Log.getLog(SyncDigestStore.class);
+
+    private static final int MAGIC = 0x4c445347;
+    private static final String SUFFIX = ".digests";
+
+    /**
+     * The attributes which change with every change of an entry.
+     */
+    private static final Set<String> CHANGE_MARKERS;
+
+    static {
+        Set<String> markers = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+        markers.add("modifyTimestamp");
+        markers.add("whenChanged");
+        markers.add("uSNChanged");
+        markers.add("entryCSN");
+        CHANGE_MARKERS = Collections.unmodifiableSet(markers);
+    }
+
+    /**
+     * The Active Directory attributes which change with logons and failed
+     * logons. They are left out of the digests unless they are asked for.
+     */
+    private static final Set<String> LOGON_COUNTERS;
+
+    static {
+        Set<String> counters = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+        counters.add("lastLogonTimestamp");
+        counters.add("logonCount");
+        counters.add("badPwdCount");
+        counters.add("lastLogon");
+        counters.add("lastLogoff");
+        counters.add("badPasswordTime");
+        counters.add("lockoutTime");
+        counters.add("pwdLastSet");
+        LOGON_COUNTERS = Collections.unmodifiableSet(counters);
+    }
+
+    private final File file;
+    private SyncStateFile lock;
+    private final Set<String> attrsToDigest;
+    private final Map<String, Long> digests;
+    private boolean modified;
+
+    SyncDigestStore(File file, String[] attrsToDigest, Map<String, Long> digests) {
+        this.file = file;
+        this.attrsToDigest = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+        for (String attr : attrsToDigest) {
+            this.attrsToDigest.add(attr);
+        }
+        this.digests = digests;
+    }
+
+    /**
+     * Opens and locks the digest store of the given object class, or returns
+     * {@code null} if the configuration does not ask for one. The store must
+     * be closed at the end of the sync.
+     */
+    public static SyncDigestStore open(LdapConfiguration config, ObjectClass oclass) {
+        return open(config, oclass, null);
+    }
+
+    /**
+     * Opens and locks the digest store of the given object class for a sync
+     * returning the given attributes, or all the attributes if {@code null}
+     * or empty. Only the returned attributes which are synchronized count in
+     * the digests. Since the digests do not remember the attributes they
+     * cover, a sync asking for other attributes than the previous one may
+     * deliver unchanged objects once.
+     */
+    public static SyncDigestStore open(LdapConfiguration config, ObjectClass oclass, String[] attrsToGet) {
+        String directory = config.getSyncDigestDirectory();
+        if (isBlank(directory)) {
+            return null;
+        }
+        File file = new File(directory, SyncStateFile.createFileName(config, oclass) + SUFFIX);
+        SyncStateFile lock = SyncStateFile.lock(file);
+        try {
+            SyncDigestStore store = new SyncDigestStore(file, getAttributesToDigest(config.getAttributesToSynchronize(), attrsToGet), read(file));
+            store.lock = lock;
+            return store;
+        } catch (RuntimeException e) {
+            lock.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the attributes to synchronize which are returned, the returned
+     * attributes if all are synchronized, or the attributes to synchronize if
+     * all are returned. An empty array stands for all the attributes.
+     */
+    static String[] getAttributesToDigest(String[] attrsToSynchronize, String[] attrsToGet) {
+        if (attrsToGet == null || attrsToGet.length == 0 || Arrays.asList(attrsToGet).contains("*")) {
+            return attrsToSynchronize;
+        }
+        if (attrsToSynchronize.length == 0) {
+            return attrsToGet;
+        }
+        Set<String> returned = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+        returned.addAll(Arrays.asList(attrsToGet));
+        List<String> result = new ArrayList<String>();
+        for (String attr : attrsToSynchronize) {
+            if (returned.contains(attr)) {
+                result.add(attr);
+            }
+        }
+        if (result.isEmpty()) {
+            // Only the name of the objects counts.
+            result.add(Name.NAME);
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * Returns the digest of the synchronized attributes of the given object:
+     * the attributes to digest if any, all the attributes but the logon
+     * counters otherwise, always with its name and never with the attributes
+     * which change with any change.
+     */
+    public long digest(ConnectorObject object) {
+        List<String> parts = new ArrayList<String>();
+        for (Attribute attr : object.getAttributes()) {
+            String name = attr.getName();
+            if (attr.is(Uid.NAME) || CHANGE_MARKERS.contains(name)) {
+                continue;
+            }
+            if (attrsToDigest.isEmpty() ? LOGON_COUNTERS.contains(name) : !attrsToDigest.contains(name) && !attr.is(Name.NAME)) {
+                continue;
+            }
+            parts.add(createPart(name, attr.getValue()));
+        }
+        return digestParts(parts);
+    }
+
+    /**
+     * Returns the digest of LDAP attributes, which never covers the
+     * attributes which change with any change.
+     */
+    public static long digestAttributes(Attributes attrs) throws NamingException {
+        List<String> parts = new ArrayList<String>(attrs.size());
+        NamingEnumeration<? extends javax.naming.directory.Attribute> attrsEnum = attrs.getAll();
+        while (attrsEnum.hasMore()) {
+            javax.naming.directory.Attribute attr = attrsEnum.next();
+            if (CHANGE_MARKERS.contains(attr.getID())) {
+                continue;
+            }
+            List<Object> values = new ArrayList<Object>(attr.size());
+            NamingEnumeration<?> valuesEnum = attr.getAll();
+            while (valuesEnum.hasMore()) {
+                values.add(valuesEnum.next());
+            }
+            parts.add(createPart(attr.getID(), values));
+        }
+        return digestParts(parts);
+    }
+
+    private static String createPart(String name, List<Object> values) {
+        List<String> strings = new ArrayList<String>();
+        if (values != null) {
+            for (Object value : values) {
+                strings.add(toString(value));
+            }
+        }
+        // The order of the values does not matter.
+        Collections.sort(strings);
+        StringBuilder part = new StringBuilder(name.toLowerCase());
+        for (String value : strings) {
+            part.append('\u0000').append(value);
+        }
+        return part.toString();
+    }
+
+    private static long digestParts(List<String> parts) {
+        Collections.sort(parts);
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            for (String part : parts) {
+                md.update(part.getBytes("UTF-8"));
+                md.update((byte) '\n');
+            }
+            byte[] digest = md.digest();
+            long result = 0;
+            for (int i = 0; i < 8; i++) {
+                result = (result << 8) | (digest[i] & 0xff);
+            }
+            return result;
+        } catch (NoSuchAlgorithmException e) {
+            throw new ConnectorException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new ConnectorException(e);
+        }
+    }
+
+    /**
+     * Returns {@code true} if the content with the given digest has already
+     * been delivered for the given object.
+     */
+    public boolean isUnchanged(Uid uid, long digest) {
+        Long previous = digests.get(uid.getUidValue());
+        return previous != null && previous.longValue() == digest;
+    }
+
+    /**
+     * Records that the content with the given digest was delivered.
+     */
+    public void delivered(Uid uid, long digest) {
+        Long previous = digests.put(uid.getUidValue(), digest);
+        modified |= previous == null || previous.longValue() != digest;
+    }
+
+    /**
+     * Records that the given object was deleted.
+     */
+    public void deleted(Uid uid) {
+        modified |= digests.remove(uid.getUidValue()) != null;
+    }
+
+    int size() {
+        return digests.size();
+    }
+
+    /**
+     * Writes the digests if they changed. The file is replaced at once, so
+     * that it always matches a token the sync reported.
+     */
+    public void save() {
+        if (!modified) {
+            return;
+        }
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new ConnectorException("Cannot create the sync digest directory " + parent);
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(digests.size());
+                for (Map.Entry<String, Long> entry : digests.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(entry.getValue());
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new ConnectorException("Cannot write the sync digests to " + tmp, e);
+        }
+        if (!tmp.renameTo(file)) {
+            // Some platforms do not rename over an existing file.
+            if (!file.delete() || !tmp.renameTo(file)) {
+                throw new ConnectorException("Cannot replace the sync digests file " + file);
+            }
+        }
+        modified = false;
+        log.ok("Saved {0} sync digests to {1}", digests.size(), file);
+    }
+
+    /**
+     * Releases the lock of the digests file, without saving the digests.
+     */
+    public void close() {
+        if (lock != null) {
+            lock.release();
+            lock = null;
+        }
+    }
+
+    private static Map<String, Long> read(File file) {
+        Map<String, Long> digests = new HashMap<String, Long>();
+        if (!file.isFile()) {
+            return digests;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC) {
+                    log.warn("Ignoring the sync digests file {0}, which has an unknown format", file);
+                    return digests;
+                }
+                int size = in.readInt();
+                digests = new HashMap<String, Long>(Math.max(16, size * 4 / 3 + 1));
+                for (int i = 0; i < size; i++) {
+                    digests.put(in.readUTF(), in.readLong());
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // Without the digests every change is delivered, which is safe.
+            log.warn(e, "Ignoring the sync digests file {0}, which cannot be read", file);
+            return new HashMap<String, Long>();
+        }
+        return digests;
+    }
+
+    private static String toString(Object value) {
+        if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            StringBuilder builder = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return builder.toString();
+        }
+        return String.valueOf(value);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.sync;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.ldap.LdapConfiguration;
+
+/**
+ * A file keeping the state of the sync of an object class from one sync to
+ * the next, like the sync digests or a snapshot. The file is named after the
+ * server, the base contexts to synchronize and the object class, so that the
+ * connectors synchronizing other servers or subtrees from the same directory
+ * keep their own state, and it is locked while a sync uses it.
+ */
+public final class SyncStateFile {
+
+    private static final Log log = Log.getLog(SyncStateFile.class);
+
+    private static final String LOCK_SUFFIX = ".lock";
+
+    /**
+     * The paths locked in this JVM, which a file lock does not keep out.
+     */
+    private static final Set<String> lockedPaths = new HashSet<String>();
+
+    private final File file;
+    private final String path;
+    private final RandomAccessFile lockFile;
+    private final FileLock lock;
+
+    private SyncStateFile(File file, String path, RandomAccessFile lockFile, FileLock lock) {
+        this.file = file;
+        this.path = path;
+        this.lockFile = lockFile;
+        this.lock = lock;
+    }
+
+    /**
+     * Returns the name, without a suffix, of the state file of the given
+     * object class.
+     */
+    public static String createFileName(LdapConfiguration config, ObjectClass oclass) {
+        StringBuilder key = new StringBuilder();
+        key.append(config.getHost()).append(':').append(config.getPort());
+        for (String baseContext : config.getBaseContextsToSynchronize()) {
+            key.append('|').append(baseContext);
+        }
+        StringBuilder name = new StringBuilder(oclass.getObjectClassValue().replaceAll("[^A-Za-z0-9_-]", "_"));
+        name.append('-');
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.toString().toLowerCase().getBytes("UTF-8"));
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+        } catch (NoSuchAlgorithmException e) {
+            throw new ConnectorException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new ConnectorException(e);
+        }
+        return name.toString();
+    }
+
+    /**
+     * Locks the given state file until {@link #release()}, creating its
+     * directory if needed.
+     *
+     * @throws ConnectorException if another sync, in this process or
+     *             another one, holds the lock.
+     */
+    public static SyncStateFile lock(File file) {
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new ConnectorException("Cannot create the sync state directory " + directory);
+        }
+        String path;
+        try {
+            path = file.getCanonicalPath();
+        } catch (IOException e) {
+            throw new ConnectorException(e);
+        }
+        synchronized (lockedPaths) {
+            if (!lockedPaths.add(path)) {
+                throw new ConnectorException("Another sync is using " + file);
+            }
+        }
+        RandomAccessFile lockFile = null;
+        try {
+            lockFile = new RandomAccessFile(path + LOCK_SUFFIX, "rw");
+            FileLock lock = lockFile.getChannel().tryLock();
+            if (lock == null) {
+                throw new ConnectorException("Another process is using " + file);
+            }
+            log.ok("Locked {0}", file);
+            return new SyncStateFile(file, path, lockFile, lock);
+        } catch (IOException e) {
+            unlock(path, lockFile);
+            throw new ConnectorException("Cannot lock " + file, e);
+        } catch (RuntimeException e) {
+            unlock(path, lockFile);
+            throw e;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Releases the lock. The lock file is left in place, since deleting it
+     * would let another sync lock a new file while this one is still open.
+     */
+    public void release() {
+        try {
+            lock.release();
+        } catch (IOException e) {
+            log.warn(e, "Cannot release the lock of {0}", file);
+        }
+        unlock(path, lockFile);
+        log.ok("Released {0}", file);
+    }
+
+    private static void unlock(String path, RandomAccessFile lockFile) {
+        if (lockFile != null) {
+            try {
+                lockFile.close();
+            } catch (IOException e) {
+                log.ok(e, "Cannot close the lock file of {0}", path);
+            }
+        }
+        synchronized (lockedPaths) {
+            lockedPaths.remove(path);
+        }
+    }
+}
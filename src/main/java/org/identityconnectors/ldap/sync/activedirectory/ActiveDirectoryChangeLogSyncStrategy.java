@@ -31,17 +31,21 @@ import static org.identityconnectors.ldap.LdapUtil.getObjectClassFilter;
 import static org.identityconnectors.ldap.LdapUtil.buildMemberIdAttribute;
 import static org.identityconnectors.ldap.LdapUtil.getStringAttrValue;
 import static org.identityconnectors.ldap.LdapUtil.guessObjectClass;
+import static org.identityconnectors.ldap.LdapUtil.quietCreateLdapName;
 
 import java.io.IOException;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.Map;
 import java.util.TreeMap;
 
 import javax.naming.InvalidNameException;
+import javax.naming.NameNotFoundException;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
+import javax.naming.OperationNotSupportedException;
 import javax.naming.PartialResultException;
 import javax.naming.directory.Attributes;
 import javax.naming.directory.SearchControls;
@@ -50,6 +54,8 @@ import javax.naming.ldap.BasicControl;
 import javax.naming.ldap.Control;
 import javax.naming.ldap.LdapContext;
 import javax.naming.ldap.LdapName;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
 
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.framework.common.exceptions.ConnectorException;
@@ -69,25 +75,35 @@ import org.identityconnectors.ldap.ADLdapUtil;
 import org.identityconnectors.ldap.ADUserAccountControl;
 import org.identityconnectors.ldap.LdapConnection;
 import org.identityconnectors.ldap.LdapConstants;
+import org.identityconnectors.ldap.search.AdaptiveBlockSize;
 import org.identityconnectors.ldap.search.LdapInternalSearch;
 import org.identityconnectors.ldap.search.LdapSearchResultsHandler;
 import org.identityconnectors.ldap.search.SimplePagedSearchStrategy;
 import org.identityconnectors.ldap.sync.LdapSyncStrategy;
+import org.identityconnectors.ldap.sync.ServerPositionMapping;
+import org.identityconnectors.ldap.sync.SyncCheckpoint;
+import org.identityconnectors.ldap.sync.SyncDigestStore;
 import org.identityconnectors.ldap.ADGroupType;
 
 /**
  * An implementation of the sync operation based on the Update Sequence Numbers
  * in Active Directory.
  */
-public class ActiveDirectoryChangeLogSyncStrategy implements LdapSyncStrategy {
+public class ActiveDirectoryChangeLogSyncStrategy implements LdapSyncStrategy, ServerPositionMapping {
 
     private static final String DELETE_CTRL = "1.2.840.113556.1.4.417";
     private static final String DELETED_PREFIX = "cn=deleted objects,";
     private static final String NAMING_CTX_ATTR = "defaultNamingContext";
     private static final String USN_CHANGED_ATTR = "uSNChanged";
     private static final String USN_CREATED_ATTR = "uSNCreated";
+    private static final String LAST_KNOWN_PARENT_ATTR = "lastKnownParent";
     private static final String HCU_CHANGED_ATTR = "highestCommittedUSN";
     private static final String DIRSYNC_EVENTS_OBJCLASS = createSpecialName("DIRSYNC_EVENTS");
+    /**
+     * How many times the configured window size a window over USNs without
+     * changes may grow to.
+     */
+    private static final int MAX_WINDOW_GROWTH = 64;
     private static final Log logger = Log.getLog(ActiveDirectoryChangeLogSyncStrategy.class);
     private final LdapConnection conn;
     private final ObjectClass oclass;
@@ -112,210 +128,486 @@ public class ActiveDirectoryChangeLogSyncStrategy implements LdapSyncStrategy {
             // We use the uSNchanged attribute to detect changes on entries and newly created entries.
             // We have to detect deleted entries as well. To do so, we use the filter (isDeleted==TRUE) to detect
             // the tombstones in the cn=delete objects,<defaultNamingContext> container.
+            syncUSNChanged(token, handler, options != null ? options.getAttributesToGet() : null);
+        }
+    }
 
-            final TreeMap<Integer, SyncDelta> changes = new TreeMap<Integer, SyncDelta>();
-            final String[] usnChanged = {""};
-            String waterMark = gethighestCommittedUSN();
-            
-            if (token != null && logger.isWarning()) {
-                if (Integer.parseInt(token.getValue().toString()) > Integer.parseInt(waterMark)) {
-                    //[OPENICF-402] The current SyncToken should never be greater than the highestCommittedUSN on the DC
-                    // We log the issue and let the process go
-                    logger.warn("The current SyncToken value ({0}) is greater than the highestCommittedUSN value ({1})", token.getValue().toString(), waterMark);
+    /**
+     * Walks the USNs from the token to the current highestCommittedUSN in
+     * windows of uSNChanged values. A window holds at most one change per USN,
+     * so only the changes of one window are held in memory. The changed
+     * entries and the tombstones of a window are merged in USN order and
+     * handed over before the next window is read, each delta carrying its USN
+     * as a checkpoint token.
+     */
+    private void syncUSNChanged(SyncToken token, SyncResultsHandler handler, String[] attrsToGet) {
+        String waterMark = gethighestCommittedUSN();
+        long highestUSN = Long.parseLong(waterMark);
+        // Without a token, there is nothing before the highestCommittedUSN to synchronize.
+        long processedUSN = token != null ? Long.parseLong(token.getValue().toString()) : highestUSN;
+
+        if (processedUSN > highestUSN) {
+            //[OPENICF-402] The current SyncToken should never be greater than the highestCommittedUSN on the DC
+            // We log the issue and let the process go
+            logger.warn("The current SyncToken value ({0}) is greater than the highestCommittedUSN value ({1})", token.getValue().toString(), waterMark);
+        }
+
+        SearchControls controls = LdapInternalSearch.createDefaultSearchControls();
+        controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        controls.setDerefLinkFlag(false);
+        controls.setReturningAttributes(new String[]{"*", ADUserAccountControl.MSDS_USR_ACCT_CTRL_ATTR});
+
+        // Tombstones keep only a few attributes, and only those needed to
+        // build a delete delta are read.
+        SearchControls deletedControls = LdapInternalSearch.createDefaultSearchControls();
+        deletedControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        deletedControls.setDerefLinkFlag(false);
+        deletedControls.setReturningAttributes(new String[]{conn.getConfiguration().getUidAttribute(),
+            USN_CHANGED_ATTR, OBJECTCLASS_ATTR, LAST_KNOWN_PARENT_ATTR});
+
+        AdaptiveBlockSize pageSize = AdaptiveBlockSize.create(conn.getConfiguration(), conn.getConfiguration().getBlockSize());
+        AdaptiveBlockSize deletedPageSize = AdaptiveBlockSize.create(conn.getConfiguration(), conn.getConfiguration().getBlockSize());
+        SyncCheckpoint checkpoint = SyncCheckpoint.create(conn.getConfiguration(), handler);
+        final SyncDigestStore digests = SyncDigestStore.open(conn.getConfiguration(), oclass, attrsToGet);
+        if (digests != null) {
+            // The digests must not fall behind a reported token.
+            checkpoint.setBeforeReport(new Runnable() {
+                public void run() {
+                    digests.save();
+                }
+            });
+        }
+        int windowSize = conn.getConfiguration().getUsnWindowSize();
+        long span = windowSize;
+        LdapContext deletedCtx = null;
+        String deletedContainer = null;
+        try {
+            // ldapsearch -J 1.2.840.113556.1.4.417 -h xx -p 389 -b "dc=example,dc=com" -D "cn=administrator,cn=users,dc=example,dc=com" -w xx "&(isDeleted=TRUE)(uSNChanged>=528433)"
+            try {
+                deletedContainer = getDeletedObjectsContainer();
+                if (deletedContainer != null) {
+                    deletedCtx = newDeletedObjectsContext();
                 }
+            } catch (NamingException e) {
+                logger.info(e.getExplanation());
             }
 
-            SearchControls controls = LdapInternalSearch.createDefaultSearchControls();
-            controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
-            controls.setDerefLinkFlag(false);
-            controls.setReturningAttributes(new String[]{"*", ADUserAccountControl.MSDS_USR_ACCT_CTRL_ATTR});
-
-            LdapInternalSearch search = new LdapInternalSearch(conn,
-                    generateUSNChangedFilter(oclass, token, false),
-                    Arrays.asList(conn.getConfiguration().getBaseContextsToSynchronize()),
-                    new SimplePagedSearchStrategy(conn.getConfiguration().getBlockSize()),
-                    controls);
-            try {
-                search.execute(new LdapSearchResultsHandler() {
-                    public boolean handle(String baseDN, SearchResult result) throws NamingException {
-                        Attributes attrs = result.getAttributes();
-                        Uid uid = conn.getSchemaMapping().createUid(conn.getConfiguration().getUidAttribute(), attrs);
-                        // build the object first
-                        ConnectorObjectBuilder cob = new ConnectorObjectBuilder();
-                        cob.setUid(uid);
-                        if (ObjectClass.ALL.equals(oclass)) {
-                            cob.setObjectClass(guessObjectClass(conn, attrs.get(OBJECTCLASS_ATTR)));
-                        } else {
-                            cob.setObjectClass(oclass);
-                        }
-                        cob.setName(result.getNameInNamespace());
-                        if (attrs.get(LdapConstants.MS_GUID_ATTR) != null) {
-                            cob.addAttribute(AttributeBuilder.build(LdapConstants.MS_GUID_ATTR, objectGUIDtoString(attrs.get(LdapConstants.MS_GUID_ATTR))));
-                            attrs.remove(LdapConstants.MS_GUID_ATTR);
-                        }
-                        // Make sure we remove the SID
-                        attrs.remove(LdapConstants.MS_SID_ATTR);
-
-                        // Make sure we're not hitting AD large group issue
-                        if (ObjectClass.GROUP.equals(oclass)) {
-                            // see: http://msdn.microsoft.com/en-us/library/ms817827.aspx
-                            if (attrs.get("member;range=0-1499") != null) {
-                                // we're in the limitation
-                                Attribute range = AttributeBuilder.build("member", fetchGroupMembersByRange(conn, result));
-                                cob.addAttribute(range);
-                                if (conn.getConfiguration().isGetGroupMemberId()) {
-                                    cob.addAttribute(buildMemberIdAttribute(conn, range));
-                                }
-                                attrs.remove("member;range=0-1499");
-                                attrs.remove("member");
-                            }
-                            try {
-                                if (attrs.get(ADGroupType.GROUPTYPE) != null) {
-                                    String groupType = attrs.get(ADGroupType.GROUPTYPE).get().toString();
-                                    cob.addAttribute(AttributeBuilder.build(ADGroupType.GROUP_SCOPE_NAME, ADGroupType.getScope(groupType)));
-                                    cob.addAttribute(AttributeBuilder.build(ADGroupType.GROUP_TYPE_NAME, ADGroupType.getType(groupType)));
-                                }
-                            } catch (NamingException e) {
-                                logger.warn(e, "Can't read groupType attribute: " + e.getExplanation());
+            boolean searchDeleted = deletedCtx != null;
+            while (processedUSN < highestUSN) {
+                long low = processedUSN + 1;
+                long high = Math.min(highestUSN, processedUSN + span);
+                TreeMap<Long, SyncDelta> changes = new TreeMap<Long, SyncDelta>();
+                searchChanges(low, high, controls, pageSize, changes);
+                if (searchDeleted && !searchDeletes(deletedCtx, deletedContainer, low, high, deletedControls, deletedPageSize, changes)) {
+                    searchDeleted = false;
+                }
+                logger.ok("Read {0} changes with uSNChanged from {1} to {2}", changes.size(), low, high);
+
+                // Changes are now ordered in the TreeMap according to usnChanged.
+                for (Map.Entry<Long, SyncDelta> entry : changes.entrySet()) {
+                    SyncDelta delta = entry.getValue();
+                    long digest = 0;
+                    if (digests != null && delta.getObject() != null) {
+                        digest = digests.digest(delta.getObject());
+                    }
+                    // Leave out the changes of attributes which are not synchronized.
+                    if (digests == null || delta.getObject() == null || !digests.isUnchanged(delta.getUid(), digest)) {
+                        if (!handler.handle(delta)) {
+                            if (digests != null) {
+                                digests.save();
                             }
+                            ((SyncTokenResultsHandler) handler).handleResult(new SyncToken(Long.toString(processedUSN)));
+                            return;
                         }
-                        // Process Account specifics (ENABLE/PASSWORD_EXPIRED/LOCKOUT/accountExpires/pwdLastSet)
-                        if (oclass.equals(ObjectClass.ACCOUNT)) {
-                            switch (conn.getServerType()) {
-                                case MSAD_GC:
-                                case MSAD:
-                                    if (attrs.get(ADUserAccountControl.MS_USR_ACCT_CTRL_ATTR) != null) {
-                                        String uac = attrs.get(ADUserAccountControl.MS_USR_ACCT_CTRL_ATTR).get().toString();
-                                        cob.addAttribute(AttributeBuilder.buildEnabled(!ADUserAccountControl.isAccountDisabled(uac)));
-                                        cob.addAttribute(AttributeBuilder.build(ADUserAccountControl.DONT_EXPIRE_PASSWORD_NAME, ADUserAccountControl.isDontExpirePassword(uac)));
-                                        cob.addAttribute(AttributeBuilder.build(ADUserAccountControl.PASSWORD_NOTREQD_NAME, ADUserAccountControl.isPasswordNotReq(uac)));
-                                        cob.addAttribute(AttributeBuilder.build(ADUserAccountControl.SMARTCARD_REQUIRED_NAME, ADUserAccountControl.isSmartCardRequired(uac)));
-                                    }
-                                    if (attrs.get(ADUserAccountControl.MSDS_USR_ACCT_CTRL_ATTR) != null) {
-                                        String uac2 = attrs.get(ADUserAccountControl.MSDS_USR_ACCT_CTRL_ATTR).get().toString();
-                                        cob.addAttribute(AttributeBuilder.buildLockOut(ADUserAccountControl.isAccountLockOut(uac2)));
-                                        cob.addAttribute(AttributeBuilder.buildPasswordExpired(ADUserAccountControl.isPasswordExpired(uac2)));
-                                    }
-                                    break;
-                                case MSAD_LDS:
-                                    if (attrs.get(LdapConstants.MS_DS_USER_ACCOUNT_DISABLED) != null) {
-                                        cob.addAttribute(AttributeBuilder.buildEnabled(!Boolean.parseBoolean(attrs.get(LdapConstants.MS_DS_USER_ACCOUNT_DISABLED).get().toString())));
-                                    } else if (attrs.get(LdapConstants.MS_DS_USER_PASSWORD_EXPIRED) != null) {
-                                        cob.addAttribute(AttributeBuilder.buildPasswordExpired(Boolean.parseBoolean(attrs.get(LdapConstants.MS_DS_USER_PASSWORD_EXPIRED).get().toString())));
-                                    } else if (attrs.get(LdapConstants.MS_DS_USER_ACCOUNT_AUTOLOCKED) != null) {
-                                        cob.addAttribute(AttributeBuilder.buildLockOut(Boolean.parseBoolean(attrs.get(LdapConstants.MS_DS_USER_ACCOUNT_AUTOLOCKED).get().toString())));
-                                    }
-                                    break;
-                                default:
-                            }
-                            if (attrs.get(ADUserAccountControl.ACCOUNT_EXPIRES) != null) {
-                                cob.addAttribute(ADLdapUtil.convertMSEpochToISO8601(attrs.get(ADUserAccountControl.ACCOUNT_EXPIRES)));
-                                attrs.remove(ADUserAccountControl.ACCOUNT_EXPIRES);
-                            }
-                            if (attrs.get(ADUserAccountControl.PWD_LAST_SET) != null) {
-                                cob.addAttribute(ADLdapUtil.convertMSEpochToISO8601(attrs.get(ADUserAccountControl.PWD_LAST_SET)));
-                                attrs.remove(ADUserAccountControl.PWD_LAST_SET);
-                            }
-                            if (attrs.get(ADUserAccountControl.LAST_LOGON) != null) {
-                                cob.addAttribute(ADLdapUtil.convertMSEpochToISO8601(attrs.get(ADUserAccountControl.LAST_LOGON)));
-                                attrs.remove(ADUserAccountControl.LAST_LOGON);
-                            }
-                            if (attrs.get(ADUserAccountControl.LOCKOUT_TIME) != null) {
-                                cob.addAttribute(ADLdapUtil.convertMSEpochToISO8601(attrs.get(ADUserAccountControl.LOCKOUT_TIME)));
-                                attrs.remove(ADUserAccountControl.LOCKOUT_TIME);
+                        if (digests != null) {
+                            if (SyncDeltaType.DELETE.equals(delta.getDeltaType())) {
+                                digests.deleted(delta.getUid());
+                            } else {
+                                digests.delivered(delta.getUid(), digest);
                             }
                         }
+                    }
+                    processedUSN = entry.getKey();
+                    // All the lower USNs of the window have been handled.
+                    checkpoint.handled(new SyncToken(Long.toString(processedUSN)));
+                }
+                // Everything up to the end of the window has been handled.
+                processedUSN = high;
+                checkpoint.advanced(new SyncToken(Long.toString(processedUSN)));
+                // Widen the window over USN ranges without changes, for instance
+                // when the token is old or the changes are out of the sync scope.
+                span = changes.isEmpty() ? Math.min(span * 2, (long) windowSize * MAX_WINDOW_GROWTH) : windowSize;
+            }
+            if (digests != null) {
+                digests.save();
+            }
+            // ICF 1.4 now allows us to send the Token even if no entries were actually processed
+            ((SyncTokenResultsHandler) handler).handleResult(new SyncToken(waterMark));
+        } finally {
+            if (deletedCtx != null) {
+                try {
+                    deletedCtx.close();
+                } catch (NamingException e) {
+                    logger.ok(e, "Failed to close the deleted objects context");
+                }
+            }
+            if (digests != null) {
+                digests.close();
+            }
+        }
+    }
 
-                        // Set all Attributes
-                        NamingEnumeration<? extends javax.naming.directory.Attribute> attrsEnum = attrs.getAll();
-                        while (attrsEnum.hasMore()) {
-                            javax.naming.directory.Attribute attr = attrsEnum.next();
-                            String id = attr.getID();
-                            NamingEnumeration vals = attr.getAll();
-                            ArrayList values = new ArrayList();
-                            while (vals.hasMore()) {
-                                values.add(vals.next());
-                            }
-                            cob.addAttribute(AttributeBuilder.build(id, values));
-                            if (conn.getConfiguration().isGetGroupMemberId() && oclass.equals(ObjectClass.GROUP) && attr.getID().equalsIgnoreCase("member")) {
-                                cob.addAttribute(buildMemberIdAttribute(conn, attr));
+    /**
+     * Returns the container of the tombstones of the default naming context,
+     * or {@code null} if the deleted entries cannot be searched.
+     */
+    String getDeletedObjectsContainer() throws NamingException {
+        if (!conn.supportsControl(DELETE_CTRL)) {
+            logger.info("The server does not support the control to search for deleted entries");
+            return null;
+        }
+        Attributes rootAttrs = conn.getInitialContext().getAttributes("", new String[]{NAMING_CTX_ATTR});
+        String defaultContext = getStringAttrValue(rootAttrs, NAMING_CTX_ATTR);
+        if (defaultContext == null) {
+            if (LdapConstants.ServerType.MSAD_LDS.equals(conn.getServerType())) {
+                logger.error("Active Directory Lightweight Directory Services is used but defaultNamingContext has not been set - impossible to detect deleted objects");
+            }
+            return null;
+        }
+        return DELETED_PREFIX + defaultContext;
+    }
+
+    /**
+     * Returns a new context to search the deleted objects container. The
+     * caller closes it.
+     */
+    LdapContext newDeletedObjectsContext() throws NamingException {
+        return conn.getInitialContext().newInstance(new Control[]{new BasicControl(DELETE_CTRL)});
+    }
+
+    /**
+     * Returns the USN before the first entry or tombstone the domain
+     * controller changed at or after the given time, from their whenChanged,
+     * or the highestCommittedUSN if there is none. The whenChanged of an
+     * entry is set by each domain controller when it applies the change.
+     */
+    public SyncToken getSyncTokenSince(long millis) {
+        String filter = "(whenChanged>=" + ADLdapUtil.getADLdapDatefromJavaDate(new Date(millis)) + ")";
+        SearchControls controls = LdapInternalSearch.createDefaultSearchControls();
+        controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        controls.setReturningAttributes(new String[]{USN_CHANGED_ATTR});
+        final long[] lowest = { -1 };
+        LdapInternalSearch search = new LdapInternalSearch(conn, filter,
+                Arrays.asList(conn.getConfiguration().getBaseContextsToSynchronize()),
+                new SimplePagedSearchStrategy(conn.getConfiguration().getBlockSize()),
+                controls);
+        LdapSearchResultsHandler handler = new LdapSearchResultsHandler() {
+            public boolean handle(String baseDN, SearchResult result) throws NamingException {
+                lowest[0] = lowerUSN(lowest[0], result);
+                return true;
+            }
+        };
+        try {
+            search.execute(handler);
+        } catch (ConnectorException e) {
+            if (!(e.getCause() instanceof PartialResultException)) {
+                throw e;
+            }
+        }
+        if (conn.supportsControl(DELETE_CTRL)) {
+            LdapContext deletedCtx = null;
+            try {
+                Attributes rootAttrs = conn.getInitialContext().getAttributes("", new String[]{NAMING_CTX_ATTR});
+                String defaultContext = getStringAttrValue(rootAttrs, NAMING_CTX_ATTR);
+                if (defaultContext != null) {
+                    deletedCtx = conn.getInitialContext().newInstance(null);
+                    byte[] cookie = null;
+                    do {
+                        deletedCtx.setRequestControls(new Control[]{new BasicControl(DELETE_CTRL),
+                            new PagedResultsControl(conn.getConfiguration().getBlockSize(), cookie, Control.CRITICAL)});
+                        NamingEnumeration<SearchResult> deleted = deletedCtx.search(DELETED_PREFIX + defaultContext,
+                                "(&(isDeleted=TRUE)" + filter + ")", controls);
+                        try {
+                            while (deleted.hasMore()) {
+                                lowest[0] = lowerUSN(lowest[0], deleted.next());
                             }
+                        } finally {
+                            deleted.close();
                         }
-                        SyncDeltaBuilder syncDeltaBuilder = new SyncDeltaBuilder();
-                        usnChanged[0] = attrs.get(USN_CHANGED_ATTR).get().toString();
-                        if (usnChanged[0].equalsIgnoreCase(attrs.get(USN_CREATED_ATTR).get().toString())) {
-                            syncDeltaBuilder.setDeltaType(SyncDeltaType.CREATE);
-                        } else {
-                            syncDeltaBuilder.setDeltaType(SyncDeltaType.UPDATE);
-                        }
-                        syncDeltaBuilder.setToken(new SyncToken(usnChanged[0]));
-                        syncDeltaBuilder.setUid(uid);
-                        syncDeltaBuilder.setObject(cob.build());
-
-                        changes.put(Integer.parseInt(usnChanged[0]), syncDeltaBuilder.build());
-                        return true;
+                        cookie = getPagedResultsCookie(deletedCtx.getResponseControls());
+                    } while (cookie != null);
+                }
+            } catch (NamingException e) {
+                throw new ConnectorException(e);
+            } catch (IOException e) {
+                throw new ConnectorException(e);
+            } finally {
+                if (deletedCtx != null) {
+                    try {
+                        deletedCtx.close();
+                    } catch (NamingException e) {
+                        logger.ok(e, "Failed to close the deleted objects context");
                     }
-                });
-            } catch (ConnectorException e) {
-                if (e.getCause() instanceof PartialResultException) {
-                    // The default naming context is used on the DC as the baseContextsToSynchronize, hence this PartialResultException.
-                    // Let's just silently catch it not to break the sync cycle. It is thrown at the end of the search anyway...
-                    logger.warn("Default naming context of the DC is used as baseContextsToSynchronize.\nPartialResultException has been caught");
-                } else {
-                    throw e;
                 }
             }
+        }
+        // The sync resumes after the USN of the token.
+        return new SyncToken(lowest[0] != -1 ? Long.toString(lowest[0] - 1) : gethighestCommittedUSN());
+    }
+
+    private static long lowerUSN(long lowest, SearchResult result) throws NamingException {
+        String usnChanged = getStringAttrValue(result.getAttributes(), USN_CHANGED_ATTR);
+        if (usnChanged != null) {
+            long usn = Long.parseLong(usnChanged);
+            if (lowest == -1 || usn < lowest) {
+                return usn;
+            }
+        }
+        return lowest;
+    }
 
-            // Deletes
-            // ldapsearch -J 1.2.840.113556.1.4.417 -h xx -p 389 -b "dc=example,dc=com" -D "cn=administrator,cn=users,dc=example,dc=com" -w xx "&(isDeleted=TRUE)(uSNChanged>=528433)"
-            if (conn.supportsControl(DELETE_CTRL)) {
+    /**
+     * Reads the changed entries of a USN window into the given map, keyed by
+     * their uSNChanged.
+     */
+    void searchChanges(long low, long high, SearchControls controls, AdaptiveBlockSize pageSize, final Map<Long, SyncDelta> changes) {
+        LdapInternalSearch search = new LdapInternalSearch(conn,
+                generateUSNChangedFilter(oclass, low, high, false),
+                Arrays.asList(conn.getConfiguration().getBaseContextsToSynchronize()),
+                new SimplePagedSearchStrategy(pageSize, null, false),
+                controls);
+        try {
+            search.execute(new LdapSearchResultsHandler() {
+                public boolean handle(String baseDN, SearchResult result) throws NamingException {
+                    SyncDelta delta = createSyncDelta(result);
+                    changes.put(Long.parseLong(delta.getToken().getValue().toString()), delta);
+                    return true;
+                }
+            });
+        } catch (ConnectorException e) {
+            if (e.getCause() instanceof PartialResultException) {
+                // The default naming context is used on the DC as the baseContextsToSynchronize, hence this PartialResultException.
+                // Let's just silently catch it not to break the sync cycle. It is thrown at the end of the search anyway...
+                logger.warn("Default naming context of the DC is used as baseContextsToSynchronize.\nPartialResultException has been caught");
+            } else {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Reads the tombstones of a USN window page by page. Only the attributes
+     * needed to build a delete delta are requested.
+     *
+     * @return {@code false} if the server cannot search the deleted objects
+     *         container, in which case no delete was read.
+     * @throws ConnectorException if a page of tombstones could not be read,
+     *             so that the token does not move past the lost deletes.
+     */
+    private boolean searchDeletes(LdapContext deletedCtx, String deletedContainer, long low, long high, SearchControls controls, AdaptiveBlockSize pageSize, Map<Long, SyncDelta> changes) {
+        String filter = generateUSNChangedFilter(oclass, low, high, true);
+        String uidAttr = conn.getConfiguration().getUidAttribute();
+        LdapName deletedName = quietCreateLdapName(deletedContainer);
+        byte[] cookie = null;
+        try {
+            do {
+                deletedCtx.setRequestControls(new Control[]{new BasicControl(DELETE_CTRL),
+                    new PagedResultsControl(pageSize.get(), cookie, Control.CRITICAL)});
+                long start = System.currentTimeMillis();
+                int entries = 0;
+                NamingEnumeration<SearchResult> deleted = deletedCtx.search(deletedContainer, filter, controls);
                 try {
-                    Attributes rootAttrs = conn.getInitialContext().getAttributes("", new String[]{NAMING_CTX_ATTR});
-                    String defaultContext = getStringAttrValue(rootAttrs, NAMING_CTX_ATTR);
-                    if (defaultContext != null) {
-                        LdapContext context = conn.getInitialContext().newInstance(new Control[]{new BasicControl(DELETE_CTRL)});
-                        NamingEnumeration<SearchResult> deleted = context.search(DELETED_PREFIX + defaultContext, generateUSNChangedFilter(oclass, token, true), controls);
-
-                        while (deleted.hasMore()) {
-                            SearchResult entry = deleted.next();
-                            Attributes attrs = entry.getAttributes();
-                            Uid uid = conn.getSchemaMapping().createUid(conn.getConfiguration().getUidAttribute(), attrs);
-                            usnChanged[0] = attrs.get(USN_CHANGED_ATTR).get().toString();
-
-                            SyncDeltaBuilder syncDeltaBuilder = new SyncDeltaBuilder();
-                            syncDeltaBuilder.setToken(new SyncToken(usnChanged[0]));
-                            syncDeltaBuilder.setDeltaType(SyncDeltaType.DELETE);
-                            syncDeltaBuilder.setUid(uid);
-                            if (ObjectClass.ALL.equals(oclass)) {
-                                syncDeltaBuilder.setObjectClass(guessObjectClass(conn, attrs.get(OBJECTCLASS_ATTR)));
-                            } else {
-                                syncDeltaBuilder.setObjectClass(oclass);
-                            }
-                            changes.put(Integer.parseInt(usnChanged[0]), syncDeltaBuilder.build());
+                    while (deleted.hasMore()) {
+                        SearchResult entry = deleted.next();
+                        entries++;
+                        Attributes attrs = entry.getAttributes();
+                        // The tombstone of an entry deleted together with its parent
+                        // has a lastKnownParent in the deleted objects container.
+                        String lastKnownParent = getStringAttrValue(attrs, LAST_KNOWN_PARENT_ATTR);
+                        if (lastKnownParent != null && !quietCreateLdapName(lastKnownParent).startsWith(deletedName)
+                                && isOutOfScope(lastKnownParent)) {
+                            continue;
                         }
-                    } else if (LdapConstants.ServerType.MSAD_LDS.equals(conn.getServerType())) {
-                        logger.error("Active Directory Lightweight Directory Services is used but defaultNamingContext has not been set - impossible to detect deleted objects");
+                        Uid uid = conn.getSchemaMapping().createUid(uidAttr, attrs);
+                        String usnChanged = attrs.get(USN_CHANGED_ATTR).get().toString();
+
+                        SyncDeltaBuilder syncDeltaBuilder = new SyncDeltaBuilder();
+                        syncDeltaBuilder.setToken(new SyncToken(usnChanged));
+                        syncDeltaBuilder.setDeltaType(SyncDeltaType.DELETE);
+                        syncDeltaBuilder.setUid(uid);
+                        if (ObjectClass.ALL.equals(oclass)) {
+                            syncDeltaBuilder.setObjectClass(guessObjectClass(conn, attrs.get(OBJECTCLASS_ATTR)));
+                        } else {
+                            syncDeltaBuilder.setObjectClass(oclass);
+                        }
+                        changes.put(Long.parseLong(usnChanged), syncDeltaBuilder.build());
                     }
-                } catch (NamingException e) {
-                    logger.info(e.getExplanation());
+                } finally {
+                    deleted.close();
                 }
-            } else {
-                logger.info("The server does not support the control to search for deleted entries");
+                pageSize.record(entries, System.currentTimeMillis() - start, 0);
+                cookie = getPagedResultsCookie(deletedCtx.getResponseControls());
+            } while (cookie != null);
+        } catch (OperationNotSupportedException e) {
+            if (cookie != null) {
+                throw new ConnectorException(e);
             }
-            // Changes are now ordered in the TreeMap according to usnChanged.
-            for (Map.Entry<Integer, SyncDelta> entry : changes.entrySet()) {
-                if (!handler.handle(entry.getValue())) {
-                    break;
-                } else {
-                    waterMark = entry.getKey().toString();
+            logger.info("The server does not support searching for deleted entries: {0}", e.getExplanation());
+            return false;
+        } catch (NameNotFoundException e) {
+            if (cookie != null) {
+                throw new ConnectorException(e);
+            }
+            logger.info("The deleted objects container {0} does not exist", deletedContainer);
+            return false;
+        } catch (NamingException e) {
+            throw new ConnectorException(e);
+        } catch (IOException e) {
+            throw new ConnectorException(e);
+        }
+        return true;
+    }
+
+    private static byte[] getPagedResultsCookie(Control[] controls) {
+        if (controls != null) {
+            for (Control control : controls) {
+                if (control instanceof PagedResultsResponseControl) {
+                    return ((PagedResultsResponseControl) control).getCookie();
                 }
             }
-            // ICF 1.4 now allows us to send the Token even if no entries were actually processed
-            ((SyncTokenResultsHandler) handler).handleResult(new SyncToken(waterMark));
         }
+        return null;
+    }
+
+    private SyncDelta createSyncDelta(SearchResult result) throws NamingException {
+        Attributes attrs = result.getAttributes();
+        Uid uid = conn.getSchemaMapping().createUid(conn.getConfiguration().getUidAttribute(), attrs);
+        // build the object first
+        ObjectClass objectClass = ObjectClass.ALL.equals(oclass) ? guessObjectClass(conn, attrs.get(OBJECTCLASS_ATTR)) : oclass;
+        ConnectorObjectBuilder cob = createObjectBuilder(conn, oclass, objectClass, uid, result);
+        SyncDeltaBuilder syncDeltaBuilder = new SyncDeltaBuilder();
+        String usnChanged = attrs.get(USN_CHANGED_ATTR).get().toString();
+        if (usnChanged.equalsIgnoreCase(attrs.get(USN_CREATED_ATTR).get().toString())) {
+            syncDeltaBuilder.setDeltaType(SyncDeltaType.CREATE);
+        } else {
+            syncDeltaBuilder.setDeltaType(SyncDeltaType.UPDATE);
+        }
+        syncDeltaBuilder.setToken(new SyncToken(usnChanged));
+        syncDeltaBuilder.setUid(uid);
+        syncDeltaBuilder.setObject(cob.build());
+        return syncDeltaBuilder.build();
+    }
+
+    /**
+     * Builds the object of a changed entry, converting the Active Directory
+     * specific attributes. The attributes handled here are removed from the
+     * attributes of the search result.
+     *
+     * @param oclass the object class being synchronized.
+     * @param objectClass the object class of the entry.
+     */
+    static ConnectorObjectBuilder createObjectBuilder(LdapConnection conn, ObjectClass oclass, ObjectClass objectClass, Uid uid, SearchResult result) throws NamingException {
+        Attributes attrs = result.getAttributes();
+        ConnectorObjectBuilder cob = new ConnectorObjectBuilder();
+        cob.setUid(uid);
+        cob.setObjectClass(objectClass);
+        cob.setName(result.getNameInNamespace());
+        if (attrs.get(LdapConstants.MS_GUID_ATTR) != null) {
+            cob.addAttribute(AttributeBuilder.build(LdapConstants.MS_GUID_ATTR, objectGUIDtoString(attrs.get(LdapConstants.MS_GUID_ATTR))));
+            attrs.remove(LdapConstants.MS_GUID_ATTR);
+        }
+        // Make sure we remove the SID
+        attrs.remove(LdapConstants.MS_SID_ATTR);
+
+        // Make sure we're not hitting AD large group issue
+        if (ObjectClass.GROUP.equals(oclass)) {
+            // see: http://msdn.microsoft.com/en-us/library/ms817827.aspx
+            if (attrs.get("member;range=0-1499") != null) {
+                // we're in the limitation
+                Attribute range = AttributeBuilder.build("member", fetchGroupMembersByRange(conn, result));
+                cob.addAttribute(range);
+                if (conn.getConfiguration().isGetGroupMemberId()) {
+                    cob.addAttribute(buildMemberIdAttribute(conn, range));
+                }
+                attrs.remove("member;range=0-1499");
+                attrs.remove("member");
+            }
+            try {
+                if (attrs.get(ADGroupType.GROUPTYPE) != null) {
+                    String groupType = attrs.get(ADGroupType.GROUPTYPE).get().toString();
+                    cob.addAttribute(AttributeBuilder.build(ADGroupType.GROUP_SCOPE_NAME, ADGroupType.getScope(groupType)));
+                    cob.addAttribute(AttributeBuilder.build(ADGroupType.GROUP_TYPE_NAME, ADGroupType.getType(groupType)));
+                }
+            } catch (NamingException e) {
+                logger.warn(e, "Can't read groupType attribute: " + e.getExplanation());
+            }
+        }
+        // Process Account specifics (ENABLE/PASSWORD_EXPIRED/LOCKOUT/accountExpires/pwdLastSet)
+        if (oclass.equals(ObjectClass.ACCOUNT)) {
+            switch (conn.getServerType()) {
+                case MSAD_GC:
+                case MSAD:
+                    if (attrs.get(ADUserAccountControl.MS_USR_ACCT_CTRL_ATTR) != null) {
+                        String uac = attrs.get(ADUserAccountControl.MS_USR_ACCT_CTRL_ATTR).get().toString();
+                        cob.addAttribute(AttributeBuilder.buildEnabled(!ADUserAccountControl.isAccountDisabled(uac)));
+                        cob.addAttribute(AttributeBuilder.build(ADUserAccountControl.DONT_EXPIRE_PASSWORD_NAME, ADUserAccountControl.isDontExpirePassword(uac)));
+                        cob.addAttribute(AttributeBuilder.build(ADUserAccountControl.PASSWORD_NOTREQD_NAME, ADUserAccountControl.isPasswordNotReq(uac)));
+                        cob.addAttribute(AttributeBuilder.build(ADUserAccountControl.SMARTCARD_REQUIRED_NAME, ADUserAccountControl.isSmartCardRequired(uac)));
+                    }
+                    if (attrs.get(ADUserAccountControl.MSDS_USR_ACCT_CTRL_ATTR) != null) {
+                        String uac2 = attrs.get(ADUserAccountControl.MSDS_USR_ACCT_CTRL_ATTR).get().toString();
+                        cob.addAttribute(AttributeBuilder.buildLockOut(ADUserAccountControl.isAccountLockOut(uac2)));
+                        cob.addAttribute(AttributeBuilder.buildPasswordExpired(ADUserAccountControl.isPasswordExpired(uac2)));
+                    }
+                    break;
+                case MSAD_LDS:
+                    if (attrs.get(LdapConstants.MS_DS_USER_ACCOUNT_DISABLED) != null) {
+                        cob.addAttribute(AttributeBuilder.buildEnabled(!Boolean.parseBoolean(attrs.get(LdapConstants.MS_DS_USER_ACCOUNT_DISABLED).get().toString())));
+                    } else if (attrs.get(LdapConstants.MS_DS_USER_PASSWORD_EXPIRED) != null) {
+                        cob.addAttribute(AttributeBuilder.buildPasswordExpired(Boolean.parseBoolean(attrs.get(LdapConstants.MS_DS_USER_PASSWORD_EXPIRED).get().toString())));
+                    } else if (attrs.get(LdapConstants.MS_DS_USER_ACCOUNT_AUTOLOCKED) != null) {
+                        cob.addAttribute(AttributeBuilder.buildLockOut(Boolean.parseBoolean(attrs.get(LdapConstants.MS_DS_USER_ACCOUNT_AUTOLOCKED).get().toString())));
+                    }
+                    break;
+                default:
+            }
+            if (attrs.get(ADUserAccountControl.ACCOUNT_EXPIRES) != null) {
+                cob.addAttribute(ADLdapUtil.convertMSEpochToISO8601(attrs.get(ADUserAccountControl.ACCOUNT_EXPIRES)));
+                attrs.remove(ADUserAccountControl.ACCOUNT_EXPIRES);
+            }
+            if (attrs.get(ADUserAccountControl.PWD_LAST_SET) != null) {
+                cob.addAttribute(ADLdapUtil.convertMSEpochToISO8601(attrs.get(ADUserAccountControl.PWD_LAST_SET)));
+                attrs.remove(ADUserAccountControl.PWD_LAST_SET);
+            }
+            if (attrs.get(ADUserAccountControl.LAST_LOGON) != null) {
+                cob.addAttribute(ADLdapUtil.convertMSEpochToISO8601(attrs.get(ADUserAccountControl.LAST_LOGON)));
+                attrs.remove(ADUserAccountControl.LAST_LOGON);
+            }
+            if (attrs.get(ADUserAccountControl.LOCKOUT_TIME) != null) {
+                cob.addAttribute(ADLdapUtil.convertMSEpochToISO8601(attrs.get(ADUserAccountControl.LOCKOUT_TIME)));
+                attrs.remove(ADUserAccountControl.LOCKOUT_TIME);
+            }
+        }
+
+        // Set all Attributes
+        NamingEnumeration<? extends javax.naming.directory.Attribute> attrsEnum = attrs.getAll();
+        while (attrsEnum.hasMore()) {
+            javax.naming.directory.Attribute attr = attrsEnum.next();
+            String id = attr.getID();
+            NamingEnumeration vals = attr.getAll();
+            ArrayList values = new ArrayList();
+            while (vals.hasMore()) {
+                values.add(vals.next());
+            }
+            cob.addAttribute(AttributeBuilder.build(id, values));
+            if (conn.getConfiguration().isGetGroupMemberId() && oclass.equals(ObjectClass.GROUP) && attr.getID().equalsIgnoreCase("member")) {
+                cob.addAttribute(buildMemberIdAttribute(conn, attr));
+            }
+        }
+        return cob;
     }
 
-    private String gethighestCommittedUSN() {
+    String gethighestCommittedUSN() {
         String hcUSN = null;
         try {
             Attributes attrs = conn.getInitialContext().getAttributes("", new String[]{HCU_CHANGED_ATTR});
@@ -331,15 +623,13 @@ public class ActiveDirectoryChangeLogSyncStrategy implements LdapSyncStrategy {
         return hcUSN;
     }
 
-    private String generateUSNChangedFilter(ObjectClass oc, SyncToken token, boolean isDeleted) {
+    private String generateUSNChangedFilter(ObjectClass oc, long low, long high, boolean isDeleted) {
         StringBuilder filter = new StringBuilder();
 
-        if (token == null) {
-            token = this.getLatestSyncToken();
-        }
-
         filter.append("(uSNChanged>=");
-        filter.append(Integer.parseInt(token.getValue().toString()) + 1);
+        filter.append(low);
+        filter.append(")(uSNChanged<=");
+        filter.append(high);
         filter.append(")");
 
         if (isDeleted) {
@@ -379,7 +669,6 @@ public class ActiveDirectoryChangeLogSyncStrategy implements LdapSyncStrategy {
             //Specify the DirSync and DirSyncResponse controls
             byte[] dirSyncCookie = null;
             boolean hasMore = false;
-            Control[] rspCtls;
             //Search for objects using the filter
             do {
                 ctx.setRequestControls(new Control[]{new DirSyncControl(dirSyncCookie)});
@@ -389,14 +678,11 @@ public class ActiveDirectoryChangeLogSyncStrategy implements LdapSyncStrategy {
                 }
                 answer.close();
                 //save the response controls
-                if ((rspCtls = ctx.getResponseControls()) != null) {
-                    for (Control control : rspCtls) {
-                        if (control instanceof DirSyncResponseControl) {
-                            DirSyncResponseControl dirSyncControl = (DirSyncResponseControl) control;
-                            dirSyncCookie = dirSyncControl.getResponseCookie();
-                            hasMore = dirSyncControl.hasMore();
-                        }
-                    }
+                DirSyncResponseControl dirSyncControl = DirSyncResponseControl.find(ctx.getResponseControls());
+                hasMore = false;
+                if (dirSyncControl != null) {
+                    dirSyncCookie = dirSyncControl.getResponseCookie();
+                    hasMore = dirSyncControl.hasMore();
                 }
 
             } while (hasMore);
@@ -415,7 +701,6 @@ public class ActiveDirectoryChangeLogSyncStrategy implements LdapSyncStrategy {
     private void handleEvents(SyncToken token, SyncResultsHandler handler, OperationOptions options) {
         ArrayList<SearchResult> changes = new ArrayList<SearchResult>();
         String searchFilter = "(|(objectClass=group)(objectclass=user))";
-        Control[] rspCtls;
         //Specify the DirSync and DirSyncResponse controls
         byte[] dirSyncCookie = (byte[]) token.getValue();
         boolean hasMore = false;
@@ -465,14 +750,11 @@ public class ActiveDirectoryChangeLogSyncStrategy implements LdapSyncStrategy {
                 }
 
                 //Save the response control for next round
-                if ((rspCtls = ctx.getResponseControls()) != null) {
-                    for (Control control : rspCtls) {
-                        if (control instanceof DirSyncResponseControl) {
-                            DirSyncResponseControl dirSyncControl = (DirSyncResponseControl) control;
-                            dirSyncCookie = dirSyncControl.getResponseCookie();
-                            hasMore = dirSyncControl.hasMore();
-                        }
-                    }
+                DirSyncResponseControl dirSyncControl = DirSyncResponseControl.find(ctx.getResponseControls());
+                hasMore = false;
+                if (dirSyncControl != null) {
+                    dirSyncCookie = dirSyncControl.getResponseCookie();
+                    hasMore = dirSyncControl.hasMore();
                 }
                 processChanges(handler, changes, new SyncToken(dirSyncCookie));
                 ((SyncTokenResultsHandler) handler).handleResult(new SyncToken(dirSyncCookie));
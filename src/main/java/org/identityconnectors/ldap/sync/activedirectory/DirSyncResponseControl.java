@@ -28,6 +28,7 @@
 package org.identityconnectors.ldap.sync.activedirectory;
 
 import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
 import java.io.IOException;
 import com.sun.jndi.ldap.Ber;
 import com.sun.jndi.ldap.BerDecoder;
@@ -53,6 +54,25 @@ public class DirSyncResponseControl extends BasicControl {
         }
     }
 
+    /**
+     * Returns the DirSync response control found in the given response
+     * controls, or null. No control factory is registered for this control,
+     * so JNDI returns it as a plain control.
+     */
+    public static DirSyncResponseControl find(Control[] controls) throws IOException {
+        if (controls != null) {
+            for (Control control : controls) {
+                if (control instanceof DirSyncResponseControl) {
+                    return (DirSyncResponseControl) control;
+                }
+                if (OID.equals(control.getID())) {
+                    return new DirSyncResponseControl(control.getID(), control.isCritical(), control.getEncodedValue());
+                }
+            }
+        }
+        return null;
+    }
+
     public byte[] getResponseCookie() {
 	if (cookie.length != 0) {
 	    return cookie;
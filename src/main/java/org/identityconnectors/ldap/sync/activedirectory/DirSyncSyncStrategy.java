@@ -0,0 +1,351 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.sync.activedirectory;
+
+import static org.identityconnectors.common.CollectionUtil.newCaseInsensitiveMap;
+import static org.identityconnectors.common.CollectionUtil.newSet;
+import static org.identityconnectors.ldap.LdapConstants.CHANGED_ATTRIBUTES_NAME;
+import static org.identityconnectors.ldap.LdapConstants.OBJECTCLASS_ATTR;
+import static org.identityconnectors.ldap.LdapUtil.getStringAttrValue;
+import static org.identityconnectors.ldap.LdapUtil.getSynchronizationFilter;
+import static org.identityconnectors.ldap.LdapUtil.guessObjectClass;
+import static org.identityconnectors.ldap.LdapUtil.isUnderContexts;
+import static org.identityconnectors.ldap.LdapUtil.quietCreateLdapName;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.LdapName;
+
+import org.identityconnectors.common.Base64;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.identityconnectors.framework.common.objects.AttributeUtil;
+import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.SyncDelta;
+import org.identityconnectors.framework.common.objects.SyncDeltaBuilder;
+import org.identityconnectors.framework.common.objects.SyncDeltaType;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.identityconnectors.framework.spi.SyncTokenResultsHandler;
+import org.identityconnectors.ldap.ADUserAccountControl;
+import org.identityconnectors.ldap.LdapConnection;
+import org.identityconnectors.ldap.LdapConstants;
+import org.identityconnectors.ldap.LdapEntry;
+import org.identityconnectors.ldap.sync.LdapSyncStrategy;
+
+/**
+ * An implementation of the sync operation based on the DirSync control of
+ * Active Directory, for accounts, groups and all object classes.
+ *
+ * <p>The sync token is the Base64 encoded DirSync cookie. The objects of the
+ * deltas only hold the attributes changed since the token, listed by the
+ * {@link LdapConstants#CHANGED_ATTRIBUTES_NAME} attribute. The incremental
+ * values flag is set, so the values added to and removed from a linked
+ * attribute such as {@code member} are returned instead of all its values,
+ * as the attributes named after it with the {@link #ADDED_VALUES_SUFFIX} and
+ * {@link #REMOVED_VALUES_SUFFIX} suffixes.</p>
+ */
+public class DirSyncSyncStrategy implements LdapSyncStrategy {
+
+    /**
+     * The suffix of the attribute holding the values added to an attribute.
+     */
+    public static final String ADDED_VALUES_SUFFIX = "_added";
+
+    /**
+     * The suffix of the attribute holding the values removed from an attribute.
+     */
+    public static final String REMOVED_VALUES_SUFFIX = "_removed";
+
+    private static final Log log = Log.getLog(DirSyncSyncStrategy.class);
+
+    private static final String NAMING_CTX_ATTR = "defaultNamingContext";
+    private static final String IS_DELETED_ATTR = "isDeleted";
+    private static final String WHEN_CREATED_ATTR = "whenCreated";
+    private static final String INSTANCE_TYPE_ATTR = "instanceType";
+    private static final String RANGE_OPTION = ";range=";
+    // The ranges used by DirSync for the values added to and removed from an attribute.
+    private static final String ADDED_RANGE = "1-1";
+    private static final String REMOVED_RANGE = "0-0";
+
+    private final LdapConnection conn;
+    private final ObjectClass oclass;
+
+    public DirSyncSyncStrategy(LdapConnection conn, ObjectClass oclass) {
+        this.conn = conn;
+        this.oclass = oclass;
+    }
+
+    public SyncToken getLatestSyncToken() {
+        // DirSync only gives the current cookie after walking all the changes.
+        final byte[][] cookie = new byte[1][];
+        dirSync(null, new String[0], new PageHandler() {
+            public boolean handle(List<SearchResult> page, byte[] responseCookie) {
+                cookie[0] = responseCookie;
+                return true;
+            }
+        });
+        return new SyncToken(encodeCookie(cookie[0]));
+    }
+
+    public void sync(SyncToken token, final SyncResultsHandler handler, OperationOptions options) {
+        if (token == null) {
+            ((SyncTokenResultsHandler) handler).handleResult(getLatestSyncToken());
+            return;
+        }
+        final byte[][] cookie = { decodeCookie(token.getValue()) };
+        dirSync(cookie[0], getAttributesToReturn(options), new PageHandler() {
+            public boolean handle(List<SearchResult> page, byte[] responseCookie) throws NamingException {
+                // The cookie is only known once the page has been read, so the
+                // whole page is replayed if the handler stops in the middle.
+                SyncToken pageToken = new SyncToken(encodeCookie(responseCookie));
+                for (SearchResult result : page) {
+                    SyncDelta delta = createSyncDelta(result, pageToken);
+                    if (delta != null && !handler.handle(delta)) {
+                        return false;
+                    }
+                }
+                cookie[0] = responseCookie;
+                return true;
+            }
+        });
+        ((SyncTokenResultsHandler) handler).handleResult(new SyncToken(encodeCookie(cookie[0])));
+    }
+
+    private void dirSync(byte[] cookie, String[] attrsToReturn, PageHandler pageHandler) {
+        SearchControls controls = new SearchControls();
+        controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        controls.setReturningAttributes(attrsToReturn);
+        String filter = getSynchronizationFilter(conn, oclass);
+        LdapContext ctx = null;
+        try {
+            Attributes rootAttrs = conn.getInitialContext().getAttributes("", new String[] { NAMING_CTX_ATTR });
+            String defaultContext = getStringAttrValue(rootAttrs, NAMING_CTX_ATTR);
+            if (defaultContext == null) {
+                throw new ConnectorException("The " + NAMING_CTX_ATTR + " attribute is required by DirSync");
+            }
+            ctx = conn.getInitialContext().newInstance(null);
+            boolean more;
+            do {
+                ctx.setRequestControls(new Control[] { new DirSyncControl(cookie) });
+                List<SearchResult> page = new ArrayList<SearchResult>();
+                NamingEnumeration<SearchResult> results = ctx.search(defaultContext, filter, controls);
+                try {
+                    while (results.hasMore()) {
+                        page.add(results.next());
+                    }
+                } finally {
+                    results.close();
+                }
+                DirSyncResponseControl response = DirSyncResponseControl.find(ctx.getResponseControls());
+                if (response == null) {
+                    throw new ConnectorException("The server did not return the DirSync response control");
+                }
+                if (response.getResponseCookie() != null) {
+                    cookie = response.getResponseCookie();
+                }
+                log.ok("Read a DirSync page of {0} entries", page.size());
+                more = pageHandler.handle(page, cookie) && response.hasMore();
+            } while (more);
+        } catch (IOException e) {
+            throw new ConnectorException(e);
+        } catch (NamingException e) {
+            throw new ConnectorException(e);
+        } finally {
+            if (ctx != null) {
+                try {
+                    ctx.close();
+                } catch (NamingException e) {
+                    log.ok(e, "Failed to close the DirSync context");
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the attributes to ask DirSync for, or {@code null} for all the
+     * changed attributes.
+     */
+    private String[] getAttributesToReturn(OperationOptions options) {
+        String[] attrsToGet = options != null ? options.getAttributesToGet() : null;
+        if (attrsToGet == null) {
+            return null;
+        }
+        Set<String> result = newSet(LdapConstants.MS_GUID_ATTR, IS_DELETED_ATTR, WHEN_CREATED_ATTR, OBJECTCLASS_ATTR,
+                conn.getConfiguration().getUidAttribute());
+        if (ObjectClass.ACCOUNT.equals(oclass) || ObjectClass.ALL.equals(oclass)) {
+            result.add(ADUserAccountControl.MS_USR_ACCT_CTRL_ATTR);
+        }
+        for (String attrName : attrsToGet) {
+            if (!AttributeUtil.isSpecialName(attrName)) {
+                result.add(attrName);
+            }
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    private SyncDelta createSyncDelta(SearchResult result, SyncToken token) throws NamingException {
+        Attributes attrs = result.getAttributes();
+        String dn = result.getNameInNamespace();
+        boolean deleted = "TRUE".equalsIgnoreCase(getStringAttrValue(attrs, IS_DELETED_ATTR));
+        if (!deleted && !isUnderBaseContexts(dn)) {
+            log.ok("Skipping entry {0} because it is not under the base contexts to synchronize", dn);
+            return null;
+        }
+
+        Uid uid = createUid(dn, attrs, deleted);
+        if (uid == null) {
+            log.warn("Skipping entry {0} because its Uid cannot be found", dn);
+            return null;
+        }
+
+        ObjectClass objectClass = oclass;
+        if (ObjectClass.ALL.equals(oclass)) {
+            javax.naming.directory.Attribute oclassAttr = attrs.get(OBJECTCLASS_ATTR);
+            if (oclassAttr == null && !deleted) {
+                oclassAttr = conn.getInitialContext().getAttributes(dn, new String[] { OBJECTCLASS_ATTR }).get(OBJECTCLASS_ATTR);
+            }
+            if (oclassAttr != null) {
+                objectClass = guessObjectClass(conn, oclassAttr);
+            }
+        }
+
+        SyncDeltaBuilder syncDeltaBuilder = new SyncDeltaBuilder();
+        syncDeltaBuilder.setToken(token);
+        syncDeltaBuilder.setUid(uid);
+        if (deleted) {
+            syncDeltaBuilder.setDeltaType(SyncDeltaType.DELETE);
+            syncDeltaBuilder.setObjectClass(objectClass);
+            return syncDeltaBuilder.build();
+        }
+        syncDeltaBuilder.setDeltaType(attrs.get(WHEN_CREATED_ATTR) != null ? SyncDeltaType.CREATE : SyncDeltaType.UPDATE);
+
+        // DirSync always returns the instance type, which is not a change.
+        attrs.remove(INSTANCE_TYPE_ATTR);
+        attrs.remove(IS_DELETED_ATTR);
+        List<String> changedAttrs = new ArrayList<String>();
+        Map<String, List<Object>> incrementalValues = newCaseInsensitiveMap();
+        List<String> rangeIds = new ArrayList<String>();
+        NamingEnumeration<String> ids = attrs.getIDs();
+        while (ids.hasMore()) {
+            String id = ids.next();
+            int rangeIndex = id.toLowerCase().indexOf(RANGE_OPTION);
+            if (rangeIndex < 0) {
+                changedAttrs.add(id);
+                continue;
+            }
+            rangeIds.add(id);
+            String attrName = id.substring(0, rangeIndex);
+            String range = id.substring(rangeIndex + RANGE_OPTION.length());
+            String suffix;
+            if (ADDED_RANGE.equals(range)) {
+                suffix = ADDED_VALUES_SUFFIX;
+            } else if (REMOVED_RANGE.equals(range)) {
+                suffix = REMOVED_VALUES_SUFFIX;
+            } else {
+                continue;
+            }
+            if (!changedAttrs.contains(attrName)) {
+                changedAttrs.add(attrName);
+            }
+            List<Object> values = new ArrayList<Object>();
+            NamingEnumeration<?> valuesEnum = attrs.get(id).getAll();
+            while (valuesEnum.hasMore()) {
+                values.add(valuesEnum.next());
+            }
+            incrementalValues.put(attrName + suffix, values);
+        }
+        // The range attributes are not handed to the object builder.
+        for (String id : rangeIds) {
+            attrs.remove(id);
+        }
+
+        ConnectorObjectBuilder cob = ActiveDirectoryChangeLogSyncStrategy.createObjectBuilder(conn, oclass, objectClass, uid, result);
+        for (Map.Entry<String, List<Object>> entry : incrementalValues.entrySet()) {
+            cob.addAttribute(AttributeBuilder.build(entry.getKey(), entry.getValue()));
+        }
+        cob.addAttribute(AttributeBuilder.build(CHANGED_ATTRIBUTES_NAME, changedAttrs));
+        syncDeltaBuilder.setObject(cob.build());
+        return syncDeltaBuilder.build();
+    }
+
+    private Uid createUid(String dn, Attributes attrs, boolean deleted) {
+        String uidAttr = conn.getConfiguration().getUidAttribute();
+        if (LdapEntry.isDNAttribute(uidAttr)) {
+            // The DN of a deleted object is not the DN it had.
+            return deleted ? null : new Uid(dn);
+        }
+        if (attrs.get(uidAttr) != null) {
+            return conn.getSchemaMapping().createUid(uidAttr, attrs);
+        }
+        return deleted ? null : conn.getSchemaMapping().createUid(oclass, dn);
+    }
+
+    private boolean isUnderBaseContexts(String dn) {
+        List<LdapName> baseContexts = conn.getConfiguration().getBaseContextsToSynchronizeAsLdapNames();
+        if (baseContexts.isEmpty()) {
+            baseContexts = conn.getConfiguration().getBaseContextsAsLdapNames();
+        }
+        return isUnderContexts(quietCreateLdapName(dn), baseContexts);
+    }
+
+    static String encodeCookie(byte[] cookie) {
+        return cookie != null ? Base64.encode(cookie) : "";
+    }
+
+    /**
+     * Decodes a cookie token. Raw cookies, as used by the DirSync events, are
+     * accepted as well.
+     */
+    static byte[] decodeCookie(Object token) {
+        if (token instanceof byte[]) {
+            return (byte[]) token;
+        }
+        String value = token.toString();
+        return value.length() > 0 ? Base64.decode(value) : null;
+    }
+
+    private interface PageHandler {
+
+        /**
+         * Handles a page of DirSync results, returning false to stop.
+         */
+        boolean handle(List<SearchResult> page, byte[] responseCookie) throws NamingException;
+    }
+}
@@ -24,46 +24,34 @@
 
 package org.identityconnectors.ldap.sync.ibm;
 
-import static org.identityconnectors.common.CollectionUtil.isEmpty;
-import static org.identityconnectors.ldap.LdapUtil.quietCreateLdapName;
-
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
-
-import javax.naming.ldap.LdapName;
-
-import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.framework.common.objects.ObjectClass;
 import org.identityconnectors.ldap.LdapConnection;
 import org.identityconnectors.ldap.sync.sunds.SunDSChangeLogSyncStrategy;
 
 /**
- * A NAME does ...
+ * The change log sync of IBM Directory Server. The modifier of a change is
+ * read from {@code ibm-changeInitiatorsName}, both in the changes and on the
+ * change log entries of deletes, where the other servers use
+ * {@code modifiersName} and {@code changeInitiatorsName}. Subclasses may
+ * still check other attributes by overriding
+ * {@link #filterOutByModifiersNames(java.util.Map)}.
  * 
  * @author Laszlo Hordos
  */
 public class IBMDSChangeLogSyncStrategy extends SunDSChangeLogSyncStrategy {
 
-    private static final Log logger = Log.getLog(IBMDSChangeLogSyncStrategy.class);
-
     public IBMDSChangeLogSyncStrategy(LdapConnection conn, ObjectClass oclass) {
         super(conn, oclass);
     }
 
-    protected boolean filterOutByModifiersNames(Map<String, List<Object>> changes) {
-        Set<LdapName> filter = conn.getConfiguration().getModifiersNamesToFilterOutAsLdapNames();
-        if (filter.isEmpty()) {
-            logger.ok("Filtering by modifiersName disabled");
-            return false;
-        }
-        List<?> modifiersNameValues = changes.get("ibm-changeInitiatorsName");
-        if (isEmpty(modifiersNameValues)) {
-            logger.ok("Not filtering by modifiersName because not set for this entry");
-            return false;
-        }
-        LdapName modifiersName = quietCreateLdapName(modifiersNameValues.get(0).toString());
-        return filter.contains(modifiersName);
+    @Override
+    protected String getModifiersNameAttribute() {
+        return "ibm-changeInitiatorsName";
+    }
+
+    @Override
+    protected String getChangeInitiatorsNameAttribute() {
+        return "ibm-changeInitiatorsName";
     }
 
 }
@@ -0,0 +1,52 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.sync.opendj;
+
+import java.io.IOException;
+
+import javax.naming.ldap.BasicControl;
+
+import com.sun.jndi.ldap.BerEncoder;
+
+/**
+ * The OpenDJ external change log request control, which makes a search of
+ * the change log return the changes following the given cookie.
+ */
+public class ExternalChangelogRequestControl extends BasicControl {
+
+    public static final String OID = "1.3.6.1.4.1.26027.1.5.4";
+
+    private static final long serialVersionUID = 1L;
+
+    public ExternalChangelogRequestControl(String cookie) throws IOException {
+        super(OID, true, null);
+        super.value = setEncodedValue(cookie != null ? cookie : "");
+    }
+
+    private byte[] setEncodedValue(String cookie) throws IOException {
+        final BerEncoder ber = new BerEncoder(64);
+        ber.encodeString(cookie, true);
+        return ber.getTrimmedBuf();
+    }
+}
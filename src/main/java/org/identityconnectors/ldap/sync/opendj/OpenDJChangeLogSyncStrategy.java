@@ -0,0 +1,253 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.sync.opendj;
+
+import static org.identityconnectors.ldap.LdapUtil.getStringAttrValue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.SizeLimitExceededException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.SyncDelta;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.identityconnectors.framework.spi.SyncTokenResultsHandler;
+import org.identityconnectors.ldap.LdapConnection;
+import org.identityconnectors.ldap.LdapEntry;
+import org.identityconnectors.ldap.search.AdaptiveBlockSize;
+import org.identityconnectors.ldap.search.LdapInternalSearch;
+import org.identityconnectors.ldap.sync.SyncCheckpoint;
+import org.identityconnectors.ldap.sync.sunds.SunDSChangeLogSyncStrategy;
+
+/**
+ * An implementation of the sync operation based on the OpenDJ external change
+ * log in cookie mode.
+ * <p>
+ * Unlike change numbers, which are assigned by each server, the cookie holds
+ * the last change seen from every replica, so a sync can resume on any server
+ * of a replicated topology. The cookie is the sync token. The change log
+ * entries are turned into deltas just like with change numbers.
+ */
+public class OpenDJChangeLogSyncStrategy extends SunDSChangeLogSyncStrategy {
+
+    private static final Log log = Log.getLog(OpenDJChangeLogSyncStrategy.class);
+
+    private static final String COOKIE_ATTR = "changeLogCookie";
+
+    private static final String LAST_COOKIE_ATTR = "lastExternalChangelogCookie";
+
+    private static final String CHANGE_LOG_ATTR = "changeLog";
+
+    private static final String[] CHANGE_LOG_ATTRS = { "targetDN", "changeType", "changes", "newRdn", "deleteOldRdn",
+        "newSuperior", "targetEntryUUID", "targetUniqueID", "changeInitiatorsName", COOKIE_ATTR };
+
+    private String changeLogContext;
+
+    public OpenDJChangeLogSyncStrategy(LdapConnection conn, ObjectClass oclass) {
+        super(conn, oclass);
+    }
+
+    @Override
+    public SyncToken getLatestSyncToken() {
+        try {
+            Attributes attrs = conn.getInitialContext().getAttributes("", new String[] { LAST_COOKIE_ATTR });
+            String cookie = getStringAttrValue(attrs, LAST_COOKIE_ATTR);
+            if (cookie == null) {
+                throw new ConnectorException("Unable to read the " + LAST_COOKIE_ATTR + " attribute of the root DSE");
+            }
+            return new SyncToken(cookie);
+        } catch (NamingException e) {
+            throw new ConnectorException(e);
+        }
+    }
+
+    @Override
+    public void sync(SyncToken token, SyncResultsHandler handler, OperationOptions options) {
+        String cookie;
+        // Set when the token must be stored even though no change is processed.
+        String processedCookie = null;
+        if (token == null) {
+            // Like with change numbers, start from the first change.
+            cookie = "";
+        } else if (token.getValue() instanceof String) {
+            cookie = (String) token.getValue();
+        } else {
+            cookie = getChangeCookie(token.getValue());
+            if (cookie == null) {
+                log.warn("No change log cookie found for token {0}, synchronizing by change number", token.getValue());
+                super.sync(token, handler, options);
+                return;
+            }
+            log.info("Switching from change number {0} to change log cookie {1}", token.getValue(), cookie);
+            processedCookie = cookie;
+        }
+
+        AdaptiveBlockSize blockSize = AdaptiveBlockSize.create(conn.getConfiguration(), conn.getConfiguration().getChangeLogBlockSize());
+        SyncCheckpoint checkpoint = SyncCheckpoint.create(conn.getConfiguration(), handler);
+
+        startWorkers();
+        try {
+            boolean more = true;
+            while (more) {
+                long start = System.currentTimeMillis();
+                CookieBlock block = readBlock(cookie, blockSize.get(), blockSize.isAdaptive());
+                blockSize.record(block.entries.size(), System.currentTimeMillis() - start, block.bytes);
+                // When the block is full, read the next one from the last cookie.
+                more = block.full && !block.entries.isEmpty();
+
+                List<SyncDelta> deltas = createSyncDeltas(block.entries, block.tokens, options.getAttributesToGet());
+                for (int i = 0; i < deltas.size(); i++) {
+                    SyncDelta delta = deltas.get(i);
+                    if (delta != null && !handler.handle(delta)) {
+                        more = false;
+                        break;
+                    }
+                    cookie = processedCookie = (String) block.tokens.get(i).getValue();
+                    checkpoint.handled(block.tokens.get(i));
+                }
+            }
+        } finally {
+            stopWorkers();
+        }
+        if (processedCookie != null) {
+            ((SyncTokenResultsHandler) handler).handleResult(new SyncToken(processedCookie));
+        }
+    }
+
+    /**
+     * Reads at most the given number of change log entries after the given
+     * cookie, with the cookie of each entry as its token.
+     */
+    CookieBlock readBlock(String cookie, int size, boolean measure) {
+        SearchControls controls = LdapInternalSearch.createDefaultSearchControls();
+        controls.setSearchScope(SearchControls.ONELEVEL_SCOPE);
+        controls.setReturningAttributes(CHANGE_LOG_ATTRS);
+        controls.setCountLimit(size);
+        CookieBlock block = new CookieBlock();
+        LdapContext ctx = null;
+        try {
+            ctx = conn.getInitialContext().newInstance(new Control[] { new ExternalChangelogRequestControl(cookie) });
+            NamingEnumeration<SearchResult> results = ctx.search(getChangeLogContext(), "(objectClass=*)", controls);
+            try {
+                while (results.hasMore()) {
+                    SearchResult result = results.next();
+                    if (measure) {
+                        block.bytes += AdaptiveBlockSize.estimateSize(result);
+                    }
+                    LdapEntry entry = LdapEntry.create(getChangeLogContext(), result);
+                    String entryCookie = getStringAttrValue(entry.getAttributes(), COOKIE_ATTR);
+                    if (entryCookie == null) {
+                        throw new ConnectorException("Change log entry " + entry.getDN() + " has no " + COOKIE_ATTR + " attribute");
+                    }
+                    block.entries.add(entry);
+                    block.tokens.add(new SyncToken(entryCookie));
+                }
+            } catch (SizeLimitExceededException e) {
+                block.full = true;
+            } finally {
+                results.close();
+            }
+        } catch (IOException e) {
+            throw new ConnectorException(e);
+        } catch (NamingException e) {
+            throw new ConnectorException(e);
+        } finally {
+            if (ctx != null) {
+                try {
+                    ctx.close();
+                } catch (NamingException e) {
+                    log.ok(e, "Failed to close the change log context");
+                }
+            }
+        }
+        return block;
+    }
+
+    /**
+     * Returns the cookie of the change log entry with the given change number,
+     * which allows to move from change numbers to cookies without missing or
+     * replaying changes.
+     */
+    private String getChangeCookie(Object changeNumber) {
+        SearchControls controls = LdapInternalSearch.createDefaultSearchControls();
+        controls.setSearchScope(SearchControls.ONELEVEL_SCOPE);
+        controls.setReturningAttributes(new String[] { COOKIE_ATTR });
+        try {
+            NamingEnumeration<SearchResult> results = conn.getInitialContext().search(getChangeLogContext(),
+                    "(changeNumber=" + changeNumber + ")", controls);
+            try {
+                if (results.hasMore()) {
+                    return getStringAttrValue(results.next().getAttributes(), COOKIE_ATTR);
+                }
+            } finally {
+                results.close();
+            }
+        } catch (NamingException e) {
+            log.warn(e, "Unable to read the change log entry {0}", changeNumber);
+        }
+        return null;
+    }
+
+    private String getChangeLogContext() {
+        if (changeLogContext == null) {
+            try {
+                Attributes attrs = conn.getInitialContext().getAttributes("", new String[] { CHANGE_LOG_ATTR });
+                changeLogContext = getStringAttrValue(attrs, CHANGE_LOG_ATTR);
+            } catch (NamingException e) {
+                throw new ConnectorException(e);
+            }
+            if (changeLogContext == null) {
+                changeLogContext = "cn=changelog";
+            }
+        }
+        return changeLogContext;
+    }
+
+    /**
+     * A block of change log entries and their cookies.
+     */
+    static final class CookieBlock {
+
+        final List<LdapEntry> entries = new ArrayList<LdapEntry>();
+        final List<SyncToken> tokens = new ArrayList<SyncToken>();
+        /**
+         * Whether the change log holds more entries after this block.
+         */
+        boolean full;
+        long bytes;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.sync.psearch;
+
+import java.io.IOException;
+
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
+
+import com.sun.jndi.ldap.Ber;
+import com.sun.jndi.ldap.BerDecoder;
+
+/**
+ * The entry change notification control returned with each entry of a
+ * persistent search (draft-ietf-ldapext-psearch).
+ *
+ * <pre>
+ * EntryChangeNotification ::= SEQUENCE {
+ *     changeType ENUMERATED { add (1), delete (2), modify (4), modDN (8) },
+ *     previousDN LDAPDN OPTIONAL,
+ *     changeNumber INTEGER OPTIONAL
+ * }
+ * </pre>
+ */
+public class EntryChangeNotificationControl extends BasicControl {
+
+    public static final String OID = "2.16.840.1.113730.3.4.7";
+
+    private static final long serialVersionUID = 1L;
+
+    private int changeType;
+    private String previousDN;
+    private long changeNumber = -1;
+
+    public EntryChangeNotificationControl(String id, boolean criticality, byte[] value) throws IOException {
+        super(id, criticality, value);
+        if ((value != null) && (value.length > 0)) {
+            BerDecoder decoder = new BerDecoder(value, 0, value.length);
+            decoder.parseSeq(null);
+            changeType = decoder.parseEnumeration();
+            if (decoder.bytesLeft() > 0 && decoder.peekByte() == Ber.ASN_OCTET_STR) {
+                previousDN = decoder.parseString(true);
+            }
+            if (decoder.bytesLeft() > 0 && decoder.peekByte() == Ber.ASN_INTEGER) {
+                changeNumber = parseLong(decoder);
+            }
+        }
+    }
+
+    /**
+     * Parses an INTEGER that may not fit in an {@code int}, as the change
+     * numbers of long-lived change logs do not.
+     */
+    private static long parseLong(BerDecoder decoder) throws IOException {
+        decoder.parseByte();
+        int length = decoder.parseLength();
+        if (length < 1 || length > 8) {
+            throw new IOException("Unsupported INTEGER length: " + length);
+        }
+        long result = (byte) decoder.parseByte();
+        for (int i = 1; i < length; i++) {
+            result = (result << 8) | decoder.parseByte();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the entry change notification control among the given entry
+     * controls, or {@code null} if there is none.
+     */
+    public static EntryChangeNotificationControl find(Control[] controls) throws IOException {
+        if (controls != null) {
+            for (Control control : controls) {
+                if (OID.equals(control.getID())) {
+                    return new EntryChangeNotificationControl(control.getID(), control.isCritical(), control.getEncodedValue());
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns one of the {@link PersistentSearchControl} change types.
+     */
+    public int getChangeType() {
+        return changeType;
+    }
+
+    /**
+     * Returns the DN of the entry before a modDN, or {@code null}.
+     */
+    public String getPreviousDN() {
+        return previousDN;
+    }
+
+    /**
+     * Returns the change log number of the change, or -1 if the server did
+     * not send it.
+     */
+    public long getChangeNumber() {
+        return changeNumber;
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.sync.psearch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.HasControls;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.ldap.LdapConfiguration;
+import org.identityconnectors.ldap.LdapConnection;
+
+/**
+ * Runs one persistent search per base context to synchronize, each on its own
+ * connection and thread, and buffers the change notifications until the next
+ * sync drains them.
+ * <p>
+ * The search is considered failed as soon as one of the connections is lost
+ * or the buffer is full, since notifications may have been missed from then
+ * on. It is up to the caller to close it and to fall back to a regular sync,
+ * after which it can be started again.
+ * <p>
+ * A search is shared by all the connector instances synchronizing the same
+ * changes, such as the instances of a connector pool, so that the changes are
+ * only buffered once, wherever the next sync runs.
+ */
+public class PersistentSearch {
+
+    private static final Log log = Log.getLog(PersistentSearch.class);
+
+    /**
+     * The maximum number of notifications buffered between two syncs.
+     */
+    static final int MAX_BUFFERED_CHANGES = 10000;
+
+    private static final Map<String, PersistentSearch> searches = new HashMap<String, PersistentSearch>();
+
+    private final String key;
+
+    private final String filter;
+
+    /**
+     * The number of connector instances using this search, guarded by
+     * {@link #searches}.
+     */
+    private int references;
+
+    private final BlockingQueue<Change> changes = new LinkedBlockingQueue<Change>(MAX_BUFFERED_CHANGES);
+
+    private final List<Listener> listeners = new ArrayList<Listener>();
+
+    private volatile String failure;
+
+    private volatile boolean closed;
+
+    /**
+     * Returns the search shared by the connector instances synchronizing with
+     * the given filter on the same server with the same credentials, and takes
+     * a reference on it, which must be given back by {@link #release()}.
+     */
+    public static PersistentSearch acquire(LdapConfiguration config, String filter) {
+        String key = config.getHost() + ':' + config.getPort() + '|' + config.getPrincipal()
+                + '|' + Arrays.asList(config.getBaseContextsToSynchronize()) + '|' + filter;
+        synchronized (searches) {
+            PersistentSearch search = searches.get(key);
+            if (search == null) {
+                search = new PersistentSearch(key, filter);
+                searches.put(key, search);
+            }
+            search.references++;
+            return search;
+        }
+    }
+
+    PersistentSearch(String key, String filter) {
+        this.key = key;
+        this.filter = filter;
+    }
+
+    /**
+     * Gives back a reference taken by {@link #acquire}. The search is closed
+     * when the last connector instance using it gives its reference back.
+     */
+    public void release() {
+        synchronized (searches) {
+            if (--references > 0) {
+                return;
+            }
+            searches.remove(key);
+        }
+        close();
+    }
+
+    /**
+     * Starts listening for changes on the base contexts to synchronize. The
+     * connections are opened before this method returns, so that any change
+     * made afterwards is buffered.
+     */
+    public synchronized void start(LdapConnection conn, String[] attrsToGet) {
+        if (!listeners.isEmpty()) {
+            throw new IllegalStateException("Persistent search already started");
+        }
+        closed = false;
+        failure = null;
+        changes.clear();
+        SearchControls controls = new SearchControls();
+        controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        controls.setDerefLinkFlag(false);
+        controls.setReturningAttributes(attrsToGet);
+        try {
+            for (String baseDN : conn.getConfiguration().getBaseContextsToSynchronize()) {
+                Listener listener = new Listener(baseDN, controls);
+                listeners.add(listener);
+                listener.open(conn);
+            }
+        } catch (NamingException e) {
+            close();
+            throw new ConnectorException(e);
+        } catch (IOException e) {
+            close();
+            throw new ConnectorException(e);
+        }
+        for (Listener listener : listeners) {
+            Thread thread = new Thread(listener, "LDAP persistent search on " + listener.baseDN);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        log.info("Persistent search started with filter {0}", filter);
+    }
+
+    public synchronized boolean isStarted() {
+        return !listeners.isEmpty();
+    }
+
+    /**
+     * Returns {@code true} if the search is started and no notification has
+     * been missed so far.
+     */
+    public synchronized boolean isRunning() {
+        return !listeners.isEmpty() && failure == null && !closed;
+    }
+
+    /**
+     * Returns why the search failed, or {@code null}.
+     */
+    public String getFailure() {
+        return failure;
+    }
+
+    /**
+     * Returns the oldest buffered change without removing it, or {@code null}.
+     */
+    public Change peek() {
+        return changes.peek();
+    }
+
+    /**
+     * Removes the oldest buffered change, once it has been handled.
+     */
+    public void remove() {
+        changes.poll();
+    }
+
+    /**
+     * Stops listening and forgets the buffered changes and the failure, if
+     * any. The search can be started again afterwards.
+     */
+    public synchronized void close() {
+        closed = true;
+        for (Listener listener : listeners) {
+            listener.close();
+        }
+        listeners.clear();
+        changes.clear();
+        failure = null;
+    }
+
+    void fail(String reason) {
+        if (failure == null && !closed) {
+            failure = reason;
+            log.warn("Persistent search failed: {0}", reason);
+        }
+    }
+
+    /**
+     * A change notification: the entry as returned by the persistent search
+     * and its entry change notification control, if any.
+     */
+    public static final class Change {
+
+        private final String baseDN;
+        private final SearchResult result;
+        private final EntryChangeNotificationControl notification;
+
+        Change(String baseDN, SearchResult result, EntryChangeNotificationControl notification) {
+            this.baseDN = baseDN;
+            this.result = result;
+            this.notification = notification;
+        }
+
+        public String getBaseDN() {
+            return baseDN;
+        }
+
+        public SearchResult getResult() {
+            return result;
+        }
+
+        public EntryChangeNotificationControl getNotification() {
+            return notification;
+        }
+    }
+
+    private final class Listener implements Runnable {
+
+        private final String baseDN;
+        private final SearchControls controls;
+        private LdapContext ctx;
+        private NamingEnumeration<SearchResult> results;
+        private volatile boolean stopped;
+
+        Listener(String baseDN, SearchControls controls) {
+            this.baseDN = baseDN;
+            this.controls = controls;
+        }
+
+        void open(LdapConnection conn) throws NamingException, IOException {
+            // A dedicated connection, so that the long lived search neither
+            // holds up nor dies with the connector's own connection.
+            Hashtable<?, ?> env = conn.getInitialContext().getEnvironment();
+            ctx = new InitialLdapContext(env, null);
+            ctx.setRequestControls(new Control[]{new PersistentSearchControl()});
+            results = ctx.search(baseDN, filter, controls);
+        }
+
+        public void run() {
+            NamingEnumeration<SearchResult> results = this.results;
+            try {
+                while (results != null && results.hasMore()) {
+                    SearchResult result = results.next();
+                    EntryChangeNotificationControl notification = null;
+                    if (result instanceof HasControls) {
+                        notification = EntryChangeNotificationControl.find(((HasControls) result).getControls());
+                    }
+                    if (stopped) {
+                        // The search was closed, and may have been started again since.
+                        break;
+                    }
+                    if (!changes.offer(new Change(baseDN, result, notification))) {
+                        fail("more than " + MAX_BUFFERED_CHANGES + " changes buffered");
+                        break;
+                    }
+                }
+                failUnlessStopped("the search on " + baseDN + " ended");
+            } catch (NamingException e) {
+                failUnlessStopped(e.toString());
+            } catch (IOException e) {
+                failUnlessStopped(e.toString());
+            } finally {
+                close();
+            }
+        }
+
+        private void failUnlessStopped(String reason) {
+            if (!stopped) {
+                fail(reason);
+            }
+        }
+
+        synchronized void close() {
+            stopped = true;
+            try {
+                if (results != null) {
+                    results.close();
+                }
+                if (ctx != null) {
+                    ctx.close();
+                }
+            } catch (NamingException e) {
+                log.ok(e, "Failed to close the persistent search on {0}", baseDN);
+            }
+            results = null;
+            ctx = null;
+        }
+    }
+}
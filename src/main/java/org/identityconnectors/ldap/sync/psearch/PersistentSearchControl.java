@@ -0,0 +1,74 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.sync.psearch;
+
+import java.io.IOException;
+
+import javax.naming.ldap.BasicControl;
+
+import com.sun.jndi.ldap.BerEncoder;
+
+/**
+ * The persistent search request control (draft-ietf-ldapext-psearch).
+ *
+ * <pre>
+ * PersistentSearch ::= SEQUENCE {
+ *     changeTypes INTEGER,
+ *     changesOnly BOOLEAN,
+ *     returnECs BOOLEAN
+ * }
+ * </pre>
+ *
+ * This control always asks for all the change types, for changes only and for
+ * entry change notification controls.
+ */
+public class PersistentSearchControl extends BasicControl {
+
+    public static final String OID = "2.16.840.1.113730.3.4.3";
+
+    public static final int ADD = 1;
+
+    public static final int DELETE = 2;
+
+    public static final int MODIFY = 4;
+
+    public static final int MODDN = 8;
+
+    private static final long serialVersionUID = 1L;
+
+    public PersistentSearchControl() throws IOException {
+        super(OID, true, null);
+        super.value = setEncodedValue(ADD | DELETE | MODIFY | MODDN);
+    }
+
+    private byte[] setEncodedValue(int changeTypes) throws IOException {
+        final BerEncoder ber = new BerEncoder(16);
+        ber.beginSeq(48);
+        ber.encodeInt(changeTypes);
+        ber.encodeBoolean(true);
+        ber.encodeBoolean(true);
+        ber.endSeq();
+        return ber.getTrimmedBuf();
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.sync.psearch;
+
+import static org.identityconnectors.common.CollectionUtil.newCaseInsensitiveSet;
+import static org.identityconnectors.ldap.LdapUtil.createSyncObject;
+import static org.identityconnectors.ldap.LdapUtil.guessObjectClass;
+import static org.identityconnectors.ldap.LdapUtil.quietCreateLdapName;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.LdapName;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.SyncDelta;
+import org.identityconnectors.framework.common.objects.SyncDeltaBuilder;
+import org.identityconnectors.framework.common.objects.SyncDeltaType;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.identityconnectors.framework.spi.SyncTokenResultsHandler;
+import org.identityconnectors.ldap.LdapConnection;
+import org.identityconnectors.ldap.LdapConstants;
+import org.identityconnectors.ldap.LdapEntry;
+import org.identityconnectors.ldap.sync.LdapSyncStrategy;
+import org.identityconnectors.ldap.sync.opendj.OpenDJChangeLogSyncStrategy;
+import org.identityconnectors.ldap.sync.sunds.SunDSChangeLogSyncStrategy;
+import org.identityconnectors.ldap.sync.timestamps.TimestampSyncToken;
+import org.identityconnectors.ldap.sync.timestamps.TimestampsSyncStrategy;
+
+/**
+ * A push mode on top of a regular sync strategy. A {@link PersistentSearch}
+ * is started before the regular strategy runs, and the following syncs only
+ * drain the changes it buffered, without querying the server.
+ * <p>
+ * The deltas carry tokens of the regular strategy: the change number of the
+ * entry change notification for the change log strategy, the modifyTimestamp
+ * of the entry for the timestamps strategy, or else the last token received.
+ * When the persistent search fails, it is restarted and the regular strategy
+ * resumes from the last token.
+ * <p>
+ * The changes are filtered by the object classes to synchronize and by the
+ * modifiersName attribute like in the regular strategies. Deleted entries
+ * are returned as they were before the delete, so the modifier of a delete
+ * is unknown and deletes are never filtered out by modifiersName. The
+ * attributes to synchronize and password synchronization cannot be honored,
+ * since the notifications do not tell which attributes changed, which is why
+ * the configuration refuses them together with the persistent search.
+ */
+public class PersistentSearchSyncStrategy implements LdapSyncStrategy {
+
+    private static final Log log = Log.getLog(PersistentSearchSyncStrategy.class);
+
+    private static final String MODIFY_TIMESTAMP = "modifyTimestamp";
+
+    private static final String MODIFIERS_NAME = "modifiersName";
+
+    private final LdapConnection conn;
+    private final ObjectClass oclass;
+    private final LdapSyncStrategy strategy;
+    private final PersistentSearch search;
+
+    public PersistentSearchSyncStrategy(LdapConnection conn, ObjectClass oclass, LdapSyncStrategy strategy, PersistentSearch search) {
+        this.conn = conn;
+        this.oclass = oclass;
+        this.strategy = strategy;
+        this.search = search;
+    }
+
+    public SyncToken getLatestSyncToken() {
+        return strategy.getLatestSyncToken();
+    }
+
+    public void sync(SyncToken token, SyncResultsHandler handler, OperationOptions options) {
+        synchronized (search) {
+            if (search.isRunning()) {
+                drain(token, handler);
+                return;
+            }
+            if (search.isStarted()) {
+                log.warn("Persistent search stopped ({0}), resuming from the last token", search.getFailure());
+                search.close();
+            }
+            // Start listening first, so that no change made while the regular
+            // strategy runs is missed. Those changes are delivered twice at worst.
+            search.start(conn, getAttributesToGet(options));
+        }
+        strategy.sync(token, handler, options);
+    }
+
+    private void drain(SyncToken token, SyncResultsHandler handler) {
+        SyncToken lastToken = token;
+        PersistentSearch.Change change;
+        try {
+            while ((change = search.peek()) != null) {
+                SyncToken changeToken = getToken(change, lastToken);
+                if (isBefore(changeToken, token)) {
+                    // Already delivered by the regular strategy.
+                    search.remove();
+                    continue;
+                }
+                if (filterOut(change)) {
+                    search.remove();
+                    lastToken = changeToken;
+                    continue;
+                }
+                if (!handler.handle(createSyncDelta(change, changeToken))) {
+                    break;
+                }
+                search.remove();
+                lastToken = changeToken;
+            }
+        } catch (NamingException e) {
+            throw new ConnectorException(e);
+        }
+        if (lastToken != null) {
+            ((SyncTokenResultsHandler) handler).handleResult(lastToken);
+        }
+    }
+
+    private SyncDelta createSyncDelta(PersistentSearch.Change change, SyncToken token) throws NamingException {
+        SearchResult result = change.getResult();
+        EntryChangeNotificationControl notification = change.getNotification();
+        SyncDeltaBuilder syncDeltaBuilder = new SyncDeltaBuilder();
+        syncDeltaBuilder.setToken(token);
+
+        if (notification != null && notification.getChangeType() == PersistentSearchControl.DELETE) {
+            // The server returns the entry as it was before the delete.
+            syncDeltaBuilder.setDeltaType(SyncDeltaType.DELETE);
+            syncDeltaBuilder.setUid(conn.getSchemaMapping().createUid(oclass, LdapEntry.create(change.getBaseDN(), result)));
+            Attribute oclassAttr = result.getAttributes().get(LdapConstants.OBJECTCLASS_ATTR);
+            if (ObjectClass.ALL.equals(oclass) && oclassAttr != null) {
+                syncDeltaBuilder.setObjectClass(guessObjectClass(conn, oclassAttr));
+            } else {
+                syncDeltaBuilder.setObjectClass(oclass);
+            }
+            return syncDeltaBuilder.build();
+        }
+
+        ConnectorObject object = createSyncObject(conn, oclass, change.getBaseDN(), result);
+        if (notification != null && notification.getChangeType() == PersistentSearchControl.MODDN
+                && notification.getPreviousDN() != null) {
+            // We can only set the previous Uid if it is the entry DN.
+            if (LdapEntry.isDNAttribute(conn.getSchemaMapping().getLdapUidAttribute(oclass))) {
+                syncDeltaBuilder.setPreviousUid(new Uid(notification.getPreviousDN()));
+            }
+        }
+        syncDeltaBuilder.setDeltaType(SyncDeltaType.CREATE_OR_UPDATE);
+        syncDeltaBuilder.setUid(object.getUid());
+        syncDeltaBuilder.setObject(object);
+        return syncDeltaBuilder.build();
+    }
+
+    private boolean filterOut(PersistentSearch.Change change) throws NamingException {
+        Set<String> objectClasses = newCaseInsensitiveSet();
+        for (String objectClass : conn.getConfiguration().getObjectClassesToSynchronize()) {
+            objectClasses.add(objectClass);
+        }
+        Attribute oclassAttr = change.getResult().getAttributes().get(LdapConstants.OBJECTCLASS_ATTR);
+        if (!objectClasses.isEmpty() && oclassAttr != null && !containsAny(oclassAttr, objectClasses)) {
+            log.ok("Skipping entry because no object class in the list of object classes to synchronize");
+            return true;
+        }
+        EntryChangeNotificationControl notification = change.getNotification();
+        if (notification != null && notification.getChangeType() == PersistentSearchControl.DELETE) {
+            return false;
+        }
+        Set<LdapName> modifiersNames = conn.getConfiguration().getModifiersNamesToFilterOutAsLdapNames();
+        Attribute modifiersName = change.getResult().getAttributes().get(MODIFIERS_NAME);
+        if (!modifiersNames.isEmpty() && modifiersName != null && modifiersName.get() != null
+                && modifiersNames.contains(quietCreateLdapName(modifiersName.get().toString()))) {
+            log.ok("Skipping entry because modifiersName is in the list of modifiersName's to filter out");
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean containsAny(Attribute attr, Set<String> values) throws NamingException {
+        NamingEnumeration<?> attrValues = attr.getAll();
+        try {
+            while (attrValues.hasMore()) {
+                if (values.contains(attrValues.next().toString())) {
+                    return true;
+                }
+            }
+        } finally {
+            attrValues.close();
+        }
+        return false;
+    }
+
+    /**
+     * Returns the token of the regular strategy matching the given change, or
+     * the last token if the change does not tell.
+     */
+    private SyncToken getToken(PersistentSearch.Change change, SyncToken lastToken) throws NamingException {
+        // The tokens of the OpenDJ strategy are cookies, not change numbers.
+        if (strategy instanceof SunDSChangeLogSyncStrategy && !(strategy instanceof OpenDJChangeLogSyncStrategy)) {
+            EntryChangeNotificationControl notification = change.getNotification();
+            if (notification != null && notification.getChangeNumber() >= 0) {
+                return new SyncToken(notification.getChangeNumber());
+            }
+        } else if (strategy instanceof TimestampsSyncStrategy) {
+            Attribute timestamp = change.getResult().getAttributes().get(MODIFY_TIMESTAMP);
+            if (timestamp != null && timestamp.get() != null) {
+                return new SyncToken(timestamp.get().toString());
+            }
+        }
+        return lastToken;
+    }
+
+    /**
+     * Returns {@code true} if the given change token is known to be covered by
+     * the token the regular strategy returned.
+     */
+    static boolean isBefore(SyncToken changeToken, SyncToken token) {
+        if (changeToken == null || token == null || changeToken == token) {
+            return false;
+        }
+        Object changeValue = changeToken.getValue();
+        Object value = token.getValue();
+        if (changeValue instanceof Number && value instanceof Number) {
+            // The change log strategy resumes after its token, which is an
+            // Integer in the tokens of older versions.
+            return ((Number) changeValue).longValue() <= ((Number) value).longValue();
+        }
+        if (changeValue instanceof String && value instanceof String) {
+            // The timestamps strategy resumes at the timestamp of its token.
+            return ((String) changeValue).compareTo(TimestampSyncToken.decode(value).getTimestamp()) < 0;
+        }
+        return false;
+    }
+
+    private String[] getAttributesToGet(OperationOptions options) {
+        Set<String> attrsToGet = new LinkedHashSet<String>();
+        if (options != null && options.getAttributesToGet() != null && options.getAttributesToGet().length != 0) {
+            for (String attr : options.getAttributesToGet()) {
+                attrsToGet.add(attr);
+            }
+        } else {
+            attrsToGet.add("*");
+        }
+        attrsToGet.add(LdapConstants.OBJECTCLASS_ATTR);
+        attrsToGet.add(conn.getConfiguration().getUidAttribute());
+        if (strategy instanceof TimestampsSyncStrategy) {
+            attrsToGet.add(MODIFY_TIMESTAMP);
+        }
+        if (!conn.getConfiguration().getModifiersNamesToFilterOutAsLdapNames().isEmpty()) {
+            attrsToGet.add(MODIFIERS_NAME);
+        }
+        return attrsToGet.toArray(new String[attrsToGet.size()]);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.sync.snapshot;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * An entry of a snapshot: the Uid of an object, its DN, its object class
+ * and a digest of its synchronized attributes.
+ */
+final class SnapshotEntry implements Comparable<SnapshotEntry> {
+
+    private final String uid;
+    private final String dn;
+    private final String objectClass;
+    private final long digest;
+
+    SnapshotEntry(String uid, String dn, String objectClass, long digest) {
+        this.uid = uid;
+        this.dn = dn;
+        this.objectClass = objectClass;
+        this.digest = digest;
+    }
+
+    String getUid() {
+        return uid;
+    }
+
+    String getDN() {
+        return dn;
+    }
+
+    String getObjectClass() {
+        return objectClass;
+    }
+
+    long getDigest() {
+        return digest;
+    }
+
+    /**
+     * Returns {@code true} if the object was renamed or its synchronized
+     * attributes changed.
+     */
+    boolean isChanged(SnapshotEntry other) {
+        return digest != other.digest || !dn.equals(other.dn);
+    }
+
+    public int compareTo(SnapshotEntry other) {
+        return uid.compareTo(other.uid);
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeUTF(uid);
+        out.writeUTF(dn);
+        out.writeUTF(objectClass);
+        out.writeLong(digest);
+    }
+
+    /**
+     * Reads an entry, or returns {@code null} at the end of the input.
+     */
+    static SnapshotEntry read(DataInput in) throws IOException {
+        String uid;
+        try {
+            uid = in.readUTF();
+        } catch (EOFException e) {
+            return null;
+        }
+        return new SnapshotEntry(uid, in.readUTF(), in.readUTF(), in.readLong());
+    }
+}
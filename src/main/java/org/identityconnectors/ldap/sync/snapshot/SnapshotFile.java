@@ -0,0 +1,245 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.sync.snapshot;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * The file of a snapshot: a generation number followed by entries sorted by
+ * Uid. The files are only read and written sequentially, so a snapshot of
+ * any size is compared with the previous one with a constant amount of
+ * memory.
+ */
+final class SnapshotFile {
+
+    private static final int MAGIC = 0x4c445353;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private SnapshotFile() {
+    }
+
+    /**
+     * Returns the generation of the snapshot in the given file, or -1 if
+     * there is no snapshot.
+     */
+    static long readGeneration(File file) throws IOException {
+        if (!file.isFile()) {
+            return -1;
+        }
+        Reader reader = new Reader(file);
+        try {
+            return reader.getGeneration();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Writes entries, which must come in Uid order.
+     */
+    static final class Writer implements Closeable {
+
+        private final DataOutputStream out;
+        private int count;
+
+        Writer(File file, long generation) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+            out.writeInt(MAGIC);
+            out.writeLong(generation);
+        }
+
+        void write(SnapshotEntry entry) throws IOException {
+            entry.write(out);
+            count++;
+        }
+
+        int getCount() {
+            return count;
+        }
+
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads the entries of a file in order.
+     */
+    static final class Reader implements Closeable {
+
+        private final DataInputStream in;
+        private final long generation;
+
+        Reader(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+            if (in.readInt() != MAGIC) {
+                in.close();
+                throw new IOException("Not a snapshot file: " + file);
+            }
+            generation = in.readLong();
+        }
+
+        long getGeneration() {
+            return generation;
+        }
+
+        /**
+         * Returns the next entry, or {@code null} at the end of the file.
+         */
+        SnapshotEntry next() throws IOException {
+            return SnapshotEntry.read(in);
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Sorts entries added in any order into a file, holding at most a given
+     * number of them in memory. Each full buffer is sorted and written to a
+     * run file, and the runs are merged at the end. An entry added twice,
+     * for instance from overlapping base contexts, is kept once.
+     */
+    static final class Sorter {
+
+        private final File directory;
+        private final String prefix;
+        private final int bufferSize;
+        private final List<SnapshotEntry> buffer = new ArrayList<SnapshotEntry>();
+        private final List<File> runs = new ArrayList<File>();
+
+        Sorter(File directory, String prefix, int bufferSize) {
+            this.directory = directory;
+            this.prefix = prefix;
+            this.bufferSize = bufferSize;
+        }
+
+        void add(SnapshotEntry entry) throws IOException {
+            buffer.add(entry);
+            if (buffer.size() >= bufferSize) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            if (buffer.isEmpty()) {
+                return;
+            }
+            Collections.sort(buffer);
+            File run = File.createTempFile(prefix, ".run", directory);
+            runs.add(run);
+            Writer writer = new Writer(run, 0);
+            try {
+                for (SnapshotEntry entry : buffer) {
+                    writer.write(entry);
+                }
+            } finally {
+                writer.close();
+            }
+            buffer.clear();
+        }
+
+        /**
+         * Writes the sorted entries to the given file and returns their
+         * number.
+         */
+        int finish(File file, long generation) throws IOException {
+            flush();
+            List<Reader> readers = new ArrayList<Reader>(runs.size());
+            Writer writer = new Writer(file, generation);
+            try {
+                PriorityQueue<Head> heads = new PriorityQueue<Head>(Math.max(1, runs.size()));
+                for (File run : runs) {
+                    Reader reader = new Reader(run);
+                    readers.add(reader);
+                    Head head = new Head(reader);
+                    if (head.entry != null) {
+                        heads.add(head);
+                    }
+                }
+                SnapshotEntry last = null;
+                while (!heads.isEmpty()) {
+                    Head head = heads.poll();
+                    if (last == null || !last.getUid().equals(head.entry.getUid())) {
+                        writer.write(head.entry);
+                        last = head.entry;
+                    }
+                    if (head.advance()) {
+                        heads.add(head);
+                    }
+                }
+            } finally {
+                writer.close();
+                for (Reader reader : readers) {
+                    reader.close();
+                }
+                delete();
+            }
+            return writer.getCount();
+        }
+
+        /**
+         * Deletes the run files.
+         */
+        void delete() {
+            for (File run : runs) {
+                run.delete();
+            }
+            runs.clear();
+        }
+    }
+
+    private static final class Head implements Comparable<Head> {
+
+        private final Reader reader;
+        private SnapshotEntry entry;
+
+        Head(Reader reader) throws IOException {
+            this.reader = reader;
+            this.entry = reader.next();
+        }
+
+        boolean advance() throws IOException {
+            entry = reader.next();
+            return entry != null;
+        }
+
+        public int compareTo(Head other) {
+            return entry.compareTo(other.entry);
+        }
+    }
+}
@@ -0,0 +1,406 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.sync.snapshot;
+
+import static org.identityconnectors.common.StringUtil.isBlank;
+import static org.identityconnectors.ldap.LdapConstants.OBJECTCLASS_ATTR;
+import static org.identityconnectors.ldap.LdapUtil.createSyncObject;
+import static org.identityconnectors.ldap.LdapUtil.getSynchronizationFilter;
+import static org.identityconnectors.ldap.LdapUtil.guessObjectClass;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.PagedResultsControl;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.SyncDelta;
+import org.identityconnectors.framework.common.objects.SyncDeltaBuilder;
+import org.identityconnectors.framework.common.objects.SyncDeltaType;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.identityconnectors.framework.spi.SyncTokenResultsHandler;
+import org.identityconnectors.ldap.LdapConnection;
+import org.identityconnectors.ldap.LdapEntry;
+import org.identityconnectors.ldap.search.AdaptiveBlockSize;
+import org.identityconnectors.ldap.search.DefaultSearchStrategy;
+import org.identityconnectors.ldap.search.LdapInternalSearch;
+import org.identityconnectors.ldap.search.LdapSearchResultsHandler;
+import org.identityconnectors.ldap.search.LdapSearchStrategy;
+import org.identityconnectors.ldap.search.SimplePagedSearchStrategy;
+import org.identityconnectors.ldap.sync.LdapSyncStrategy;
+import org.identityconnectors.ldap.sync.SyncDigestStore;
+import org.identityconnectors.ldap.sync.SyncStateFile;
+
+/**
+ * An implementation of the sync operation which compares snapshots of the
+ * entries to synchronize, for the directories without a change log or
+ * another way to find out the changes, including deletes.
+ * <p>
+ * A snapshot holds the Uid, the DN and a digest of the synchronized
+ * attributes of each entry, sorted by Uid, in a file of the configured
+ * directory. Each sync reads the entries with a paged search returning only
+ * the synchronized attributes, sorts them on disk, and walks the previous
+ * and the new snapshot side by side: an entry only in the new one is
+ * created, only in the previous one deleted, and in both with another DN or
+ * digest updated. Only the created and updated entries are read in full.
+ * <p>
+ * The sync token is the generation of the snapshot. The new snapshot
+ * replaces the previous one at the end of the sync; if the handler stops
+ * the sync, it keeps the previous state of the entries it did not handle.
+ * The snapshot file is named after the server, the base contexts to
+ * synchronize and the object class, and is locked during the sync.
+ */
+public class SnapshotSyncStrategy implements LdapSyncStrategy {
+
+    private static final Log logger = Log.getLog(SnapshotSyncStrategy.class);
+
+    private static final String SUFFIX = ".snapshot";
+
+    /**
+     * The number of entries sorted in memory at once.
+     */
+    static final int SORT_BUFFER_SIZE = 100000;
+
+    private final LdapConnection conn;
+    private final ObjectClass oclass;
+    private final File directory;
+    private final File file;
+
+    public SnapshotSyncStrategy(LdapConnection conn, ObjectClass oclass) {
+        this.conn = conn;
+        this.oclass = oclass;
+        this.directory = new File(conn.getConfiguration().getSyncSnapshotDirectory());
+        this.file = new File(directory, getFileName() + SUFFIX);
+    }
+
+    /**
+     * Takes a snapshot of the entries to synchronize, which the next sync
+     * compares with.
+     */
+    public SyncToken getLatestSyncToken() {
+        SyncStateFile lock = SyncStateFile.lock(file);
+        try {
+            return takeLatestSnapshot();
+        } catch (IOException e) {
+            throw new ConnectorException(e);
+        } finally {
+            lock.release();
+        }
+    }
+
+    private SyncToken takeLatestSnapshot() throws IOException {
+        long generation = SnapshotFile.readGeneration(file) + 1;
+        File snapshot = takeSnapshot(generation);
+        replace(snapshot);
+        return createToken(generation);
+    }
+
+    public void sync(SyncToken token, SyncResultsHandler handler, OperationOptions options) {
+        SyncStateFile lock = SyncStateFile.lock(file);
+        try {
+            syncSnapshot(token, (SyncTokenResultsHandler) handler, options);
+        } catch (IOException e) {
+            throw new ConnectorException(e);
+        } finally {
+            lock.release();
+        }
+    }
+
+    private void syncSnapshot(SyncToken token, SyncTokenResultsHandler handler, OperationOptions options) throws IOException {
+        if (token == null) {
+            // Like the other strategies, start from the current state.
+            handler.handleResult(takeLatestSnapshot());
+            return;
+        }
+        long previousGeneration = SnapshotFile.readGeneration(file);
+        if (previousGeneration < 0) {
+            logger.warn("There is no snapshot in {0} to compare with, the changes before the current snapshot are not reported", file);
+            handler.handleResult(takeLatestSnapshot());
+            return;
+        }
+        if (!token.getValue().toString().equals(Long.toString(previousGeneration))) {
+            logger.warn("The sync token {0} does not match the snapshot {1} in {2}, reporting the changes since the snapshot",
+                    token.getValue(), previousGeneration, file);
+        }
+        long generation = previousGeneration + 1;
+        File snapshot = takeSnapshot(generation);
+        File merged = File.createTempFile(getTempPrefix(), ".tmp", directory);
+        try {
+            compare(snapshot, merged, generation, token, handler, getAttributesToGet(options));
+            replace(merged);
+        } finally {
+            snapshot.delete();
+            merged.delete();
+        }
+        handler.handleResult(createToken(generation));
+    }
+
+    /**
+     * Walks the previous and the new snapshot in Uid order, delivering the
+     * changes and writing the entries as they are known to the handler to
+     * the merged snapshot.
+     */
+    void compare(File snapshot, File merged, long generation, SyncToken token, SyncResultsHandler handler, String[] attrsToGet) throws IOException {
+        SnapshotFile.Reader previous = new SnapshotFile.Reader(file);
+        SnapshotFile.Reader current = null;
+        SnapshotFile.Writer writer = null;
+        int created = 0;
+        int updated = 0;
+        int deleted = 0;
+        try {
+            current = new SnapshotFile.Reader(snapshot);
+            writer = new SnapshotFile.Writer(merged, generation);
+            SnapshotEntry before = previous.next();
+            SnapshotEntry after = current.next();
+            boolean proceed = true;
+            while (before != null || after != null) {
+                int cmp = before == null ? 1 : (after == null ? -1 : before.compareTo(after));
+                if (cmp < 0) {
+                    if (proceed && (proceed = handler.handle(createDeleteDelta(before, token)))) {
+                        deleted++;
+                    } else {
+                        writer.write(before);
+                    }
+                    before = previous.next();
+                } else if (cmp > 0) {
+                    if (proceed) {
+                        ConnectorObject object = fetchObject(after.getDN(), attrsToGet);
+                        // The entry may have been deleted or changed out of the sync scope since.
+                        if (object != null && (proceed = handler.handle(createDelta(object, SyncDeltaType.CREATE, token)))) {
+                            writer.write(after);
+                            created++;
+                        }
+                    }
+                    after = current.next();
+                } else {
+                    SnapshotEntry known = before;
+                    if (after.isChanged(before)) {
+                        if (proceed) {
+                            ConnectorObject object = fetchObject(after.getDN(), attrsToGet);
+                            if (object != null && (proceed = handler.handle(createDelta(object, SyncDeltaType.UPDATE, token)))) {
+                                known = after;
+                                updated++;
+                            }
+                        }
+                    } else {
+                        known = after;
+                    }
+                    writer.write(known);
+                    before = previous.next();
+                    after = current.next();
+                }
+            }
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+            if (current != null) {
+                current.close();
+            }
+            previous.close();
+        }
+        logger.info("Snapshot {0}: {1} created, {2} updated and {3} deleted entries", generation, created, updated, deleted);
+    }
+
+    /**
+     * Reads the entries to synchronize into a new snapshot file.
+     */
+    private File takeSnapshot(long generation) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new ConnectorException("Cannot create the sync snapshot directory " + directory);
+        }
+        final SnapshotFile.Sorter sorter = new SnapshotFile.Sorter(directory, getTempPrefix(), SORT_BUFFER_SIZE);
+        File snapshot = File.createTempFile(getTempPrefix(), ".tmp", directory);
+        boolean done = false;
+        try {
+            SearchControls controls = LdapInternalSearch.createDefaultSearchControls();
+            controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+            controls.setDerefLinkFlag(false);
+            controls.setReturningAttributes(getSnapshotAttributes());
+
+            LdapSearchStrategy strategy;
+            if (conn.getConfiguration().isUseBlocks() && conn.supportsControl(PagedResultsControl.OID)) {
+                strategy = new SimplePagedSearchStrategy(
+                        AdaptiveBlockSize.create(conn.getConfiguration(), conn.getConfiguration().getBlockSize()), null,
+                        conn.getConfiguration().isPrefetchBlocks());
+            } else {
+                strategy = new DefaultSearchStrategy(false);
+            }
+            LdapInternalSearch search = new LdapInternalSearch(conn,
+                    getSynchronizationFilter(conn, oclass),
+                    Arrays.asList(conn.getConfiguration().getBaseContextsToSynchronize()),
+                    strategy, controls);
+            // A failed search fails the sync: an incomplete snapshot would report deletes.
+            search.execute(new LdapSearchResultsHandler() {
+                public boolean handle(String baseDN, SearchResult result) throws NamingException {
+                    Uid uid = conn.getSchemaMapping().createUid(oclass, LdapEntry.create(baseDN, result));
+                    String objectClass = oclass.getObjectClassValue();
+                    if (ObjectClass.ALL.equals(oclass)) {
+                        objectClass = guessObjectClass(conn, result.getAttributes().get(OBJECTCLASS_ATTR)).getObjectClassValue();
+                    }
+                    try {
+                        sorter.add(new SnapshotEntry(uid.getUidValue(), result.getNameInNamespace(), objectClass,
+                                SyncDigestStore.digestAttributes(result.getAttributes())));
+                    } catch (IOException e) {
+                        throw new ConnectorException(e);
+                    }
+                    return true;
+                }
+            });
+            int count = sorter.finish(snapshot, generation);
+            logger.ok("Took snapshot {0} of {1} entries", generation, count);
+            done = true;
+            return snapshot;
+        } finally {
+            if (!done) {
+                sorter.delete();
+                snapshot.delete();
+            }
+        }
+    }
+
+    private void replace(File snapshot) throws IOException {
+        if (!snapshot.renameTo(file)) {
+            // Some platforms do not rename over an existing file.
+            if (!file.delete() || !snapshot.renameTo(file)) {
+                throw new IOException("Cannot replace the snapshot " + file);
+            }
+        }
+    }
+
+    /**
+     * Reads an entry in full, or returns {@code null} if it is gone or no
+     * longer matches the synchronization filter.
+     */
+    ConnectorObject fetchObject(String dn, String[] attrsToGet) {
+        SearchControls controls = LdapInternalSearch.createDefaultSearchControls();
+        controls.setSearchScope(SearchControls.OBJECT_SCOPE);
+        controls.setReturningAttributes(attrsToGet);
+        LdapInternalSearch search = new LdapInternalSearch(conn, getSynchronizationFilter(conn, oclass),
+                Collections.singletonList(dn), new DefaultSearchStrategy(false), controls);
+        final ConnectorObject[] object = { null };
+        try {
+            search.execute(new LdapSearchResultsHandler() {
+                public boolean handle(String baseDN, SearchResult result) throws NamingException {
+                    object[0] = createSyncObject(conn, oclass, baseDN, result);
+                    return false;
+                }
+            });
+        } catch (ConnectorException e) {
+            if (e.getCause() instanceof NameNotFoundException) {
+                return null;
+            }
+            throw e;
+        }
+        return object[0];
+    }
+
+    private SyncDeltaBuilder createDeltaBuilder(SyncDeltaType type, SyncToken token) {
+        SyncDeltaBuilder syncDeltaBuilder = new SyncDeltaBuilder();
+        // The new snapshot only replaces the previous one at the end.
+        syncDeltaBuilder.setToken(token);
+        syncDeltaBuilder.setDeltaType(type);
+        return syncDeltaBuilder;
+    }
+
+    private SyncDelta createDelta(ConnectorObject object, SyncDeltaType type, SyncToken token) {
+        SyncDeltaBuilder syncDeltaBuilder = createDeltaBuilder(type, token);
+        syncDeltaBuilder.setUid(object.getUid());
+        syncDeltaBuilder.setObject(object);
+        return syncDeltaBuilder.build();
+    }
+
+    private SyncDelta createDeleteDelta(SnapshotEntry entry, SyncToken token) {
+        SyncDeltaBuilder syncDeltaBuilder = createDeltaBuilder(SyncDeltaType.DELETE, token);
+        syncDeltaBuilder.setUid(new Uid(entry.getUid()));
+        syncDeltaBuilder.setObjectClass(new ObjectClass(entry.getObjectClass()));
+        return syncDeltaBuilder.build();
+    }
+
+    /**
+     * Returns the attributes of a snapshot entry: the attributes to
+     * synchronize if any, all the user attributes otherwise.
+     */
+    private String[] getSnapshotAttributes() {
+        Set<String> attrs = new LinkedHashSet<String>();
+        String[] attrsToSynchronize = conn.getConfiguration().getAttributesToSynchronize();
+        if (attrsToSynchronize.length > 0) {
+            attrs.addAll(Arrays.asList(attrsToSynchronize));
+        } else {
+            attrs.add("*");
+        }
+        attrs.add(OBJECTCLASS_ATTR);
+        attrs.add(conn.getConfiguration().getUidAttribute());
+        return attrs.toArray(new String[attrs.size()]);
+    }
+
+    private String[] getAttributesToGet(OperationOptions options) {
+        Set<String> attrsToGet = new LinkedHashSet<String>();
+        if (options != null && options.getAttributesToGet() != null && options.getAttributesToGet().length != 0) {
+            attrsToGet.addAll(Arrays.asList(options.getAttributesToGet()));
+        } else {
+            attrsToGet.add("*");
+        }
+        attrsToGet.add(OBJECTCLASS_ATTR);
+        attrsToGet.add(conn.getConfiguration().getUidAttribute());
+        return attrsToGet.toArray(new String[attrsToGet.size()]);
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    private String getFileName() {
+        return SyncStateFile.createFileName(conn.getConfiguration(), oclass);
+    }
+
+    private String getTempPrefix() {
+        return "snapshot-" + getFileName();
+    }
+
+    private static SyncToken createToken(long generation) {
+        return new SyncToken(Long.toString(generation));
+    }
+
+    /**
+     * Returns {@code true} if the configuration asks for snapshot based sync.
+     */
+    public static boolean isConfigured(LdapConnection conn) {
+        return !isBlank(conn.getConfiguration().getSyncSnapshotDirectory());
+    }
+}
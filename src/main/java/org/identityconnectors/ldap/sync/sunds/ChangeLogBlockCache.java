@@ -0,0 +1,246 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.sync.sunds;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.ldap.LdapConfiguration;
+import org.identityconnectors.ldap.LdapConnection;
+import org.identityconnectors.ldap.LdapEntry;
+
+/**
+ * The change log entries already read by a sync, kept for the syncs of the
+ * other object classes reading the same change log. The cache knows which
+ * change number ranges it holds completely, so that a block is only served
+ * from memory when the change log could not return more for it. The oldest
+ * change numbers are evicted first. A cache is dropped once every connection
+ * which used it has been released.
+ */
+public final class ChangeLogBlockCache {
+
+    private static final Log log = Log.getLog(ChangeLogBlockCache.class);
+
+    private static final Map<String, ChangeLogBlockCache> caches = new HashMap<String, ChangeLogBlockCache>();
+
+    /**
+     * The connections which used the cache, as its references.
+     */
+    private final Map<LdapConnection, Boolean> users = new IdentityHashMap<LdapConnection, Boolean>();
+
+    private final NavigableMap<Long, LdapEntry> entries = new TreeMap<Long, LdapEntry>();
+
+    /**
+     * The ranges of change numbers held completely, from the first change
+     * number to the last one. The ranges neither overlap nor touch.
+     */
+    private final NavigableMap<Long, Long> ranges = new TreeMap<Long, Long>();
+
+    private int maxSize;
+
+    /**
+     * Returns the cache shared by the connections reading the given change log
+     * on the same server with the same credentials, or {@code null} if the
+     * cache is disabled or the server connected to is not known. The cache is
+     * referenced by the connection until {@link #release(LdapConnection)}.
+     */
+    public static ChangeLogBlockCache get(LdapConnection conn, String changeLogContext) {
+        LdapConfiguration config = conn.getConfiguration();
+        int maxSize = config.getChangeLogCacheSize();
+        if (maxSize <= 0) {
+            return null;
+        }
+        // Each replica numbers its changes, so the changes are only shared
+        // between the connections known to read the same server.
+        String server;
+        if (conn.getPinnedUrl() != null) {
+            server = conn.getPinnedUrl() + '#' + conn.getServerId();
+        } else if (config.isUseDNSSRVRecord() || config.getFailover().length > 0) {
+            log.ok("Not caching the change log, since the server connected to may be any of the failover servers");
+            return null;
+        } else {
+            server = config.getHost() + ':' + config.getPort();
+        }
+        // The base contexts to synchronize are part of the key because
+        // the changes outside of them are cached without their content,
+        // and the server may leave out the changes of the modifiers names.
+        String key = server + '/' + changeLogContext + '|' + config.getPrincipal()
+                + '|' + Arrays.asList(config.getBaseContextsToSynchronize()) + '|' + Arrays.asList(config.getBaseContexts())
+                + '|' + config.isFilterChangeLogOnServer() + '|' + Arrays.asList(config.getModifiersNamesToFilterOut());
+        synchronized (caches) {
+            ChangeLogBlockCache cache = caches.get(key);
+            if (cache == null) {
+                cache = new ChangeLogBlockCache(maxSize);
+                caches.put(key, cache);
+            } else {
+                cache.setMaxSize(maxSize);
+            }
+            cache.users.put(conn, Boolean.TRUE);
+            return cache;
+        }
+    }
+
+    /**
+     * Gives back the references the given connection took on the caches. A
+     * cache no other connection uses is dropped.
+     */
+    public static void release(LdapConnection conn) {
+        synchronized (caches) {
+            Iterator<ChangeLogBlockCache> iter = caches.values().iterator();
+            while (iter.hasNext()) {
+                ChangeLogBlockCache cache = iter.next();
+                if (cache.users.remove(conn) != null && cache.users.isEmpty()) {
+                    iter.remove();
+                }
+            }
+        }
+    }
+
+    ChangeLogBlockCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    synchronized void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        evict();
+    }
+
+    /**
+     * Forgets everything if the cache holds change numbers above the last
+     * change number of the change log, which means the change log has been
+     * reset and the change numbers are being reused.
+     */
+    public synchronized void checkLastChangeNumber(long lastChangeNumber) {
+        if (!ranges.isEmpty() && ranges.lastEntry().getValue() > lastChangeNumber) {
+            log.info("Clearing the change log cache, which holds changes after the last change number {0}", lastChangeNumber);
+            entries.clear();
+            ranges.clear();
+        }
+    }
+
+    /**
+     * Returns whether the changes from the first to the last change number are
+     * all in the cache.
+     */
+    public synchronized boolean contains(long first, long last) {
+        Map.Entry<Long, Long> range = ranges.floorEntry(first);
+        return range != null && range.getValue() >= last;
+    }
+
+    /**
+     * Returns the changes from the first to the last change number in change
+     * number order, or {@code null} if they are not all in the cache.
+     */
+    public synchronized List<LdapEntry> get(long first, long last) {
+        if (!contains(first, last)) {
+            return null;
+        }
+        return new ArrayList<LdapEntry>(entries.subMap(first, true, last, true).values());
+    }
+
+    /**
+     * Adds the changes read for the range from the first to the last change
+     * number. The caller must know that the change log holds no other changes
+     * in that range: usually the range ends with the highest change number
+     * read, because the later changes may not have been written yet.
+     *
+     * @param changeNumbers the change numbers of the changes, in the same order.
+     */
+    public synchronized void put(long first, long last, List<LdapEntry> block, long[] changeNumbers) {
+        if (last < first) {
+            return;
+        }
+        for (long changeNumber : changeNumbers) {
+            if (changeNumber < 0) {
+                // Without a change number the change cannot be found again.
+                return;
+            }
+        }
+        for (int i = 0; i < changeNumbers.length; i++) {
+            if (changeNumbers[i] >= first && changeNumbers[i] <= last) {
+                entries.put(changeNumbers[i], block.get(i));
+            }
+        }
+        addRange(first, last);
+        evict();
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private void addRange(long first, long last) {
+        Map.Entry<Long, Long> below = ranges.floorEntry(first);
+        if (below != null && below.getValue() >= first - 1) {
+            first = below.getKey();
+            last = Math.max(last, below.getValue());
+        }
+        Iterator<Map.Entry<Long, Long>> iter = ranges.tailMap(first, true).entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<Long, Long> range = iter.next();
+            if (range.getKey() > last + 1) {
+                break;
+            }
+            last = Math.max(last, range.getValue());
+            iter.remove();
+        }
+        ranges.put(first, last);
+    }
+
+    private void evict() {
+        if (entries.size() <= maxSize) {
+            return;
+        }
+        long evicted = -1;
+        Iterator<Long> numbers = entries.keySet().iterator();
+        for (int excess = entries.size() - maxSize; excess > 0; excess--) {
+            evicted = numbers.next();
+            numbers.remove();
+        }
+        // Nothing is known any longer up to the last evicted change number.
+        Long clippedLast = null;
+        Iterator<Map.Entry<Long, Long>> iter = ranges.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<Long, Long> range = iter.next();
+            if (range.getKey() > evicted) {
+                break;
+            }
+            if (range.getValue() > evicted) {
+                clippedLast = range.getValue();
+            }
+            iter.remove();
+        }
+        if (clippedLast != null) {
+            ranges.put(evicted + 1, clippedLast);
+        }
+    }
+}
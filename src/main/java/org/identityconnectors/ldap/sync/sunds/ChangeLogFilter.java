@@ -0,0 +1,227 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.sync.sunds;
+
+import static org.identityconnectors.ldap.LdapUtil.escapeAttrValue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.naming.ldap.LdapName;
+
+/**
+ * The checks of the change log sync that can be made on the raw attribute
+ * values of a change log entry, before its DN and its LDIF are parsed, and
+ * the clauses which let the server make some of them.
+ */
+final class ChangeLogFilter {
+
+    private final List<LdapName> baseContexts;
+
+    /**
+     * The base contexts as compared by {@link #isUnderBaseContexts(String)},
+     * or {@code null} if one of them cannot be compared as a string.
+     */
+    private final List<String> normalizedBaseContexts;
+
+    ChangeLogFilter(List<LdapName> baseContexts) {
+        this.baseContexts = baseContexts;
+        List<String> normalized = new ArrayList<String>(baseContexts.size());
+        for (LdapName baseContext : baseContexts) {
+            String each = normalizeDN(baseContext.toString());
+            if (each == null) {
+                normalized = null;
+                break;
+            }
+            normalized.add(each);
+        }
+        normalizedBaseContexts = normalized;
+    }
+
+    /**
+     * Returns whether the given DN is one of the base contexts or under one
+     * of them, or {@code null} if only parsing the DN can tell.
+     */
+    Boolean isUnderBaseContexts(String dn) {
+        if (normalizedBaseContexts == null) {
+            return null;
+        }
+        String normalized = normalizeDN(dn);
+        if (normalized == null) {
+            return null;
+        }
+        for (String baseContext : normalizedBaseContexts) {
+            if (baseContext.length() == 0 || normalized.equals(baseContext)) {
+                return Boolean.TRUE;
+            }
+            if (normalized.endsWith(baseContext) && normalized.charAt(normalized.length() - baseContext.length() - 1) == ',') {
+                return Boolean.TRUE;
+            }
+        }
+        return Boolean.FALSE;
+    }
+
+    /**
+     * Appends a clause matching the changes of the entries in the base
+     * contexts. The DNs are matched as written in the change log, so the
+     * clause is only right if the base contexts are written the same way.
+     */
+    void appendTargetDNFilter(StringBuilder filter) {
+        for (LdapName baseContext : baseContexts) {
+            if (baseContext.isEmpty()) {
+                // The root DSE contains everything.
+                return;
+            }
+        }
+        if (baseContexts.isEmpty()) {
+            return;
+        }
+        filter.append("(|");
+        for (LdapName baseContext : baseContexts) {
+            filter.append("(targetDN=");
+            escapeAttrValue(baseContext.toString(), filter);
+            filter.append(")(targetDN=*,");
+            escapeAttrValue(baseContext.toString(), filter);
+            filter.append(')');
+        }
+        filter.append(')');
+    }
+
+    /**
+     * Appends a clause leaving out the changes made by the given names. The
+     * server matches the names as DNs.
+     */
+    static void appendNotChangeInitiatorsFilter(StringBuilder filter, String attrName, Collection<LdapName> names) {
+        for (LdapName name : names) {
+            filter.append("(!(");
+            filter.append(attrName);
+            filter.append('=');
+            escapeAttrValue(name.toString(), filter);
+            filter.append("))");
+        }
+    }
+
+    /**
+     * Returns the DN in a form where two DNs equal as names are equal as
+     * strings, or {@code null} if the DN is not simple enough for that: the
+     * case and the spaces around the separators are ignored, but escapes,
+     * quotes, multi-valued RDNs and non-ASCII characters are left to the
+     * DN parser.
+     */
+    static String normalizeDN(String dn) {
+        StringBuilder result = new StringBuilder(dn.length());
+        int pendingSpaces = 0;
+        for (int i = 0; i < dn.length(); i++) {
+            char ch = dn.charAt(i);
+            if (ch == '\\' || ch == '"' || ch == '+' || ch == '#' || ch == ';' || ch > 0x7e) {
+                return null;
+            }
+            if (ch == ' ') {
+                pendingSpaces++;
+                continue;
+            }
+            if (ch == ',' || ch == '=') {
+                // The spaces before a separator are dropped...
+                pendingSpaces = 0;
+                result.append(ch);
+                // ...and so are the ones after it.
+                while (i + 1 < dn.length() && dn.charAt(i + 1) == ' ') {
+                    i++;
+                }
+                continue;
+            }
+            if (pendingSpaces > 0 && result.length() > 0) {
+                for (; pendingSpaces > 0; pendingSpaces--) {
+                    result.append(' ');
+                }
+            }
+            pendingSpaces = 0;
+            result.append(ch);
+        }
+        return result.toString().toUpperCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Returns whether the LDIF of a change may change one of the given
+     * attributes. The attribute names are read without parsing the values.
+     */
+    static boolean mayChangeAny(String changeType, String ldif, Set<String> attrNames) {
+        boolean modify = "modify".equalsIgnoreCase(changeType);
+        if (!modify && !"add".equalsIgnoreCase(changeType)) {
+            return false;
+        }
+        LdifParser.Cursor lines = new LdifParser(ldif).cursor();
+        boolean operation = true;
+        while (lines.next()) {
+            if (!lines.isNameValue()) {
+                operation = true;
+                continue;
+            }
+            if (modify) {
+                // The attribute of a modification is the value of its first line.
+                if (operation && attrNames.contains(lines.getValue().toString())) {
+                    return true;
+                }
+                operation = false;
+            } else if (attrNames.contains(lines.getName().toString())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the first value of the given attribute in the LDIF of a change
+     * if it is not Base64 encoded, or {@code null}.
+     */
+    static String getFirstValue(String ldif, String attrName) {
+        LdifParser.Cursor lines = new LdifParser(ldif).cursor();
+        boolean operation = true;
+        while (lines.next()) {
+            if (!lines.isNameValue()) {
+                operation = true;
+                continue;
+            }
+            // The first line of a modification names the operation.
+            if (!operation || !isModifyOperation(lines)) {
+                if (lines.isName(attrName)) {
+                    CharSequence value = lines.getValue();
+                    if (value.length() > 0 && value.charAt(0) == ':') {
+                        return null;
+                    }
+                    return value.toString();
+                }
+            }
+            operation = false;
+        }
+        return null;
+    }
+
+    private static boolean isModifyOperation(LdifParser.Cursor line) {
+        return line.isName("add") || line.isName("delete") || line.isName("replace");
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.sync.sunds;
+
+import org.identityconnectors.common.logging.Log;
+
+/**
+ * Counts the ranges of change numbers a sync skipped because the change log
+ * has no changes there for it, and the searches made to find their ends.
+ * Adjacent ranges are counted as one gap.
+ */
+final class ChangeLogGaps {
+
+    private static final Log log = Log.getLog(ChangeLogGaps.class);
+
+    private int count;
+    private long skipped;
+    private int probes;
+    private long lastEnd = -1;
+
+    /**
+     * Records that there are no changes from the first to the last change
+     * number.
+     */
+    void skipped(long first, long last) {
+        if (last < first) {
+            return;
+        }
+        if (count == 0 || first != lastEnd + 1) {
+            count++;
+        }
+        skipped += last - first + 1;
+        lastEnd = last;
+        log.ok("No changes from change number {0} to {1}", first, last);
+    }
+
+    /**
+     * Records a search for the end of a gap.
+     */
+    void probed() {
+        probes++;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    long getSkipped() {
+        return skipped;
+    }
+
+    int getProbes() {
+        return probes;
+    }
+}
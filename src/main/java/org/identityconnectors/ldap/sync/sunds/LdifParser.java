@@ -22,56 +22,203 @@
  */
 package org.identityconnectors.ldap.sync.sunds;
 
-import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.List;
 import java.util.NoSuchElementException;
 
 public class LdifParser implements Iterable<LdifParser.Line> {
 
-    private final String ldif;
+    private final CharSequence ldif;
 
-    public LdifParser(String ldif) {
+    public LdifParser(CharSequence ldif) {
         this.ldif = ldif;
     }
 
     public Iterator<Line> iterator() {
-        return new LineIterator(getUnfoldedLines());
+        return new LineIterator(cursor());
     }
 
-    private List<String> getUnfoldedLines() {
-        String[] lines = ldif.split("\n", -1);
-        ArrayList<String> result = new ArrayList<String>(lines.length);
-        StringBuilder builder = null;
-        for (String line : lines) {
-            if (line.startsWith(" ")) {
-                String content = line.substring(1);
-                if (builder == null) {
-                    builder = new StringBuilder(content);
-                } else {
-                    builder.append(content);
+    /**
+     * Returns a cursor over the lines of the LDIF. Unlike the iterator, the
+     * cursor unfolds the lines as it reads them and does not create an
+     * object per line: the names and values are views of the LDIF, and are
+     * only copied when their line is folded.
+     */
+    public Cursor cursor() {
+        return new Cursor(ldif);
+    }
+
+    /**
+     * Reads the lines of an LDIF one at a time. Consecutive separators are
+     * merged, lines that are neither separators nor name-value pairs are
+     * skipped, and a change separator is always read last.
+     */
+    public static final class Cursor {
+
+        private static final int NONE = 0;
+        private static final int NAME_VALUE = 1;
+        private static final int SEPARATOR = 2;
+        private static final int CHANGE_SEPARATOR = 3;
+
+        private final CharSequence ldif;
+
+        /**
+         * The start of the next physical line, beyond the end of the LDIF
+         * once the last line was read.
+         */
+        private int pos;
+        private boolean done;
+        private int kind = NONE;
+
+        /**
+         * The current logical line, which is either a part of the LDIF or
+         * the unfolded line in {@link #folded}.
+         */
+        private CharSequence line;
+        private int lineStart;
+        private int lineEnd;
+        private final StringBuilder folded = new StringBuilder();
+
+        private CharSequence name;
+        private CharSequence value;
+
+        Cursor(CharSequence ldif) {
+            this.ldif = ldif;
+        }
+
+        /**
+         * Moves to the next line and returns {@code true}, or returns
+         * {@code false} if there are no more lines.
+         */
+        public boolean next() {
+            name = null;
+            value = null;
+            while (!done) {
+                if (!readLogicalLine()) {
+                    done = true;
+                    // Always send a change separator as the last thing.
+                    if (kind != CHANGE_SEPARATOR) {
+                        kind = CHANGE_SEPARATOR;
+                        return true;
+                    }
+                    break;
                 }
-            } else {
-                if (builder != null) {
-                    result.add(builder.toString());
+                if (isBlank(line, lineStart, lineEnd)) {
+                    if (kind != CHANGE_SEPARATOR) {
+                        kind = CHANGE_SEPARATOR;
+                        return true;
+                    }
+                } else if (line.charAt(lineStart) == '-' && kind != SEPARATOR) {
+                    kind = SEPARATOR;
+                    return true;
+                } else {
+                    int sepIndex = indexOf(line, ':', lineStart, lineEnd);
+                    if (sepIndex > lineStart) {
+                        name = trim(line, lineStart, sepIndex);
+                        value = trim(line, sepIndex + 1, lineEnd);
+                        kind = NAME_VALUE;
+                        return true;
+                    }
                 }
-                builder = new StringBuilder(line);
             }
+            kind = NONE;
+            return false;
+        }
+
+        public boolean isNameValue() {
+            return kind == NAME_VALUE;
+        }
+
+        public boolean isSeparator() {
+            return kind == SEPARATOR;
+        }
+
+        public boolean isChangeSeparator() {
+            return kind == CHANGE_SEPARATOR;
+        }
+
+        /**
+         * Returns the name of the current name-value line. The name stays
+         * valid when the cursor moves.
+         */
+        public CharSequence getName() {
+            return name;
+        }
+
+        /**
+         * Returns the value of the current name-value line as written, so a
+         * Base64 value still starts with a colon. The value stays valid when
+         * the cursor moves.
+         */
+        public CharSequence getValue() {
+            return value;
+        }
+
+        /**
+         * Returns whether the name of the current name-value line is the
+         * given one, ignoring case.
+         */
+        public boolean isName(String other) {
+            return name != null && equalsIgnoreCase(name, other);
+        }
+
+        private boolean readLogicalLine() {
+            int length = ldif.length();
+            if (pos > length) {
+                return false;
+            }
+            int start = pos;
+            int end = endOfLine(start);
+            // A continuation without a line to continue is a line of its own.
+            if (start < end && ldif.charAt(start) == ' ') {
+                start++;
+            }
+            pos = end + 1;
+            if (pos >= length || ldif.charAt(pos) != ' ') {
+                line = ldif;
+                lineStart = start;
+                lineEnd = end;
+                return true;
+            }
+            folded.setLength(0);
+            folded.append(ldif, start, end);
+            while (pos < length && ldif.charAt(pos) == ' ') {
+                end = endOfLine(pos);
+                folded.append(ldif, pos + 1, end);
+                pos = end + 1;
+            }
+            line = folded;
+            lineStart = 0;
+            lineEnd = folded.length();
+            return true;
         }
-        if (builder != null) {
-            result.add(builder.toString());
+
+        private int endOfLine(int from) {
+            int end = indexOf(ldif, '\n', from, ldif.length());
+            return end < 0 ? ldif.length() : end;
+        }
+
+        private CharSequence trim(CharSequence chars, int start, int end) {
+            while (start < end && chars.charAt(start) <= ' ') {
+                start++;
+            }
+            while (end > start && chars.charAt(end - 1) <= ' ') {
+                end--;
+            }
+            if (chars == folded) {
+                // The folded line is reused for the next one.
+                return folded.substring(start, end);
+            }
+            return new Slice(chars, start, end);
         }
-        return result;
     }
 
     private static final class LineIterator implements Iterator<Line> {
 
-        private final Iterator<String> rawLines;
-        private Line lastLine;
+        private final Cursor cursor;
         private Line next;
 
-        public LineIterator(List<String> rawLines) {
-            this.rawLines = rawLines.iterator();
+        public LineIterator(Cursor cursor) {
+            this.cursor = cursor;
         }
 
         public boolean hasNext() {
@@ -94,28 +241,16 @@ public class LdifParser implements Iterable<LdifParser.Line> {
         }
 
         private Line getNext() {
-            Line result = null;
-            while (result == null && rawLines.hasNext()) {
-                String rawLine = rawLines.next();
-                if (rawLine.trim().length() == 0 && lastLine != ChangeSeparator.INSTANCE) {
-                    result = ChangeSeparator.INSTANCE;
-                } else if (rawLine.startsWith("-") && lastLine != Separator.INSTANCE) {
-                    result = Separator.INSTANCE;
-                } else {
-                    int sepIndex = rawLine.indexOf(':');
-                    if (sepIndex > 0) {
-                        String name = rawLine.substring(0, sepIndex).trim();
-                        String value = rawLine.substring(sepIndex + 1).trim();
-                        result = new NameValue(name, value);
-                    }
-                }
+            if (!cursor.next()) {
+                return null;
             }
-            // Always send a change separator as the last thing.
-            if (result == null && lastLine != ChangeSeparator.INSTANCE) {
-                result = ChangeSeparator.INSTANCE;
+            if (cursor.isSeparator()) {
+                return Separator.INSTANCE;
             }
-            lastLine = result;
-            return result;
+            if (cursor.isChangeSeparator()) {
+                return ChangeSeparator.INSTANCE;
+            }
+            return new NameValue(cursor.getName().toString(), cursor.getValue().toString());
         }
 
         public void remove() {
@@ -123,6 +258,76 @@ public class LdifParser implements Iterable<LdifParser.Line> {
         }
     }
 
+    /**
+     * A part of a character sequence, which is not copied until
+     * {@link #toString()} is called.
+     */
+    private static final class Slice implements CharSequence {
+
+        private final CharSequence chars;
+        private final int start;
+        private final int end;
+
+        Slice(CharSequence chars, int start, int end) {
+            this.chars = chars;
+            this.start = start;
+            this.end = end;
+        }
+
+        public int length() {
+            return end - start;
+        }
+
+        public char charAt(int index) {
+            return chars.charAt(start + index);
+        }
+
+        public CharSequence subSequence(int from, int to) {
+            if (from < 0 || to > length() || from > to) {
+                throw new IndexOutOfBoundsException();
+            }
+            return new Slice(chars, start + from, start + to);
+        }
+
+        @Override
+        public String toString() {
+            return new StringBuilder(end - start).append(chars, start, end).toString();
+        }
+    }
+
+    static boolean isBlank(CharSequence chars, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (chars.charAt(i) > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int indexOf(CharSequence chars, char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (chars.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static boolean equalsIgnoreCase(CharSequence chars, String other) {
+        if (chars.length() != other.length()) {
+            return false;
+        }
+        for (int i = 0; i < other.length(); i++) {
+            char left = chars.charAt(i);
+            char right = other.charAt(i);
+            if (left != right && Character.toUpperCase(left) != Character.toUpperCase(right)
+                    && Character.toLowerCase(left) != Character.toLowerCase(right)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public abstract static class Line {
 
     }
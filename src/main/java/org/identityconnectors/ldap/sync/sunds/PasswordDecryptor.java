@@ -58,12 +58,13 @@ public class PasswordDecryptor {
 
     /**
      * Decrypts the password value using the configured symmetric key.
+     * Synchronized because the cipher is shared.
      * 
      * @param encryptedPassword the encrypted password to decrypt.
      * @return The clear-text password.
      * @throws ConnectorException if the password value could not be decrypted.
      */
-    public String decryptPassword(byte[] encryptedPassword) {
+    public synchronized String decryptPassword(byte[] encryptedPassword) {
         byte decryptInput[];
         byte decryptedBytes[];
         
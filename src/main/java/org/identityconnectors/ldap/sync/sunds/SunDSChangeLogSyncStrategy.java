@@ -24,32 +24,55 @@
 package org.identityconnectors.ldap.sync.sunds;
 
 import static java.util.Collections.singletonList;
-import static org.identityconnectors.common.CollectionUtil.isEmpty;
+import static org.identityconnectors.ldap.LdapConstants.CHANGED_ATTRIBUTES_NAME;
 import static org.identityconnectors.common.CollectionUtil.newCaseInsensitiveMap;
 import static org.identityconnectors.common.CollectionUtil.newCaseInsensitiveSet;
 import static org.identityconnectors.common.CollectionUtil.newSet;
 import static org.identityconnectors.common.CollectionUtil.nullAsEmpty;
 import static org.identityconnectors.common.StringUtil.isBlank;
 import static org.identityconnectors.ldap.LdapUtil.checkedListByFilter;
+import static org.identityconnectors.ldap.LdapUtil.escapeAttrValue;
 import static org.identityconnectors.ldap.LdapUtil.getStringAttrValue;
+import static org.identityconnectors.ldap.LdapUtil.guessObjectClass;
 import static org.identityconnectors.ldap.LdapUtil.isUnderContexts;
 import static org.identityconnectors.ldap.LdapUtil.nullAsEmpty;
 import static org.identityconnectors.ldap.LdapUtil.quietCreateLdapName;
 
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import javax.naming.InvalidNameException;
+import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
+import javax.naming.SizeLimitExceededException;
 import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
 import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
 
 import org.identityconnectors.common.Base64;
 import org.identityconnectors.common.logging.Log;
@@ -60,9 +83,12 @@ import org.identityconnectors.framework.common.objects.Attribute;
 import org.identityconnectors.framework.common.objects.AttributeBuilder;
 import org.identityconnectors.framework.common.objects.ConnectorObject;
 import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
+import org.identityconnectors.framework.common.objects.Name;
 import org.identityconnectors.framework.common.objects.ObjectClass;
 import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
 import org.identityconnectors.framework.common.objects.OperationalAttributes;
+import org.identityconnectors.framework.common.objects.ResultsHandler;
 import org.identityconnectors.framework.common.objects.SyncDelta;
 import org.identityconnectors.framework.common.objects.SyncDeltaBuilder;
 import org.identityconnectors.framework.common.objects.SyncDeltaType;
@@ -72,6 +98,8 @@ import org.identityconnectors.framework.common.objects.Uid;
 import org.identityconnectors.framework.spi.SyncTokenResultsHandler;
 import org.identityconnectors.ldap.LdapConnection;
 import org.identityconnectors.ldap.LdapEntry;
+import org.identityconnectors.ldap.search.AdaptiveBlockSize;
+import org.identityconnectors.ldap.search.BlockPrefetcher;
 import org.identityconnectors.ldap.search.DefaultSearchStrategy;
 import org.identityconnectors.ldap.search.LdapFilter;
 import org.identityconnectors.ldap.search.LdapInternalSearch;
@@ -79,16 +107,14 @@ import org.identityconnectors.ldap.search.LdapSearch;
 import org.identityconnectors.ldap.search.LdapSearches;
 import org.identityconnectors.ldap.search.LdapSearchResultsHandler;
 import org.identityconnectors.ldap.sync.LdapSyncStrategy;
-import org.identityconnectors.ldap.sync.sunds.LdifParser.ChangeSeparator;
-import org.identityconnectors.ldap.sync.sunds.LdifParser.Line;
-import org.identityconnectors.ldap.sync.sunds.LdifParser.NameValue;
-import org.identityconnectors.ldap.sync.sunds.LdifParser.Separator;
+import org.identityconnectors.ldap.sync.ServerPositionMapping;
+import org.identityconnectors.ldap.sync.SyncCheckpoint;
 
 /**
  * An implementation of the sync operation based on the retro change log
  * plugin of Sun Directory Server.
  */
-public class SunDSChangeLogSyncStrategy implements LdapSyncStrategy {
+public class SunDSChangeLogSyncStrategy implements LdapSyncStrategy, ServerPositionMapping {
 
     // TODO detect that the change log has been trimmed.
 
@@ -99,6 +125,17 @@ public class SunDSChangeLogSyncStrategy implements LdapSyncStrategy {
      */
     private static final Set<String> LDIF_MODIFY_OPS;
 
+    /**
+     * The maximum number of modified entries read back by one search.
+     */
+    private static final int MAX_RDNS_PER_SEARCH = 50;
+
+    /**
+     * The number of change log entries read at once to find the first change
+     * since a given time.
+     */
+    private static final int CHANGE_TIME_SEARCH_LIMIT = 100;
+
     /**
      * the policies for the reset sync token
      */
@@ -113,6 +150,12 @@ public class SunDSChangeLogSyncStrategy implements LdapSyncStrategy {
     private Set<String> oclassesToSync;
     private Set<String> attrsToSync;
     private PasswordDecryptor passwordDecryptor;
+    private ExecutorService workers;
+    private ChangeLogFilter changeLogFilter;
+    /**
+     * The gaps of the running or last sync.
+     */
+    private volatile ChangeLogGaps gaps = new ChangeLogGaps();
 
     static {
         LDIF_MODIFY_OPS = newCaseInsensitiveSet();
@@ -130,62 +173,511 @@ public class SunDSChangeLogSyncStrategy implements LdapSyncStrategy {
         return new SyncToken(getChangeLogAttributes().getLastChangeNumber());
     }
 
+    /**
+     * Returns the change number before the first change logged at or after
+     * the given time, from the changeTime of the change log entries, or the
+     * last change number if there is none.
+     */
+    public SyncToken getSyncTokenSince(long millis) {
+        ChangeLogAttributes attrs = getChangeLogAttributes();
+        long first = findFirstChangeSince(millis, Math.max(attrs.getFirstChangeNumber(), 0), attrs.getLastChangeNumber());
+        // The sync resumes after the change number of the token.
+        return new SyncToken(first != -1 ? first - 1 : attrs.getLastChangeNumber());
+    }
+
+    /**
+     * Returns the lowest change number from {@code from} to {@code to} logged
+     * at or after the given time, or -1 if there is none. The change times
+     * grow with the change numbers, so the change log is searched by halves
+     * instead of being read whole.
+     */
+    long findFirstChangeSince(long millis, long from, long to) {
+        long result = -1;
+        long low = from;
+        long high = to;
+        while (low <= high) {
+            long middle = low + (high - low) / 2;
+            long[] change = readFirstChange(middle, high);
+            if (change == null) {
+                high = middle - 1;
+            } else if (change[1] >= millis) {
+                result = change[0];
+                high = middle - 1;
+            } else {
+                low = change[0] + 1;
+            }
+        }
+        log.ok("The first change since {0} is {1}", new Date(millis), result);
+        return result;
+    }
+
+    /**
+     * Returns the lowest change number from {@code from} to {@code to} and
+     * its change time in milliseconds, or {@code null} if the change log
+     * holds none. A change without a change time counts as the latest one,
+     * so that no change is missed.
+     */
+    long[] readFirstChange(long from, long to) {
+        String context = getChangeLogAttributes().getChangeLogContext();
+        String changeNumberAttr = getChangeNumberAttribute();
+        SearchControls controls = new SearchControls();
+        controls.setSearchScope(SearchControls.ONELEVEL_SCOPE);
+        controls.setReturningAttributes(new String[] { changeNumberAttr, "changeTime" });
+        controls.setCountLimit(CHANGE_TIME_SEARCH_LIMIT);
+        try {
+            while (true) {
+                long[] lowest = null;
+                boolean truncated = false;
+                NamingEnumeration<SearchResult> results = conn.getInitialContext().search(context, getChangeLogRangeFilter(changeNumberAttr, from, to), controls);
+                try {
+                    while (results.hasMore()) {
+                        Attributes attrs = results.next().getAttributes();
+                        long changeNumber = convertToLong(getStringAttrValue(attrs, changeNumberAttr), -1);
+                        if (changeNumber >= from && changeNumber <= to && (lowest == null || changeNumber < lowest[0])) {
+                            lowest = new long[] { changeNumber, parseChangeTime(getStringAttrValue(attrs, "changeTime")) };
+                        }
+                    }
+                } catch (SizeLimitExceededException e) {
+                    truncated = true;
+                } finally {
+                    results.close();
+                }
+                if (!truncated || lowest == null || lowest[0] == from) {
+                    return lowest;
+                }
+                to = lowest[0];
+            }
+        } catch (NamingException e) {
+            throw new ConnectorException(e);
+        }
+    }
+
+    private static long parseChangeTime(String changeTime) {
+        if (changeTime == null || changeTime.length() < 14) {
+            return Long.MAX_VALUE;
+        }
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        try {
+            // Leave out the fraction and the time zone, which is always UTC.
+            return format.parse(changeTime.substring(0, 14)).getTime();
+        } catch (ParseException e) {
+            log.warn("Invalid change time {0}", changeTime);
+            return Long.MAX_VALUE;
+        }
+    }
+
     public void sync(SyncToken token, final SyncResultsHandler handler, final OperationOptions options) {
         String context = getChangeLogAttributes().getChangeLogContext();
         final String changeNumberAttr = getChangeNumberAttribute();
         SearchControls controls = LdapInternalSearch.createDefaultSearchControls();
         controls.setSearchScope(SearchControls.ONELEVEL_SCOPE);
-        controls.setReturningAttributes(new String[] { changeNumberAttr, "targetDN", "changeType", "changes", "newRdn", "deleteOldRdn", "newSuperior", "targetEntryUUID", "targetUniqueID", "changeInitiatorsName" });
+        controls.setReturningAttributes(new String[] { changeNumberAttr, "targetDN", "changeType", "changes", "newRdn", "deleteOldRdn", "newSuperior", "targetEntryUUID", "targetUniqueID", getChangeInitiatorsNameAttribute() });
 
-        final boolean[] results = new boolean[1];
-        final int[] processedChangeNumber = { -1 };
-        final int[] currentChangeNumber = { getStartChangeNumber(token, handler) };
-
-        do {
-            results[0] = false;
+        boolean results;
+        long processedChangeNumber = -1;
+        long currentChangeNumber = getStartChangeNumber(token, handler);
+        final AdaptiveBlockSize blockSize = AdaptiveBlockSize.create(conn.getConfiguration(), conn.getConfiguration().getChangeLogBlockSize());
+        SyncCheckpoint checkpoint = SyncCheckpoint.create(conn.getConfiguration(), handler);
+        ChangeLogBlockCache cache = ChangeLogBlockCache.get(conn, context);
+        if (cache != null) {
+            cache.checkLastChangeNumber(getChangeLogAttributes().getLastChangeNumber());
+        }
+        // When the server filters the change log, a block without changes
+        // is not the end of the change log.
+        boolean filterOnServer = conn.getConfiguration().isFilterChangeLogOnServer();
+        // The gaps can only be probed with a range filter.
+        boolean probeGaps = !conn.getConfiguration().isFilterWithOrInsteadOfAnd();
+        long lastChangeNumber = getChangeLogAttributes().getLastChangeNumber();
+        ChangeLogGaps gaps = new ChangeLogGaps();
+        this.gaps = gaps;
 
-            String filter = getChangeLogSearchFilter(changeNumberAttr, currentChangeNumber[0]);
-            LdapInternalSearch search = new LdapInternalSearch(conn, filter, singletonList(context), new DefaultSearchStrategy(false), controls);
+        BlockPrefetcher prefetcher = null;
+        // The last change number of the block being prefetched, or -1 if none is.
+        long prefetchedLast = -1;
+        startWorkers();
+        try {
+            if (conn.getConfiguration().isPrefetchBlocks()) {
+                prefetcher = new BlockPrefetcher(conn.getInitialContext());
+                prefetchedLast = submitChangeLogBlock(prefetcher, cache, context, changeNumberAttr, currentChangeNumber, blockSize.get(), controls);
+            }
+            do {
+                // Read the whole block first, so that the modified entries of the
+                // block can be read back together.
+                long first = currentChangeNumber;
+                long last;
+                List<LdapEntry> block = null;
+                boolean read = true;
+                if (prefetchedLast != -1) {
+                    last = prefetchedLast;
+                    prefetchedLast = -1;
+                    BlockPrefetcher.Block fetched = prefetcher.take();
+                    blockSize.record(fetched.getResults(), fetched.getElapsedMillis());
+                    block = new ArrayList<LdapEntry>(fetched.getResults().size());
+                    for (SearchResult result : fetched.getResults()) {
+                        block.add(LdapEntry.create(context, result));
+                    }
+                } else {
+                    int size = blockSize.get();
+                    last = first + size - 1;
+                    if (cache != null) {
+                        block = cache.get(first, last);
+                        read = block == null;
+                    }
+                    if (block == null) {
+                        block = readChangeLogBlock(context, getChangeLogSearchFilter(changeNumberAttr, first, size), controls, blockSize);
+                    }
+                }
 
-            search.execute(new LdapSearchResultsHandler() {
-                public boolean handle(String baseDN, SearchResult result) throws NamingException {
-                    results[0] = true;
-                    LdapEntry entry = LdapEntry.create(baseDN, result);
+                // Deltas are emitted in change number order, whatever order the server used.
+                Collections.sort(block, new Comparator<LdapEntry>() {
+                    public int compare(LdapEntry left, LdapEntry right) {
+                        long leftNumber = convertToLong(getStringAttrValue(left.getAttributes(), changeNumberAttr), -1);
+                        long rightNumber = convertToLong(getStringAttrValue(right.getAttributes(), changeNumberAttr), -1);
+                        return leftNumber < rightNumber ? -1 : (leftNumber == rightNumber ? 0 : 1);
+                    }
+                });
+                long[] changeNumbers = new long[block.size()];
+                List<SyncToken> tokens = new ArrayList<SyncToken>(block.size());
+                for (int i = 0; i < block.size(); i++) {
+                    changeNumbers[i] = convertToLong(getStringAttrValue(block.get(i).getAttributes(), changeNumberAttr), -1);
+                    tokens.add(new SyncToken(changeNumbers[i]));
+                    if (changeNumbers[i] > currentChangeNumber) {
+                        currentChangeNumber = changeNumbers[i];
+                    }
+                }
 
-                    int changeNumber = convertToInt(getStringAttrValue(entry.getAttributes(), changeNumberAttr), -1);
-                    if (changeNumber > currentChangeNumber[0]) {
-                        currentChangeNumber[0] = changeNumber;
+                // The block holds all the changes up to the last one read, or up to its
+                // end or the last change number when the server leaves changes out.
+                // An empty block below the last change number is a gap in the change
+                // log, left by trimmed or purged changes, and not its end.
+                long complete = block.isEmpty() ? first - 1 : Math.min(currentChangeNumber, last);
+                long scanned = -1;
+                if ((filterOnServer || block.isEmpty()) && Math.min(last, lastChangeNumber) > complete) {
+                    scanned = Math.min(last, lastChangeNumber);
+                    if (block.isEmpty() && probeGaps && scanned < lastChangeNumber) {
+                        // Jump over the rest of the gap at once instead of block by block.
+                        long next = findNextChangeNumber(context, changeNumberAttr, scanned + 1, lastChangeNumber, blockSize.get(), gaps);
+                        scanned = next != -1 ? next - 1 : lastChangeNumber;
+                    }
+                    if (block.isEmpty()) {
+                        gaps.skipped(first, scanned);
                     }
+                    complete = scanned;
+                    currentChangeNumber = scanned;
+                }
+                if (read && cache != null) {
+                    cache.put(first, complete, toCachedEntries(block, changeNumbers, changeNumberAttr), changeNumbers);
+                }
 
-                    SyncDelta delta = createSyncDelta(entry, changeNumber, options.getAttributesToGet());
-                    if (delta != null) {
-                        boolean handled = handler.handle(delta);
-                        if (handled){
-                            processedChangeNumber[0] = changeNumber;
-                        } else{
-                            results[0] = false;
-                        }
-                        return handled;
+                results = !block.isEmpty() || (scanned != -1 && scanned < lastChangeNumber);
+                // Send the search for the next block before processing this one.
+                if (results && prefetcher != null) {
+                    prefetchedLast = submitChangeLogBlock(prefetcher, cache, context, changeNumberAttr, currentChangeNumber + 1, blockSize.get(), controls);
+                }
+                List<SyncDelta> deltas = createSyncDeltas(block, tokens, options.getAttributesToGet());
+                for (int i = 0; i < deltas.size(); i++) {
+                    SyncDelta delta = deltas.get(i);
+                    if (delta != null && !handler.handle(delta)) {
+                        results = false;
+                        break;
                     }
-                    processedChangeNumber[0] = changeNumber;
-                    return true;
+                    processedChangeNumber = changeNumbers[i];
+                    // The changes are handled in change number order.
+                    checkpoint.handled(tokens.get(i));
+                }
+                if (scanned != -1 && (results || block.isEmpty())) {
+                    // The changes left out by the server up to there are done with.
+                    processedChangeNumber = scanned;
+                    checkpoint.advanced(new SyncToken(scanned));
                 }
-            });
 
-            // We have already processed the current change.
-            // In the next cycle we want to start with the next change.
-            if (results[0]) {
-                currentChangeNumber[0]++;
+                // We have already processed the current change.
+                // In the next cycle we want to start with the next change.
+                if (results) {
+                    currentChangeNumber++;
+                }
+            } while (results);
+        } catch (IOException e) {
+            throw new ConnectorException(e);
+        } catch (NamingException e) {
+            throw new ConnectorException(e);
+        } finally {
+            stopWorkers();
+            if (prefetcher != null) {
+                prefetcher.close();
             }
-        } while (results[0]);
+        }
+        if (gaps.getCount() > 0) {
+            log.info("Skipped {0} change numbers without changes in {1} gaps of the change log, using {2} probes",
+                    gaps.getSkipped(), gaps.getCount(), gaps.getProbes());
+        }
         // ICF 1.4 now allows us to send the Token even if no entries were actually processed
-        if (processedChangeNumber[0] != -1){
-            ((SyncTokenResultsHandler)handler).handleResult(new SyncToken(processedChangeNumber[0]));
+        if (processedChangeNumber != -1){
+            ((SyncTokenResultsHandler)handler).handleResult(new SyncToken(processedChangeNumber));
+        }
+    }
+
+    /**
+     * Returns the number of change numbers without changes the running or
+     * last sync skipped.
+     */
+    public long getSkippedChangeNumbers() {
+        return gaps.getSkipped();
+    }
+
+    /**
+     * Returns the number of gaps of the change log the running or last sync
+     * skipped, adjacent ranges without changes counting as one gap.
+     */
+    public int getSkippedGaps() {
+        return gaps.getCount();
+    }
+
+    /**
+     * Returns the number of searches the running or last sync made to find
+     * the ends of the gaps of the change log.
+     */
+    public int getGapProbes() {
+        return gaps.getProbes();
+    }
+
+    /**
+     * Sends the search for a block to the prefetcher, unless the block is in
+     * the cache. Returns the last change number of the block sent, or -1.
+     */
+    private long submitChangeLogBlock(BlockPrefetcher prefetcher, ChangeLogBlockCache cache, String context, String changeNumberAttr, long first, int size, SearchControls controls) {
+        long last = first + size - 1;
+        if (cache != null && cache.contains(first, last)) {
+            return -1;
+        }
+        prefetcher.submit(context, getChangeLogSearchFilter(changeNumberAttr, first, size), controls, null);
+        return last;
+    }
+
+    /**
+     * Returns the change log entries of a block as they are cached for the
+     * syncs of the other object classes. The changes outside of the base
+     * contexts to synchronize are only kept with their change number and
+     * target DN, which is all these syncs look at.
+     */
+    private List<LdapEntry> toCachedEntries(List<LdapEntry> block, long[] changeNumbers, String changeNumberAttr) {
+        List<LdapEntry> cached = new ArrayList<LdapEntry>(block.size());
+        for (int i = 0; i < block.size(); i++) {
+            LdapEntry changeLogEntry = block.get(i);
+            String targetDN = getStringAttrValue(changeLogEntry.getAttributes(), "targetDN");
+            if (targetDN != null && filterOutByBaseContexts(targetDN)) {
+                BasicAttributes attrs = new BasicAttributes(true);
+                attrs.put(changeNumberAttr, Long.toString(changeNumbers[i]));
+                attrs.put("targetDN", targetDN);
+                changeLogEntry = LdapEntry.create(changeLogEntry.getDN().toString(), attrs);
+            }
+            cached.add(changeLogEntry);
+        }
+        return cached;
+    }
+
+    private List<LdapEntry> readChangeLogBlock(String context, String filter, SearchControls controls, final AdaptiveBlockSize blockSize) {
+        final List<LdapEntry> block = new ArrayList<LdapEntry>();
+        final long[] blockBytes = new long[1];
+        long start = System.currentTimeMillis();
+
+        LdapInternalSearch search = new LdapInternalSearch(conn, filter, singletonList(context), new DefaultSearchStrategy(false), controls);
+        search.execute(new LdapSearchResultsHandler() {
+            public boolean handle(String baseDN, SearchResult result) throws NamingException {
+                if (blockSize.isAdaptive()) {
+                    blockBytes[0] += AdaptiveBlockSize.estimateSize(result);
+                }
+                block.add(LdapEntry.create(baseDN, result));
+                return true;
+            }
+        });
+        blockSize.record(block.size(), System.currentTimeMillis() - start, blockBytes[0]);
+        return block;
+    }
+
+    /**
+     * Starts the threads building the sync deltas, if configured. Must be
+     * followed by {@link #stopWorkers()}.
+     */
+    protected void startWorkers() {
+        int threads = conn.getConfiguration().getChangeLogWorkerThreads();
+        if (threads > 0) {
+            // Initialize the lazily created state the workers share.
+            getAttributesToSynchronize();
+            getObjectClassesToSynchronize();
+            conn.getConfiguration().getBaseContextsAsLdapNames();
+            conn.getConfiguration().getBaseContextsToSynchronizeAsLdapNames();
+            conn.getConfiguration().getModifiersNamesToFilterOutAsLdapNames();
+            getChangeLogFilter();
+            if (conn.getConfiguration().isSynchronizePasswords()) {
+                getPasswordDecryptor();
+            }
+            workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "LDAP change log worker");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    protected void stopWorkers() {
+        if (workers != null) {
+            workers.shutdownNow();
+            workers = null;
+        }
+    }
+
+    /**
+     * Runs the given tasks, on the workers if started, and returns their
+     * results in the same order.
+     */
+    private <T> List<T> invokeInOrder(List<Callable<T>> tasks) {
+        List<T> results = new ArrayList<T>(tasks.size());
+        try {
+            if (workers == null) {
+                for (Callable<T> task : tasks) {
+                    results.add(task.call());
+                }
+            } else {
+                for (Future<T> future : workers.invokeAll(tasks)) {
+                    results.add(future.get());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new ConnectorException(e.getCause());
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ConnectorException(e);
         }
+        return results;
     }
 
-    private SyncDelta createSyncDelta(LdapEntry changeLogEntry, int changeNumber, String[] attrsToGetOption) {
-        log.ok("Attempting to create sync delta for log entry {0}", changeNumber);
+    /**
+     * Creates the sync deltas for a block of change log entries, in the same
+     * order. An element is {@code null} if the change is not to be
+     * synchronized. The entries modified in the block are read back with as
+     * few searches as possible.
+     *
+     * @param tokens the tokens of the deltas, which identify the change log entries.
+     */
+    protected List<SyncDelta> createSyncDeltas(List<LdapEntry> changeLogEntries, List<SyncToken> tokens, String[] attrsToGetOption) {
+        // Always specify the attributes to get. This will return attributes with
+        // empty values when the attribute is not present, allowing the client to
+        // detect that the attribute has been removed.
+        Set<String> attrsToGet;
+        if (attrsToGetOption != null) {
+            attrsToGet = newSet(attrsToGetOption);
+            // Do not retrieve the password attribute from the entry (usually it is an unusable
+            // hashed value anyway). We will use the one from the change log below.
+            attrsToGet.remove(OperationalAttributes.PASSWORD_NAME);
+        } else {
+            attrsToGet = newSet(LdapSearch.getAttributesReturnedByDefault(conn, oclass));
+        }
+        // If objectClass is not in the list of attributes to get, prepare to remove it later.
+        boolean removeObjectClass = attrsToGet.add("objectClass");
+
+        // Each change is either a finished delta, a modified entry to read back, or null.
+        List<Callable<Object>> prepareTasks = new ArrayList<Callable<Object>>(changeLogEntries.size());
+        for (int i = 0; i < changeLogEntries.size(); i++) {
+            final LdapEntry changeLogEntry = changeLogEntries.get(i);
+            final SyncToken token = tokens.get(i);
+            prepareTasks.add(new Callable<Object>() {
+                public Object call() {
+                    return prepareSyncDelta(changeLogEntry, token);
+                }
+            });
+        }
+        List<Object> changes = invokeInOrder(prepareTasks);
+        Set<LdapName> modifiedNames = new LinkedHashSet<LdapName>();
+        for (Object change : changes) {
+            if (change instanceof ModifiedEntry) {
+                modifiedNames.add(((ModifiedEntry) change).newTargetName);
+            }
+        }
+
+        // With the change log content, only read the entries whose change does not
+        // hold everything that was asked for. The class of the other entries is still
+        // checked, unless the change itself sets the object classes.
+        final Set<String> requestedAttrs;
+        Set<LdapName> checkedNames = new LinkedHashSet<LdapName>();
+        if (!conn.getConfiguration().isUseChangeLogContent()) {
+            requestedAttrs = null;
+        } else {
+            if (attrsToGetOption == null) {
+                requestedAttrs = null;
+            } else {
+                requestedAttrs = newCaseInsensitiveSet();
+                requestedAttrs.addAll(Arrays.asList(attrsToGetOption));
+                requestedAttrs.remove(Uid.NAME);
+                requestedAttrs.remove(Name.NAME);
+                requestedAttrs.remove(OperationalAttributes.PASSWORD_NAME);
+                requestedAttrs.remove(CHANGED_ATTRIBUTES_NAME);
+            }
+            modifiedNames.clear();
+            for (Object change : changes) {
+                if (!(change instanceof ModifiedEntry)) {
+                    continue;
+                }
+                ModifiedEntry modified = (ModifiedEntry) change;
+                if (needsModifiedObject(modified, requestedAttrs)) {
+                    modifiedNames.add(modified.newTargetName);
+                } else if (getAddedObjectClasses(modified) == null) {
+                    checkedNames.add(modified.newTargetName);
+                }
+            }
+            checkedNames.removeAll(modifiedNames);
+        }
+
+        // The modified entries are read on the connection of the sync operation.
+        final Map<LdapName, ConnectorObject> objects = findModifiedObjects(modifiedNames, attrsToGet.toArray(new String[attrsToGet.size()]));
+        final Map<LdapName, ConnectorObject> checkedObjects = findModifiedObjects(checkedNames, new String[] { "objectClass" });
+        final Set<LdapName> readNames = modifiedNames;
+        final Set<LdapName> classCheckedNames = checkedNames;
+        final boolean removeObjectClassAttr = removeObjectClass;
+        List<Callable<SyncDelta>> deltaTasks = new ArrayList<Callable<SyncDelta>>(changes.size());
+        for (final Object change : changes) {
+            deltaTasks.add(new Callable<SyncDelta>() {
+                public SyncDelta call() {
+                    if (change instanceof ModifiedEntry) {
+                        ModifiedEntry modified = (ModifiedEntry) change;
+                        if (readNames.contains(modified.newTargetName)) {
+                            return createSyncDelta(modified, objects.get(modified.newTargetName), removeObjectClassAttr);
+                        }
+                        if (classCheckedNames.contains(modified.newTargetName)) {
+                            ConnectorObject checked = checkedObjects.get(modified.newTargetName);
+                            if (checked == null) {
+                                log.ok("Skipping entry because the modified entry is missing, not of the right object class, or not matching the search filter");
+                                return null;
+                            }
+                            Attribute oclassAttr = checked.getAttributeByName("objectClass");
+                            return createContentSyncDelta(modified, checkedListByFilter(nullAsEmpty(oclassAttr.getValue()), String.class), requestedAttrs);
+                        }
+                        return createContentSyncDelta(modified, getAddedObjectClasses(modified), requestedAttrs);
+                    }
+                    return (SyncDelta) change;
+                }
+            });
+        }
+        return invokeInOrder(deltaTasks);
+    }
+
+    /**
+     * Returns the sync delta of a deleted entry, a {@link ModifiedEntry} if
+     * the modified entry has to be read, or {@code null} if the change is not
+     * to be synchronized.
+     */
+    private Object prepareSyncDelta(LdapEntry changeLogEntry, SyncToken token) {
+        log.ok("Attempting to create sync delta for log entry {0}", token.getValue());
 
         String targetDN = getStringAttrValue(changeLogEntry.getAttributes(), "targetDN");
         if (targetDN == null) {
@@ -193,8 +685,7 @@ public class SunDSChangeLogSyncStrategy implements LdapSyncStrategy {
             return null;
         }
 
-        LdapName targetName = quietCreateLdapName(targetDN);
-        if (filterOutByBaseContexts(targetName)) {
+        if (filterOutByBaseContexts(targetDN)) {
             log.ok("Skipping log entry because it does not match any of the base contexts to synchronize");
             return null;
         }
@@ -203,7 +694,7 @@ public class SunDSChangeLogSyncStrategy implements LdapSyncStrategy {
         SyncDeltaType deltaType = getSyncDeltaType(changeType);
 
         SyncDeltaBuilder syncDeltaBuilder = new SyncDeltaBuilder();
-        syncDeltaBuilder.setToken(new SyncToken(changeNumber));
+        syncDeltaBuilder.setToken(token);
         syncDeltaBuilder.setDeltaType(deltaType);
 
         if (deltaType.equals(SyncDeltaType.DELETE)) {
@@ -216,25 +707,7 @@ public class SunDSChangeLogSyncStrategy implements LdapSyncStrategy {
             }
             String uidAttr = conn.getSchemaMapping().getLdapUidAttribute(oclass);            
             if (!LdapEntry.isDNAttribute(uidAttr)) {
-                String guid = null;
-                if ("entryUUID".equalsIgnoreCase(uidAttr)) {
-                    guid = getStringAttrValue(changeLogEntry.getAttributes(), "targetEntryUUID");
-                    // dirty hack for now... See OPENICF-316
-                    if (guid == null) {
-                        guid = getStringAttrValue(changeLogEntry.getAttributes(), "targetUniqueID");
-                    }
-                } else if ("nsUniqueId".equalsIgnoreCase(uidAttr)) {
-                    // SunDS/ODSEE
-                    guid = getStringAttrValue(changeLogEntry.getAttributes(), "targetUniqueID");
-                } else {
-                    // try to see if we're not dealing with the RDN here...
-                    String[] elements = targetDN.split(",");
-                    String[] rdn = elements[0].split("=");
-                    if (rdn[0].equalsIgnoreCase(uidAttr)){
-                        guid = rdn[1];
-                    }
-                }
-                
+                String guid = getTargetUid(changeLogEntry, targetDN, uidAttr);
                 if (null != guid) {
                     syncDeltaBuilder.setUid(new Uid(guid));
                 } else {
@@ -247,14 +720,24 @@ public class SunDSChangeLogSyncStrategy implements LdapSyncStrategy {
             return syncDeltaBuilder.build();
         }
 
+        // Look at the raw LDIF first, to only parse the changes to synchronize.
         String changes = getStringAttrValue(changeLogEntry.getAttributes(), "changes");
-        Map<String, List<Object>> attrChanges = getAttributeChanges(changeType, changes);
+        if (filterOutByModifiersNames(changes)) {
+            log.ok("Skipping entry because modifiersName is in the list of modifiersName's to filter out");
+            return null;
+        }
+        if (!getAttributesToSynchronize().isEmpty() && !ChangeLogFilter.mayChangeAny(changeType, changes, getAttributesToSynchronize())) {
+            log.ok("Skipping entry because no changed attributes in the list of attributes to synchronize");
+            return null;
+        }
+
+        Set<String> incrementalAttrs = newCaseInsensitiveSet();
+        Map<String, List<Object>> attrChanges = getAttributeChanges(changeType, changes, incrementalAttrs);
 
         if (filterOutByModifiersNames(attrChanges)) {
             log.ok("Skipping entry because modifiersName is in the list of modifiersName's to filter out");
             return null;
         }
-
         if (filterOutByAttributes(attrChanges)) {
             log.ok("Skipping entry because no changed attributes in the list of attributes to synchronize");
             return null;
@@ -270,26 +753,150 @@ public class SunDSChangeLogSyncStrategy implements LdapSyncStrategy {
                 return null;
             }
             String newSuperior = getStringAttrValue(changeLogEntry.getAttributes(), "newSuperior");
-            newTargetDN = getNewTargetDN(targetName, newSuperior, newRdn);
+            newTargetDN = getNewTargetDN(quietCreateLdapName(targetDN), newSuperior, newRdn);
         }
 
-        // Always specify the attributes to get. This will return attributes with
-        // empty values when the attribute is not present, allowing the client to
-        // detect that the attribute has been removed.
-        Set<String> attrsToGet;
-        if (attrsToGetOption != null) {
-            attrsToGet = newSet(attrsToGetOption);
-            // Do not retrieve the password attribute from the entry (usually it is an unusable
-            // hashed value anyway). We will use the one from the change log below.
-            attrsToGet.remove(OperationalAttributes.PASSWORD_NAME);
+        ModifiedEntry modified = new ModifiedEntry(syncDeltaBuilder, changeType, targetDN, quietCreateLdapName(newTargetDN), attrChanges, incrementalAttrs);
+        if (conn.getConfiguration().isUseChangeLogContent()) {
+            String uidAttr = conn.getSchemaMapping().getLdapUidAttribute(oclass);
+            if (LdapEntry.isDNAttribute(uidAttr)) {
+                modified.targetUid = newTargetDN;
+            } else {
+                List<Object> uidValues = attrChanges.get(uidAttr);
+                if (uidValues != null && !uidValues.isEmpty() && !incrementalAttrs.contains(uidAttr)) {
+                    modified.targetUid = conn.getSchemaMapping().createUid(uidAttr, new BasicAttributes(uidAttr, uidValues.get(0), true)).getUidValue();
+                } else {
+                    modified.targetUid = getTargetUid(changeLogEntry, newTargetDN, uidAttr);
+                }
+            }
+        }
+        return modified;
+    }
+
+    /**
+     * Returns the value of the given Uid attribute of the target entry of a
+     * change log entry, or {@code null} if the change log entry does not
+     * tell it.
+     */
+    private String getTargetUid(LdapEntry changeLogEntry, String targetDN, String uidAttr) {
+        String guid = null;
+        if ("entryUUID".equalsIgnoreCase(uidAttr)) {
+            guid = getStringAttrValue(changeLogEntry.getAttributes(), "targetEntryUUID");
+            // dirty hack for now... See OPENICF-316
+            if (guid == null) {
+                guid = getStringAttrValue(changeLogEntry.getAttributes(), "targetUniqueID");
+            }
+        } else if ("nsUniqueId".equalsIgnoreCase(uidAttr)) {
+            // SunDS/ODSEE
+            guid = getStringAttrValue(changeLogEntry.getAttributes(), "targetUniqueID");
         } else {
-            attrsToGet = newSet(LdapSearch.getAttributesReturnedByDefault(conn, oclass));
+            // try to see if we're not dealing with the RDN here...
+            String[] elements = targetDN.split(",");
+            String[] rdn = elements[0].split("=");
+            if (rdn[0].equalsIgnoreCase(uidAttr)){
+                guid = rdn[1];
+            }
         }
-        // If objectClass is not in the list of attributes to get, prepare to remove it later.
-        boolean removeObjectClass = attrsToGet.add("objectClass");
-        LdapFilter filter = LdapFilter.forEntryDN(newTargetDN).withNativeFilter(getModifiedEntrySearchFilter());
+        return guid;
+    }
+
+    /**
+     * Returns whether the delta of the given change needs the modified entry,
+     * because the change does not hold everything the delta has to contain.
+     *
+     * @param requestedAttrs the explicitly requested attributes, or {@code null}.
+     */
+    private boolean needsModifiedObject(ModifiedEntry modified, Set<String> requestedAttrs) {
+        if (modified.targetUid == null || getModifiedEntrySearchFilter() != null) {
+            return true;
+        }
+        if (requestedAttrs == null) {
+            return !modified.incrementalAttrs.isEmpty();
+        }
+        for (String attrName : requestedAttrs) {
+            if (!modified.attrChanges.containsKey(attrName) || modified.incrementalAttrs.contains(attrName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the object classes of the target entry if the change sets them,
+     * typically when the entry was added, or {@code null}.
+     */
+    private List<String> getAddedObjectClasses(ModifiedEntry modified) {
+        List<Object> values = modified.attrChanges.get("objectClass");
+        if (values == null || values.isEmpty() || modified.incrementalAttrs.contains("objectClass")) {
+            return null;
+        }
+        return checkedListByFilter(values, String.class);
+    }
+
+    /**
+     * Creates the sync delta of a created or updated entry from the content of
+     * the change only.
+     *
+     * @param objectClasses the object classes of the entry, either set by the
+     *            change or read from the entry.
+     * @param requestedAttrs the explicitly requested attributes, or {@code null}.
+     */
+    private SyncDelta createContentSyncDelta(ModifiedEntry modified, List<String> objectClasses, Set<String> requestedAttrs) {
+        ObjectClass objectClass = oclass;
+        Set<String> entryClasses = newCaseInsensitiveSet();
+        entryClasses.addAll(objectClasses);
+        if (!entryClasses.containsAll(conn.getSchemaMapping().getLdapClasses(oclass))) {
+            log.ok("Skipping entry because the modified entry is not of the right object class");
+            return null;
+        }
+        if (filterOutByObjectClasses(objectClasses)) {
+            log.ok("Skipping entry because no object class in the list of object classes to synchronize");
+            return null;
+        }
+        if (ObjectClass.ALL.equals(oclass)) {
+            BasicAttribute oclassAttr = new BasicAttribute("objectClass");
+            for (String value : objectClasses) {
+                oclassAttr.add(value);
+            }
+            try {
+                objectClass = guessObjectClass(conn, oclassAttr);
+            } catch (NamingException e) {
+                throw new ConnectorException(e);
+            }
+        }
+
+        String passwordAttrName = conn.getConfiguration().getPasswordAttributeToSynchronize();
+        ConnectorObjectBuilder objectBuilder = new ConnectorObjectBuilder();
+        objectBuilder.setObjectClass(objectClass);
+        objectBuilder.setUid(modified.targetUid);
+        objectBuilder.setName(modified.newTargetName.toString());
+        for (Map.Entry<String, List<Object>> attrChange : modified.attrChanges.entrySet()) {
+            String attrName = attrChange.getKey();
+            if (modified.incrementalAttrs.contains(attrName) || attrName.equalsIgnoreCase(passwordAttrName)) {
+                continue;
+            }
+            if (requestedAttrs == null || requestedAttrs.contains(attrName)) {
+                objectBuilder.addAttribute(AttributeBuilder.build(attrName, attrChange.getValue()));
+            }
+        }
+        Attribute passwordAttr = getPasswordAttribute(modified.attrChanges);
+        if (passwordAttr != null) {
+            objectBuilder.addAttribute(passwordAttr);
+        }
+        objectBuilder.addAttribute(getChangedAttributes(modified.attrChanges, passwordAttr != null));
+
+        log.ok("Creating sync delta for created or updated entry from the change log content");
+        SyncDeltaBuilder syncDeltaBuilder = modified.syncDeltaBuilder;
+        setPreviousUid(syncDeltaBuilder, modified);
+        syncDeltaBuilder.setUid(new Uid(modified.targetUid));
+        syncDeltaBuilder.setObject(objectBuilder.build());
+        return syncDeltaBuilder.build();
+    }
+
+    private SyncDelta createSyncDelta(ModifiedEntry modified, ConnectorObject object, boolean removeObjectClass) {
+        SyncDeltaBuilder syncDeltaBuilder = modified.syncDeltaBuilder;
+        Map<String, List<Object>> attrChanges = modified.attrChanges;
 
-        ConnectorObject object = LdapSearches.findObject(conn, oclass, filter, attrsToGet.toArray(new String[attrsToGet.size()]));
         if (object == null) {
             log.ok("Skipping entry because the modified entry is missing, not of the right object class, or not matching the search filter");
             return null;
@@ -302,17 +909,13 @@ public class SunDSChangeLogSyncStrategy implements LdapSyncStrategy {
             return null;
         }
 
-        Attribute passwordAttr = null;
-        if (conn.getConfiguration().isSynchronizePasswords()) {
-            List<Object> passwordValues = attrChanges.get(conn.getConfiguration().getPasswordAttributeToSynchronize());
-            if (!passwordValues.isEmpty()) {
-                byte[] encryptedPwd = (byte[]) passwordValues.get(0); 
-                String decryptedPwd = getPasswordDecryptor().decryptPassword(encryptedPwd);
-                passwordAttr = AttributeBuilder.buildPassword(new GuardedString(decryptedPwd.toCharArray()));
-            }
+        Attribute passwordAttr = getPasswordAttribute(attrChanges);
+        Attribute changedAttrsAttr = null;
+        if (conn.getConfiguration().isUseChangeLogContent()) {
+            changedAttrsAttr = getChangedAttributes(attrChanges, passwordAttr != null);
         }
 
-        if (removeObjectClass || passwordAttr != null) {
+        if (removeObjectClass || passwordAttr != null || changedAttrsAttr != null) {
             ConnectorObjectBuilder objectBuilder = new ConnectorObjectBuilder();
             objectBuilder.setObjectClass(object.getObjectClass());
             objectBuilder.setUid(object.getUid());
@@ -329,20 +932,181 @@ public class SunDSChangeLogSyncStrategy implements LdapSyncStrategy {
             if (passwordAttr != null) {
                 objectBuilder.addAttribute(passwordAttr);
             }
+            if (changedAttrsAttr != null) {
+                objectBuilder.addAttribute(changedAttrsAttr);
+            }
             object = objectBuilder.build();
         }
 
         log.ok("Creating sync delta for created or updated entry");
-        if ("modrdn".equalsIgnoreCase(changeType)) {
+        setPreviousUid(syncDeltaBuilder, modified);
+        syncDeltaBuilder.setUid(object.getUid());
+        syncDeltaBuilder.setObject(object);
+        return syncDeltaBuilder.build();
+    }
+
+    private void setPreviousUid(SyncDeltaBuilder syncDeltaBuilder, ModifiedEntry modified) {
+        if ("modrdn".equalsIgnoreCase(modified.changeType)) {
             String uidAttr = conn.getSchemaMapping().getLdapUidAttribute(oclass);
             // We can only set the previous Uid if it is the entry DN, which is readily available.
             if (LdapEntry.isDNAttribute(uidAttr)) {
-                syncDeltaBuilder.setPreviousUid(new Uid(targetDN));
+                syncDeltaBuilder.setPreviousUid(new Uid(modified.targetDN));
             }
         }
-        syncDeltaBuilder.setUid(object.getUid());
-        syncDeltaBuilder.setObject(object);
-        return syncDeltaBuilder.build();
+    }
+
+    /**
+     * Returns the synchronized password set by the change, or {@code null}.
+     */
+    private Attribute getPasswordAttribute(Map<String, List<Object>> attrChanges) {
+        if (conn.getConfiguration().isSynchronizePasswords()) {
+            List<Object> passwordValues = attrChanges.get(conn.getConfiguration().getPasswordAttributeToSynchronize());
+            if (passwordValues != null && !passwordValues.isEmpty()) {
+                byte[] encryptedPwd = (byte[]) passwordValues.get(0); 
+                String decryptedPwd = getPasswordDecryptor().decryptPassword(encryptedPwd);
+                return AttributeBuilder.buildPassword(new GuardedString(decryptedPwd.toCharArray()));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the attribute listing the names of the attributes set by the change.
+     */
+    private Attribute getChangedAttributes(Map<String, List<Object>> attrChanges, boolean passwordChanged) {
+        String passwordAttrName = conn.getConfiguration().getPasswordAttributeToSynchronize();
+        List<String> names = new ArrayList<String>(attrChanges.size());
+        for (String attrName : attrChanges.keySet()) {
+            if (!attrName.equalsIgnoreCase(passwordAttrName)) {
+                names.add(attrName);
+            }
+        }
+        if (passwordChanged) {
+            names.add(OperationalAttributes.PASSWORD_NAME);
+        }
+        return AttributeBuilder.build(CHANGED_ATTRIBUTES_NAME, names);
+    }
+
+    /**
+     * Reads the given modified entries, returning them by DN. The entries are
+     * grouped by parent and each group is read with one-level searches OR-ing
+     * the RDNs, instead of one base search per entry. The returned objects
+     * match the object class and the modified entry search filter, exactly
+     * as with a base search.
+     */
+    Map<LdapName, ConnectorObject> findModifiedObjects(Collection<LdapName> names, String[] attrsToGet) {
+        Map<LdapName, ConnectorObject> result = new HashMap<LdapName, ConnectorObject>();
+        for (List<LdapName> children : groupByParent(names, MAX_RDNS_PER_SEARCH)) {
+            if (children.size() > 1) {
+                LdapName parent = getParent(children.get(0));
+                try {
+                    findChildObjects(parent, children, attrsToGet, result);
+                    continue;
+                } catch (ConnectorException e) {
+                    log.ok(e, "Failed to read the modified entries under {0} together, reading them one by one", parent);
+                }
+            }
+            for (LdapName name : children) {
+                ConnectorObject object = findModifiedObject(name, attrsToGet);
+                if (object != null) {
+                    result.put(name, object);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Groups the given entry names by parent, in groups of at most the given
+     * size. The groups and the names in each group keep the order of the
+     * given names. The root name has no parent and is left out.
+     */
+    static List<List<LdapName>> groupByParent(Collection<LdapName> names, int maxSize) {
+        Map<LdapName, List<LdapName>> namesByParent = new LinkedHashMap<LdapName, List<LdapName>>();
+        for (LdapName name : names) {
+            if (name.size() == 0) {
+                continue;
+            }
+            LdapName parent = getParent(name);
+            List<LdapName> children = namesByParent.get(parent);
+            if (children == null) {
+                children = new ArrayList<LdapName>();
+                namesByParent.put(parent, children);
+            }
+            children.add(name);
+        }
+        List<List<LdapName>> groups = new ArrayList<List<LdapName>>();
+        for (List<LdapName> children : namesByParent.values()) {
+            for (int from = 0; from < children.size(); from += maxSize) {
+                groups.add(children.subList(from, Math.min(children.size(), from + maxSize)));
+            }
+        }
+        return groups;
+    }
+
+    private static LdapName getParent(LdapName name) {
+        return (LdapName) name.getPrefix(name.size() - 1);
+    }
+
+    /**
+     * Returns the filter matching the RDNs of the given entries.
+     */
+    static String createRdnFilter(List<LdapName> children) {
+        StringBuilder rdnFilter = new StringBuilder("(|");
+        for (LdapName child : children) {
+            Rdn rdn = child.getRdn(child.size() - 1);
+            Attributes rdnAttrs = rdn.toAttributes();
+            if (rdnAttrs.size() > 1) {
+                rdnFilter.append("(&");
+            }
+            try {
+                NamingEnumeration<? extends javax.naming.directory.Attribute> attrs = rdnAttrs.getAll();
+                while (attrs.hasMore()) {
+                    javax.naming.directory.Attribute attr = attrs.next();
+                    rdnFilter.append('(').append(attr.getID()).append('=');
+                    escapeAttrValue(attr.get(), rdnFilter);
+                    rdnFilter.append(')');
+                }
+            } catch (NamingException e) {
+                throw new ConnectorException(e);
+            }
+            if (rdnAttrs.size() > 1) {
+                rdnFilter.append(')');
+            }
+        }
+        rdnFilter.append(')');
+        return rdnFilter.toString();
+    }
+
+    /**
+     * Reads the given entries, all children of the given parent, with one
+     * one-level search.
+     */
+    void findChildObjects(LdapName parent, List<LdapName> children, String[] attrsToGet, final Map<LdapName, ConnectorObject> result) {
+        LdapFilter filter = LdapFilter.forNativeFilter(createRdnFilter(children));
+        String modifiedEntryFilter = getModifiedEntrySearchFilter();
+        if (modifiedEntryFilter != null) {
+            filter = filter.and(LdapFilter.forNativeFilter(modifiedEntryFilter));
+        }
+        OperationOptionsBuilder builder = new OperationOptionsBuilder();
+        builder.setAttributesToGet(attrsToGet);
+        builder.setScope(OperationOptions.SCOPE_ONE_LEVEL);
+        LdapSearch search = new LdapSearch(conn, oclass, filter, null, builder.build(), parent.toString());
+        search.execute(new ResultsHandler() {
+            public boolean handle(ConnectorObject object) {
+                result.put(quietCreateLdapName(object.getName().getNameValue()), object);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Reads the given entry, or returns {@code null} if it does not exist or
+     * does not match the object class or the modified entry search filter.
+     */
+    ConnectorObject findModifiedObject(LdapName name, String[] attrsToGet) {
+        LdapFilter filter = LdapFilter.forEntryDN(name.toString()).withNativeFilter(getModifiedEntrySearchFilter());
+        return LdapSearches.findObject(conn, oclass, filter, attrsToGet);
     }
 
     private String getNewTargetDN(LdapName targetName, String newSuperior, String newRdn) {
@@ -363,30 +1127,80 @@ public class SunDSChangeLogSyncStrategy implements LdapSyncStrategy {
         }
     }
 
-    private boolean filterOutByBaseContexts(LdapName targetName) {
+    /**
+     * Returns whether the target DN of a change is outside of the base
+     * contexts to synchronize. The DN is only parsed when comparing it as a
+     * string cannot tell.
+     */
+    private boolean filterOutByBaseContexts(String targetDN) {
+        Boolean underBaseContexts = getChangeLogFilter().isUnderBaseContexts(targetDN);
+        if (underBaseContexts != null) {
+            return !underBaseContexts;
+        }
+        if (!isUnderContexts(quietCreateLdapName(targetDN), getBaseContextsToSynchronize())) {
+            return true;
+        }
+        return false;
+    }
+
+    private List<LdapName> getBaseContextsToSynchronize() {
         List<LdapName> baseContexts = conn.getConfiguration().getBaseContextsToSynchronizeAsLdapNames();
         if (baseContexts.isEmpty()) {
             baseContexts = conn.getConfiguration().getBaseContextsAsLdapNames();
         }
-        if (!isUnderContexts(targetName, baseContexts)) {
-            return true;
+        return baseContexts;
+    }
+
+    private ChangeLogFilter getChangeLogFilter() {
+        if (changeLogFilter == null) {
+            changeLogFilter = new ChangeLogFilter(getBaseContextsToSynchronize());
         }
-        return false;
+        return changeLogFilter;
     }
 
-    protected boolean filterOutByModifiersNames(Map<String, List<Object>> changes) {
+    /**
+     * Returns whether the LDIF of a change sets a modifiers name to filter
+     * out. The LDIF is not parsed beyond that name.
+     */
+    private boolean filterOutByModifiersNames(String changes) {
         Set<LdapName> filter = conn.getConfiguration().getModifiersNamesToFilterOutAsLdapNames();
         if (filter.isEmpty()) {
             log.ok("Filtering by modifiersName disabled");
             return false;
         }
-        List<?> modifiersNameValues = changes.get("modifiersName");
-        if (isEmpty(modifiersNameValues)) {
+        String modifiersName = changes != null ? ChangeLogFilter.getFirstValue(changes, getModifiersNameAttribute()) : null;
+        if (modifiersName == null) {
             log.ok("Not filtering by modifiersName because not set for this entry");
             return false;
         }
-        LdapName modifiersName = quietCreateLdapName(modifiersNameValues.get(0).toString());
-        return filter.contains(modifiersName);
+        return filter.contains(quietCreateLdapName(modifiersName));
+    }
+
+    /**
+     * Returns whether the parsed changes of an entry are to be filtered out
+     * because of their modifier. The modifiers name of
+     * {@link #getModifiersNameAttribute()} has already been checked on the
+     * LDIF, so this implementation returns {@code false}. Subclasses may
+     * override it to check other attributes of the changes.
+     */
+    protected boolean filterOutByModifiersNames(Map<String, List<Object>> changes) {
+        return false;
+    }
+
+    /**
+     * Returns the attribute of the LDIF of a change holding the name of the
+     * modifier.
+     */
+    protected String getModifiersNameAttribute() {
+        return "modifiersName";
+    }
+
+    /**
+     * Returns the attribute of a change log entry holding the name of the
+     * modifier.
+     */
+    protected String getChangeInitiatorsNameAttribute() {
+        return "changeInitiatorsName";
     }
 
     private boolean filterOutDeleteByModifiersNames(LdapEntry changeLogEntry) {
@@ -395,7 +1209,7 @@ public class SunDSChangeLogSyncStrategy implements LdapSyncStrategy {
             log.ok("Filtering by modifiersName disabled");
             return false;
         }
-        String changeInitiatorsName = getStringAttrValue(changeLogEntry.getAttributes(), "changeInitiatorsName");
+        String changeInitiatorsName = getStringAttrValue(changeLogEntry.getAttributes(), getChangeInitiatorsNameAttribute());
         if (null == changeInitiatorsName) {
             log.ok("Not filtering by changeInitiatorsName because not set for this entry");
             return false;
@@ -442,15 +1256,15 @@ public class SunDSChangeLogSyncStrategy implements LdapSyncStrategy {
         return null;
     }
 
-    private int getStartChangeNumber(SyncToken lastToken, final SyncResultsHandler handler) {
-        Integer lastTokenValue = lastToken != null ? (Integer) lastToken.getValue() : null;
+    private long getStartChangeNumber(SyncToken lastToken, final SyncResultsHandler handler) {
+        Long lastTokenValue = getChangeNumber(lastToken);
         if (lastTokenValue == null) {
             lastTokenValue = getChangeLogAttributes().getFirstChangeNumber();
-        } else if ((Integer) lastToken.getValue() > getChangeLogAttributes().getLastChangeNumber()) {
+        } else if (lastTokenValue > getChangeLogAttributes().getLastChangeNumber()) {
                 String resetPolicy = conn.getConfiguration().getResetSyncToken();
                 // The current SyncToken should never be greater than the lastChangeNumber in the changelog
                 // We use the value defined by resetSyncToken to act
-                log.info("The current SyncToken value ({0}) is greater than the lastChangeNumber value ({1})", (Integer) lastToken.getValue(), getChangeLogAttributes().getLastChangeNumber());
+                log.info("The current SyncToken value ({0}) is greater than the lastChangeNumber value ({1})", lastTokenValue, getChangeLogAttributes().getLastChangeNumber());
                 if (RESET_SYNC_TOKEN_NEVER.equalsIgnoreCase(resetPolicy)){
                     // do nothing
                     lastTokenValue++;
@@ -470,61 +1284,113 @@ public class SunDSChangeLogSyncStrategy implements LdapSyncStrategy {
         return lastTokenValue;
     }
 
-    private Map<String, List<Object>> getAttributeChanges(String changeType, String ldif) {
+    /**
+     * Returns the change number of a token, or {@code null} if there is no
+     * token. The change numbers used to be {@code Integer} tokens and are now
+     * {@code Long} tokens, so that they do not overflow.
+     */
+    static Long getChangeNumber(SyncToken token) {
+        if (token == null || token.getValue() == null) {
+            return null;
+        }
+        Object value = token.getValue();
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        long changeNumber = convertToLong(value.toString(), -1);
+        if (changeNumber < 0) {
+            throw new ConnectorException("Invalid change number sync token: " + value);
+        }
+        return changeNumber;
+    }
+
+    /**
+     * Returns the lowest change number from {@code from} to {@code to}, or -1
+     * if the change log holds none, reading only change numbers. At most
+     * {@code limit} are read at once: when the server has more, the range is
+     * narrowed to the lowest one read, and read again.
+     */
+    private long findNextChangeNumber(String context, String changeNumberAttr, long from, long to, int limit, ChangeLogGaps gaps) throws NamingException {
+        SearchControls controls = new SearchControls();
+        controls.setSearchScope(SearchControls.ONELEVEL_SCOPE);
+        controls.setReturningAttributes(new String[] { changeNumberAttr });
+        controls.setCountLimit(limit);
+        while (true) {
+            gaps.probed();
+            long lowest = -1;
+            boolean truncated = false;
+            NamingEnumeration<SearchResult> results = conn.getInitialContext().search(context, getChangeLogRangeFilter(changeNumberAttr, from, to), controls);
+            try {
+                while (results.hasMore()) {
+                    long changeNumber = convertToLong(getStringAttrValue(results.next().getAttributes(), changeNumberAttr), -1);
+                    if (changeNumber >= from && changeNumber <= to && (lowest == -1 || changeNumber < lowest)) {
+                        lowest = changeNumber;
+                    }
+                }
+            } catch (SizeLimitExceededException e) {
+                truncated = true;
+            } finally {
+                results.close();
+            }
+            if (!truncated || lowest == -1 || lowest == from) {
+                log.ok("The lowest change number from {0} to {1} is {2}", from, to, lowest);
+                return lowest;
+            }
+            to = lowest;
+        }
+    }
+
+    /**
+     * Returns the attributes set by the given change. The names of the
+     * attributes whose values were only added or removed, and whose
+     * resulting values are therefore unknown, are added to
+     * {@code incrementalAttrs}.
+     */
+    private Map<String, List<Object>> getAttributeChanges(String changeType, String ldif, Set<String> incrementalAttrs) {
         Map<String, List<Object>> result = newCaseInsensitiveMap();
 
         if ("modify".equalsIgnoreCase(changeType)) {
-            LdifParser parser = new LdifParser(ldif);
-            Iterator<Line> lines = parser.iterator();
-            while (lines.hasNext()) {
-                Line line = lines.next();
+            LdifParser.Cursor lines = new LdifParser(ldif).cursor();
+            while (lines.next()) {
                 // We only expect one change, so ignore any change separators.
-                if (line instanceof Separator || line instanceof ChangeSeparator) {
+                if (!lines.isNameValue()) {
                     continue;
                 }
-                NameValue nameValue = (NameValue) line;
-                String operation = nameValue.getName();
-                String attrName = nameValue.getValue();
-                if (LDIF_MODIFY_OPS.contains(operation)) {
-                    List<Object> values = new ArrayList<Object>();
-                    while (lines.hasNext()) {
-                        line = lines.next();
-                        if (line instanceof Separator) {
+                String operation = getModifyOperation(lines);
+                if (operation != null) {
+                    String attrName = lines.getValue().toString();
+                    LdifValues values = new LdifValues(attrName);
+                    while (lines.next()) {
+                        if (!lines.isNameValue()) {
                             if ("delete".equalsIgnoreCase(operation)){
                                 result.put(attrName, values);
                             }
                             break;
                         }
-                        nameValue = (NameValue) line;
-                        Object value = decodeAttributeValue(nameValue);
-                        if (value != null) {
-                            values.add(value);
-                        }
+                        values.addEncoded(lines.getValue());
                     }
-                    if (!values.isEmpty()) {
+                    if (values.hasEncoded()) {
                         result.put(attrName, values);
+                        if (!"replace".equalsIgnoreCase(operation)) {
+                            incrementalAttrs.add(attrName);
+                        }
                     }
                 }
             }
         } else if ("add".equalsIgnoreCase(changeType)) {
-            LdifParser parser = new LdifParser(ldif);
-            Iterator<Line> lines = parser.iterator();
-            while (lines.hasNext()) {
-                Line line = lines.next();
+            LdifParser.Cursor lines = new LdifParser(ldif).cursor();
+            while (lines.next()) {
                 // We only expect one change, so ignore any change separators.
-                if (line instanceof Separator || line instanceof ChangeSeparator) {
+                if (!lines.isNameValue()) {
                     continue;
                 }
-                NameValue nameValue = (NameValue) line;
-                Object value = decodeAttributeValue(nameValue);
-                if (value != null) {
-                    List<Object> values = result.get(nameValue.getName());
-                    if (values == null) {
-                        values = new ArrayList<Object>();
-                        result.put(nameValue.getName(), values);
-                    }
-                    values.add(value);
+                String attrName = lines.getName().toString();
+                LdifValues values = (LdifValues) result.get(attrName);
+                if (values == null) {
+                    values = new LdifValues(attrName);
+                    result.put(attrName, values);
                 }
+                values.addEncoded(lines.getValue());
             }
         }
 
@@ -532,11 +1398,23 @@ public class SunDSChangeLogSyncStrategy implements LdapSyncStrategy {
         return result;
     }
 
-    private Object decodeAttributeValue(NameValue nameValue) {
-        String value = nameValue.getValue();
-        if (value.startsWith(":")) {
+    /**
+     * Returns the LDIF modify operation of the current line, or {@code null}
+     * if the line is not an operation.
+     */
+    private static String getModifyOperation(LdifParser.Cursor line) {
+        for (String operation : LDIF_MODIFY_OPS) {
+            if (line.isName(operation)) {
+                return operation;
+            }
+        }
+        return null;
+    }
+
+    private Object decodeAttributeValue(String attrName, CharSequence value) {
+        if (value.length() > 0 && value.charAt(0) == ':') {
             // This is a Base64 encoded value...
-            String base64 = value.substring(1).trim();
+            String base64 = value.subSequence(1, value.length()).toString().trim();
             try {
                 return Base64.decode(base64);
                 // TODO the adapter had code here to convert the byte array
@@ -544,67 +1422,88 @@ public class SunDSChangeLogSyncStrategy implements LdapSyncStrategy {
                 // that information is in the schema and we don't have access
                 // to the resource schema, leaving that functionality out for now.
             } catch (Exception e) {
-                log.error("Could not decode attribute {0} with Base64 value {1}", nameValue.getName(), nameValue.getValue());
+                log.error("Could not decode attribute {0} with Base64 value {1}", attrName, value);
                 return null;
             }
         } else {
-            return value;
+            return value.toString();
         }
     }
 
-    private String getChangeLogSearchFilter(String changeNumberAttr, int startChangeNumber) {
-        int blockSize = conn.getConfiguration().getChangeLogBlockSize();
+    private String getChangeLogSearchFilter(String changeNumberAttr, long startChangeNumber, int blockSize) {
         boolean filterWithOrInsteadOfAnd = conn.getConfiguration().isFilterWithOrInsteadOfAnd();
         boolean filterByLogEntryOClass = !conn.getConfiguration().isRemoveLogEntryObjectClassFromFilter();
+        long endChangeNumber = startChangeNumber + blockSize -1;
+        if (!filterWithOrInsteadOfAnd) {
+            return getChangeLogRangeFilter(changeNumberAttr, startChangeNumber, endChangeNumber);
+        }
 
         StringBuilder result = new StringBuilder();
-        if (filterWithOrInsteadOfAnd) {
-            if (filterByLogEntryOClass) {
-                result.append("(&(objectClass=changeLogEntry)");
-            }
-            result.append("(|(");
-            result.append(changeNumberAttr);
-            result.append('=');
-            result.append(startChangeNumber);
-            result.append(')');
-
-            int endChangeNumber = startChangeNumber + blockSize -1;
-            for (int i = startChangeNumber + 1; i <= endChangeNumber; i++) {
-                result.append("(");
-                result.append(changeNumberAttr);
-                result.append('=');
-                result.append(i);
-                result.append(')');
-            }
+        if (filterByLogEntryOClass) {
+            result.append("(&(objectClass=changeLogEntry)");
+        }
+        result.append("(|(");
+        result.append(changeNumberAttr);
+        result.append('=');
+        result.append(startChangeNumber);
+        result.append(')');
 
-            result.append(')');
-            if (filterByLogEntryOClass) {
-                result.append(')');
-            }
-        } else {
-            result.append("(&");
-            if (filterByLogEntryOClass) {
-                result.append("(objectClass=changeLogEntry)");
-            }
+        for (long i = startChangeNumber + 1; i <= endChangeNumber; i++) {
             result.append("(");
             result.append(changeNumberAttr);
-            result.append(">=");
-            result.append(startChangeNumber);
+            result.append('=');
+            result.append(i);
             result.append(')');
+        }
 
-            int endChangeNumber = startChangeNumber + blockSize -1;
-            result.append("(");
-            result.append(changeNumberAttr);
-            result.append("<=");
-            result.append(endChangeNumber);
+        result.append(')');
+        if (filterByLogEntryOClass) {
             result.append(')');
+        }
+        appendServerFilter(result);
+        return result.toString();
+    }
 
-            result.append(')');
+    private String getChangeLogRangeFilter(String changeNumberAttr, long startChangeNumber, long endChangeNumber) {
+        boolean filterByLogEntryOClass = !conn.getConfiguration().isRemoveLogEntryObjectClassFromFilter();
+
+        StringBuilder result = new StringBuilder();
+        result.append("(&");
+        if (filterByLogEntryOClass) {
+            result.append("(objectClass=changeLogEntry)");
         }
+        result.append("(");
+        result.append(changeNumberAttr);
+        result.append(">=");
+        result.append(startChangeNumber);
+        result.append(')');
 
+        result.append("(");
+        result.append(changeNumberAttr);
+        result.append("<=");
+        result.append(endChangeNumber);
+        result.append(')');
+
+        result.append(')');
+        appendServerFilter(result);
         return result.toString();
     }
 
+    /**
+     * Adds the clauses of {@link LdapConfiguration#isFilterChangeLogOnServer()}
+     * to the change number filter, if enabled.
+     */
+    private void appendServerFilter(StringBuilder filter) {
+        if (conn.getConfiguration().isFilterChangeLogOnServer()) {
+            StringBuilder clauses = new StringBuilder();
+            getChangeLogFilter().appendTargetDNFilter(clauses);
+            ChangeLogFilter.appendNotChangeInitiatorsFilter(clauses, getChangeInitiatorsNameAttribute(), conn.getConfiguration().getModifiersNamesToFilterOutAsLdapNames());
+            if (clauses.length() > 0) {
+                filter.insert(0, "(&").append(clauses).append(')');
+            }
+        }
+    }
+
     ChangeLogAttributes getChangeLogAttributes() {
         if (changeLogAttrs == null) {
             try {
@@ -621,7 +1520,7 @@ public class SunDSChangeLogSyncStrategy implements LdapSyncStrategy {
                             "Plug-ins: Retro Change Log Plugin";
                     throw new ConnectorException(error);
                 }
-                changeLogAttrs = new ChangeLogAttributes(changeLog, convertToInt(firstChangeNumber, 0), convertToInt(lastChangeNumber, 0));
+                changeLogAttrs = new ChangeLogAttributes(changeLog, convertToLong(firstChangeNumber, 0), convertToLong(lastChangeNumber, 0));
             } catch (NamingException e) {
                 throw new ConnectorException(e);
             }
@@ -683,19 +1582,104 @@ public class SunDSChangeLogSyncStrategy implements LdapSyncStrategy {
         return false;
     }
 
+    /**
+     * @deprecated the change numbers may not fit in an int, use
+     *             {@link #convertToLong(String, long)}.
+     */
+    @Deprecated
     public static int convertToInt(String number, int def) {
-        int result = def;
+        return (int) convertToLong(number, def);
+    }
+
+    public static long convertToLong(String number, long def) {
+        long result = def;
         if (number != null && number.length() > 0) {
             int decimal = number.indexOf('.');
             if (decimal > 0) {
                 number = number.substring(0, decimal);
             }
             try {
-                result = Integer.parseInt(number);
+                result = Long.parseLong(number);
             } catch (NumberFormatException e) {
                 // Ignore.
             }
         }
         return result;
     }
+
+    /**
+     * The values of an attribute in the LDIF of a change. The values are kept
+     * as written in the LDIF and only decoded when the list is first read, so
+     * that the values of the attributes which are not synchronized, such as
+     * large Base64 photos, are never decoded.
+     */
+    private final class LdifValues extends AbstractList<Object> {
+
+        private final String attrName;
+        private List<CharSequence> encoded = new ArrayList<CharSequence>(1);
+        private List<Object> decoded;
+
+        LdifValues(String attrName) {
+            this.attrName = attrName;
+        }
+
+        void addEncoded(CharSequence value) {
+            encoded.add(value);
+        }
+
+        boolean hasEncoded() {
+            return !encoded.isEmpty();
+        }
+
+        @Override
+        public Object get(int index) {
+            return getDecoded().get(index);
+        }
+
+        @Override
+        public int size() {
+            return getDecoded().size();
+        }
+
+        private List<Object> getDecoded() {
+            if (decoded == null) {
+                decoded = new ArrayList<Object>(encoded.size());
+                for (CharSequence value : encoded) {
+                    Object decodedValue = decodeAttributeValue(attrName, value);
+                    if (decodedValue != null) {
+                        decoded.add(decodedValue);
+                    }
+                }
+                encoded = null;
+            }
+            return decoded;
+        }
+    }
+
+    /**
+     * A change of an entry which has to be read back to create its sync delta.
+     */
+    private static final class ModifiedEntry {
+
+        final SyncDeltaBuilder syncDeltaBuilder;
+        final String changeType;
+        final String targetDN;
+        final LdapName newTargetName;
+        final Map<String, List<Object>> attrChanges;
+        final Set<String> incrementalAttrs;
+        /**
+         * The Uid of the entry found in the change log, only set when the
+         * change log content is used.
+         */
+        String targetUid;
+
+        ModifiedEntry(SyncDeltaBuilder syncDeltaBuilder, String changeType, String targetDN, LdapName newTargetName, Map<String, List<Object>> attrChanges, Set<String> incrementalAttrs) {
+            this.syncDeltaBuilder = syncDeltaBuilder;
+            this.changeType = changeType;
+            this.targetDN = targetDN;
+            this.newTargetName = newTargetName;
+            this.attrChanges = attrChanges;
+            this.incrementalAttrs = incrementalAttrs;
+        }
+    }
 }
@@ -0,0 +1,342 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.sync.syncrepl;
+
+import static org.identityconnectors.ldap.LdapConstants.OBJECTCLASS_ATTR;
+import static org.identityconnectors.ldap.LdapUtil.createSyncObject;
+import static org.identityconnectors.ldap.LdapUtil.getSynchronizationFilter;
+import static org.identityconnectors.ldap.LdapUtil.guessObjectClass;
+
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.TimeLimitExceededException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.HasControls;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+
+import org.identityconnectors.common.Base64;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.SyncDelta;
+import org.identityconnectors.framework.common.objects.SyncDeltaBuilder;
+import org.identityconnectors.framework.common.objects.SyncDeltaType;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.identityconnectors.framework.spi.SyncTokenResultsHandler;
+import org.identityconnectors.ldap.LdapConnection;
+import org.identityconnectors.ldap.LdapEntry;
+import org.identityconnectors.ldap.search.LdapInternalSearch;
+import org.identityconnectors.ldap.sync.LdapSyncStrategy;
+
+/**
+ * An implementation of the sync operation based on the LDAP Content
+ * Synchronization control (RFC 4533), as supported by OpenLDAP (syncprov) and
+ * OpenDJ.
+ * <p>
+ * A synchronization session is bound to its search base and filter, so one
+ * session is run per base context to synchronize. The sync token holds the
+ * Base64 encoded cookie of each session, separated by {@code ;}, in the order
+ * of the base contexts.
+ * <p>
+ * JNDI does not expose the Sync Info intermediate responses, so the entries
+ * reported by a syncIdSet or a refreshDeletes message can not be turned into
+ * deltas. Deletes are only detected when the server sends the deleted entries
+ * with a delete sync state, which is what servers with a session log do.
+ * <p>
+ * For the same reason the refreshDone message of a refreshAndPersist search,
+ * which carries the cookie of the refresh, is never seen. When a persist time
+ * is configured, each base context is first refreshed in refreshOnly mode,
+ * and the refreshAndPersist search then starts from the cookie of that
+ * refresh. The changes of the persist phase carry their own cookies.
+ */
+public class ContentSyncStrategy implements LdapSyncStrategy {
+
+    private static final Log logger = Log.getLog(ContentSyncStrategy.class);
+
+    /**
+     * A filter that matches no entry, used to obtain the current cookie
+     * without reading the directory content.
+     */
+    private static final String NO_ENTRY_FILTER = "(&(objectClass=*)(!(objectClass=*)))";
+
+    private static final String COOKIE_SEPARATOR = ";";
+
+    private final LdapConnection conn;
+    private final ObjectClass oclass;
+
+    public ContentSyncStrategy(LdapConnection conn, ObjectClass oclass) {
+        this.conn = conn;
+        this.oclass = oclass;
+    }
+
+    public SyncToken getLatestSyncToken() {
+        String[] baseContexts = conn.getConfiguration().getBaseContextsToSynchronize();
+        byte[][] cookies = new byte[baseContexts.length][];
+        for (int i = 0; i < baseContexts.length; i++) {
+            cookies[i] = refresh(baseContexts[i], NO_ENTRY_FILTER, new String[]{"1.1"}, null, SyncRequestControl.REFRESH_ONLY, 0, null);
+        }
+        return new SyncToken(encodeToken(cookies));
+    }
+
+    public void sync(SyncToken token, final SyncResultsHandler handler, final OperationOptions options) {
+        if (token == null) {
+            // Like the other strategies, start from the current state.
+            ((SyncTokenResultsHandler) handler).handleResult(getLatestSyncToken());
+            return;
+        }
+        String[] baseContexts = conn.getConfiguration().getBaseContextsToSynchronize();
+        final byte[][] cookies = decodeToken(token.getValue(), baseContexts.length);
+        String filter = getSynchronizationFilter(conn, oclass);
+        logger.info("Using content synchronization filter {0}", filter);
+        String[] attrsToGet = getAttributesToGet(options);
+
+        int persistTime = conn.getConfiguration().getContentSynchronizationPersistTime();
+
+        for (int i = 0; i < baseContexts.length; i++) {
+            final int index = i;
+            final String baseDN = baseContexts[i];
+            EntryHandler entryHandler = new EntryHandler() {
+                boolean handle(SearchResult result, SyncStateControl state) throws NamingException {
+                    SyncDelta delta = createSyncDelta(baseDN, result, state, new SyncToken(encodeToken(cookies)));
+                    if (state != null && state.getResponseCookie() != null) {
+                        // Persist phase: each change carries the cookie that covers it.
+                        cookies[index] = state.getResponseCookie();
+                    }
+                    return handler.handle(delta);
+                }
+            };
+            byte[] cookie = refresh(baseDN, filter, attrsToGet, cookies[i], SyncRequestControl.REFRESH_ONLY, 0, entryHandler);
+            if (entryHandler.stopped) {
+                break;
+            }
+            if (cookie != null) {
+                cookies[i] = cookie;
+            }
+            if (persistTime > 0 && cookie != null) {
+                // JNDI does not expose the refreshDone message of a refreshAndPersist search,
+                // so the refresh is run on its own above and the persist search starts from its cookie.
+                cookie = refresh(baseDN, filter, attrsToGet, cookies[i], SyncRequestControl.REFRESH_AND_PERSIST, persistTime, entryHandler);
+                if (entryHandler.stopped) {
+                    break;
+                }
+                if (cookie != null) {
+                    cookies[i] = cookie;
+                }
+            }
+        }
+        ((SyncTokenResultsHandler) handler).handleResult(new SyncToken(encodeToken(cookies)));
+    }
+
+    /**
+     * Runs one synchronization search and returns the cookie the server
+     * returned with its result, or {@code null} if it did not return one.
+     */
+    private byte[] refresh(String baseDN, String filter, String[] attrsToGet, byte[] cookie, int mode, int persistTime, EntryHandler handler) {
+        SearchControls controls = LdapInternalSearch.createDefaultSearchControls();
+        controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        controls.setDerefLinkFlag(false);
+        controls.setReturningAttributes(attrsToGet);
+        if (mode == SyncRequestControl.REFRESH_AND_PERSIST) {
+            controls.setTimeLimit(persistTime * 1000);
+        }
+        int present = 0;
+        LdapContext ctx = null;
+        try {
+            ctx = conn.getInitialContext().newInstance(new Control[]{new SyncRequestControl(mode, cookie)});
+            NamingEnumeration<SearchResult> results = ctx.search(baseDN, filter, controls);
+            try {
+                while (results.hasMore()) {
+                    SearchResult result = results.next();
+                    SyncStateControl state = null;
+                    if (result instanceof HasControls) {
+                        state = SyncStateControl.find(((HasControls) result).getControls());
+                    }
+                    if (state != null && state.getState() == SyncStateControl.PRESENT) {
+                        present++;
+                        continue;
+                    }
+                    if (handler != null && !handler.handle(result, state)) {
+                        handler.stopped = true;
+                        break;
+                    }
+                }
+            } catch (TimeLimitExceededException e) {
+                // The persist time is over: the changes received so far carried their own cookies.
+                logger.ok("Content synchronization persist time of {0} seconds elapsed", persistTime);
+                return null;
+            } finally {
+                results.close();
+            }
+            if (handler != null && handler.stopped) {
+                return null;
+            }
+            SyncDoneControl done = SyncDoneControl.find(ctx.getResponseControls());
+            if (done == null) {
+                logger.warn("No sync done control returned for base context {0}", baseDN);
+                return null;
+            }
+            if (present > 0 && !done.isRefreshDeletes()) {
+                logger.warn("The server refreshed {0} with a present phase: entries deleted since the last sync can not be detected", baseDN);
+            }
+            return done.getResponseCookie();
+        } catch (IOException e) {
+            throw new ConnectorException(e);
+        } catch (NamingException e) {
+            throw new ConnectorException(e);
+        } finally {
+            if (ctx != null) {
+                try {
+                    ctx.close();
+                } catch (NamingException e) {
+                    logger.warn(e, "Failed to close the content synchronization context");
+                }
+            }
+        }
+    }
+
+    private SyncDelta createSyncDelta(String baseDN, SearchResult result, SyncStateControl state, SyncToken token) throws NamingException {
+        SyncDeltaBuilder syncDeltaBuilder = new SyncDeltaBuilder();
+        syncDeltaBuilder.setToken(token);
+        String dn = result.getNameInNamespace();
+
+        if (state != null && state.getState() == SyncStateControl.DELETE) {
+            syncDeltaBuilder.setDeltaType(SyncDeltaType.DELETE);
+            syncDeltaBuilder.setUid(createDeletedUid(dn, state));
+            // Deleted entries usually come without their object classes, then
+            // the class of a delete synchronizing all classes is unknown.
+            Attribute oclassAttr = result.getAttributes() != null ? result.getAttributes().get(OBJECTCLASS_ATTR) : null;
+            if (ObjectClass.ALL.equals(oclass) && oclassAttr != null) {
+                syncDeltaBuilder.setObjectClass(guessObjectClass(conn, oclassAttr));
+            } else {
+                syncDeltaBuilder.setObjectClass(oclass);
+            }
+            return syncDeltaBuilder.build();
+        }
+
+        ConnectorObject object = createSyncObject(conn, oclass, baseDN, result);
+        syncDeltaBuilder.setDeltaType(SyncDeltaType.CREATE_OR_UPDATE);
+        syncDeltaBuilder.setUid(object.getUid());
+        syncDeltaBuilder.setObject(object);
+        return syncDeltaBuilder.build();
+    }
+
+    /**
+     * Deleted entries come without attributes, so the Uid can only be computed
+     * from the DN, the entryUUID in the sync state or the RDN.
+     */
+    private Uid createDeletedUid(String dn, SyncStateControl state) throws NamingException {
+        String uidAttr = conn.getSchemaMapping().getLdapUidAttribute(oclass);
+        if (LdapEntry.isDNAttribute(uidAttr)) {
+            return new Uid(dn);
+        }
+        String guid = null;
+        if ("entryUUID".equalsIgnoreCase(uidAttr)) {
+            guid = state.getEntryUUID();
+        } else {
+            LdapName name = new LdapName(dn);
+            if (name.size() > 0) {
+                Rdn rdn = name.getRdn(name.size() - 1);
+                if (rdn.getType().equalsIgnoreCase(uidAttr)) {
+                    guid = rdn.getValue().toString();
+                }
+            }
+        }
+        if (guid == null) {
+            logger.error("Failed to compute the {0} attribute of deleted entry {1}", uidAttr, dn);
+            throw new ConnectorException("Unsupported Uid attribute: " + uidAttr);
+        }
+        return new Uid(guid);
+    }
+
+    private String[] getAttributesToGet(OperationOptions options) {
+        Set<String> attrsToGet = new LinkedHashSet<String>();
+        if (options != null && options.getAttributesToGet() != null && options.getAttributesToGet().length != 0) {
+            for (String attr : options.getAttributesToGet()) {
+                attrsToGet.add(attr);
+            }
+        } else {
+            attrsToGet.add("*");
+        }
+        attrsToGet.add(OBJECTCLASS_ATTR);
+        attrsToGet.add(conn.getConfiguration().getUidAttribute());
+        return attrsToGet.toArray(new String[attrsToGet.size()]);
+    }
+
+    static String encodeToken(byte[][] cookies) {
+        StringBuilder token = new StringBuilder();
+        for (int i = 0; i < cookies.length; i++) {
+            if (i > 0) {
+                token.append(COOKIE_SEPARATOR);
+            }
+            if (cookies[i] != null) {
+                token.append(Base64.encode(cookies[i]));
+            }
+        }
+        return token.toString();
+    }
+
+    /**
+     * Decodes the cookies of a token. A missing cookie, for instance after a
+     * base context has been added, makes the server send the whole content
+     * of that base context again.
+     */
+    static byte[][] decodeToken(Object token, int count) {
+        byte[][] cookies = new byte[count][];
+        if (token instanceof String) {
+            String[] values = ((String) token).split(COOKIE_SEPARATOR, -1);
+            for (int i = 0; i < count && i < values.length; i++) {
+                if (values[i].length() > 0) {
+                    cookies[i] = Base64.decode(values[i]);
+                }
+            }
+        } else {
+            logger.warn("Ignoring sync token {0} which is not a content synchronization token", token);
+        }
+        return cookies;
+    }
+
+    /**
+     * Receives the added, modified and deleted entries of a synchronization
+     * search.
+     */
+    private abstract static class EntryHandler {
+
+        boolean stopped;
+
+        abstract boolean handle(SearchResult result, SyncStateControl state) throws NamingException;
+    }
+}
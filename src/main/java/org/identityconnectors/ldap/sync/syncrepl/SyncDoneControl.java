@@ -0,0 +1,95 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.sync.syncrepl;
+
+import java.io.IOException;
+
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
+
+import com.sun.jndi.ldap.Ber;
+import com.sun.jndi.ldap.BerDecoder;
+
+/**
+ * The LDAP Content Synchronization done control (RFC 4533) returned with the
+ * result of a refresh.
+ *
+ * <pre>
+ * syncDoneValue ::= SEQUENCE {
+ *     cookie syncCookie OPTIONAL,
+ *     refreshDeletes BOOLEAN DEFAULT FALSE
+ * }
+ * </pre>
+ */
+public class SyncDoneControl extends BasicControl {
+
+    public static final String OID = "1.3.6.1.4.1.4203.1.9.1.3";
+
+    private static final long serialVersionUID = 1L;
+
+    private byte[] cookie;
+    private boolean refreshDeletes;
+
+    public SyncDoneControl(String id, boolean criticality, byte[] value) throws IOException {
+        super(id, criticality, value);
+        if ((value != null) && (value.length > 0)) {
+            BerDecoder decoder = new BerDecoder(value, 0, value.length);
+            decoder.parseSeq(null);
+            if (decoder.bytesLeft() > 0 && decoder.peekByte() == Ber.ASN_OCTET_STR) {
+                cookie = decoder.parseOctetString(Ber.ASN_OCTET_STR, null);
+            }
+            if (decoder.bytesLeft() > 0 && decoder.peekByte() == Ber.ASN_BOOLEAN) {
+                refreshDeletes = decoder.parseBoolean();
+            }
+        }
+    }
+
+    /**
+     * Returns the sync done control among the given response controls, or
+     * {@code null} if there is none.
+     */
+    public static SyncDoneControl find(Control[] controls) throws IOException {
+        if (controls != null) {
+            for (Control control : controls) {
+                if (OID.equals(control.getID())) {
+                    return new SyncDoneControl(control.getID(), control.isCritical(), control.getEncodedValue());
+                }
+            }
+        }
+        return null;
+    }
+
+    public byte[] getResponseCookie() {
+        return cookie != null && cookie.length != 0 ? cookie : null;
+    }
+
+    /**
+     * Returns {@code true} if the entries not returned by the refresh were
+     * reported as deleted, {@code false} if the unchanged entries were reported
+     * as present instead.
+     */
+    public boolean isRefreshDeletes() {
+        return refreshDeletes;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.sync.syncrepl;
+
+import java.io.IOException;
+
+import javax.naming.ldap.BasicControl;
+
+import com.sun.jndi.ldap.BerEncoder;
+
+/**
+ * The LDAP Content Synchronization request control (RFC 4533).
+ *
+ * <pre>
+ * syncRequestValue ::= SEQUENCE {
+ *     mode ENUMERATED { refreshOnly (1), refreshAndPersist (3) },
+ *     cookie syncCookie OPTIONAL,
+ *     reloadHint BOOLEAN DEFAULT FALSE
+ * }
+ * </pre>
+ */
+public class SyncRequestControl extends BasicControl {
+
+    public static final String OID = "1.3.6.1.4.1.4203.1.9.1.1";
+
+    public static final int REFRESH_ONLY = 1;
+
+    public static final int REFRESH_AND_PERSIST = 3;
+
+    private static final int ASN_ENUMERATED = 0x0A;
+
+    private static final long serialVersionUID = 1L;
+
+    public SyncRequestControl(int mode, byte[] cookie) throws IOException {
+        super(OID, true, null);
+        super.value = setEncodedValue(mode, cookie);
+    }
+
+    private byte[] setEncodedValue(int mode, byte[] cookie) throws IOException {
+        final BerEncoder ber = new BerEncoder(64);
+        ber.beginSeq(48);
+        ber.encodeInt(mode, ASN_ENUMERATED);
+        if (cookie != null && cookie.length > 0) {
+            ber.encodeOctetString(cookie, 4);
+        }
+        ber.endSeq();
+        return ber.getTrimmedBuf();
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.sync.syncrepl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
+
+import com.sun.jndi.ldap.Ber;
+import com.sun.jndi.ldap.BerDecoder;
+
+/**
+ * The LDAP Content Synchronization state control (RFC 4533) attached to each
+ * entry returned by a synchronization search.
+ *
+ * <pre>
+ * syncStateValue ::= SEQUENCE {
+ *     state ENUMERATED { present (0), add (1), modify (2), delete (3) },
+ *     entryUUID syncUUID,
+ *     cookie syncCookie OPTIONAL
+ * }
+ * </pre>
+ */
+public class SyncStateControl extends BasicControl {
+
+    public static final String OID = "1.3.6.1.4.1.4203.1.9.1.2";
+
+    public static final int PRESENT = 0;
+
+    public static final int ADD = 1;
+
+    public static final int MODIFY = 2;
+
+    public static final int DELETE = 3;
+
+    private static final long serialVersionUID = 1L;
+
+    private int state;
+    private byte[] entryUUID;
+    private byte[] cookie;
+
+    public SyncStateControl(String id, boolean criticality, byte[] value) throws IOException {
+        super(id, criticality, value);
+        if ((value != null) && (value.length > 0)) {
+            BerDecoder decoder = new BerDecoder(value, 0, value.length);
+            decoder.parseSeq(null);
+            state = decoder.parseEnumeration();
+            entryUUID = decoder.parseOctetString(Ber.ASN_OCTET_STR, null);
+            if (decoder.bytesLeft() > 0) {
+                cookie = decoder.parseOctetString(Ber.ASN_OCTET_STR, null);
+            }
+        }
+    }
+
+    /**
+     * Returns the sync state control among the given entry controls, or
+     * {@code null} if there is none.
+     */
+    public static SyncStateControl find(Control[] controls) throws IOException {
+        if (controls != null) {
+            for (Control control : controls) {
+                if (OID.equals(control.getID())) {
+                    return new SyncStateControl(control.getID(), control.isCritical(), control.getEncodedValue());
+                }
+            }
+        }
+        return null;
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    /**
+     * Returns the entryUUID in its usual string form, or {@code null} if the
+     * server did not send a valid 16 byte UUID.
+     */
+    public String getEntryUUID() {
+        return toUUIDString(entryUUID);
+    }
+
+    public byte[] getResponseCookie() {
+        return cookie != null && cookie.length != 0 ? cookie : null;
+    }
+
+    static String toUUIDString(byte[] uuid) {
+        if (uuid == null || uuid.length != 16) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(uuid);
+        return new UUID(buffer.getLong(), buffer.getLong()).toString();
+    }
+}
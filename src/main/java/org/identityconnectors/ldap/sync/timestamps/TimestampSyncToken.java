@@ -0,0 +1,211 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.sync.timestamps;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.SyncToken;
+
+/**
+ * The token of the timestamps sync: the highest modify or create timestamp
+ * the server returned, followed by short identifiers of the entries already
+ * delivered at the end of the synchronized range, for instance
+ * {@code 20150102030405Z#1a2b3c,4d5e6f}. A plain timestamp, as returned by
+ * earlier versions, is a token without identifiers.
+ * <p>
+ * The next sync reads the entries from that timestamp (or from an overlap
+ * window before it) again, and skips those it has already delivered.
+ */
+public final class TimestampSyncToken {
+
+    private static final char IDS_SEPARATOR = '#';
+    private static final char ID_SEPARATOR = ',';
+
+    /**
+     * The maximum number of identifiers kept in a token. When more entries
+     * share the end of the range, the oldest are delivered again.
+     */
+    static final int MAX_IDS = 1000;
+
+    private final String timestamp;
+    private final Set<String> ids;
+
+    TimestampSyncToken(String timestamp, Set<String> ids) {
+        this.timestamp = timestamp;
+        this.ids = ids;
+    }
+
+    public static TimestampSyncToken decode(Object value) {
+        String str = value.toString();
+        int index = str.indexOf(IDS_SEPARATOR);
+        if (index < 0) {
+            return new TimestampSyncToken(str, Collections.<String>emptySet());
+        }
+        Set<String> ids = new HashSet<String>();
+        int start = index + 1;
+        while (start < str.length()) {
+            int end = str.indexOf(ID_SEPARATOR, start);
+            if (end < 0) {
+                end = str.length();
+            }
+            if (end > start) {
+                ids.add(str.substring(start, end));
+            }
+            start = end + 1;
+        }
+        return new TimestampSyncToken(str.substring(0, index), ids);
+    }
+
+    public String encode() {
+        if (ids.isEmpty()) {
+            return timestamp;
+        }
+        StringBuilder builder = new StringBuilder(timestamp.length() + ids.size() * 12);
+        builder.append(timestamp).append(IDS_SEPARATOR);
+        for (Iterator<String> iter = ids.iterator(); iter.hasNext();) {
+            builder.append(iter.next());
+            if (iter.hasNext()) {
+                builder.append(ID_SEPARATOR);
+            }
+        }
+        return builder.toString();
+    }
+
+    public SyncToken toSyncToken() {
+        return new SyncToken(encode());
+    }
+
+    /**
+     * Returns the highest timestamp the server returned.
+     */
+    public String getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Returns {@code true} if the entry with the given uid was delivered with
+     * the given timestamp.
+     */
+    public boolean isDelivered(String uid, String entryTimestamp) {
+        return !ids.isEmpty() && ids.contains(createId(uid, entryTimestamp));
+    }
+
+    int size() {
+        return ids.size();
+    }
+
+    /**
+     * Returns the short identifier of an entry at a given timestamp: a 64 bit
+     * hash of both, so that the entry is delivered again once modified.
+     */
+    static String createId(String uid, String entryTimestamp) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest((uid + IDS_SEPARATOR + entryTimestamp).getBytes("UTF-8"));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xff);
+            }
+            return Long.toString(hash, Character.MAX_RADIX);
+        } catch (NoSuchAlgorithmException e) {
+            throw new ConnectorException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new ConnectorException(e);
+        }
+    }
+
+    /**
+     * Builds the token of a sync from the entries it read, delivered or
+     * skipped. Only the entries within the overlap window of the highest
+     * timestamp are kept, since the next sync starts there.
+     */
+    static final class Builder {
+
+        private final long overlapMillis;
+        private final TreeMap<Long, Set<String>> ids = new TreeMap<Long, Set<String>>();
+        private String timestamp;
+        private long millis;
+        private int size;
+
+        /**
+         * @param timestamp the highest timestamp known before the sync.
+         * @param millis the time of that timestamp.
+         */
+        Builder(String timestamp, long millis, long overlapMillis) {
+            this.timestamp = timestamp;
+            this.millis = millis;
+            this.overlapMillis = overlapMillis;
+        }
+
+        /**
+         * Records an entry read with the given timestamp.
+         */
+        void add(String uid, String entryTimestamp, long entryMillis) {
+            if (entryMillis > millis) {
+                millis = entryMillis;
+                timestamp = entryTimestamp;
+                // The next sync does not read the entries before the overlap window.
+                Map<Long, Set<String>> old = ids.headMap(millis - overlapMillis);
+                for (Set<String> values : old.values()) {
+                    size -= values.size();
+                }
+                old.clear();
+            } else if (entryMillis < millis - overlapMillis) {
+                return;
+            }
+            if (size >= MAX_IDS) {
+                // Make room by forgetting the oldest entries, which are then
+                // delivered again, or do not record this one if it is among them.
+                if (ids.firstKey() >= entryMillis) {
+                    return;
+                }
+                size -= ids.remove(ids.firstKey()).size();
+            }
+            Set<String> values = ids.get(entryMillis);
+            if (values == null) {
+                values = new HashSet<String>();
+                ids.put(entryMillis, values);
+            }
+            if (values.add(createId(uid, entryTimestamp))) {
+                size++;
+            }
+        }
+
+        TimestampSyncToken build() {
+            Set<String> all = new HashSet<String>(size);
+            for (Set<String> values : ids.values()) {
+                all.addAll(values);
+            }
+            return new TimestampSyncToken(timestamp, all);
+        }
+    }
+}
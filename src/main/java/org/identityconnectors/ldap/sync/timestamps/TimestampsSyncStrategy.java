@@ -23,54 +23,51 @@
  */
 package org.identityconnectors.ldap.sync.timestamps;
 
-import static org.identityconnectors.ldap.ADLdapUtil.fetchGroupMembersByRange;
-import static org.identityconnectors.ldap.ADLdapUtil.objectGUIDtoString;
-import static org.identityconnectors.ldap.LdapUtil.buildMemberIdAttribute;
-import static org.identityconnectors.ldap.LdapConstants.OBJECTCLASS_ATTR;
-import static org.identityconnectors.ldap.LdapUtil.getObjectClassFilter;
-import static org.identityconnectors.ldap.LdapUtil.guessObjectClass;
+import static org.identityconnectors.ldap.LdapUtil.createSyncObject;
+import static org.identityconnectors.ldap.LdapUtil.getStringAttrValue;
+import static org.identityconnectors.ldap.LdapUtil.getSynchronizationFilter;
 
+import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.TimeZone;
 
-import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.PartialResultException;
 import javax.naming.directory.Attributes;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
 import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.SortControl;
 
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.framework.common.exceptions.ConnectorException;
-import org.identityconnectors.framework.common.objects.Attribute;
-import org.identityconnectors.framework.common.objects.AttributeBuilder;
-import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
 import org.identityconnectors.framework.common.objects.ObjectClass;
 import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.SortKey;
 import org.identityconnectors.framework.common.objects.SyncDeltaBuilder;
 import org.identityconnectors.framework.common.objects.SyncDeltaType;
 import org.identityconnectors.framework.common.objects.SyncResultsHandler;
 import org.identityconnectors.framework.common.objects.SyncToken;
 import org.identityconnectors.framework.common.objects.Uid;
 import org.identityconnectors.framework.spi.SyncTokenResultsHandler;
-import org.identityconnectors.ldap.ADGroupType;
 import org.identityconnectors.ldap.ADLdapUtil;
 import org.identityconnectors.ldap.ADUserAccountControl;
 import org.identityconnectors.ldap.LdapConnection;
 import org.identityconnectors.ldap.LdapConstants.ServerType;
-import org.identityconnectors.ldap.LdapConstants;
 import org.identityconnectors.ldap.LdapEntry;
+import org.identityconnectors.ldap.search.AdaptiveBlockSize;
 import org.identityconnectors.ldap.search.DefaultSearchStrategy;
 import org.identityconnectors.ldap.search.LdapInternalSearch;
 import org.identityconnectors.ldap.search.LdapSearchStrategy;
 import org.identityconnectors.ldap.search.LdapSearchResultsHandler;
 import org.identityconnectors.ldap.search.SimplePagedSearchStrategy;
 import org.identityconnectors.ldap.sync.LdapSyncStrategy;
+import org.identityconnectors.ldap.sync.SyncCheckpoint;
+import org.identityconnectors.ldap.sync.SyncDigestStore;
 
 /**
  * An implementation of the sync operation based on the generic timestamps
@@ -83,15 +80,33 @@ public class TimestampsSyncStrategy implements LdapSyncStrategy {
     private final LdapConnection conn;
     private final ObjectClass oclass;
     private final ServerType server;
+    private final SimpleDateFormat timestampFormat;
+    private static final String CURRENT_TIME_ATTR = "currentTime";
     private static final Log logger = Log.getLog(TimestampsSyncStrategy.class);
 
     public TimestampsSyncStrategy(LdapConnection conn, ObjectClass oclass) {
         this.conn = conn;
         this.oclass = oclass;
         this.server = conn.getServerType();
+        this.timestampFormat = new SimpleDateFormat("yyyyMMddHHmmss");
+        this.timestampFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+        this.timestampFormat.setLenient(false);
     }
 
+    /**
+     * Returns the current time of the server if its root DSE tells it, as
+     * Active Directory does, or the current time of the connector otherwise.
+     */
     public SyncToken getLatestSyncToken() {
+        try {
+            Attributes rootAttrs = conn.getInitialContext().getAttributes("", new String[]{CURRENT_TIME_ATTR});
+            String currentTime = getStringAttrValue(rootAttrs, CURRENT_TIME_ATTR);
+            if (currentTime != null && parseTimestamp(currentTime) >= 0) {
+                return new SyncToken(currentTime);
+            }
+        } catch (NamingException e) {
+            logger.ok(e, "Failed to read the current time of the server");
+        }
         return new SyncToken(getNowTime());
     }
 
@@ -101,7 +116,19 @@ public class TimestampsSyncStrategy implements LdapSyncStrategy {
         // ldapsearch -h host -p 389 -b 'dc=example,dc=com' -S modifytimestamp -D 'cn=directory manager' -w xxx "createTimestamp>=20120424080554Z"
         // on other directories
 
-        final String now = getNowTime();
+        // The sync starts from the highest timestamp the previous sync saw, or
+        // from the overlap window before it, and skips the entries it has
+        // already delivered.
+        final TimestampSyncToken previous = TimestampSyncToken.decode(token != null ? token.getValue() : getLatestSyncToken().getValue());
+        final SyncToken startToken = previous.toSyncToken();
+        long overlapMillis = conn.getConfiguration().getTimestampSyncOverlap() * 1000L;
+        long previousMillis = parseTimestamp(previous.getTimestamp());
+        String fromTimestamp = previous.getTimestamp();
+        if (overlapMillis > 0 && previousMillis >= 0) {
+            fromTimestamp = formatTimestamp(previousMillis - overlapMillis);
+        }
+        final TimestampSyncToken.Builder next = new TimestampSyncToken.Builder(previous.getTimestamp(), previousMillis, overlapMillis);
+        final boolean[] stopped = { false };
         LdapSearchStrategy strategy;
         String[] attrsToGet = new String[]{"*"};
         SearchControls controls = LdapInternalSearch.createDefaultSearchControls();
@@ -120,192 +147,176 @@ public class TimestampsSyncStrategy implements LdapSyncStrategy {
                 conn.getConfiguration().getUidAttribute()}, attrsToGet));
         }
 
+        final SyncCheckpoint checkpoint = SyncCheckpoint.create(conn.getConfiguration(), handler);
+        // A checkpoint is only safe when the entries come in timestamp order.
+        final boolean[] sorted = { false };
+        final String[] lastTimestamp = { null };
+
         if (conn.getConfiguration().isUseBlocks() && conn.supportsControl(PagedResultsControl.OID)) {
-            strategy = new SimplePagedSearchStrategy(conn.getConfiguration().getBlockSize());
+            SortKey[] sortKeys = null;
+            if (checkpoint.isEnabled() && conn.supportsControl(SortControl.OID)) {
+                sortKeys = new SortKey[]{ new SortKey(modifyTimestamp, true) };
+                sorted[0] = true;
+            }
+            strategy = new SimplePagedSearchStrategy(
+                    AdaptiveBlockSize.create(conn.getConfiguration(), conn.getConfiguration().getBlockSize()), sortKeys,
+                    conn.getConfiguration().isPrefetchBlocks());
         } else {
             strategy = new DefaultSearchStrategy(false);
         }
 
         LdapInternalSearch search = new LdapInternalSearch(conn,
-                generateFilter(oclass, token),
+                generateFilter(oclass, fromTimestamp),
                 Arrays.asList(conn.getConfiguration().getBaseContextsToSynchronize()),
                 strategy, controls);
 
+        final SyncDigestStore digests = SyncDigestStore.open(conn.getConfiguration(), oclass, attrsToGet);
+        if (digests != null) {
+            // The digests must not fall behind a reported token.
+            checkpoint.setBeforeReport(new Runnable() {
+                public void run() {
+                    digests.save();
+                }
+            });
+        }
         try {
             search.execute(new LdapSearchResultsHandler() {
                 public boolean handle(String baseDN, SearchResult result) throws NamingException {
                     LdapEntry entry = LdapEntry.create(baseDN, result);
                     Attributes attrs = result.getAttributes();
                     Uid uid = conn.getSchemaMapping().createUid(oclass, entry);
-                    // build the object first
-                    ConnectorObjectBuilder cob = new ConnectorObjectBuilder();
-                    cob.setUid(uid);
-                    if (ObjectClass.ALL.equals(oclass)) {
-                        cob.setObjectClass(guessObjectClass(conn, attrs.get(OBJECTCLASS_ATTR)));
-                    } else {
-                        cob.setObjectClass(oclass);
+                    String timestamp = getStringAttrValue(attrs, modifyTimestamp);
+                    if (timestamp == null) {
+                        timestamp = getStringAttrValue(attrs, createTimestamp);
                     }
-                    cob.setName(result.getNameInNamespace());
+                    long millis = timestamp != null ? parseTimestamp(timestamp) : -1;
+                    if (millis >= 0 && previous.isDelivered(uid.getUidValue(), timestamp)) {
+                        next.add(uid.getUidValue(), timestamp, millis);
+                        return true;
+                    }
+                    ConnectorObject object = createSyncObject(conn, oclass, uid, result);
+                    long digest = 0;
+                    if (digests != null) {
+                        digest = digests.digest(object);
+                    }
+                    // Leave out the changes of attributes which are not synchronized.
+                    if (digests == null || !digests.isUnchanged(uid, digest)) {
+                        SyncDeltaBuilder syncDeltaBuilder = new SyncDeltaBuilder();
+                        // The entries do not come in timestamp order, the sync can only
+                        // resume from where it started.
+                        syncDeltaBuilder.setToken(startToken);
+                        syncDeltaBuilder.setDeltaType(SyncDeltaType.CREATE_OR_UPDATE);
+                        syncDeltaBuilder.setUid(uid);
+                        syncDeltaBuilder.setObject(object);
 
-                    // Let's process AD specifics...
-                    if (ADLdapUtil.isServerMSADFamily(server)) {
-                        if (ObjectClass.ACCOUNT.equals(oclass)) {
-                            if (ServerType.MSAD_LDS.equals(server)) {
-                                if (attrs.get(LdapConstants.MS_DS_USER_ACCOUNT_DISABLED) != null) {
-                                    cob.addAttribute(AttributeBuilder.buildEnabled(!Boolean.parseBoolean(attrs.get(LdapConstants.MS_DS_USER_ACCOUNT_DISABLED).get().toString())));
-                                } else if (attrs.get(LdapConstants.MS_DS_USER_PASSWORD_EXPIRED) != null) {
-                                    cob.addAttribute(AttributeBuilder.buildPasswordExpired(Boolean.parseBoolean(attrs.get(LdapConstants.MS_DS_USER_PASSWORD_EXPIRED).get().toString())));
-                                } else if (attrs.get(LdapConstants.MS_DS_USER_ACCOUNT_AUTOLOCKED) != null) {
-                                    cob.addAttribute(AttributeBuilder.buildLockOut(Boolean.parseBoolean(attrs.get(LdapConstants.MS_DS_USER_ACCOUNT_AUTOLOCKED).get().toString())));
-                                }
-                            } else {
-                                if (attrs.get(ADUserAccountControl.MS_USR_ACCT_CTRL_ATTR) != null) {
-                                    String uac = attrs.get(ADUserAccountControl.MS_USR_ACCT_CTRL_ATTR).get().toString();
-                                    cob.addAttribute(AttributeBuilder.buildEnabled(!ADUserAccountControl.isAccountDisabled(uac)));
-                                    cob.addAttribute(AttributeBuilder.build(ADUserAccountControl.DONT_EXPIRE_PASSWORD_NAME, ADUserAccountControl.isDontExpirePassword(uac)));
-                                    cob.addAttribute(AttributeBuilder.build(ADUserAccountControl.PASSWORD_NOTREQD_NAME, ADUserAccountControl.isPasswordNotReq(uac)));
-                                    cob.addAttribute(AttributeBuilder.build(ADUserAccountControl.SMARTCARD_REQUIRED_NAME, ADUserAccountControl.isSmartCardRequired(uac)));
-                                }
-                                if (attrs.get(ADUserAccountControl.MSDS_USR_ACCT_CTRL_ATTR) != null) {
-                                    String uac2 = attrs.get(ADUserAccountControl.MSDS_USR_ACCT_CTRL_ATTR).get().toString();
-                                    cob.addAttribute(AttributeBuilder.buildLockOut(ADUserAccountControl.isAccountLockOut(uac2)));
-                                    cob.addAttribute(AttributeBuilder.buildPasswordExpired(ADUserAccountControl.isPasswordExpired(uac2)));
-                                }
-                            }
-                            if (attrs.get(ADUserAccountControl.ACCOUNT_EXPIRES) != null) {
-                                cob.addAttribute(ADLdapUtil.convertMSEpochToISO8601(attrs.get(ADUserAccountControl.ACCOUNT_EXPIRES)));
-                                attrs.remove(ADUserAccountControl.ACCOUNT_EXPIRES);
-                            }
-                            if (attrs.get(ADUserAccountControl.PWD_LAST_SET) != null) {
-                                cob.addAttribute(ADLdapUtil.convertMSEpochToISO8601(attrs.get(ADUserAccountControl.PWD_LAST_SET)));
-                                attrs.remove(ADUserAccountControl.PWD_LAST_SET);
-                            }
-                            if (attrs.get(ADUserAccountControl.LAST_LOGON) != null) {
-                                cob.addAttribute(ADLdapUtil.convertMSEpochToISO8601(attrs.get(ADUserAccountControl.LAST_LOGON)));
-                                attrs.remove(ADUserAccountControl.LAST_LOGON);
-                            }
-                            if (attrs.get(ADUserAccountControl.LOCKOUT_TIME) != null) {
-                                cob.addAttribute(ADLdapUtil.convertMSEpochToISO8601(attrs.get(ADUserAccountControl.LOCKOUT_TIME)));
-                                attrs.remove(ADUserAccountControl.LOCKOUT_TIME);
-                            }
+                        if (!handler.handle(syncDeltaBuilder.build())) {
+                            stopped[0] = true;
+                            return false;
                         }
-                        if (ObjectClass.GROUP.equals(oclass)) {
-                            // Make sure we're not hitting AD large group issue
-                            // see: http://msdn.microsoft.com/en-us/library/ms817827.aspx
-                            if (attrs.get("member;range=0-1499") != null) {
-                                // we're in the limitation
-                                Attribute range = AttributeBuilder.build("member", fetchGroupMembersByRange(conn, result));
-                                cob.addAttribute(range);
-                                if (conn.getConfiguration().isGetGroupMemberId()) {
-                                    cob.addAttribute(buildMemberIdAttribute(conn, range));
-                                }
-                                attrs.remove("member;range=0-1499");
-                                attrs.remove("member");
-                            }
-                            try {
-                                if (attrs.get(ADGroupType.GROUPTYPE) != null) {
-                                    String groupType = attrs.get(ADGroupType.GROUPTYPE).get().toString();
-                                    cob.addAttribute(AttributeBuilder.build(ADGroupType.GROUP_SCOPE_NAME, ADGroupType.getScope(groupType)));
-                                    cob.addAttribute(AttributeBuilder.build(ADGroupType.GROUP_TYPE_NAME, ADGroupType.getType(groupType)));
-                                }
-                            } catch (NamingException e) {
-                                logger.warn(e, "Can't read groupType attribute: " + e.getExplanation());
-                            }
-                        }
-                        javax.naming.directory.Attribute guid = attrs.get(LdapConstants.MS_GUID_ATTR);
-                        if (guid != null) {
-                            cob.addAttribute(AttributeBuilder.build(LdapConstants.MS_GUID_ATTR, objectGUIDtoString(guid)));
-                            attrs.remove(LdapConstants.MS_GUID_ATTR);
+                        if (digests != null) {
+                            digests.delivered(uid, digest);
                         }
                     }
-                    // Set all Attributes
-                    NamingEnumeration<? extends javax.naming.directory.Attribute> attrsEnum = attrs.getAll();
-                    while (attrsEnum.hasMore()) {
-                        javax.naming.directory.Attribute attr = attrsEnum.next();
-                        String id = attr.getID();
-                        NamingEnumeration vals = attr.getAll();
-                        ArrayList values = new ArrayList();
-                        while (vals.hasMore()) {
-                            values.add(vals.next());
-                        }
-                        if (conn.getConfiguration().isGetGroupMemberId() && ObjectClass.GROUP.equals(oclass)
-                                && id.equalsIgnoreCase(conn.getConfiguration().getGroupMemberAttribute())) {
-                            cob.addAttribute(buildMemberIdAttribute(conn, attr));
+                    if (millis >= 0) {
+                        next.add(uid.getUidValue(), timestamp, millis);
+                    }
+                    if (sorted[0]) {
+                        if (timestamp == null || (lastTimestamp[0] != null && timestamp.compareTo(lastTimestamp[0]) < 0)) {
+                            // The sort control is not critical, the server did not sort the entries.
+                            logger.warn("The entries are not sorted by {0}, no sync checkpoint is reported", modifyTimestamp);
+                            sorted[0] = false;
+                        } else {
+                            lastTimestamp[0] = timestamp;
+                            // Every entry changed before this one has been handled, the
+                            // next sync reads the entries changed at the same time again.
+                            if (checkpoint.handled()) {
+                                checkpoint.report(next.build().toSyncToken());
+                            }
                         }
-                        cob.addAttribute(AttributeBuilder.build(id, values));
                     }
-
-                    SyncDeltaBuilder syncDeltaBuilder = new SyncDeltaBuilder();
-                    syncDeltaBuilder.setToken(new SyncToken(now));
-                    syncDeltaBuilder.setDeltaType(SyncDeltaType.CREATE_OR_UPDATE);
-                    syncDeltaBuilder.setUid(uid);
-                    syncDeltaBuilder.setObject(cob.build());
-
-                    return handler.handle(syncDeltaBuilder.build());
+                    return true;
                 }
             });
+            if (digests != null) {
+                digests.save();
+            }
             // ICF 1.4 now allows us to send the Token even if no entries were actually processed
-            ((SyncTokenResultsHandler) handler).handleResult(new SyncToken(now));
+            if (!stopped[0] || sorted[0]) {
+                ((SyncTokenResultsHandler) handler).handleResult(next.build().toSyncToken());
+            } else {
+                ((SyncTokenResultsHandler) handler).handleResult(startToken);
+            }
         } catch (ConnectorException e) {
             if (e.getCause() instanceof PartialResultException) {
                 logger.warn("PartialResultException has been caught");
             } else {
                 throw e;
             }
+        } finally {
+            if (digests != null) {
+                digests.close();
+            }
         }
     }
 
-    @SuppressWarnings("fallthrough")
     private String getNowTime() {
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMddHHmmss");
-        sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return formatTimestamp(System.currentTimeMillis());
+    }
 
+    @SuppressWarnings("fallthrough")
+    private String formatTimestamp(long millis) {
         switch (server) {
             case MSAD_GC:
             case MSAD:
             case MSAD_LDS:
-                return sdf.format(new Date()) + ".0Z";
+                return timestampFormat.format(new Date(millis)) + ".0Z";
             default:
-                return sdf.format(new Date()) + "Z";
+                return timestampFormat.format(new Date(millis)) + "Z";
         }
     }
 
-    private String generateFilter(ObjectClass oc, SyncToken token) {
-        StringBuilder filter;
-        filter = new StringBuilder();
-
-        if (token == null) {
-            token = this.getLatestSyncToken();
+    /**
+     * Returns the time of a generalized time value such as
+     * {@code 20150102030405.123Z}, or -1 if it is not one.
+     */
+    long parseTimestamp(String timestamp) {
+        if (timestamp.length() < 14) {
+            return -1;
+        }
+        Date date = timestampFormat.parse(timestamp.substring(0, 14), new ParsePosition(0));
+        if (date == null) {
+            return -1;
         }
-        if (ObjectClass.ACCOUNT.equals(oc)) {
-            filter.append(getObjectClassFilter(conn.getConfiguration().getAccountObjectClasses()));
-            if (conn.getConfiguration().getAccountSynchronizationFilter() != null) {
-                filter.append(conn.getConfiguration().getAccountSynchronizationFilter());
+        long millis = date.getTime();
+        if (timestamp.length() > 15 && (timestamp.charAt(14) == '.' || timestamp.charAt(14) == ',')) {
+            int fraction = 0;
+            int digits = 0;
+            for (int i = 15; i < timestamp.length() && Character.isDigit(timestamp.charAt(i)); i++) {
+                if (digits < 3) {
+                    fraction = fraction * 10 + Character.digit(timestamp.charAt(i), 10);
+                    digits++;
+                }
             }
-        } else if (ObjectClass.GROUP.equals(oc)) {
-            filter.append(getObjectClassFilter(conn.getConfiguration().getGroupObjectClasses()));
-            if (conn.getConfiguration().getGroupSynchronizationFilter() != null) {
-                filter.append(conn.getConfiguration().getGroupSynchronizationFilter());
+            for (; digits < 3; digits++) {
+                fraction *= 10;
             }
-        } else if (ObjectClass.ALL.equals(oc)) {
-            filter.append(getObjectClassFilter(conn.getConfiguration().getObjectClassesToSynchronize()));
-        } else { // we use the ObjectClass value as the filter...
-            filter.append("(objectClass=");
-            filter.append(oc.getObjectClassValue());
-            filter.append(")");
+            millis += fraction;
         }
+        return millis;
+    }
 
+    private String generateFilter(ObjectClass oc, String timestamp) {
+        StringBuilder filter = new StringBuilder("(&");
+        filter.append(getSynchronizationFilter(conn, oc));
         filter.append("(|(");
         filter.append(modifyTimestamp);
         filter.append(">=");
-        filter.append(token.getValue().toString());
+        filter.append(timestamp);
         filter.append(")(");
         filter.append(createTimestamp);
         filter.append(">=");
-        filter.append(token.getValue().toString());
-        filter.append("))");
-        filter.insert(0, "(&");
-        filter.append(")");
+        filter.append(timestamp);
+        filter.append(")))");
         logger.info("Using timestamp filter {0}", filter.toString());
         return filter.toString();
     }
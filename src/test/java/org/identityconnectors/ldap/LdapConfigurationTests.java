@@ -129,6 +129,14 @@ public class LdapConfigurationTests {
         config.validate();
     }
 
+    @Test(expectedExceptions = ConfigurationException.class)
+    public void testMaxBlockSizeNotLowerThanMinBlockSize() {
+        config.setAdaptiveBlockSize(true);
+        config.setMinBlockSize(50);
+        config.setMaxBlockSize(20);
+        config.validate();
+    }
+
     @Test(expectedExceptions = ConfigurationException.class)
     public void testVlvSortAttributeNotNull() {
         config.setUidAttribute(null);
@@ -309,6 +317,10 @@ public class LdapConfigurationTests {
         assertTrue(config.isUseBlocks());
         assertEquals(100, config.getBlockSize());
         assertFalse(config.isUsePagedResultControl());
+        assertFalse(config.isPrefetchBlocks());
+        assertFalse(config.isAdaptiveBlockSize());
+        assertEquals(10, config.getMinBlockSize());
+        assertEquals(1000, config.getMaxBlockSize());
         assertEquals("uid", config.getVlvSortAttribute());
         assertEquals("entryUUID", config.getUidAttribute());
         assertTrue(config.isReadSchema());
@@ -0,0 +1,127 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNotNull;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.EnumSet;
+
+import org.identityconnectors.common.IOUtil;
+import org.identityconnectors.framework.common.objects.AttributeInfo.Flags;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class NativeSchemaCacheTests {
+
+    private static final String KEY = "localhost:389/cn=schema";
+
+    private File directory;
+
+    @BeforeMethod
+    public void createDirectory() throws IOException {
+        directory = File.createTempFile("schema", "");
+        directory.delete();
+    }
+
+    @AfterMethod
+    public void deleteDirectory() {
+        IOUtil.delete(directory);
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        File file = new File(directory, "test.schema");
+        NativeSchemaCache.write(file, KEY, "20151019120000Z", createSchema());
+
+        ServerNativeSchema schema = NativeSchemaCache.read(file, KEY, "20151019120000Z");
+        assertNotNull(schema);
+        assertEquals(1, schema.getStructuralObjectClasses().size());
+        assertTrue(schema.getStructuralObjectClasses().contains("inetOrgPerson"));
+        assertTrue(schema.getEffectiveObjectClasses("inetOrgPerson").contains("TOP"));
+        assertTrue(schema.getRequiredAttributes("inetOrgPerson").contains("cn"));
+        assertTrue(schema.getOptionalAttributes("inetOrgPerson").contains("jpegPhoto"));
+        assertNotNull(schema.getAttributeDescription("jpegPhoto"));
+        assertEquals(byte[].class, schema.getAttributeDescription("jpegPhoto").getType());
+        assertEquals(EnumSet.of(Flags.MULTIVALUED, Flags.NOT_RETURNED_BY_DEFAULT), schema.getAttributeDescription("jpegPhoto").getFlags());
+        assertEquals(String.class, schema.getAttributeDescription("CN").getType());
+        assertTrue(schema.getAttributeDescription("cn").getFlags().isEmpty());
+    }
+
+    @Test
+    public void testChangedSchemaIsNotRead() throws IOException {
+        File file = new File(directory, "test.schema");
+        NativeSchemaCache.write(file, KEY, "20151019120000Z", createSchema());
+        assertNull(NativeSchemaCache.read(file, KEY, "20151020120000Z"));
+        assertNull(NativeSchemaCache.read(file, "otherhost:389/cn=schema", "20151019120000Z"));
+    }
+
+    @Test
+    public void testMissingFile() {
+        assertNull(NativeSchemaCache.read(new File(directory, "missing.schema"), KEY, "20151019120000Z"));
+    }
+
+    static ServerNativeSchema createSchema() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        // The structural classes.
+        writeStrings(out, "inetOrgPerson");
+        // The classes with their MUST, MAY and SUP.
+        out.writeInt(2);
+        out.writeUTF("inetOrgPerson");
+        writeStrings(out, "cn");
+        writeStrings(out, "jpegPhoto", "objectClass");
+        writeStrings(out, "top");
+        out.writeUTF("top");
+        writeStrings(out);
+        writeStrings(out, "objectClass");
+        writeStrings(out);
+        // The attributes with their binary syntax and flags.
+        out.writeInt(2);
+        out.writeUTF("cn");
+        out.writeBoolean(false);
+        writeStrings(out);
+        out.writeUTF("jpegPhoto");
+        out.writeBoolean(true);
+        writeStrings(out, "MULTIVALUED", "NOT_RETURNED_BY_DEFAULT");
+        out.close();
+        return ServerNativeSchema.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    private static void writeStrings(DataOutputStream out, String... values) throws IOException {
+        out.writeInt(values.length);
+        for (String value : values) {
+            out.writeUTF(value);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertSame;
+import static org.testng.AssertJUnit.assertTrue;
+import static org.testng.AssertJUnit.fail;
+
+import java.io.IOException;
+import java.util.Set;
+
+import org.testng.annotations.Test;
+
+public class NativeSchemaSnapshotTests {
+
+    @Test
+    public void testClosures() throws IOException {
+        ServerNativeSchema schema = NativeSchemaCacheTests.createSchema();
+        NativeSchemaSnapshot snapshot = new NativeSchemaSnapshot(schema, "20151019120000Z");
+        assertEquals(schema.getStructuralObjectClasses(), snapshot.getStructuralObjectClasses());
+        assertEquals(schema.getEffectiveObjectClasses("inetOrgPerson"), snapshot.getEffectiveObjectClasses("INETORGPERSON"));
+        assertEquals(schema.getRequiredAttributes("inetOrgPerson"), snapshot.getRequiredAttributes("inetOrgPerson"));
+        assertEquals(schema.getOptionalAttributes("inetOrgPerson"), snapshot.getOptionalAttributes("inetOrgPerson"));
+        // The attributes of the superior classes are included.
+        assertTrue(snapshot.getRequiredAttributes("inetOrgPerson").contains("objectClass"));
+        assertSame(schema.getAttributeDescription("jpegPhoto"), snapshot.getAttributeDescription("JPEGPHOTO"));
+    }
+
+    @Test
+    public void testUnknownObjectClass() throws IOException {
+        NativeSchemaSnapshot snapshot = new NativeSchemaSnapshot(NativeSchemaCacheTests.createSchema(), null);
+        Set<String> effective = snapshot.getEffectiveObjectClasses("unknownClass");
+        assertEquals(1, effective.size());
+        assertTrue(effective.contains("UNKNOWNCLASS"));
+        assertTrue(snapshot.getRequiredAttributes("unknownClass").isEmpty());
+        assertTrue(snapshot.getOptionalAttributes("unknownClass").isEmpty());
+        assertNull(snapshot.getAttributeDescription("unknownAttribute"));
+    }
+
+    @Test
+    public void testDroppedWhenNoConnectionUsesIt() throws IOException {
+        String key = "released.example.com:389/cn=schema|";
+        NativeSchemaSnapshot snapshot = new NativeSchemaSnapshot(NativeSchemaCacheTests.createSchema(), "20151019120000Z");
+        LdapConnection conn1 = new LdapConnection(new LdapConfiguration());
+        LdapConnection conn2 = new LdapConnection(new LdapConfiguration());
+        NativeSchemaSnapshot.register(key, snapshot, conn1);
+        assertSame(snapshot, NativeSchemaSnapshot.acquire(key, "20151019120000Z", conn2));
+        // Another stamp needs another snapshot.
+        assertNull(NativeSchemaSnapshot.acquire(key, "20151020120000Z", conn2));
+
+        NativeSchemaSnapshot.release(conn1);
+        assertSame(snapshot, NativeSchemaSnapshot.acquire(key, "20151019120000Z", conn2));
+        NativeSchemaSnapshot.release(conn2);
+        assertNull(NativeSchemaSnapshot.acquire(key, "20151019120000Z", conn1));
+    }
+
+    @Test
+    public void testImmutable() throws IOException {
+        NativeSchemaSnapshot snapshot = new NativeSchemaSnapshot(NativeSchemaCacheTests.createSchema(), null);
+        try {
+            snapshot.getEffectiveObjectClasses("inetOrgPerson").add("person");
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // Expected.
+        }
+        try {
+            snapshot.getOptionalAttributes("inetOrgPerson").clear();
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // Expected.
+        }
+    }
+}
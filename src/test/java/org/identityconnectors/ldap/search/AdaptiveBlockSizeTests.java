@@ -0,0 +1,106 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.search;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchResult;
+
+import org.testng.annotations.Test;
+
+public class AdaptiveBlockSizeTests {
+
+    @Test
+    public void testFixed() {
+        AdaptiveBlockSize blockSize = AdaptiveBlockSize.fixed(100);
+        assertFalse(blockSize.isAdaptive());
+        blockSize.record(100, 60000, 100000000);
+        assertEquals(100, blockSize.get());
+    }
+
+    @Test
+    public void testInitialSizeIsClamped() {
+        assertEquals(50, new AdaptiveBlockSize(100, 10, 50, 1000, 1000000).get());
+        assertEquals(10, new AdaptiveBlockSize(1, 10, 50, 1000, 1000000).get());
+    }
+
+    @Test
+    public void testGrowsWhenFast() {
+        AdaptiveBlockSize blockSize = new AdaptiveBlockSize(100, 10, 1000, 1000, 1000000);
+        assertTrue(blockSize.isAdaptive());
+        // 100 entries in 100 ms: 1000 would fit in the target time.
+        blockSize.record(100, 100, 10000);
+        assertEquals(550, blockSize.get());
+        blockSize.record(550, 550, 55000);
+        assertEquals(775, blockSize.get());
+    }
+
+    @Test
+    public void testShrinksWhenSlow() {
+        AdaptiveBlockSize blockSize = new AdaptiveBlockSize(100, 10, 1000, 1000, 1000000);
+        // 100 entries in 10 s: 10 would fit in the target time.
+        blockSize.record(100, 10000, 10000);
+        assertEquals(55, blockSize.get());
+    }
+
+    @Test
+    public void testShrinksWhenLarge() {
+        AdaptiveBlockSize blockSize = new AdaptiveBlockSize(100, 10, 1000, 1000, 1000000);
+        // 100 entries of 100 kB each: 10 would fit in the target bytes.
+        blockSize.record(100, 10, 10000000);
+        assertEquals(55, blockSize.get());
+    }
+
+    @Test
+    public void testStaysWithinBounds() {
+        AdaptiveBlockSize blockSize = new AdaptiveBlockSize(100, 10, 200, 1000, 1000000);
+        for (int i = 0; i < 10; i++) {
+            blockSize.record(blockSize.get(), 1, 1);
+        }
+        assertEquals(200, blockSize.get());
+        for (int i = 0; i < 10; i++) {
+            blockSize.record(blockSize.get(), 100000, 1);
+        }
+        assertEquals(10, blockSize.get());
+    }
+
+    @Test
+    public void testEmptyBlockIgnored() {
+        AdaptiveBlockSize blockSize = new AdaptiveBlockSize(100, 10, 1000, 1000, 1000000);
+        blockSize.record(0, 5000, 0);
+        assertEquals(100, blockSize.get());
+    }
+
+    @Test
+    public void testEstimateSize() {
+        BasicAttributes attrs = new BasicAttributes(true);
+        attrs.put("cn", "John");
+        attrs.put("jpegPhoto", new byte[100]);
+        SearchResult result = new SearchResult("uid=john", null, attrs);
+        assertEquals(8 + 2 + 4 + 9 + 100, AdaptiveBlockSize.estimateSize(result));
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.search;
+
+import static java.util.Collections.singletonList;
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertSame;
+import static org.testng.AssertJUnit.assertTrue;
+import static org.testng.AssertJUnit.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+
+import org.forgerock.opendj.ldap.controls.VirtualListViewRequestControl;
+import org.forgerock.opendj.ldap.controls.VirtualListViewResponseControl;
+import org.testng.annotations.Test;
+
+public class BlockPrefetcherTests {
+
+    private static final String BASE_DN = "dc=example,dc=com";
+
+    @Test
+    public void testPagesHandledInOrder() throws Exception {
+        FakeDirectory directory = new FakeDirectory(5);
+        CollectingHandler handler = new CollectingHandler(-1);
+        new SimplePagedSearchStrategy(2, null, true).doSearch(directory.createContext(), singletonList(BASE_DN), "(objectClass=*)",
+                new SearchControls(), handler);
+        assertEquals(directory.names, handler.names);
+        // The context is closed once its last search is over.
+        directory.awaitClose();
+        assertEquals(Arrays.asList("page 0", "page 2", "page 4", "close"), directory.requests);
+    }
+
+    @Test
+    public void testStopEarlyAbandonsPagedSearch() throws Exception {
+        FakeDirectory directory = new FakeDirectory(7);
+        CollectingHandler handler = new CollectingHandler(1);
+        new SimplePagedSearchStrategy(2, null, true).doSearch(directory.createContext(), singletonList(BASE_DN), "(objectClass=*)",
+                new SearchControls(), handler);
+        assertEquals(directory.names.subList(0, 1), handler.names);
+        directory.awaitClose();
+        // The page in flight is read, then the search is ended with a page size of 0.
+        assertEquals(Arrays.asList("page 0", "page 2", "abandon 4", "close"), directory.requests);
+    }
+
+    @Test
+    public void testStopOnLastPageSendsNoAbandon() throws Exception {
+        FakeDirectory directory = new FakeDirectory(5);
+        CollectingHandler handler = new CollectingHandler(5);
+        new SimplePagedSearchStrategy(2, null, true).doSearch(directory.createContext(), singletonList(BASE_DN), "(objectClass=*)",
+                new SearchControls(), handler);
+        assertEquals(directory.names, handler.names);
+        directory.awaitClose();
+        assertEquals(Arrays.asList("page 0", "page 2", "page 4", "close"), directory.requests);
+    }
+
+    @Test
+    public void testVlvBlocksHandledInOrder() throws Exception {
+        FakeDirectory directory = new FakeDirectory(5);
+        CollectingHandler handler = new CollectingHandler(-1);
+        new VlvIndexSearchStrategy("uid", 2, true).doSearch(directory.createContext(), singletonList(BASE_DN), "(objectClass=*)",
+                new SearchControls(), handler);
+        assertEquals(directory.names, handler.names);
+        directory.awaitClose();
+        assertEquals(Arrays.asList("offset 1", "offset 3", "offset 5", "close"), directory.requests);
+    }
+
+    @Test
+    public void testVlvStopEarly() throws Exception {
+        FakeDirectory directory = new FakeDirectory(7);
+        CollectingHandler handler = new CollectingHandler(1);
+        new VlvIndexSearchStrategy("uid", 2, true).doSearch(directory.createContext(), singletonList(BASE_DN), "(objectClass=*)",
+                new SearchControls(), handler);
+        assertEquals(directory.names.subList(0, 1), handler.names);
+        directory.awaitClose();
+        // The block requested before the handler stopped may be cancelled, but no other one is sent.
+        assertEquals("offset 1", directory.requests.get(0));
+        assertEquals("close", directory.requests.get(directory.requests.size() - 1));
+        assertFalse(directory.requests.contains("offset 5"));
+    }
+
+    @Test
+    public void testSearchFailureRethrown() throws Exception {
+        FakeDirectory directory = new FakeDirectory(5);
+        directory.failure = new NamingException("Search failed");
+        BlockPrefetcher prefetcher = new BlockPrefetcher(directory.createContext());
+        try {
+            prefetcher.submit(BASE_DN, "(objectClass=*)", new SearchControls(), null);
+            prefetcher.take();
+            fail();
+        } catch (NamingException e) {
+            assertSame(directory.failure, e);
+        } finally {
+            prefetcher.close();
+        }
+        directory.awaitClose();
+    }
+
+    @Test
+    public void testOneBlockAtATime() throws Exception {
+        FakeDirectory directory = new FakeDirectory(5);
+        BlockPrefetcher prefetcher = new BlockPrefetcher(directory.createContext());
+        try {
+            try {
+                prefetcher.take();
+                fail();
+            } catch (IllegalStateException e) {
+                // OK.
+            }
+            prefetcher.submit(BASE_DN, "(objectClass=*)", new SearchControls(), null);
+            try {
+                prefetcher.submit(BASE_DN, "(objectClass=*)", new SearchControls(), null);
+                fail();
+            } catch (IllegalStateException e) {
+                // OK.
+            }
+            assertEquals(directory.names, names(prefetcher.take().getResults()));
+        } finally {
+            prefetcher.close();
+        }
+        directory.awaitClose();
+    }
+
+    private static List<String> names(List<SearchResult> results) {
+        List<String> names = new ArrayList<String>();
+        for (SearchResult result : results) {
+            names.add(result.getName());
+        }
+        return names;
+    }
+
+    /**
+     * Collects the TLV values of an encoded control value, descending into
+     * constructed types. Only short lengths are supported.
+     */
+    private static void decode(byte[] value, int from, int to, List<Integer> integers, List<byte[]> octets) {
+        int pos = from;
+        while (pos < to) {
+            int tag = value[pos] & 0xff;
+            int length = value[pos + 1] & 0xff;
+            int start = pos + 2;
+            if ((tag & 0x20) != 0) {
+                decode(value, start, start + length, integers, octets);
+            } else if (tag == 0x02) {
+                int integer = 0;
+                for (int i = start; i < start + length; i++) {
+                    integer = (integer << 8) | (value[i] & 0xff);
+                }
+                integers.add(integer);
+            } else if (tag == 0x04) {
+                octets.add(Arrays.copyOfRange(value, start, start + length));
+            }
+            pos = start + length;
+        }
+    }
+
+    /**
+     * A directory of entries uid=user.0 to uid=user.N-1, which answers paged
+     * results and VLV searches, and records each of them. The paged results
+     * cookie is the index of the first entry of the page.
+     */
+    private static final class FakeDirectory implements InvocationHandler {
+
+        final List<String> names = new ArrayList<String>();
+        final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+        private final CountDownLatch closed = new CountDownLatch(1);
+        volatile NamingException failure;
+        private Control[] requestControls;
+        private Control[] responseControls;
+
+        FakeDirectory(int count) {
+            for (int i = 0; i < count; i++) {
+                names.add("uid=user." + i);
+            }
+        }
+
+        LdapContext createContext() {
+            return (LdapContext) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { LdapContext.class }, this);
+        }
+
+        void awaitClose() throws InterruptedException {
+            assertTrue("The context was not closed", closed.await(10, TimeUnit.SECONDS));
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("newInstance")) {
+                return proxy;
+            } else if (name.equals("setRequestControls")) {
+                requestControls = (Control[]) args[0];
+                return null;
+            } else if (name.equals("getResponseControls")) {
+                return responseControls;
+            } else if (name.equals("search") && args.length == 3 && args[1] instanceof String) {
+                return search();
+            } else if (name.equals("close")) {
+                requests.add("close");
+                closed.countDown();
+                return null;
+            } else if (name.equals("toString")) {
+                return "FakeDirectory";
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("equals")) {
+                return proxy == args[0];
+            }
+            throw new UnsupportedOperationException(name);
+        }
+
+        private NamingEnumeration<SearchResult> search() throws Exception {
+            if (failure != null) {
+                throw failure;
+            }
+            List<Integer> integers = new ArrayList<Integer>();
+            List<byte[]> octets = new ArrayList<byte[]>();
+            int from = 0;
+            int to = names.size();
+            responseControls = null;
+            if (requestControls != null) {
+                for (Control control : requestControls) {
+                    byte[] value = control.getEncodedValue();
+                    if (control.getID().equals(PagedResultsControl.OID)) {
+                        decode(value, 0, value.length, integers, octets);
+                        int size = integers.get(0);
+                        from = octets.get(0).length == 0 ? 0 : octets.get(0)[0];
+                        to = Math.min(from + size, names.size());
+                        requests.add((size == 0 ? "abandon " : "page ") + from);
+                        byte[] cookie = to < names.size() ? new byte[] { (byte) to } : new byte[0];
+                        responseControls = new Control[] { PagedSearchStrategyTests.createResponseControl(names.size(), cookie) };
+                    } else if (control.getID().equals(VirtualListViewRequestControl.OID)) {
+                        decode(value, 0, value.length, integers, octets);
+                        int after = integers.get(1);
+                        int offset = integers.get(2);
+                        from = offset - 1;
+                        to = Math.min(offset + after, names.size());
+                        requests.add("offset " + offset);
+                        byte[] response = { 0x30, 0x09, 0x02, 0x01, (byte) offset, 0x02, 0x01, (byte) names.size(), 0x0a, 0x01, 0x00 };
+                        responseControls = new Control[] { new BasicControl(VirtualListViewResponseControl.OID, false, response) };
+                    }
+                }
+            }
+            List<SearchResult> results = new ArrayList<SearchResult>();
+            for (String entryName : names.subList(from, to)) {
+                results.add(new SearchResult(entryName, null, new BasicAttributes(true)));
+            }
+            return new ListEnumeration(results);
+        }
+    }
+
+    private static final class ListEnumeration implements NamingEnumeration<SearchResult> {
+
+        private final Iterator<SearchResult> iterator;
+
+        ListEnumeration(List<SearchResult> results) {
+            this.iterator = results.iterator();
+        }
+
+        public boolean hasMore() {
+            return iterator.hasNext();
+        }
+
+        public SearchResult next() {
+            return iterator.next();
+        }
+
+        public boolean hasMoreElements() {
+            return iterator.hasNext();
+        }
+
+        public SearchResult nextElement() {
+            return iterator.next();
+        }
+
+        public void close() {
+        }
+    }
+
+    private static final class CollectingHandler implements LdapSearchResultsHandler {
+
+        private final int stopAt;
+        final List<String> names = new ArrayList<String>();
+
+        /**
+         * @param stopAt the number of the result after which to stop, or -1.
+         */
+        CollectingHandler(int stopAt) {
+            this.stopAt = stopAt;
+        }
+
+        public boolean handle(String baseDN, SearchResult result) {
+            names.add(result.getName());
+            return names.size() != stopAt;
+        }
+    }
+}
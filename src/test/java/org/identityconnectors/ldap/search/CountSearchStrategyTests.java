@@ -0,0 +1,136 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.search;
+
+import static java.util.Collections.singletonList;
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.util.List;
+
+import javax.naming.NamingException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+
+import org.identityconnectors.ldap.LdapConnection;
+import org.identityconnectors.ldap.LdapConnectorTestBase;
+import org.testng.annotations.Test;
+
+public class CountSearchStrategyTests extends LdapConnectorTestBase {
+
+    private static final String FILTER = "(objectClass=inetOrgPerson)";
+
+    @Override
+    protected boolean restartServerAfterEachTest() {
+        return false;
+    }
+
+    @Test
+    public void testCountWithPagedResults() {
+        LdapConnection conn = new LdapConnection(newConfiguration());
+        try {
+            int expected = countEntries(conn, BIG_COMPANY_DN);
+            assertTrue(expected > 0);
+            assertEquals(expected, count(conn, new CountSearchStrategy(null, true), BIG_COMPANY_DN));
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testCountWithoutControls() {
+        LdapConnection conn = new LdapConnection(newConfiguration());
+        try {
+            int expected = countEntries(conn, BIG_COMPANY_DN);
+            assertEquals(expected, count(conn, new CountSearchStrategy(null, false), BIG_COMPANY_DN));
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testCountWithVlv() {
+        LdapConnection conn = new LdapConnection(newConfiguration());
+        try {
+            int expected = countEntries(conn, BIG_COMPANY_DN);
+            assertEquals(expected, count(conn, new CountSearchStrategy("uid", true), BIG_COMPANY_DN));
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testCountEmptyResult() {
+        LdapConnection conn = new LdapConnection(newConfiguration());
+        try {
+            CountSearchStrategy strategy = new CountSearchStrategy(null, true);
+            new LdapInternalSearch(conn, "(uid=nobody)", singletonList(BIG_COMPANY_DN), strategy, createControls()).execute(null);
+            assertEquals(0, strategy.getCount());
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testHandlerNotCalled() {
+        LdapConnection conn = new LdapConnection(newConfiguration());
+        try {
+            final int[] handled = { 0 };
+            CountSearchStrategy strategy = new CountSearchStrategy(null, true);
+            new LdapInternalSearch(conn, FILTER, singletonList(ACME_DN), strategy, createControls()).execute(new LdapSearchResultsHandler() {
+                public boolean handle(String baseDN, SearchResult searchResult) throws NamingException {
+                    handled[0]++;
+                    return true;
+                }
+            });
+            assertTrue(strategy.getCount() > 0);
+            assertEquals(0, handled[0]);
+        } finally {
+            conn.close();
+        }
+    }
+
+    private static int count(LdapConnection conn, CountSearchStrategy strategy, String baseDN) {
+        new LdapInternalSearch(conn, FILTER, singletonList(baseDN), strategy, createControls()).execute(null);
+        return strategy.getCount();
+    }
+
+    private static int countEntries(LdapConnection conn, String baseDN) {
+        final int[] count = { 0 };
+        List<String> baseDNs = singletonList(baseDN);
+        new LdapInternalSearch(conn, FILTER, baseDNs, new DefaultSearchStrategy(false), createControls()).execute(new LdapSearchResultsHandler() {
+            public boolean handle(String baseDN, SearchResult searchResult) throws NamingException {
+                count[0]++;
+                return true;
+            }
+        });
+        return count[0];
+    }
+
+    private static SearchControls createControls() {
+        SearchControls controls = LdapInternalSearch.createDefaultSearchControls();
+        controls.setReturningAttributes(new String[] { CountSearchStrategy.NO_ATTRIBUTES });
+        return controls;
+    }
+}
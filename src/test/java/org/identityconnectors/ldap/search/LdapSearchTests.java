@@ -28,6 +28,7 @@ import static org.testng.AssertJUnit.assertFalse;
 import static org.testng.AssertJUnit.assertEquals;
 import static org.testng.AssertJUnit.assertNotNull;
 import static org.testng.AssertJUnit.assertTrue;
+import static org.testng.AssertJUnit.fail;
 import org.testng.annotations.Test;
 import static java.util.Collections.singleton;
 import static org.identityconnectors.common.CollectionUtil.newSet;
@@ -57,6 +58,7 @@ import org.identityconnectors.framework.common.objects.filter.Filter;
 import org.identityconnectors.framework.common.objects.filter.FilterBuilder;
 import org.identityconnectors.ldap.LdapConfiguration;
 import org.identityconnectors.ldap.LdapConnection;
+import org.identityconnectors.ldap.LdapConstants;
 import org.identityconnectors.ldap.LdapConnectorTestBase;
 import org.identityconnectors.test.common.TestHelpers;
 import org.identityconnectors.test.common.ToListResultsHandler;
@@ -393,6 +395,64 @@ public class LdapSearchTests extends LdapConnectorTestBase {
         });
     }
 
+    @Test
+    public void testSingleEntryDNIsNormalizedByServer() {
+        LdapConnection conn = new LdapConnection(newConfiguration());
+        LdapFilter filter = LdapFilter.forNativeFilter("(uid=" + BUGS_BUNNY_UID.toUpperCase() + ")");
+        LdapSearch search = new LdapSearch(conn, ObjectClass.ACCOUNT, filter, null, new OperationOptionsBuilder().build());
+        assertEquals(BUGS_BUNNY_DN, search.getSingleEntryDN());
+
+        filter = LdapFilter.forNativeFilter("(uid=nobody)");
+        search = new LdapSearch(conn, ObjectClass.ACCOUNT, filter, null, new OperationOptionsBuilder().build());
+        assertNull(search.getSingleEntryDN());
+    }
+
+    @Test
+    public void testFindEntryDNIsNormalizedByServer() {
+        LdapConfiguration config = newConfiguration();
+        config.setUidAttribute("uid");
+        LdapConnection conn = new LdapConnection(config);
+        Uid uid = new Uid(BUGS_BUNNY_UID.toUpperCase());
+        assertEquals(BUGS_BUNNY_DN, LdapSearches.findEntryDN(conn, ObjectClass.ACCOUNT, uid));
+        assertEquals(BUGS_BUNNY_DN, LdapSearches.getEntryDN(conn, ObjectClass.ACCOUNT, uid));
+
+        config = newConfiguration();
+        config.setUidAttribute("entryDN");
+        conn = new LdapConnection(config);
+        assertEquals(BUGS_BUNNY_DN, LdapSearches.getEntryDN(conn, ObjectClass.ACCOUNT, new Uid(BUGS_BUNNY_DN.toUpperCase())));
+    }
+
+    @Test
+    public void testCreateUidIsNormalizedByServer() {
+        LdapConfiguration config = newConfiguration();
+        config.setUidAttribute("entryDN");
+        LdapConnection conn = new LdapConnection(config);
+        Uid uid = conn.getSchemaMapping().createUid(ObjectClass.ACCOUNT, BUGS_BUNNY_DN.toUpperCase());
+        assertEquals(BUGS_BUNNY_DN, uid.getUidValue());
+
+        config = newConfiguration();
+        config.setUidAttribute("uid");
+        conn = new LdapConnection(config);
+        uid = conn.getSchemaMapping().createUid(ObjectClass.ACCOUNT, BUGS_BUNNY_DN.toUpperCase());
+        assertEquals(BUGS_BUNNY_UID, uid.getUidValue());
+    }
+
+    @Test
+    public void testCountOnlyNeedsSearchResultsHandler() {
+        LdapConnection conn = new LdapConnection(newConfiguration());
+        OperationOptionsBuilder builder = new OperationOptionsBuilder();
+        builder.setOption(LdapConstants.COUNT_ONLY_NAME, true);
+        LdapSearch search = new LdapSearch(conn, ObjectClass.ACCOUNT, null, new FirstOnlyResultsHandler(), builder.build());
+        try {
+            search.execute();
+            fail();
+        } catch (ConnectorException e) {
+            // OK.
+        } finally {
+            conn.close();
+        }
+    }
+
     private static ConnectorObject getObjectByName(List<ConnectorObject> objects, String name) {
         for (ConnectorObject object : objects) {
             if (name.equals(object.getName().getNameValue())) {
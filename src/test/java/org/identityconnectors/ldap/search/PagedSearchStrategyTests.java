@@ -0,0 +1,126 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.search;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.ldap.search.PagedSearchStrategy.ResultsCookie;
+import org.testng.annotations.Test;
+
+public class PagedSearchStrategyTests {
+
+    private static final byte[] COOKIE = { 1, 2, 3 };
+
+    @Test
+    public void testRemainingResultsOnLastPage() throws IOException {
+        assertEquals(0, PagedSearchStrategy.getRemainingResults(createResponseControl(100, new byte[0]), null, true, 100));
+        assertEquals(0, PagedSearchStrategy.getRemainingResults(null, new byte[0], true, 100));
+        // More base contexts to go, whose size is unknown.
+        assertEquals(-1, PagedSearchStrategy.getRemainingResults(null, null, false, 100));
+    }
+
+    @Test
+    public void testRemainingResultsFromEstimate() throws IOException {
+        assertEquals(70, PagedSearchStrategy.getRemainingResults(createResponseControl(100, COOKIE), COOKIE, true, 30));
+        // The estimate may be below the entries already read.
+        assertEquals(0, PagedSearchStrategy.getRemainingResults(createResponseControl(100, COOKIE), COOKIE, true, 120));
+    }
+
+    @Test
+    public void testRemainingResultsUnknown() throws IOException {
+        // No estimate from the server.
+        assertEquals(-1, PagedSearchStrategy.getRemainingResults(createResponseControl(0, COOKIE), COOKIE, true, 30));
+        assertEquals(-1, PagedSearchStrategy.getRemainingResults(null, COOKIE, true, 30));
+        // The estimate is only for the current base context.
+        assertEquals(-1, PagedSearchStrategy.getRemainingResults(createResponseControl(100, COOKIE), COOKIE, false, 30));
+    }
+
+    @Test
+    public void testCookie() {
+        String encoded = new ResultsCookie(COOKIE, 1, 42).encode();
+        ResultsCookie cookie = ResultsCookie.parse(encoded);
+        assertTrue(Arrays.equals(COOKIE, cookie.getCookie()));
+        assertEquals(1, cookie.getContext());
+        assertEquals(42, cookie.getConsumed());
+        assertEquals(encoded, cookie.encode());
+    }
+
+    @Test
+    public void testCookieOfNextContext() {
+        String encoded = new ResultsCookie(null, 2, 0).encode();
+        assertTrue(encoded.startsWith(":"));
+        ResultsCookie cookie = ResultsCookie.parse(encoded);
+        assertEquals(2, cookie.getContext());
+        assertEquals(0, cookie.getConsumed());
+    }
+
+    @Test
+    public void testCookieOfOlderVersions() {
+        String encoded = new ResultsCookie(COOKIE, 1, 42).encode();
+        ResultsCookie cookie = ResultsCookie.parse(encoded.substring(0, encoded.lastIndexOf(':')));
+        assertTrue(Arrays.equals(COOKIE, cookie.getCookie()));
+        assertEquals(1, cookie.getContext());
+        assertEquals(0, cookie.getConsumed());
+    }
+
+    @Test(expectedExceptions = ConnectorException.class)
+    public void testCookieWithoutContext() {
+        ResultsCookie.parse("AQID");
+    }
+
+    @Test(expectedExceptions = ConnectorException.class)
+    public void testCookieWithInvalidContext() {
+        ResultsCookie.parse("AQID:x:0");
+    }
+
+    @Test(expectedExceptions = ConnectorException.class)
+    public void testCookieWithNegativeCount() {
+        ResultsCookie.parse("AQID:0:-1");
+    }
+
+    /**
+     * Encodes the value of a paged results response control, for small sizes
+     * and cookies.
+     */
+    static PagedResultsResponseControl createResponseControl(int size, byte[] cookie) throws IOException {
+        byte[] value = new byte[7 + cookie.length];
+        value[0] = 0x30;
+        value[1] = (byte) (5 + cookie.length);
+        value[2] = 0x02;
+        value[3] = 0x01;
+        value[4] = (byte) size;
+        value[5] = 0x04;
+        value[6] = (byte) cookie.length;
+        System.arraycopy(cookie, 0, value, 7, cookie.length);
+        return new PagedResultsResponseControl(PagedResultsControl.OID, false, value);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.search;
+
+import static java.util.Collections.singletonList;
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+import static org.testng.AssertJUnit.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.naming.NamingException;
+import javax.naming.SizeLimitExceededException;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.LdapContext;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.testng.annotations.Test;
+
+public class SearchPartitionerTests {
+
+    private static final String BASE_DN = "dc=example,dc=com";
+
+    @Test
+    public void testAndFilter() {
+        assertEquals("(&(objectClass=person)(uid=a*))", SearchPartitioner.andFilter("(objectClass=person)", "(uid=a*)"));
+        assertEquals("(&(objectClass=person)(uid=a*))", SearchPartitioner.andFilter("objectClass=person", "(uid=a*)"));
+    }
+
+    @Test
+    public void testPrefixFilter() {
+        assertEquals("(uid=ab*)", SearchPartitioner.prefixFilter("uid", "ab"));
+    }
+
+    @Test
+    public void testRemainderFilterWithoutPrefix() {
+        String filter = SearchPartitioner.remainderFilter("uid", "");
+        assertTrue(filter.startsWith("(!(|(uid=a*)(uid=b*)"));
+        assertTrue(filter.endsWith("(uid=9*)))"));
+    }
+
+    @Test
+    public void testRemainderFilterWithPrefix() {
+        String filter = SearchPartitioner.remainderFilter("uid", "j");
+        assertTrue(filter.startsWith("(&(uid=j*)(!(|(uid=ja*)(uid=jb*)"));
+        assertTrue(filter.endsWith("(uid=j9*))))"));
+        int open = 0;
+        for (char c : filter.toCharArray()) {
+            if (c == '(') {
+                open++;
+            } else if (c == ')') {
+                open--;
+            }
+        }
+        assertEquals(0, open);
+    }
+
+    @Test
+    public void testEntryMatchedByTwoPartitionsReturnedOnce() throws Exception {
+        FakeStrategy strategy = new FakeStrategy();
+        // The search fails after returning u1.
+        strategy.results.put("(objectClass=*)", Arrays.asList("uid=u1", null));
+        // u2 has two values of cn, starting with a and b.
+        strategy.results.put("(&(objectClass=*)(cn=a*))", Arrays.asList("uid=u1", "uid=u2"));
+        strategy.results.put("(&(objectClass=*)(cn=b*))", Arrays.asList("uid=u2", "uid=u3"));
+        CollectingHandler handler = new CollectingHandler();
+        new SearchPartitioner(null, strategy, "cn", null, handler).search(singletonList(BASE_DN), "(objectClass=*)", new SearchControls());
+        assertEquals(Arrays.asList("uid=u1," + BASE_DN, "uid=u2," + BASE_DN, "uid=u3," + BASE_DN), handler.dns);
+    }
+
+    @Test
+    public void testChildrenListingExceedingLimit() throws Exception {
+        FakeStrategy strategy = new FakeStrategy();
+        strategy.results.put("(objectClass=*)", Arrays.asList("uid=u1", null));
+        FakeStrategy childrenStrategy = new FakeStrategy();
+        childrenStrategy.results.put("(objectClass=*)", Arrays.asList("ou=a", null));
+        SearchControls controls = new SearchControls();
+        controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        try {
+            new SearchPartitioner(null, strategy, null, childrenStrategy, new CollectingHandler()).search(singletonList(BASE_DN), "(objectClass=*)", controls);
+            fail();
+        } catch (ConnectorException e) {
+            // OK.
+        }
+    }
+
+    /**
+     * Returns the results listed for each filter, relative to the base DN. A
+     * null result stands for a size limit exceeded.
+     */
+    private static final class FakeStrategy extends LdapSearchStrategy {
+
+        final Map<String, List<String>> results = new HashMap<String, List<String>>();
+
+        @Override
+        public void doSearch(LdapContext initCtx, List<String> baseDNs, String query, SearchControls searchControls, LdapSearchResultsHandler handler)
+                throws NamingException {
+            List<String> names = results.get(query);
+            if (names == null) {
+                return;
+            }
+            for (String name : names) {
+                if (name == null) {
+                    throw new SizeLimitExceededException();
+                }
+                if (!handler.handle(baseDNs.get(0), new SearchResult(name, null, new BasicAttributes(true)))) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static final class CollectingHandler implements LdapSearchResultsHandler {
+
+        final List<String> dns = new ArrayList<String>();
+
+        public boolean handle(String baseDN, SearchResult result) {
+            dns.add(result.getName() + "," + baseDN);
+            return true;
+        }
+    }
+}
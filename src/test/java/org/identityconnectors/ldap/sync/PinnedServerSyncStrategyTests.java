@@ -0,0 +1,249 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.sync;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertTrue;
+import static org.testng.AssertJUnit.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.naming.ldap.LdapContext;
+
+import org.identityconnectors.framework.common.exceptions.ConnectionFailedException;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.SyncDelta;
+import org.identityconnectors.framework.common.objects.SyncDeltaBuilder;
+import org.identityconnectors.framework.common.objects.SyncDeltaType;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.identityconnectors.framework.spi.SyncTokenResultsHandler;
+import org.identityconnectors.ldap.LdapConfiguration;
+import org.identityconnectors.ldap.LdapConnection;
+import org.testng.annotations.Test;
+
+public class PinnedServerSyncStrategyTests {
+
+    private static final String URL1 = "ldap://ds1.example.com:389";
+    private static final String URL2 = "ldap://ds2.example.com:389";
+    private static final long SINCE = 1445256000000L;
+
+    @Test
+    public void testSameServer() {
+        FakeServers servers = new FakeServers();
+        FakeStrategy strategy = new FakeStrategy(servers);
+        TokenHandler handler = new TokenHandler();
+        long start = System.currentTimeMillis();
+        new PinnedServerSyncStrategy(servers, strategy, strategy).sync(token(URL1, "1", 10L), handler, null);
+
+        assertEquals(Arrays.asList("sync 10 on " + URL1), strategy.calls);
+        ServerSyncToken delta = ServerSyncToken.decode(handler.deltaTokens.get(0));
+        assertEquals(URL1, delta.getUrl());
+        assertEquals("1", delta.getServerId());
+        assertEquals(SINCE, delta.getSince());
+        // Once the sync completed, its start time is the new time to resume from.
+        ServerSyncToken last = ServerSyncToken.decode(handler.token);
+        assertEquals(Long.valueOf(11), last.getSyncToken().getValue());
+        assertTrue(last.getSince() >= start);
+        assertNull(servers.getPinnedUrl());
+    }
+
+    @Test
+    public void testSameUrlWithAnotherServer() {
+        FakeServers servers = new FakeServers();
+        servers.serverIds.put(URL1, "3");
+        FakeStrategy strategy = new FakeStrategy(servers);
+        TokenHandler handler = new TokenHandler();
+        new PinnedServerSyncStrategy(servers, strategy, strategy).sync(token(URL1, "1", 10L), handler, null);
+
+        assertEquals(Arrays.asList("since " + (SINCE - PinnedServerSyncStrategy.FAILOVER_OVERLAP_MILLIS) + " on " + URL1,
+                "sync 100 on " + URL1), strategy.calls);
+        ServerSyncToken last = ServerSyncToken.decode(handler.token);
+        assertEquals(URL1, last.getUrl());
+        assertEquals("3", last.getServerId());
+    }
+
+    @Test
+    public void testUnreachableServer() {
+        FakeServers servers = new FakeServers();
+        servers.unreachable.add(URL1);
+        FakeStrategy strategy = new FakeStrategy(servers);
+        TokenHandler handler = new TokenHandler();
+        new PinnedServerSyncStrategy(servers, strategy, strategy).sync(token(URL1, "1", 10L), handler, null);
+
+        assertEquals(Arrays.asList("since " + (SINCE - PinnedServerSyncStrategy.FAILOVER_OVERLAP_MILLIS) + " on " + URL2,
+                "sync 100 on " + URL2), strategy.calls);
+        ServerSyncToken delta = ServerSyncToken.decode(handler.deltaTokens.get(0));
+        assertEquals(URL2, delta.getUrl());
+        assertEquals("2", delta.getServerId());
+        // The changes since the previous sync may still not all be delivered.
+        assertEquals(SINCE, delta.getSince());
+    }
+
+    @Test
+    public void testNoServerReachable() {
+        FakeServers servers = new FakeServers();
+        servers.unreachable.add(URL1);
+        servers.unreachable.add(URL2);
+        FakeStrategy strategy = new FakeStrategy(servers);
+        try {
+            new PinnedServerSyncStrategy(servers, strategy, strategy).sync(token(URL1, "1", 10L), new TokenHandler(), null);
+            fail();
+        } catch (ConnectionFailedException e) {
+            // OK.
+        }
+        assertEquals(0, strategy.calls.size());
+    }
+
+    @Test
+    public void testTokenOfEarlierVersion() {
+        FakeServers servers = new FakeServers();
+        FakeStrategy strategy = new FakeStrategy(servers);
+        TokenHandler handler = new TokenHandler();
+        new PinnedServerSyncStrategy(servers, strategy, strategy).sync(new SyncToken(10), handler, null);
+
+        assertEquals(Arrays.asList("sync 10 on " + URL1), strategy.calls);
+        ServerSyncToken delta = ServerSyncToken.decode(handler.deltaTokens.get(0));
+        assertEquals(URL1, delta.getUrl());
+        assertEquals("1", delta.getServerId());
+        // It is not known when the previous sync started.
+        assertEquals(0, delta.getSince());
+        assertTrue(ServerSyncToken.decode(handler.token).getSince() > 0);
+    }
+
+    @Test
+    public void testNoFailoverWithoutTime() {
+        FakeServers servers = new FakeServers();
+        servers.unreachable.add(URL1);
+        FakeStrategy strategy = new FakeStrategy(servers);
+        try {
+            new PinnedServerSyncStrategy(servers, strategy, strategy).sync(
+                    new ServerSyncToken(URL1, "1", 0, 10L).toSyncToken(), new TokenHandler(), null);
+            fail();
+        } catch (ConnectorException e) {
+            // OK.
+        }
+        // The whole change log is not replayed.
+        assertEquals(0, strategy.calls.size());
+        assertNull(servers.getPinnedUrl());
+    }
+
+    private static SyncToken token(String url, String serverId, Object value) {
+        return new ServerSyncToken(url, serverId, SINCE, value).toSyncToken();
+    }
+
+    /**
+     * A connection to two servers, ds1 and ds2, with the server identifiers
+     * 1 and 2 unless told otherwise.
+     */
+    private static final class FakeServers extends LdapConnection {
+
+        final Map<String, String> serverIds = new HashMap<String, String>();
+        final Set<String> unreachable = new HashSet<String>();
+
+        FakeServers() {
+            super(new LdapConfiguration());
+            serverIds.put(URL1, "1");
+            serverIds.put(URL2, "2");
+        }
+
+        @Override
+        public List<String> getServerUrls() {
+            return Arrays.asList(URL1, URL2);
+        }
+
+        @Override
+        public LdapContext getInitialContext() {
+            if (unreachable.contains(getPinnedUrl())) {
+                throw new ConnectionFailedException("Unreachable " + getPinnedUrl());
+            }
+            return null;
+        }
+
+        @Override
+        public String getServerId() {
+            return serverIds.get(getPinnedUrl());
+        }
+    }
+
+    /**
+     * Delivers one change after the token, and maps any time to the token 100.
+     */
+    private static final class FakeStrategy implements LdapSyncStrategy, ServerPositionMapping {
+
+        private final LdapConnection conn;
+        final List<String> calls = new ArrayList<String>();
+
+        FakeStrategy(LdapConnection conn) {
+            this.conn = conn;
+        }
+
+        public SyncToken getLatestSyncToken() {
+            return new SyncToken(100L);
+        }
+
+        public void sync(SyncToken token, SyncResultsHandler handler, OperationOptions options) {
+            calls.add("sync " + token.getValue() + " on " + conn.getPinnedUrl());
+            SyncToken next = new SyncToken(((Number) token.getValue()).longValue() + 1);
+            ConnectorObjectBuilder object = new ConnectorObjectBuilder();
+            object.setUid("uid=john,dc=example,dc=com");
+            object.setName("uid=john,dc=example,dc=com");
+            SyncDeltaBuilder delta = new SyncDeltaBuilder();
+            delta.setDeltaType(SyncDeltaType.CREATE_OR_UPDATE);
+            delta.setToken(next);
+            delta.setObject(object.build());
+            handler.handle(delta.build());
+            ((SyncTokenResultsHandler) handler).handleResult(next);
+        }
+
+        public SyncToken getSyncTokenSince(long millis) {
+            calls.add("since " + millis + " on " + conn.getPinnedUrl());
+            return new SyncToken(100L);
+        }
+    }
+
+    private static final class TokenHandler implements SyncTokenResultsHandler {
+
+        final List<SyncToken> deltaTokens = new ArrayList<SyncToken>();
+        SyncToken token;
+
+        public boolean handle(SyncDelta delta) {
+            deltaTokens.add(delta.getToken());
+            return true;
+        }
+
+        public void handleResult(SyncToken token) {
+            this.token = token;
+        }
+    }
+}
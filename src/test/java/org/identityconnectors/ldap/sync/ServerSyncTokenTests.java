@@ -0,0 +1,81 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.sync;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.fail;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.testng.annotations.Test;
+
+public class ServerSyncTokenTests {
+
+    @Test
+    public void testNumberToken() {
+        SyncToken token = new ServerSyncToken("ldap://ds1.example.com:389", "1a2b", 1445256000000L, 3000000000L).toSyncToken();
+        assertEquals("ldap://ds1.example.com:389#1a2b#1445256000000#L3000000000", token.getValue());
+        ServerSyncToken decoded = ServerSyncToken.decode(token);
+        assertEquals("ldap://ds1.example.com:389", decoded.getUrl());
+        assertEquals("1a2b", decoded.getServerId());
+        assertEquals(1445256000000L, decoded.getSince());
+        assertEquals(Long.valueOf(3000000000L), decoded.getSyncToken().getValue());
+    }
+
+    @Test
+    public void testStringToken() {
+        SyncToken token = new ServerSyncToken("ldaps://dc1:636", null, 0, "12#34").toSyncToken();
+        assertEquals("ldaps://dc1:636##0#S12#34", token.getValue());
+        ServerSyncToken decoded = ServerSyncToken.decode(token);
+        assertEquals("", decoded.getServerId());
+        assertEquals("12#34", decoded.getSyncToken().getValue());
+    }
+
+    @Test
+    public void testTokensOfEarlierVersions() {
+        assertNull(ServerSyncToken.decode(null));
+        assertNull(ServerSyncToken.decode(new SyncToken(12345)));
+        assertNull(ServerSyncToken.decode(new SyncToken("12345")));
+        assertNull(ServerSyncToken.decode(new SyncToken("20150101120000Z#1a2b3c")));
+    }
+
+    @Test
+    public void testInvalidToken() {
+        try {
+            ServerSyncToken.decode(new SyncToken("ldap://ds1:389#1a2b#L12"));
+            fail();
+        } catch (ConnectorException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testServerId() {
+        assertEquals("", ServerSyncToken.createServerId(null));
+        String id = ServerSyncToken.createServerId("CN=NTDS Settings,CN=DC1,CN=Servers,CN=Site,CN=Sites,CN=Configuration,DC=example,DC=com");
+        assertEquals(id, ServerSyncToken.createServerId("cn=ntds settings,cn=dc1,cn=servers,cn=site,cn=sites,cn=configuration,dc=example,dc=com"));
+        assertEquals(-1, id.indexOf('#'));
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.sync;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.identityconnectors.framework.common.objects.SyncDelta;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.identityconnectors.framework.spi.SyncTokenResultsHandler;
+import org.testng.annotations.Test;
+
+public class SyncCheckpointTests {
+
+    @Test
+    public void testEveryChanges() {
+        TokenHandler handler = new TokenHandler();
+        SyncCheckpoint checkpoint = new SyncCheckpoint(handler, 2, 0);
+        assertTrue(checkpoint.isEnabled());
+        checkpoint.handled(new SyncToken(1));
+        assertTrue(handler.tokens.isEmpty());
+        checkpoint.handled(new SyncToken(2));
+        checkpoint.advanced(new SyncToken(3));
+        checkpoint.handled(new SyncToken(4));
+        checkpoint.handled(new SyncToken(5));
+        assertEquals(2, handler.tokens.size());
+        assertEquals(2, handler.tokens.get(0).getValue());
+        assertEquals(5, handler.tokens.get(1).getValue());
+    }
+
+    @Test
+    public void testInterval() throws InterruptedException {
+        TokenHandler handler = new TokenHandler();
+        SyncCheckpoint checkpoint = new SyncCheckpoint(handler, 0, 10);
+        Thread.sleep(20);
+        checkpoint.advanced(new SyncToken(1));
+        checkpoint.handled(new SyncToken(2));
+        assertEquals(1, handler.tokens.size());
+        assertEquals(1, handler.tokens.get(0).getValue());
+    }
+
+    @Test
+    public void testDisabled() {
+        TokenHandler handler = new TokenHandler();
+        SyncCheckpoint checkpoint = new SyncCheckpoint(handler, 0, 0);
+        assertFalse(checkpoint.isEnabled());
+        checkpoint.handled(new SyncToken(1));
+        assertTrue(handler.tokens.isEmpty());
+
+        // Without a token handler, there is nowhere to report the token to.
+        checkpoint = new SyncCheckpoint(new SyncResultsHandler() {
+            public boolean handle(SyncDelta delta) {
+                return true;
+            }
+        }, 1, 0);
+        assertFalse(checkpoint.isEnabled());
+        checkpoint.handled(new SyncToken(1));
+    }
+
+    private static final class TokenHandler implements SyncTokenResultsHandler {
+
+        private final List<SyncToken> tokens = new ArrayList<SyncToken>();
+
+        public boolean handle(SyncDelta delta) {
+            return true;
+        }
+
+        public void handleResult(SyncToken token) {
+            tokens.add(token);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.sync;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertTrue;
+import static org.testng.AssertJUnit.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.identityconnectors.ldap.LdapConfiguration;
+import org.testng.annotations.Test;
+
+public class SyncDigestStoreTests {
+
+    @Test
+    public void testDisabled() {
+        assertNull(SyncDigestStore.open(new LdapConfiguration(), ObjectClass.ACCOUNT));
+    }
+
+    @Test
+    public void testDigest() throws IOException {
+        LdapConfiguration config = new LdapConfiguration();
+        config.setSyncDigestDirectory(createDirectory().getPath());
+        SyncDigestStore store = SyncDigestStore.open(config, ObjectClass.ACCOUNT);
+
+        long digest = store.digest(createObject("20150102030405Z", "a", "b"));
+        // Neither the change markers nor the order of the values count.
+        assertEquals(digest, store.digest(createObject("20150102030406Z", "b", "a")));
+        assertFalse(digest == store.digest(createObject("20150102030405Z", "a", "c")));
+        store.close();
+    }
+
+    @Test
+    public void testAttributesToSynchronize() throws IOException {
+        LdapConfiguration config = new LdapConfiguration();
+        config.setSyncDigestDirectory(createDirectory().getPath());
+        config.setAttributesToSynchronize("cn");
+        SyncDigestStore store = SyncDigestStore.open(config, ObjectClass.ACCOUNT);
+
+        assertEquals(store.digest(createObject("20150102030405Z", "a")), store.digest(createObject("20150102030405Z", "b")));
+        store.close();
+    }
+
+    @Test
+    public void testAttributesToGet() throws IOException {
+        LdapConfiguration config = new LdapConfiguration();
+        config.setSyncDigestDirectory(createDirectory().getPath());
+        SyncDigestStore store = SyncDigestStore.open(config, ObjectClass.ACCOUNT, new String[] { "cn" });
+
+        assertEquals(store.digest(createObject("20150102030405Z", "a")), store.digest(createObject("20150102030405Z", "b")));
+        store.close();
+    }
+
+    @Test
+    public void testAttributesToDigest() {
+        String[] none = { };
+        assertEquals(Arrays.asList("cn"), Arrays.asList(SyncDigestStore.getAttributesToDigest(new String[] { "cn" }, null)));
+        assertEquals(Arrays.asList("cn"), Arrays.asList(SyncDigestStore.getAttributesToDigest(none, new String[] { "cn" })));
+        assertEquals(Arrays.asList("cn"), Arrays.asList(SyncDigestStore.getAttributesToDigest(new String[] { "cn", "sn" }, new String[] { "CN", "mail" })));
+        assertEquals(Arrays.asList("sn"), Arrays.asList(SyncDigestStore.getAttributesToDigest(new String[] { "sn" }, new String[] { "*", "mail" })));
+        assertEquals(Arrays.asList(Name.NAME), Arrays.asList(SyncDigestStore.getAttributesToDigest(new String[] { "sn" }, new String[] { "mail" })));
+    }
+
+    @Test
+    public void testLogonCountersLeftOut() throws IOException {
+        LdapConfiguration config = new LdapConfiguration();
+        config.setSyncDigestDirectory(createDirectory().getPath());
+        SyncDigestStore store = SyncDigestStore.open(config, ObjectClass.ACCOUNT);
+        long digest = store.digest(createObject("20150102030405Z", "a"));
+        assertEquals(digest, store.digest(createObjectWith("20150102030405Z", "a", "logonCount", 3, "lastLogonTimestamp", "130000000000000000")));
+        store.close();
+
+        // Unless they are asked for.
+        store = SyncDigestStore.open(config, ObjectClass.ACCOUNT, new String[] { "description", "logonCount" });
+        digest = store.digest(createObjectWith("20150102030405Z", "a", "logonCount", 2));
+        assertFalse(digest == store.digest(createObjectWith("20150102030405Z", "a", "logonCount", 3)));
+        store.close();
+    }
+
+    @Test
+    public void testSave() throws IOException {
+        LdapConfiguration config = new LdapConfiguration();
+        config.setSyncDigestDirectory(createDirectory().getPath());
+        SyncDigestStore store = SyncDigestStore.open(config, ObjectClass.ACCOUNT);
+        Uid john = new Uid("john");
+        Uid jane = new Uid("jane");
+        store.delivered(john, 1);
+        store.delivered(jane, 2);
+        store.deleted(jane);
+        store.save();
+        store.close();
+
+        store = SyncDigestStore.open(config, ObjectClass.ACCOUNT);
+        assertEquals(1, store.size());
+        assertTrue(store.isUnchanged(john, 1));
+        assertFalse(store.isUnchanged(john, 2));
+        assertFalse(store.isUnchanged(jane, 2));
+        store.close();
+        // Each object class has its own digests.
+        store = SyncDigestStore.open(config, ObjectClass.GROUP);
+        assertEquals(0, store.size());
+        store.close();
+    }
+
+    @Test
+    public void testDigestsOfEachServerAndBaseContexts() throws IOException {
+        LdapConfiguration config = new LdapConfiguration();
+        config.setSyncDigestDirectory(createDirectory().getPath());
+        config.setHost("ldap1.example.com");
+        config.setBaseContextsToSynchronize("ou=People,dc=example,dc=com");
+        SyncDigestStore store = SyncDigestStore.open(config, ObjectClass.ACCOUNT);
+        store.delivered(new Uid("john"), 1);
+        store.save();
+        store.close();
+
+        config.setBaseContextsToSynchronize("ou=Staff,dc=example,dc=com");
+        store = SyncDigestStore.open(config, ObjectClass.ACCOUNT);
+        assertEquals(0, store.size());
+        store.close();
+
+        config.setHost("ldap2.example.com");
+        config.setBaseContextsToSynchronize("ou=People,dc=example,dc=com");
+        store = SyncDigestStore.open(config, ObjectClass.ACCOUNT);
+        assertEquals(0, store.size());
+        store.close();
+
+        config.setHost("ldap1.example.com");
+        store = SyncDigestStore.open(config, ObjectClass.ACCOUNT);
+        assertEquals(1, store.size());
+        store.close();
+    }
+
+    @Test
+    public void testLockedDuringSync() throws IOException {
+        LdapConfiguration config = new LdapConfiguration();
+        config.setSyncDigestDirectory(createDirectory().getPath());
+        SyncDigestStore store = SyncDigestStore.open(config, ObjectClass.ACCOUNT);
+        try {
+            SyncDigestStore.open(config, ObjectClass.ACCOUNT);
+            fail();
+        } catch (ConnectorException e) {
+            // OK.
+        }
+        // The other object classes are not locked.
+        SyncDigestStore.open(config, ObjectClass.GROUP).close();
+        store.close();
+        SyncDigestStore.open(config, ObjectClass.ACCOUNT).close();
+    }
+
+    private static ConnectorObject createObjectWith(String modifyTimestamp, String description, Object... attrs) {
+        ConnectorObjectBuilder builder = createBuilder(modifyTimestamp, description);
+        for (int i = 0; i < attrs.length; i += 2) {
+            builder.addAttribute(AttributeBuilder.build((String) attrs[i], attrs[i + 1]));
+        }
+        return builder.build();
+    }
+
+    private static ConnectorObject createObject(String modifyTimestamp, String... descriptions) {
+        return createBuilder(modifyTimestamp, descriptions).build();
+    }
+
+    private static ConnectorObjectBuilder createBuilder(String modifyTimestamp, String... descriptions) {
+        ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
+        builder.setUid("john");
+        builder.setName("uid=john,dc=example,dc=com");
+        builder.addAttribute(AttributeBuilder.build("cn", "John"));
+        builder.addAttribute(AttributeBuilder.build("description", (Object[]) descriptions));
+        builder.addAttribute(AttributeBuilder.build("modifyTimestamp", modifyTimestamp));
+        return builder;
+    }
+
+    private static File createDirectory() throws IOException {
+        File dir = File.createTempFile("digests", "");
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        return dir;
+    }
+}
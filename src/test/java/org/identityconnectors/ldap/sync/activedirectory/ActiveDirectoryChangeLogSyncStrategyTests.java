@@ -0,0 +1,410 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.sync.activedirectory;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsResponseControl;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.SyncDelta;
+import org.identityconnectors.framework.common.objects.SyncDeltaBuilder;
+import org.identityconnectors.framework.common.objects.SyncDeltaType;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.identityconnectors.framework.spi.SyncTokenResultsHandler;
+import org.identityconnectors.ldap.LdapConfiguration;
+import org.identityconnectors.ldap.LdapConnection;
+import org.identityconnectors.ldap.search.AdaptiveBlockSize;
+import org.testng.annotations.Test;
+
+import com.sun.jndi.ldap.BerEncoder;
+
+/**
+ * Tests the walk over the USN windows, with the changed entries and the
+ * tombstones read from a directory held in memory.
+ */
+public class ActiveDirectoryChangeLogSyncStrategyTests {
+
+    private static final String BASE_DN = "dc=example,dc=com";
+    private static final String DELETED_CONTAINER = "cn=deleted objects," + BASE_DN;
+
+    @Test
+    public void testWindowGrowsOverUSNsWithoutChanges() {
+        FakeUSNStrategy strategy = new FakeUSNStrategy(newConfiguration(10), 2000);
+        TokenHandler handler = new TokenHandler(-1);
+        strategy.sync(new SyncToken("0"), handler, null);
+
+        // The window doubles up to 64 times the window size.
+        assertEquals(Arrays.asList("1-10", "11-30", "31-70", "71-150", "151-310", "311-630", "631-1270", "1271-1910", "1911-2000"),
+                strategy.windows);
+        assertEquals("2000", handler.token.getValue());
+    }
+
+    @Test
+    public void testWindowShrinksAfterChanges() {
+        FakeUSNStrategy strategy = new FakeUSNStrategy(newConfiguration(10), 200);
+        strategy.addEntry(100, "cn=a," + BASE_DN);
+        TokenHandler handler = new TokenHandler(-1);
+        strategy.sync(new SyncToken("0"), handler, null);
+
+        assertEquals(Arrays.asList("1-10", "11-30", "31-70", "71-150", "151-160", "161-180", "181-200"), strategy.windows);
+        assertEquals(Arrays.<Object>asList("100"), handler.deltaTokens);
+        assertEquals("200", handler.token.getValue());
+    }
+
+    @Test
+    public void testNoWindowWithoutToken() {
+        FakeUSNStrategy strategy = new FakeUSNStrategy(newConfiguration(10), 200);
+        strategy.addEntry(100, "cn=a," + BASE_DN);
+        TokenHandler handler = new TokenHandler(-1);
+        strategy.sync(null, handler, null);
+
+        assertEquals(Collections.emptyList(), strategy.windows);
+        assertEquals("200", handler.token.getValue());
+    }
+
+    @Test
+    public void testTokenWhenHandlerStopsInWindow() {
+        FakeUSNStrategy strategy = new FakeUSNStrategy(newConfiguration(10), 100);
+        strategy.addEntry(3, "cn=a," + BASE_DN);
+        strategy.addEntry(5, "cn=b," + BASE_DN);
+        strategy.addEntry(7, "cn=c," + BASE_DN);
+        TokenHandler handler = new TokenHandler(1);
+        strategy.sync(new SyncToken("0"), handler, null);
+
+        // The next sync resumes with the refused change.
+        assertEquals(Arrays.<Object>asList("3", "5"), handler.deltaTokens);
+        assertEquals("3", handler.token.getValue());
+        assertEquals(Arrays.asList("1-10"), strategy.windows);
+    }
+
+    @Test
+    public void testTokenWhenHandlerStopsInLaterWindow() {
+        FakeUSNStrategy strategy = new FakeUSNStrategy(newConfiguration(10), 100);
+        strategy.addEntry(3, "cn=a," + BASE_DN);
+        strategy.addEntry(12, "cn=b," + BASE_DN);
+        TokenHandler handler = new TokenHandler(1);
+        strategy.sync(new SyncToken("0"), handler, null);
+
+        // The end of the first window has been handled.
+        assertEquals("10", handler.token.getValue());
+    }
+
+    @Test
+    public void testChangesAndTombstonesMerged() {
+        FakeUSNStrategy strategy = new FakeUSNStrategy(newConfiguration(10), 20);
+        strategy.addEntry(3, "cn=a," + BASE_DN);
+        strategy.addEntry(8, "cn=b," + BASE_DN);
+        strategy.addEntry(15, "cn=c," + BASE_DN);
+        strategy.directory.addTombstone(5, "d", BASE_DN);
+        strategy.directory.addTombstone(6, "e", BASE_DN);
+        strategy.directory.addTombstone(9, "f", BASE_DN);
+        strategy.directory.addTombstone(11, "g", BASE_DN);
+        TokenHandler handler = new TokenHandler(-1);
+        strategy.sync(new SyncToken("0"), handler, null);
+
+        assertEquals(Arrays.<Object>asList("3", "5", "6", "8", "9", "11", "15"), handler.deltaTokens);
+        assertEquals(SyncDeltaType.UPDATE, handler.deltas.get(0).getDeltaType());
+        assertEquals(SyncDeltaType.DELETE, handler.deltas.get(1).getDeltaType());
+        assertEquals("d", handler.deltas.get(1).getUid().getUidValue());
+        assertEquals(ObjectClass.ACCOUNT, handler.deltas.get(1).getObjectClass());
+        assertNull(handler.deltas.get(1).getObject());
+        assertEquals("20", handler.token.getValue());
+        // The tombstones of the first window were read in two pages.
+        assertEquals(Arrays.asList("search 1-10", "search 1-10", "search 11-20"), strategy.directory.searches);
+    }
+
+    @Test
+    public void testTombstonesOutOfScopeSkipped() {
+        LdapConfiguration config = newConfiguration(10);
+        config.setBaseContextsToSynchronize("ou=People," + BASE_DN);
+        FakeUSNStrategy strategy = new FakeUSNStrategy(config, 10);
+        strategy.directory.addTombstone(1, "in", "ou=People," + BASE_DN);
+        strategy.directory.addTombstone(2, "out", "ou=Staff," + BASE_DN);
+        // Deleted together with its parent.
+        strategy.directory.addTombstone(3, "child", "cn=People\\0ADEL:1234," + DELETED_CONTAINER);
+        strategy.directory.addTombstone(4, "unknown", null);
+        TokenHandler handler = new TokenHandler(-1);
+        strategy.sync(new SyncToken("0"), handler, null);
+
+        assertEquals(Arrays.<Object>asList("1", "3", "4"), handler.deltaTokens);
+        assertEquals("10", handler.token.getValue());
+    }
+
+    @Test
+    public void testFailureOnLaterPageOfTombstones() {
+        FakeUSNStrategy strategy = new FakeUSNStrategy(newConfiguration(10), 20);
+        strategy.addEntry(1, "cn=a," + BASE_DN);
+        strategy.directory.addTombstone(2, "b", BASE_DN);
+        strategy.directory.addTombstone(3, "c", BASE_DN);
+        strategy.directory.addTombstone(4, "d", BASE_DN);
+        strategy.directory.failAtSearch = 2;
+        TokenHandler handler = new TokenHandler(-1);
+        try {
+            strategy.sync(new SyncToken("0"), handler, null);
+            fail();
+        } catch (ConnectorException e) {
+            // OK.
+        }
+        // Nothing of the window was delivered and the token did not move.
+        assertEquals(Collections.emptyList(), handler.deltaTokens);
+        assertNull(handler.token);
+        assertEquals(1, strategy.directory.closed);
+    }
+
+    @Test
+    public void testMissingDeletedObjectsContainer() {
+        FakeUSNStrategy strategy = new FakeUSNStrategy(newConfiguration(10), 20);
+        strategy.addEntry(1, "cn=a," + BASE_DN);
+        strategy.addEntry(12, "cn=b," + BASE_DN);
+        strategy.directory.addTombstone(2, "b", BASE_DN);
+        strategy.directory.failAtSearch = 1;
+        TokenHandler handler = new TokenHandler(-1);
+        strategy.sync(new SyncToken("0"), handler, null);
+
+        // The tombstones are no longer searched.
+        assertEquals(Arrays.<Object>asList("1", "12"), handler.deltaTokens);
+        assertEquals(Arrays.asList("search 1-10"), strategy.directory.searches);
+        assertEquals("20", handler.token.getValue());
+    }
+
+    private static LdapConfiguration newConfiguration(int usnWindowSize) {
+        LdapConfiguration config = new LdapConfiguration();
+        config.setBaseContexts(BASE_DN);
+        config.setBaseContextsToSynchronize(BASE_DN);
+        config.setUidAttribute("entryUUID");
+        config.setReadSchema(false);
+        config.setUsnWindowSize(usnWindowSize);
+        return config;
+    }
+
+    private static final class FakeUSNStrategy extends ActiveDirectoryChangeLogSyncStrategy {
+
+        private final long highestUSN;
+        final TreeMap<Long, String> entries = new TreeMap<Long, String>();
+        final FakeDeletedObjects directory = new FakeDeletedObjects();
+        final List<String> windows = new ArrayList<String>();
+
+        FakeUSNStrategy(LdapConfiguration config, long highestUSN) {
+            super(new LdapConnection(config), ObjectClass.ACCOUNT);
+            this.highestUSN = highestUSN;
+        }
+
+        void addEntry(long usn, String dn) {
+            entries.put(usn, dn);
+        }
+
+        @Override
+        String gethighestCommittedUSN() {
+            return Long.toString(highestUSN);
+        }
+
+        @Override
+        void searchChanges(long low, long high, SearchControls controls, AdaptiveBlockSize pageSize, Map<Long, SyncDelta> changes) {
+            windows.add(low + "-" + high);
+            for (Map.Entry<Long, String> entry : entries.subMap(low, true, high, true).entrySet()) {
+                ConnectorObjectBuilder object = new ConnectorObjectBuilder();
+                object.setUid(entry.getValue());
+                object.setName(entry.getValue());
+                SyncDeltaBuilder delta = new SyncDeltaBuilder();
+                delta.setDeltaType(SyncDeltaType.UPDATE);
+                delta.setToken(new SyncToken(entry.getKey().toString()));
+                delta.setObject(object.build());
+                changes.put(entry.getKey(), delta.build());
+            }
+        }
+
+        @Override
+        String getDeletedObjectsContainer() {
+            return DELETED_CONTAINER;
+        }
+
+        @Override
+        LdapContext newDeletedObjectsContext() {
+            return (LdapContext) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { LdapContext.class }, directory);
+        }
+    }
+
+    /**
+     * A deleted objects container returning its tombstones two per page.
+     */
+    private static final class FakeDeletedObjects implements InvocationHandler {
+
+        private static final Pattern USN_RANGE = Pattern.compile("\\(uSNChanged>=(\\d+)\\)\\(uSNChanged<=(\\d+)\\)");
+        private static final int PAGE_SIZE = 2;
+
+        private final List<SearchResult> tombstones = new ArrayList<SearchResult>();
+        final List<String> searches = new ArrayList<String>();
+        int failAtSearch = -1;
+        int closed;
+        private Iterator<SearchResult> pending;
+        private byte[] cookie;
+
+        void addTombstone(long usn, String uid, String lastKnownParent) {
+            BasicAttributes attrs = new BasicAttributes(true);
+            attrs.put("entryUUID", uid);
+            attrs.put("uSNChanged", Long.toString(usn));
+            attrs.put("objectClass", "user");
+            if (lastKnownParent != null) {
+                attrs.put("lastKnownParent", lastKnownParent);
+            }
+            tombstones.add(new SearchResult("cn=" + uid + "\\0ADEL:" + usn, null, attrs));
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("search".equals(name)) {
+                assertEquals(DELETED_CONTAINER, args[0]);
+                return search((String) args[1]);
+            } else if ("getResponseControls".equals(name)) {
+                if (cookie == null) {
+                    return null;
+                }
+                BerEncoder ber = new BerEncoder(64);
+                ber.beginSeq(48);
+                ber.encodeInt(0);
+                ber.encodeOctetString(cookie, 4);
+                ber.endSeq();
+                return new Control[] { new PagedResultsResponseControl(PagedResultsResponseControl.OID, false, ber.getTrimmedBuf()) };
+            } else if ("close".equals(name)) {
+                closed++;
+                return null;
+            } else if ("setRequestControls".equals(name)) {
+                return null;
+            }
+            throw new UnsupportedOperationException(name);
+        }
+
+        private NamingEnumeration<SearchResult> search(String filter) throws NamingException {
+            Matcher matcher = USN_RANGE.matcher(filter);
+            if (!matcher.find()) {
+                throw new AssertionError(filter);
+            }
+            searches.add("search " + matcher.group(1) + "-" + matcher.group(2));
+            if (searches.size() == failAtSearch) {
+                throw new NameNotFoundException();
+            }
+            if (cookie == null) {
+                long low = Long.parseLong(matcher.group(1));
+                long high = Long.parseLong(matcher.group(2));
+                List<SearchResult> matching = new ArrayList<SearchResult>();
+                for (SearchResult tombstone : tombstones) {
+                    long usn = Long.parseLong(tombstone.getAttributes().get("uSNChanged").get().toString());
+                    if (usn >= low && usn <= high) {
+                        matching.add(tombstone);
+                    }
+                }
+                pending = matching.iterator();
+            }
+            List<SearchResult> page = new ArrayList<SearchResult>();
+            while (page.size() < PAGE_SIZE && pending.hasNext()) {
+                page.add(pending.next());
+            }
+            cookie = pending.hasNext() ? new byte[] { 1 } : null;
+            return new ListEnumeration(page);
+        }
+    }
+
+    private static final class ListEnumeration implements NamingEnumeration<SearchResult> {
+
+        private final Enumeration<SearchResult> results;
+
+        ListEnumeration(List<SearchResult> results) {
+            this.results = Collections.enumeration(results);
+        }
+
+        public boolean hasMore() {
+            return results.hasMoreElements();
+        }
+
+        public SearchResult next() {
+            return results.nextElement();
+        }
+
+        public boolean hasMoreElements() {
+            return results.hasMoreElements();
+        }
+
+        public SearchResult nextElement() {
+            return results.nextElement();
+        }
+
+        public void close() {
+        }
+    }
+
+    private static final class TokenHandler implements SyncTokenResultsHandler {
+
+        private final int stopAt;
+        final List<SyncDelta> deltas = new ArrayList<SyncDelta>();
+        final List<Object> deltaTokens = new ArrayList<Object>();
+        SyncToken token;
+
+        /**
+         * @param stopAt the number of the delta to refuse, or -1.
+         */
+        TokenHandler(int stopAt) {
+            this.stopAt = stopAt;
+        }
+
+        public boolean handle(SyncDelta delta) {
+            deltaTokens.add(delta.getToken().getValue());
+            if (deltaTokens.size() - 1 == stopAt) {
+                return false;
+            }
+            deltas.add(delta);
+            return true;
+        }
+
+        public void handleResult(SyncToken token) {
+            this.token = token;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.sync.activedirectory;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.util.Arrays;
+
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
+
+import org.testng.annotations.Test;
+
+import com.sun.jndi.ldap.BerEncoder;
+
+public class DirSyncSyncStrategyTests {
+
+    @Test
+    public void testFindResponseControl() throws Exception {
+        BerEncoder ber = new BerEncoder(64);
+        ber.beginSeq(48);
+        ber.encodeInt(1);
+        ber.encodeInt(0);
+        ber.encodeOctetString(new byte[] { 1, 2, 3 }, 4);
+        ber.endSeq();
+
+        // JNDI returns the response control as a plain control.
+        Control[] controls = { new BasicControl("1.2.840.113556.1.4.319"), new BasicControl(DirSyncResponseControl.OID, true, ber.getTrimmedBuf()) };
+        DirSyncResponseControl control = DirSyncResponseControl.find(controls);
+        assertTrue(control.hasMore());
+        assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, control.getResponseCookie()));
+
+        assertNull(DirSyncResponseControl.find(new Control[] { controls[0] }));
+        assertNull(DirSyncResponseControl.find(null));
+    }
+
+    @Test
+    public void testResponseControlWithoutMore() throws Exception {
+        BerEncoder ber = new BerEncoder(64);
+        ber.beginSeq(48);
+        ber.encodeInt(0);
+        ber.encodeInt(0);
+        ber.encodeOctetString(new byte[0], 4);
+        ber.endSeq();
+
+        DirSyncResponseControl control = new DirSyncResponseControl(DirSyncResponseControl.OID, true, ber.getTrimmedBuf());
+        assertFalse(control.hasMore());
+        assertNull(control.getResponseCookie());
+    }
+
+    @Test
+    public void testCookieToken() {
+        byte[] cookie = { 0, 1, 2, (byte) 0xff };
+        String token = DirSyncSyncStrategy.encodeCookie(cookie);
+        assertTrue(Arrays.equals(cookie, DirSyncSyncStrategy.decodeCookie(token)));
+        // Raw cookies of the DirSync events are accepted too.
+        assertTrue(Arrays.equals(cookie, DirSyncSyncStrategy.decodeCookie(cookie)));
+        assertEquals("", DirSyncSyncStrategy.encodeCookie(null));
+        assertNull(DirSyncSyncStrategy.decodeCookie(""));
+    }
+}
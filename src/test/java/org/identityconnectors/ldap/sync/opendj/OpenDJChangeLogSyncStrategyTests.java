@@ -0,0 +1,201 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.sync.opendj;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.naming.directory.BasicAttributes;
+
+import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
+import org.identityconnectors.framework.common.objects.SyncDelta;
+import org.identityconnectors.framework.common.objects.SyncDeltaBuilder;
+import org.identityconnectors.framework.common.objects.SyncDeltaType;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.identityconnectors.framework.spi.SyncTokenResultsHandler;
+import org.identityconnectors.ldap.LdapConfiguration;
+import org.identityconnectors.ldap.LdapConnection;
+import org.identityconnectors.ldap.LdapEntry;
+import org.testng.annotations.Test;
+
+public class OpenDJChangeLogSyncStrategyTests {
+
+    @Test
+    public void testCookieTokens() {
+        FakeChangeLogStrategy strategy = new FakeChangeLogStrategy(2, 5);
+        TokenHandler handler = new TokenHandler(-1);
+        strategy.sync(new SyncToken("c1"), handler, new OperationOptionsBuilder().build());
+        assertEquals(Arrays.asList("c2", "c3", "c4", "c5"), handler.deltaTokens);
+        assertEquals("c5", handler.token.getValue());
+    }
+
+    @Test
+    public void testFirstSyncStartsWithEmptyCookie() {
+        FakeChangeLogStrategy strategy = new FakeChangeLogStrategy(10, 3);
+        TokenHandler handler = new TokenHandler(-1);
+        strategy.sync(null, handler, new OperationOptionsBuilder().build());
+        assertEquals("", strategy.cookies.get(0));
+        assertEquals(Arrays.asList("c1", "c2", "c3"), handler.deltaTokens);
+        assertEquals("c3", handler.token.getValue());
+    }
+
+    @Test
+    public void testBlockCountLimit() {
+        FakeChangeLogStrategy strategy = new FakeChangeLogStrategy(2, 5);
+        strategy.sync(new SyncToken(""), new TokenHandler(-1), new OperationOptionsBuilder().build());
+        // Each block is read from the last cookie of the previous one, with the block size as count limit.
+        assertEquals(Arrays.asList("", "c2", "c4"), strategy.cookies);
+        assertEquals(Arrays.asList(2, 2, 2), strategy.sizes);
+    }
+
+    @Test
+    public void testResumeAfterHandlerStops() {
+        FakeChangeLogStrategy strategy = new FakeChangeLogStrategy(2, 5);
+        TokenHandler handler = new TokenHandler(3);
+        strategy.sync(new SyncToken(""), handler, new OperationOptionsBuilder().build());
+        assertEquals(Arrays.asList("c1", "c2", "c3"), handler.deltaTokens);
+        // The change refused by the handler is not covered by the token.
+        assertEquals("c2", handler.token.getValue());
+        // No block is read after the handler stopped.
+        assertEquals(Arrays.asList("", "c2"), strategy.cookies);
+
+        handler = new TokenHandler(-1);
+        strategy.sync(new SyncToken("c2"), handler, new OperationOptionsBuilder().build());
+        assertEquals(Arrays.asList("c3", "c4", "c5"), handler.deltaTokens);
+        assertEquals("c5", handler.token.getValue());
+    }
+
+    @Test
+    public void testFilteredChangesMoveTheToken() {
+        FakeChangeLogStrategy strategy = new FakeChangeLogStrategy(10, 4);
+        strategy.filteredOut.add("c3");
+        strategy.filteredOut.add("c4");
+        TokenHandler handler = new TokenHandler(-1);
+        strategy.sync(new SyncToken(""), handler, new OperationOptionsBuilder().build());
+        assertEquals(Arrays.asList("c1", "c2"), handler.deltaTokens);
+        assertEquals("c4", handler.token.getValue());
+    }
+
+    @Test
+    public void testNoChanges() {
+        FakeChangeLogStrategy strategy = new FakeChangeLogStrategy(10, 2);
+        TokenHandler handler = new TokenHandler(-1);
+        strategy.sync(new SyncToken("c2"), handler, new OperationOptionsBuilder().build());
+        assertEquals(0, handler.deltaTokens.size());
+        // The token of the caller still holds.
+        assertNull(handler.token);
+    }
+
+    /**
+     * A change log of changes c1 to cN, whose entries are turned into deltas
+     * without reading the modified entries.
+     */
+    private static final class FakeChangeLogStrategy extends OpenDJChangeLogSyncStrategy {
+
+        private final int count;
+        final List<String> cookies = new ArrayList<String>();
+        final List<Integer> sizes = new ArrayList<Integer>();
+        final Set<String> filteredOut = new HashSet<String>();
+
+        FakeChangeLogStrategy(int blockSize, int count) {
+            super(new LdapConnection(newConfiguration(blockSize)), ObjectClass.ACCOUNT);
+            this.count = count;
+        }
+
+        private static LdapConfiguration newConfiguration(int blockSize) {
+            LdapConfiguration config = new LdapConfiguration();
+            config.setChangeLogBlockSize(blockSize);
+            return config;
+        }
+
+        @Override
+        CookieBlock readBlock(String cookie, int size, boolean measure) {
+            cookies.add(cookie);
+            sizes.add(size);
+            int first = cookie.length() == 0 ? 1 : Integer.parseInt(cookie.substring(1)) + 1;
+            CookieBlock block = new CookieBlock();
+            for (int i = first; i <= count; i++) {
+                if (block.entries.size() == size) {
+                    block.full = true;
+                    break;
+                }
+                block.entries.add(LdapEntry.create("changeNumber=" + i + ",cn=changelog", new BasicAttributes(true)));
+                block.tokens.add(new SyncToken("c" + i));
+            }
+            return block;
+        }
+
+        @Override
+        protected List<SyncDelta> createSyncDeltas(List<LdapEntry> changeLogEntries, List<SyncToken> tokens, String[] attrsToGetOption) {
+            List<SyncDelta> deltas = new ArrayList<SyncDelta>();
+            for (SyncToken token : tokens) {
+                if (filteredOut.contains(token.getValue())) {
+                    deltas.add(null);
+                    continue;
+                }
+                String name = "uid=" + token.getValue() + ",dc=example,dc=com";
+                ConnectorObjectBuilder object = new ConnectorObjectBuilder();
+                object.setUid(name);
+                object.setName(name);
+                SyncDeltaBuilder delta = new SyncDeltaBuilder();
+                delta.setToken(token);
+                delta.setDeltaType(SyncDeltaType.CREATE_OR_UPDATE);
+                delta.setObject(object.build());
+                deltas.add(delta.build());
+            }
+            return deltas;
+        }
+    }
+
+    private static final class TokenHandler implements SyncTokenResultsHandler {
+
+        private final int stopAt;
+        final List<Object> deltaTokens = new ArrayList<Object>();
+        SyncToken token;
+
+        /**
+         * @param stopAt the number of the delta to refuse, or -1.
+         */
+        TokenHandler(int stopAt) {
+            this.stopAt = stopAt;
+        }
+
+        public boolean handle(SyncDelta delta) {
+            deltaTokens.add(delta.getToken().getValue());
+            return deltaTokens.size() != stopAt;
+        }
+
+        public void handleResult(SyncToken token) {
+            this.token = token;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.sync.psearch;
+
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.testng.annotations.Test;
+
+public class PersistentSearchSyncStrategyTests {
+
+    @Test
+    public void testChangeNumberTokens() {
+        SyncToken token = new SyncToken(10);
+        assertTrue(PersistentSearchSyncStrategy.isBefore(new SyncToken(9), token));
+        assertTrue(PersistentSearchSyncStrategy.isBefore(new SyncToken(10), token));
+        assertFalse(PersistentSearchSyncStrategy.isBefore(new SyncToken(11), token));
+    }
+
+    @Test
+    public void testLongChangeNumberTokens() {
+        SyncToken token = new SyncToken(3000000000L);
+        assertTrue(PersistentSearchSyncStrategy.isBefore(new SyncToken(2999999999L), token));
+        assertFalse(PersistentSearchSyncStrategy.isBefore(new SyncToken(3000000001L), token));
+        // Tokens of older versions are Integer tokens.
+        assertTrue(PersistentSearchSyncStrategy.isBefore(new SyncToken(10L), new SyncToken(10)));
+        assertFalse(PersistentSearchSyncStrategy.isBefore(new SyncToken(11L), new SyncToken(10)));
+    }
+
+    @Test
+    public void testTimestampTokens() {
+        SyncToken token = new SyncToken("20150101120000Z");
+        assertTrue(PersistentSearchSyncStrategy.isBefore(new SyncToken("20150101115959Z"), token));
+        // Changes made in the same second may not have been seen by the regular sync.
+        assertFalse(PersistentSearchSyncStrategy.isBefore(new SyncToken("20150101120000Z"), token));
+        assertFalse(PersistentSearchSyncStrategy.isBefore(new SyncToken("20150101120001Z"), token));
+    }
+
+    @Test
+    public void testUnknownTokens() {
+        SyncToken token = new SyncToken("20150101120000Z");
+        assertFalse(PersistentSearchSyncStrategy.isBefore(token, token));
+        assertFalse(PersistentSearchSyncStrategy.isBefore(new SyncToken(1), token));
+        assertFalse(PersistentSearchSyncStrategy.isBefore(null, token));
+        assertFalse(PersistentSearchSyncStrategy.isBefore(new SyncToken(1), null));
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.sync.psearch;
+
+import static org.identityconnectors.ldap.LdapUtil.getSynchronizationFilter;
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertNotSame;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertSame;
+import static org.testng.AssertJUnit.assertTrue;
+
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.SyncDelta;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.identityconnectors.framework.spi.SyncTokenResultsHandler;
+import org.identityconnectors.ldap.LdapConfiguration;
+import org.identityconnectors.ldap.LdapConnection;
+import org.identityconnectors.ldap.LdapConnectorTestBase;
+import org.identityconnectors.ldap.sync.LdapSyncStrategy;
+import org.testng.annotations.Test;
+
+public class PersistentSearchTests extends LdapConnectorTestBase {
+
+    @Override
+    protected boolean restartServerAfterEachTest() {
+        return false;
+    }
+
+    @Test
+    public void testRestartAfterFailure() {
+        LdapConnection conn = new LdapConnection(newConfiguration());
+        PersistentSearch search = PersistentSearch.acquire(conn.getConfiguration(), getSynchronizationFilter(conn, ObjectClass.ACCOUNT));
+        try {
+            CountingSyncStrategy regular = new CountingSyncStrategy();
+            PersistentSearchSyncStrategy strategy = new PersistentSearchSyncStrategy(conn, ObjectClass.ACCOUNT, regular, search);
+            TokenHandler handler = new TokenHandler();
+
+            strategy.sync(new SyncToken(1), handler, null);
+            assertEquals(1, regular.syncs);
+            assertTrue(search.isRunning());
+
+            // The next sync drains the buffer without the regular strategy.
+            strategy.sync(new SyncToken(1), handler, null);
+            assertEquals(1, regular.syncs);
+
+            search.fail("connection lost");
+            assertFalse(search.isRunning());
+            assertEquals("connection lost", search.getFailure());
+
+            // The regular strategy takes over and the search is started again.
+            strategy.sync(new SyncToken(1), handler, null);
+            assertEquals(2, regular.syncs);
+            assertTrue(search.isRunning());
+            assertNull(search.getFailure());
+
+            strategy.sync(new SyncToken(1), handler, null);
+            assertEquals(2, regular.syncs);
+        } finally {
+            search.release();
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testStartAfterClose() {
+        LdapConnection conn = new LdapConnection(newConfiguration());
+        PersistentSearch search = PersistentSearch.acquire(conn.getConfiguration(), getSynchronizationFilter(conn, ObjectClass.ACCOUNT));
+        try {
+            search.start(conn, new String[] { "*" });
+            search.close();
+            assertFalse(search.isStarted());
+            search.start(conn, new String[] { "*" });
+            assertTrue(search.isRunning());
+        } finally {
+            search.release();
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testSharedByConnectorInstances() {
+        LdapConfiguration config = newConfiguration();
+        LdapConnection conn = new LdapConnection(config);
+        String filter = getSynchronizationFilter(conn, ObjectClass.ACCOUNT);
+        PersistentSearch search = PersistentSearch.acquire(config, filter);
+        try {
+            PersistentSearch other = PersistentSearch.acquire(newConfiguration(), filter);
+            assertSame(search, other);
+            search.start(conn, new String[] { "*" });
+            other.release();
+            // Still used by the first instance.
+            assertTrue(search.isRunning());
+
+            PersistentSearch groups = PersistentSearch.acquire(config, getSynchronizationFilter(conn, ObjectClass.GROUP));
+            assertNotSame(search, groups);
+            groups.release();
+        } finally {
+            search.release();
+        }
+        assertFalse(search.isStarted());
+        // The last release forgot the search.
+        PersistentSearch next = PersistentSearch.acquire(config, filter);
+        assertNotSame(search, next);
+        next.release();
+        conn.close();
+    }
+
+    private static final class CountingSyncStrategy implements LdapSyncStrategy {
+
+        int syncs;
+
+        public void sync(SyncToken token, SyncResultsHandler handler, OperationOptions options) {
+            syncs++;
+        }
+
+        public SyncToken getLatestSyncToken() {
+            return null;
+        }
+    }
+
+    private static final class TokenHandler implements SyncTokenResultsHandler {
+
+        public boolean handle(SyncDelta delta) {
+            return true;
+        }
+
+        public void handleResult(SyncToken token) {
+        }
+    }
+}
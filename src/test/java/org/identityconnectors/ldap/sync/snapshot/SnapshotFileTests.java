@@ -0,0 +1,88 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.sync.snapshot;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.testng.annotations.Test;
+
+public class SnapshotFileTests {
+
+    @Test
+    public void testSort() throws IOException {
+        File dir = createDirectory();
+        SnapshotFile.Sorter sorter = new SnapshotFile.Sorter(dir, "test", 3);
+        for (int i = 9; i >= 0; i--) {
+            sorter.add(new SnapshotEntry("uid" + i, "uid=" + i + ",dc=example,dc=com", "__ACCOUNT__", i));
+        }
+        // An entry found twice is kept once.
+        sorter.add(new SnapshotEntry("uid5", "uid=5,dc=example,dc=com", "__ACCOUNT__", 5));
+        File file = new File(dir, "test.snapshot");
+        assertEquals(10, sorter.finish(file, 7));
+        // Only the snapshot is left.
+        assertEquals(1, dir.listFiles().length);
+
+        assertEquals(7, SnapshotFile.readGeneration(file));
+        SnapshotFile.Reader reader = new SnapshotFile.Reader(file);
+        try {
+            for (int i = 0; i < 10; i++) {
+                SnapshotEntry entry = reader.next();
+                assertEquals("uid" + i, entry.getUid());
+                assertEquals("uid=" + i + ",dc=example,dc=com", entry.getDN());
+                assertEquals("__ACCOUNT__", entry.getObjectClass());
+                assertEquals(i, entry.getDigest());
+            }
+            assertNull(reader.next());
+        } finally {
+            reader.close();
+        }
+        file.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void testNoSnapshot() throws IOException {
+        assertEquals(-1, SnapshotFile.readGeneration(new File(createDirectory(), "none.snapshot")));
+    }
+
+    @Test
+    public void testChanged() {
+        SnapshotEntry entry = new SnapshotEntry("uid1", "uid=1,dc=example,dc=com", "__ACCOUNT__", 1);
+        assertEquals(false, entry.isChanged(new SnapshotEntry("uid1", "uid=1,dc=example,dc=com", "__ACCOUNT__", 1)));
+        assertEquals(true, entry.isChanged(new SnapshotEntry("uid1", "uid=1,dc=example,dc=com", "__ACCOUNT__", 2)));
+        assertEquals(true, entry.isChanged(new SnapshotEntry("uid1", "uid=1,ou=people,dc=example,dc=com", "__ACCOUNT__", 1)));
+    }
+
+    private static File createDirectory() throws IOException {
+        File dir = File.createTempFile("snapshots", "");
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        return dir;
+    }
+}
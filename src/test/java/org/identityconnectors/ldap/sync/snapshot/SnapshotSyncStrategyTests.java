@@ -0,0 +1,313 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.sync.snapshot;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.SyncDelta;
+import org.identityconnectors.framework.common.objects.SyncDeltaType;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.identityconnectors.ldap.LdapConfiguration;
+import org.identityconnectors.ldap.LdapConnection;
+import org.identityconnectors.ldap.sync.SyncStateFile;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the comparison of two snapshots, with the entries read from a
+ * directory held in memory.
+ */
+public class SnapshotSyncStrategyTests {
+
+    private static final SyncToken TOKEN = new SyncToken("1");
+
+    private static final String[] ATTRS_TO_GET = { "*" };
+
+    @Test
+    public void testCreateUpdateDelete() throws IOException {
+        FakeSnapshotStrategy strategy = new FakeSnapshotStrategy(newConfiguration());
+        strategy.add("b", "d", "e");
+        File snapshot = createSnapshots(strategy);
+        File merged = createTempFile(strategy);
+
+        CollectingHandler handler = new CollectingHandler(Integer.MAX_VALUE);
+        strategy.compare(snapshot, merged, 2, TOKEN, handler, ATTRS_TO_GET);
+
+        assertEquals(4, handler.deltas.size());
+        assertDelta(handler.deltas.get(0), SyncDeltaType.UPDATE, "b");
+        assertDelta(handler.deltas.get(1), SyncDeltaType.DELETE, "c");
+        assertDelta(handler.deltas.get(2), SyncDeltaType.CREATE, "d");
+        assertDelta(handler.deltas.get(3), SyncDeltaType.UPDATE, "e");
+        assertEquals(ObjectClass.ACCOUNT, handler.deltas.get(1).getObjectClass());
+        // The unchanged entry is not read.
+        assertEquals(Arrays.asList(dn("b"), dn("d"), "uid=e,ou=New,dc=example,dc=com"), strategy.fetched);
+
+        // The merged snapshot is the new snapshot.
+        List<SnapshotEntry> entries = read(merged, 2);
+        assertEquals(4, entries.size());
+        assertEntry(entries.get(0), "a", dn("a"), 1);
+        assertEntry(entries.get(1), "b", dn("b"), 2);
+        assertEntry(entries.get(2), "d", dn("d"), 1);
+        assertEntry(entries.get(3), "e", "uid=e,ou=New,dc=example,dc=com", 1);
+    }
+
+    @Test
+    public void testHandlerStops() throws IOException {
+        FakeSnapshotStrategy strategy = new FakeSnapshotStrategy(newConfiguration());
+        strategy.add("b", "d", "e");
+        File snapshot = createSnapshots(strategy);
+        File merged = createTempFile(strategy);
+
+        // The handler takes the update of b and stops at the delete of c.
+        CollectingHandler handler = new CollectingHandler(2);
+        strategy.compare(snapshot, merged, 2, TOKEN, handler, ATTRS_TO_GET);
+
+        assertEquals(2, handler.deltas.size());
+        assertEquals(Arrays.asList(dn("b")), strategy.fetched);
+        // The merged snapshot keeps the previous state of the entries not handled.
+        List<SnapshotEntry> entries = read(merged, 2);
+        assertEquals(4, entries.size());
+        assertEntry(entries.get(0), "a", dn("a"), 1);
+        assertEntry(entries.get(1), "b", dn("b"), 2);
+        assertEntry(entries.get(2), "c", dn("c"), 1);
+        assertEntry(entries.get(3), "e", "uid=e,ou=Old,dc=example,dc=com", 1);
+
+        // The next sync compares with the merged snapshot, and only reports the
+        // changes which were not handled.
+        replace(merged, strategy.getFile());
+        merged = createTempFile(strategy);
+        handler = new CollectingHandler(Integer.MAX_VALUE);
+        strategy.compare(snapshot, merged, 3, TOKEN, handler, ATTRS_TO_GET);
+
+        assertEquals(3, handler.deltas.size());
+        assertDelta(handler.deltas.get(0), SyncDeltaType.DELETE, "c");
+        assertDelta(handler.deltas.get(1), SyncDeltaType.CREATE, "d");
+        assertDelta(handler.deltas.get(2), SyncDeltaType.UPDATE, "e");
+        entries = read(merged, 3);
+        assertEquals(4, entries.size());
+        assertEntry(entries.get(2), "d", dn("d"), 1);
+        assertEntry(entries.get(3), "e", "uid=e,ou=New,dc=example,dc=com", 1);
+    }
+
+    @Test
+    public void testEntriesGoneBeforeRead() throws IOException {
+        FakeSnapshotStrategy strategy = new FakeSnapshotStrategy(newConfiguration());
+        // The entries b, d and e were deleted or left the sync scope after the snapshot.
+        File snapshot = createSnapshots(strategy);
+        File merged = createTempFile(strategy);
+
+        CollectingHandler handler = new CollectingHandler(Integer.MAX_VALUE);
+        strategy.compare(snapshot, merged, 2, TOKEN, handler, ATTRS_TO_GET);
+
+        assertEquals(1, handler.deltas.size());
+        assertDelta(handler.deltas.get(0), SyncDeltaType.DELETE, "c");
+        // The updated entries keep their previous state, so that the next
+        // sync reports them, and the created entry is left out.
+        List<SnapshotEntry> entries = read(merged, 2);
+        assertEquals(3, entries.size());
+        assertEntry(entries.get(0), "a", dn("a"), 1);
+        assertEntry(entries.get(1), "b", dn("b"), 1);
+        assertEntry(entries.get(2), "e", "uid=e,ou=Old,dc=example,dc=com", 1);
+    }
+
+    @Test
+    public void testFileOfEachServerAndBaseContexts() throws IOException {
+        LdapConfiguration config = newConfiguration();
+        File file = new SnapshotSyncStrategy(new LdapConnection(config), ObjectClass.ACCOUNT).getFile();
+        assertEquals(file, new SnapshotSyncStrategy(new LdapConnection(config), ObjectClass.ACCOUNT).getFile());
+        assertFalse(file.equals(new SnapshotSyncStrategy(new LdapConnection(config), ObjectClass.GROUP).getFile()));
+
+        config.setBaseContextsToSynchronize("ou=Staff,dc=example,dc=com");
+        assertFalse(file.equals(new SnapshotSyncStrategy(new LdapConnection(config), ObjectClass.ACCOUNT).getFile()));
+
+        config.setBaseContextsToSynchronize("ou=People,dc=example,dc=com");
+        config.setHost("ldap2.example.com");
+        assertFalse(file.equals(new SnapshotSyncStrategy(new LdapConnection(config), ObjectClass.ACCOUNT).getFile()));
+    }
+
+    @Test
+    public void testLockedDuringSync() throws IOException {
+        FakeSnapshotStrategy strategy = new FakeSnapshotStrategy(newConfiguration());
+        SyncStateFile lock = SyncStateFile.lock(strategy.getFile());
+        try {
+            strategy.sync(TOKEN, new CollectingHandler(Integer.MAX_VALUE), null);
+            fail();
+        } catch (ConnectorException e) {
+            // OK.
+        } finally {
+            lock.release();
+        }
+        assertFalse(strategy.getFile().exists());
+    }
+
+    private static LdapConfiguration newConfiguration() throws IOException {
+        LdapConfiguration config = new LdapConfiguration();
+        config.setHost("ldap1.example.com");
+        config.setBaseContexts("dc=example,dc=com");
+        config.setBaseContextsToSynchronize("ou=People,dc=example,dc=com");
+        config.setSyncSnapshotDirectory(createDirectory().getPath());
+        return config;
+    }
+
+    /**
+     * Writes the previous snapshot of the strategy and returns the new one:
+     * a is unchanged, b updated, c deleted, d created and e renamed.
+     */
+    private static File createSnapshots(FakeSnapshotStrategy strategy) throws IOException {
+        write(strategy.getFile(), 1,
+                entry("a", dn("a"), 1),
+                entry("b", dn("b"), 1),
+                entry("c", dn("c"), 1),
+                entry("e", "uid=e,ou=Old,dc=example,dc=com", 1));
+        File snapshot = createTempFile(strategy);
+        write(snapshot, 2,
+                entry("a", dn("a"), 1),
+                entry("b", dn("b"), 2),
+                entry("d", dn("d"), 1),
+                entry("e", "uid=e,ou=New,dc=example,dc=com", 1));
+        return snapshot;
+    }
+
+    private static String dn(String uid) {
+        return "uid=" + uid + ",ou=People,dc=example,dc=com";
+    }
+
+    private static SnapshotEntry entry(String uid, String dn, long digest) {
+        return new SnapshotEntry(uid, dn, ObjectClass.ACCOUNT_NAME, digest);
+    }
+
+    private static void write(File file, long generation, SnapshotEntry... entries) throws IOException {
+        SnapshotFile.Writer writer = new SnapshotFile.Writer(file, generation);
+        try {
+            for (SnapshotEntry entry : entries) {
+                writer.write(entry);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static List<SnapshotEntry> read(File file, long generation) throws IOException {
+        List<SnapshotEntry> entries = new ArrayList<SnapshotEntry>();
+        SnapshotFile.Reader reader = new SnapshotFile.Reader(file);
+        try {
+            assertEquals(generation, reader.getGeneration());
+            SnapshotEntry entry;
+            while ((entry = reader.next()) != null) {
+                entries.add(entry);
+            }
+        } finally {
+            reader.close();
+        }
+        return entries;
+    }
+
+    private static void replace(File from, File to) {
+        to.delete();
+        from.renameTo(to);
+    }
+
+    private static File createTempFile(SnapshotSyncStrategy strategy) throws IOException {
+        return File.createTempFile("test", ".tmp", strategy.getFile().getParentFile());
+    }
+
+    private static void assertDelta(SyncDelta delta, SyncDeltaType type, String uid) {
+        assertEquals(type, delta.getDeltaType());
+        assertEquals(uid, delta.getUid().getUidValue());
+        assertEquals(TOKEN, delta.getToken());
+    }
+
+    private static void assertEntry(SnapshotEntry entry, String uid, String dn, long digest) {
+        assertEquals(uid, entry.getUid());
+        assertEquals(dn, entry.getDN());
+        assertEquals(digest, entry.getDigest());
+    }
+
+    private static File createDirectory() throws IOException {
+        File dir = File.createTempFile("snapshots", "");
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    /**
+     * Reads the entries from a directory held in memory, and records the
+     * reads.
+     */
+    private static final class FakeSnapshotStrategy extends SnapshotSyncStrategy {
+
+        private final Map<String, ConnectorObject> objects = new HashMap<String, ConnectorObject>();
+        final List<String> fetched = new ArrayList<String>();
+
+        FakeSnapshotStrategy(LdapConfiguration config) {
+            super(new LdapConnection(config), ObjectClass.ACCOUNT);
+        }
+
+        void add(String... uids) {
+            for (String uid : uids) {
+                String dn = "e".equals(uid) ? "uid=e,ou=New,dc=example,dc=com" : dn(uid);
+                ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
+                builder.setUid(uid);
+                builder.setName(dn);
+                objects.put(dn, builder.build());
+            }
+        }
+
+        @Override
+        ConnectorObject fetchObject(String dn, String[] attrsToGet) {
+            fetched.add(dn);
+            return objects.get(dn);
+        }
+    }
+
+    private static final class CollectingHandler implements SyncResultsHandler {
+
+        final List<SyncDelta> deltas = new ArrayList<SyncDelta>();
+        private final int max;
+
+        CollectingHandler(int max) {
+            this.max = max;
+        }
+
+        public boolean handle(SyncDelta delta) {
+            deltas.add(delta);
+            return deltas.size() < max;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.sync.sunds;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertNotSame;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertSame;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.naming.directory.BasicAttributes;
+
+import org.identityconnectors.ldap.LdapConfiguration;
+import org.identityconnectors.ldap.LdapConnection;
+import org.identityconnectors.ldap.LdapEntry;
+import org.testng.annotations.Test;
+
+public class ChangeLogBlockCacheTests {
+
+    @Test
+    public void testSharedByConnectionsToTheSameServer() {
+        LdapConfiguration config = new LdapConfiguration();
+        config.setChangeLogCacheSize(100);
+        ChangeLogBlockCache cache = ChangeLogBlockCache.get(new LdapConnection(config), "cn=changelog");
+        assertSame(cache, ChangeLogBlockCache.get(new LdapConnection(config), "cn=changelog"));
+
+        // Each replica numbers its own changes.
+        ChangeLogBlockCache replica1 = ChangeLogBlockCache.get(pinnedConnection(config, "ldap://replica1:389", "1"), "cn=changelog");
+        ChangeLogBlockCache replica2 = ChangeLogBlockCache.get(pinnedConnection(config, "ldap://replica2:389", "2"), "cn=changelog");
+        assertSame(replica1, ChangeLogBlockCache.get(pinnedConnection(config, "ldap://replica1:389", "1"), "cn=changelog"));
+        assertNotSame(replica1, replica2);
+        assertNotSame(cache, replica1);
+        // Another server now behind the same URL.
+        assertNotSame(replica1, ChangeLogBlockCache.get(pinnedConnection(config, "ldap://replica1:389", "3"), "cn=changelog"));
+
+        // Without pinning, any of the failover servers may be read.
+        config.setFailover("ldap://replica2:389");
+        assertNull(ChangeLogBlockCache.get(new LdapConnection(config), "cn=changelog"));
+        assertSame(replica2, ChangeLogBlockCache.get(pinnedConnection(config, "ldap://replica2:389", "2"), "cn=changelog"));
+    }
+
+    @Test
+    public void testDroppedWhenNoConnectionUsesIt() {
+        LdapConfiguration config = new LdapConfiguration();
+        config.setHost("released.example.com");
+        config.setChangeLogCacheSize(100);
+        LdapConnection conn1 = new LdapConnection(config);
+        LdapConnection conn2 = new LdapConnection(config);
+        ChangeLogBlockCache cache = ChangeLogBlockCache.get(conn1, "cn=changelog");
+        assertSame(cache, ChangeLogBlockCache.get(conn1, "cn=changelog"));
+        assertSame(cache, ChangeLogBlockCache.get(conn2, "cn=changelog"));
+
+        ChangeLogBlockCache.release(conn1);
+        // Releasing twice does not give back the reference of the other connection.
+        ChangeLogBlockCache.release(conn1);
+        assertSame(cache, ChangeLogBlockCache.get(conn2, "cn=changelog"));
+        ChangeLogBlockCache.release(conn2);
+        assertNotSame(cache, ChangeLogBlockCache.get(conn1, "cn=changelog"));
+        ChangeLogBlockCache.release(conn1);
+    }
+
+    @Test
+    public void testServesCompleteRanges() {
+        ChangeLogBlockCache cache = new ChangeLogBlockCache(100);
+        cache.put(1, 10, entries(1, 2, 5, 10), new long[] { 1, 2, 5, 10 });
+        assertTrue(cache.contains(1, 10));
+        assertTrue(cache.contains(3, 6));
+        assertFalse(cache.contains(1, 11));
+        assertEquals(1, cache.get(3, 6).size());
+        assertEquals(4, cache.get(1, 10).size());
+        assertNull(cache.get(5, 11));
+    }
+
+    @Test
+    public void testRangesWithoutChanges() {
+        ChangeLogBlockCache cache = new ChangeLogBlockCache(100);
+        cache.put(1, 3, entries(1, 3, 7), new long[] { 1, 3, 7 });
+        assertTrue(cache.contains(1, 3));
+        assertFalse(cache.contains(1, 4));
+        assertEquals(2, cache.size());
+
+        cache.put(20, 30, entries(), new long[0]);
+        assertTrue(cache.contains(20, 30));
+        assertEquals(0, cache.get(25, 30).size());
+
+        cache.put(40, 39, entries(), new long[0]);
+        assertFalse(cache.contains(40, 40));
+    }
+
+    @Test
+    public void testMergesAdjacentRanges() {
+        ChangeLogBlockCache cache = new ChangeLogBlockCache(100);
+        cache.put(1, 5, entries(1, 5), new long[] { 1, 5 });
+        cache.put(11, 15, entries(11, 15), new long[] { 11, 15 });
+        assertFalse(cache.contains(1, 15));
+        cache.put(6, 10, entries(6, 10), new long[] { 6, 10 });
+        assertTrue(cache.contains(1, 15));
+        assertEquals(6, cache.get(1, 15).size());
+    }
+
+    @Test
+    public void testEvictsOldestChangeNumbers() {
+        ChangeLogBlockCache cache = new ChangeLogBlockCache(3);
+        cache.put(1, 5, entries(1, 2, 3, 4, 5), new long[] { 1, 2, 3, 4, 5 });
+        assertEquals(3, cache.size());
+        assertFalse(cache.contains(2, 5));
+        assertTrue(cache.contains(3, 5));
+        assertEquals(3, cache.get(3, 5).size());
+    }
+
+    @Test
+    public void testIgnoresBlocksWithoutChangeNumbers() {
+        ChangeLogBlockCache cache = new ChangeLogBlockCache(100);
+        cache.put(1, 5, entries(1, 2), new long[] { 1, -1 });
+        assertEquals(0, cache.size());
+        assertFalse(cache.contains(1, 1));
+    }
+
+    @Test
+    public void testClearedWhenChangeLogIsReset() {
+        ChangeLogBlockCache cache = new ChangeLogBlockCache(100);
+        cache.put(1, 5, entries(1, 5), new long[] { 1, 5 });
+        cache.checkLastChangeNumber(7);
+        assertTrue(cache.contains(1, 5));
+        cache.checkLastChangeNumber(2);
+        assertFalse(cache.contains(1, 5));
+        assertEquals(0, cache.size());
+    }
+
+    private static LdapConnection pinnedConnection(LdapConfiguration config, String url, final String serverId) {
+        LdapConnection conn = new LdapConnection(config) {
+            @Override
+            public String getServerId() {
+                return serverId;
+            }
+        };
+        conn.pinServer(url);
+        return conn;
+    }
+
+    private static List<LdapEntry> entries(int... changeNumbers) {
+        List<LdapEntry> result = new ArrayList<LdapEntry>();
+        for (int changeNumber : changeNumbers) {
+            BasicAttributes attrs = new BasicAttributes(true);
+            attrs.put("changeNumber", Integer.toString(changeNumber));
+            result.add(LdapEntry.create("changeNumber=" + changeNumber + ",cn=changelog", attrs));
+        }
+        return result;
+    }
+}
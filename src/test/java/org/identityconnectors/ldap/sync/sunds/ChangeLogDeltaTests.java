@@ -0,0 +1,472 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.sync.sunds;
+
+import static org.identityconnectors.ldap.LdapUtil.getStringAttrValue;
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertTrue;
+import static org.testng.AssertJUnit.fail;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.naming.InvalidNameException;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.ldap.LdapName;
+
+import org.identityconnectors.common.Base64;
+import org.identityconnectors.common.security.GuardedByteArray;
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.common.security.GuardedString.Accessor;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationalAttributes;
+import org.identityconnectors.framework.common.objects.SyncDelta;
+import org.identityconnectors.framework.common.objects.SyncDeltaType;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.identityconnectors.ldap.LdapConfiguration;
+import org.identityconnectors.ldap.LdapConnection;
+import org.identityconnectors.ldap.LdapEntry;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the creation of the sync deltas of a block of change log entries,
+ * with the modified entries read from a directory held in memory.
+ */
+public class ChangeLogDeltaTests {
+
+    private static final String PEOPLE_DN = "ou=People,dc=example,dc=com";
+    private static final String STAFF_DN = "ou=Staff,dc=example,dc=com";
+
+    private static final String[] ATTRS_TO_GET = { "cn" };
+
+    @Test
+    public void testRdnFilter() throws InvalidNameException {
+        List<LdapName> children = Arrays.asList(new LdapName("uid=a," + PEOPLE_DN), new LdapName("cn=x(y)*," + PEOPLE_DN));
+        assertEquals("(|(uid=a)(cn=x\\28y\\29\\2a))", SunDSChangeLogSyncStrategy.createRdnFilter(children));
+    }
+
+    @Test
+    public void testRdnFilterWithMultiValuedRdn() throws InvalidNameException {
+        List<LdapName> children = Arrays.asList(new LdapName("cn=John Doe+sn=Doe," + PEOPLE_DN), new LdapName("uid=a," + PEOPLE_DN));
+        String filter = SunDSChangeLogSyncStrategy.createRdnFilter(children);
+        // The order of the RDN values is not significant.
+        assertTrue(filter, filter.equals("(|(&(cn=John Doe)(sn=Doe))(uid=a))") || filter.equals("(|(&(sn=Doe)(cn=John Doe))(uid=a))"));
+    }
+
+    @Test
+    public void testGroupByParent() throws InvalidNameException {
+        List<LdapName> names = new ArrayList<LdapName>();
+        for (int i = 0; i < 120; i++) {
+            names.add(new LdapName("uid=user." + i + "," + PEOPLE_DN));
+            if (i == 10) {
+                names.add(new LdapName("uid=staff," + STAFF_DN));
+            }
+        }
+        names.add(new LdapName(""));
+        List<List<LdapName>> groups = SunDSChangeLogSyncStrategy.groupByParent(names, 50);
+        assertEquals(4, groups.size());
+        assertEquals(50, groups.get(0).size());
+        assertEquals(50, groups.get(1).size());
+        assertEquals(20, groups.get(2).size());
+        assertEquals(new LdapName("uid=user.0," + PEOPLE_DN), groups.get(0).get(0));
+        assertEquals(new LdapName("uid=user.50," + PEOPLE_DN), groups.get(1).get(0));
+        assertEquals(new LdapName("uid=user.119," + PEOPLE_DN), groups.get(2).get(19));
+        // The root name has no parent.
+        assertEquals(Arrays.asList(new LdapName("uid=staff," + STAFF_DN)), groups.get(3));
+    }
+
+    @Test
+    public void testModifiedEntriesReadByParent() throws InvalidNameException {
+        FakeDirectoryStrategy strategy = new FakeDirectoryStrategy(newConfiguration());
+        strategy.addPerson("uid=a," + PEOPLE_DN);
+        strategy.addPerson("uid=b," + PEOPLE_DN);
+        strategy.addPerson("uid=c," + STAFF_DN);
+
+        List<LdapEntry> changes = Arrays.asList(
+                modify(1, "uid=a," + PEOPLE_DN),
+                modify(2, "uid=c," + STAFF_DN),
+                modify(3, "uid=b," + PEOPLE_DN),
+                modify(4, "uid=a," + PEOPLE_DN),
+                modify(5, "uid=gone," + PEOPLE_DN));
+        List<SyncDelta> deltas = strategy.createSyncDeltas(changes, tokens(changes), ATTRS_TO_GET);
+
+        assertEquals(Arrays.asList("search " + PEOPLE_DN, "read uid=c," + STAFF_DN), strategy.reads);
+        // The deltas keep the change number order.
+        assertDelta(deltas.get(0), 1, "uid=a," + PEOPLE_DN);
+        assertDelta(deltas.get(1), 2, "uid=c," + STAFF_DN);
+        assertDelta(deltas.get(2), 3, "uid=b," + PEOPLE_DN);
+        assertDelta(deltas.get(3), 4, "uid=a," + PEOPLE_DN);
+        // The entry no longer exists.
+        assertNull(deltas.get(4));
+        // The object class was only read to filter.
+        assertNull(deltas.get(0).getObject().getAttributeByName("objectClass"));
+    }
+
+    @Test
+    public void testModifiedEntriesReadOneByOneAfterFailure() throws InvalidNameException {
+        FakeDirectoryStrategy strategy = new FakeDirectoryStrategy(newConfiguration());
+        strategy.addPerson("uid=a," + PEOPLE_DN);
+        strategy.addPerson("uid=b," + PEOPLE_DN);
+        strategy.failingParents.add(new LdapName(PEOPLE_DN));
+
+        List<LdapEntry> changes = Arrays.asList(modify(1, "uid=b," + PEOPLE_DN), modify(2, "uid=a," + PEOPLE_DN));
+        List<SyncDelta> deltas = strategy.createSyncDeltas(changes, tokens(changes), ATTRS_TO_GET);
+
+        assertEquals(Arrays.asList("search " + PEOPLE_DN, "read uid=b," + PEOPLE_DN, "read uid=a," + PEOPLE_DN), strategy.reads);
+        assertDelta(deltas.get(0), 1, "uid=b," + PEOPLE_DN);
+        assertDelta(deltas.get(1), 2, "uid=a," + PEOPLE_DN);
+    }
+
+    @Test
+    public void testModifiedEntriesOfOtherClassesFilteredOut() throws InvalidNameException {
+        FakeDirectoryStrategy strategy = new FakeDirectoryStrategy(newConfiguration());
+        strategy.addPerson("uid=a," + PEOPLE_DN);
+        strategy.addGroup("cn=group," + PEOPLE_DN);
+
+        List<LdapEntry> changes = Arrays.asList(modify(1, "cn=group," + PEOPLE_DN), modify(2, "uid=a," + PEOPLE_DN));
+        List<SyncDelta> deltas = strategy.createSyncDeltas(changes, tokens(changes), ATTRS_TO_GET);
+
+        assertNull(deltas.get(0));
+        assertDelta(deltas.get(1), 2, "uid=a," + PEOPLE_DN);
+    }
+
+    @Test
+    public void testContentModifyBuiltFromChange() throws InvalidNameException {
+        LdapConfiguration config = newConfiguration();
+        config.setUseChangeLogContent(true);
+        FakeDirectoryStrategy strategy = new FakeDirectoryStrategy(config);
+        strategy.addPerson("uid=a," + PEOPLE_DN);
+        strategy.addPerson("uid=b," + PEOPLE_DN);
+
+        List<LdapEntry> changes = Arrays.asList(modify(1, "uid=a," + PEOPLE_DN), modify(2, "uid=b," + PEOPLE_DN));
+        List<SyncDelta> deltas = strategy.createSyncDeltas(changes, tokens(changes), ATTRS_TO_GET);
+
+        // Only the object classes were read, all at once.
+        assertEquals(Arrays.asList("search " + PEOPLE_DN), strategy.reads);
+        assertEquals(Arrays.asList("objectClass"), strategy.attrsRead);
+        assertDelta(deltas.get(0), 1, "uid=a," + PEOPLE_DN);
+        assertDelta(deltas.get(1), 2, "uid=b," + PEOPLE_DN);
+        assertEquals(ObjectClass.ACCOUNT, deltas.get(0).getObject().getObjectClass());
+        assertEquals("Changed 1", deltas.get(0).getObject().getAttributeByName("cn").getValue().get(0));
+        assertEquals("Changed 2", deltas.get(1).getObject().getAttributeByName("cn").getValue().get(0));
+    }
+
+    @Test
+    public void testContentModifyOfOtherClassFilteredOut() throws InvalidNameException {
+        LdapConfiguration config = newConfiguration();
+        config.setUseChangeLogContent(true);
+        FakeDirectoryStrategy strategy = new FakeDirectoryStrategy(config);
+        strategy.addPerson("uid=a," + PEOPLE_DN);
+        strategy.addGroup("cn=group," + PEOPLE_DN);
+
+        List<LdapEntry> changes = Arrays.asList(modify(1, "cn=group," + PEOPLE_DN), modify(2, "uid=a," + PEOPLE_DN));
+        List<SyncDelta> deltas = strategy.createSyncDeltas(changes, tokens(changes), ATTRS_TO_GET);
+
+        assertNull(deltas.get(0));
+        assertDelta(deltas.get(1), 2, "uid=a," + PEOPLE_DN);
+    }
+
+    @Test
+    public void testContentModifyFilteredByObjectClassesToSynchronize() throws InvalidNameException {
+        LdapConfiguration config = newConfiguration();
+        config.setUseChangeLogContent(true);
+        config.setAccountObjectClasses("person");
+        FakeDirectoryStrategy strategy = new FakeDirectoryStrategy(config);
+        strategy.add("uid=a," + PEOPLE_DN, "top", "person");
+        strategy.addPerson("uid=b," + PEOPLE_DN);
+
+        List<LdapEntry> changes = Arrays.asList(modify(1, "uid=a," + PEOPLE_DN), modify(2, "uid=b," + PEOPLE_DN));
+        List<SyncDelta> deltas = strategy.createSyncDeltas(changes, tokens(changes), ATTRS_TO_GET);
+
+        // Only inetOrgPerson entries are synchronized by default.
+        assertNull(deltas.get(0));
+        assertDelta(deltas.get(1), 2, "uid=b," + PEOPLE_DN);
+    }
+
+    @Test
+    public void testContentAddNeedsNoRead() throws InvalidNameException {
+        LdapConfiguration config = newConfiguration();
+        config.setUseChangeLogContent(true);
+        FakeDirectoryStrategy strategy = new FakeDirectoryStrategy(config);
+
+        List<LdapEntry> changes = Arrays.asList(
+                change(1, "add", "uid=a," + PEOPLE_DN, "objectClass: top\nobjectClass: person\nobjectClass: organizationalPerson\n"
+                        + "objectClass: inetOrgPerson\ncn: Added\nsn: Added\nuid: a\n"),
+                change(2, "add", "cn=group," + PEOPLE_DN, "objectClass: top\nobjectClass: groupOfUniqueNames\ncn: group\n"));
+        List<SyncDelta> deltas = strategy.createSyncDeltas(changes, tokens(changes), ATTRS_TO_GET);
+
+        // The added object classes tell the class of the entries.
+        assertTrue(strategy.reads.isEmpty());
+        assertDelta(deltas.get(0), 1, "uid=a," + PEOPLE_DN);
+        assertEquals("Added", deltas.get(0).getObject().getAttributeByName("cn").getValue().get(0));
+        assertNull(deltas.get(1));
+    }
+
+    @Test
+    public void testWorkersKeepChangeNumberOrder() throws InvalidNameException {
+        LdapConfiguration config = newConfiguration();
+        config.setChangeLogWorkerThreads(4);
+        FakeDirectoryStrategy strategy = new FakeDirectoryStrategy(config);
+        List<LdapEntry> changes = new ArrayList<LdapEntry>();
+        for (int i = 0; i < 300; i++) {
+            String dn = "uid=user." + i + "," + (i % 3 == 0 ? STAFF_DN : PEOPLE_DN);
+            strategy.addPerson(dn);
+            changes.add(i % 5 == 0 ? change(i, "delete", dn, null) : modify(i, dn));
+        }
+
+        List<SyncDelta> deltas;
+        strategy.startWorkers();
+        try {
+            deltas = strategy.createSyncDeltas(changes, tokens(changes), ATTRS_TO_GET);
+        } finally {
+            strategy.stopWorkers();
+        }
+
+        assertEquals(300, deltas.size());
+        for (int i = 0; i < 300; i++) {
+            assertDelta(deltas.get(i), i, "uid=user." + i + "," + (i % 3 == 0 ? STAFF_DN : PEOPLE_DN));
+            assertEquals(i % 5 == 0 ? SyncDeltaType.DELETE : SyncDeltaType.UPDATE, deltas.get(i).getDeltaType());
+        }
+    }
+
+    @Test
+    public void testWorkerFailureRethrown() throws InvalidNameException {
+        LdapConfiguration config = newConfiguration();
+        config.setUidAttribute("uid");
+        config.setChangeLogWorkerThreads(4);
+        FakeDirectoryStrategy strategy = new FakeDirectoryStrategy(config);
+        List<LdapEntry> changes = new ArrayList<LdapEntry>();
+        for (int i = 0; i < 100; i++) {
+            changes.add(change(i, "delete", "uid=user." + i + "," + PEOPLE_DN, null));
+        }
+        // The Uid of a deleted entry which is not named by it cannot be found.
+        changes.set(42, change(42, "delete", "cn=Other," + PEOPLE_DN, null));
+
+        strategy.startWorkers();
+        try {
+            strategy.createSyncDeltas(changes, tokens(changes), ATTRS_TO_GET);
+            fail();
+        } catch (ConnectorException e) {
+            assertEquals("Unsupported Uid attribute: uid", e.getMessage());
+        } finally {
+            strategy.stopWorkers();
+        }
+    }
+
+    @Test
+    public void testWorkersShareThePasswordDecryptor() throws Exception {
+        byte[] key = new byte[24];
+        byte[] iv = new byte[8];
+        new Random(0).nextBytes(key);
+        new Random(1).nextBytes(iv);
+        LdapConfiguration config = newConfiguration();
+        config.setChangeLogWorkerThreads(4);
+        config.setSynchronizePasswords(true);
+        config.setPasswordAttributeToSynchronize("userPassword");
+        config.setPasswordDecryptionKey(new GuardedByteArray(key));
+        config.setPasswordDecryptionInitializationVector(new GuardedByteArray(iv));
+        FakeDirectoryStrategy strategy = new FakeDirectoryStrategy(config);
+        List<LdapEntry> changes = new ArrayList<LdapEntry>();
+        for (int i = 0; i < 100; i++) {
+            String dn = "uid=user." + i + "," + PEOPLE_DN;
+            strategy.addPerson(dn);
+            String encrypted = Base64.encode(encryptPassword(key, iv, "secret." + i));
+            changes.add(change(i, "modify", dn, "replace: userPassword\nuserPassword:: " + encrypted + "\n-\n"));
+        }
+
+        List<SyncDelta> deltas;
+        strategy.startWorkers();
+        try {
+            deltas = strategy.createSyncDeltas(changes, tokens(changes), ATTRS_TO_GET);
+        } finally {
+            strategy.stopWorkers();
+        }
+
+        for (int i = 0; i < 100; i++) {
+            assertDelta(deltas.get(i), i, "uid=user." + i + "," + PEOPLE_DN);
+            final String expected = "secret." + i;
+            GuardedString password = (GuardedString) deltas.get(i).getObject().getAttributeByName(OperationalAttributes.PASSWORD_NAME).getValue().get(0);
+            password.access(new Accessor() {
+                public void access(char[] clearChars) {
+                    assertEquals(expected, new String(clearChars));
+                }
+            });
+        }
+    }
+
+    /**
+     * Encrypts a password the way the change log plugin of the server does.
+     */
+    private static byte[] encryptPassword(byte[] key, byte[] iv, String password) throws Exception {
+        byte[] passwordBytes = password.getBytes("UTF8");
+        int length = 12 + passwordBytes.length;
+        ByteBuffer plain = ByteBuffer.allocate((length + 7) / 8 * 8);
+        plain.putInt(0x132d1403);
+        plain.putInt(passwordBytes.length);
+        plain.put(passwordBytes);
+        plain.putInt(0x132d1403);
+        Cipher cipher = Cipher.getInstance("DESede/CBC/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "DESede"), new IvParameterSpec(iv));
+        return cipher.doFinal(plain.array());
+    }
+
+    static LdapConfiguration newConfiguration() {
+        LdapConfiguration config = new LdapConfiguration();
+        config.setBaseContexts("dc=example,dc=com");
+        config.setUidAttribute("entryDN");
+        config.setReadSchema(false);
+        return config;
+    }
+
+    static LdapEntry modify(long changeNumber, String targetDN) {
+        return change(changeNumber, "modify", targetDN, "replace: cn\ncn: Changed " + changeNumber + "\n-\n");
+    }
+
+    static LdapEntry change(long changeNumber, String changeType, String targetDN, String changes) {
+        BasicAttributes attrs = new BasicAttributes(true);
+        attrs.put("changeNumber", Long.toString(changeNumber));
+        attrs.put("targetDN", targetDN);
+        attrs.put("changeType", changeType);
+        if (changes != null) {
+            attrs.put("changes", changes);
+        }
+        return LdapEntry.create("changeNumber=" + changeNumber + ",cn=changelog", attrs);
+    }
+
+    static List<SyncToken> tokens(List<LdapEntry> changes) {
+        List<SyncToken> tokens = new ArrayList<SyncToken>();
+        for (LdapEntry change : changes) {
+            tokens.add(new SyncToken(Long.valueOf(getStringAttrValue(change.getAttributes(), "changeNumber"))));
+        }
+        return tokens;
+    }
+
+    static void assertDelta(SyncDelta delta, long changeNumber, String dn) {
+        assertEquals(changeNumber, delta.getToken().getValue());
+        assertEquals(dn, delta.getUid().getUidValue());
+    }
+
+    /**
+     * Reads the modified entries from a directory held in memory, like the
+     * server would, and records the reads.
+     */
+    static class FakeDirectoryStrategy extends SunDSChangeLogSyncStrategy {
+
+        private final ObjectClass oclass;
+        final Map<LdapName, ConnectorObject> entries = new HashMap<LdapName, ConnectorObject>();
+        final Set<LdapName> failingParents = new HashSet<LdapName>();
+        final List<String> reads = new ArrayList<String>();
+        final List<String> attrsRead = new ArrayList<String>();
+
+        FakeDirectoryStrategy(LdapConfiguration config) {
+            this(config, ObjectClass.ACCOUNT);
+        }
+
+        FakeDirectoryStrategy(LdapConfiguration config, ObjectClass oclass) {
+            super(new LdapConnection(config), oclass);
+            this.oclass = oclass;
+        }
+
+        void addPerson(String dn) throws InvalidNameException {
+            add(dn, "top", "person", "organizationalPerson", "inetOrgPerson");
+        }
+
+        void addGroup(String dn) throws InvalidNameException {
+            add(dn, "top", "groupOfUniqueNames");
+        }
+
+        void add(String dn, String... objectClasses) throws InvalidNameException {
+            ConnectorObjectBuilder object = new ConnectorObjectBuilder();
+            object.setUid(dn);
+            object.setName(dn);
+            object.addAttribute(AttributeBuilder.build("objectClass", (Object[]) objectClasses));
+            object.addAttribute(AttributeBuilder.build("cn", "Read back"));
+            entries.put(new LdapName(dn), object.build());
+        }
+
+        @Override
+        synchronized void findChildObjects(LdapName parent, List<LdapName> children, String[] attrsToGet, Map<LdapName, ConnectorObject> result) {
+            reads.add("search " + parent);
+            attrsRead.addAll(Arrays.asList(attrsToGet));
+            if (failingParents.contains(parent)) {
+                throw new ConnectorException("Search failed");
+            }
+            for (LdapName child : children) {
+                ConnectorObject object = find(child);
+                if (object != null) {
+                    result.put(child, object);
+                }
+            }
+        }
+
+        @Override
+        synchronized ConnectorObject findModifiedObject(LdapName name, String[] attrsToGet) {
+            reads.add("read " + name);
+            attrsRead.addAll(Arrays.asList(attrsToGet));
+            return find(name);
+        }
+
+        /**
+         * Returns the entry if it is of the object class of the sync, as the
+         * filter of a search would.
+         */
+        private ConnectorObject find(LdapName name) {
+            ConnectorObject object = entries.get(name);
+            if (object == null) {
+                return null;
+            }
+            List<Object> objectClasses = object.getAttributeByName("objectClass").getValue();
+            for (String ldapClass : conn.getSchemaMapping().getLdapClasses(oclass)) {
+                if (!containsIgnoreCase(objectClasses, ldapClass)) {
+                    return null;
+                }
+            }
+            return object;
+        }
+
+        private static boolean containsIgnoreCase(List<Object> values, String value) {
+            for (Object each : values) {
+                if (value.equalsIgnoreCase(each.toString())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.sync.sunds;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+
+import org.testng.annotations.Test;
+
+public class ChangeLogFilterTests {
+
+    @Test
+    public void testNormalizeDN() {
+        assertEquals("UID=JOHN DOE,OU=PEOPLE,DC=EXAMPLE", ChangeLogFilter.normalizeDN(" uid = John Doe , ou=People,  dc=example "));
+        assertNull(ChangeLogFilter.normalizeDN("cn=a\\,b,dc=example"));
+        assertNull(ChangeLogFilter.normalizeDN("cn=a+uid=b,dc=example"));
+        assertNull(ChangeLogFilter.normalizeDN("cn=\u00e9,dc=example"));
+    }
+
+    @Test
+    public void testIsUnderBaseContexts() throws InvalidNameException {
+        ChangeLogFilter filter = new ChangeLogFilter(asList(new LdapName("ou=People,dc=example,dc=com"), new LdapName("ou=Groups, dc=example, dc=com")));
+        assertEquals(Boolean.TRUE, filter.isUnderBaseContexts("uid=john,ou=people,dc=example,dc=com"));
+        assertEquals(Boolean.TRUE, filter.isUnderBaseContexts("ou=People, dc=Example, dc=com"));
+        assertEquals(Boolean.TRUE, filter.isUnderBaseContexts("cn=admins,ou=groups,dc=example,dc=com"));
+        assertEquals(Boolean.FALSE, filter.isUnderBaseContexts("uid=john,ou=otherpeople,dc=example,dc=com"));
+        assertEquals(Boolean.FALSE, filter.isUnderBaseContexts("dc=example,dc=com"));
+        // Left to the DN parser.
+        assertNull(filter.isUnderBaseContexts("uid=jo\\,hn,ou=people,dc=example,dc=com"));
+
+        assertNull(new ChangeLogFilter(singletonList(new LdapName("o=A\\+B"))).isUnderBaseContexts("cn=x,o=a\\+b"));
+        assertEquals(Boolean.TRUE, new ChangeLogFilter(singletonList(new LdapName(""))).isUnderBaseContexts("cn=x"));
+    }
+
+    @Test
+    public void testAppendTargetDNFilter() throws InvalidNameException {
+        StringBuilder filter = new StringBuilder();
+        new ChangeLogFilter(asList(new LdapName("ou=People,dc=example"), new LdapName("o=(x)"))).appendTargetDNFilter(filter);
+        assertEquals("(|(targetDN=ou=People,dc=example)(targetDN=*,ou=People,dc=example)(targetDN=o=\\28x\\29)(targetDN=*,o=\\28x\\29))", filter.toString());
+
+        filter.setLength(0);
+        new ChangeLogFilter(asList(new LdapName("ou=People,dc=example"), new LdapName(""))).appendTargetDNFilter(filter);
+        assertEquals("", filter.toString());
+
+        new ChangeLogFilter(Collections.<LdapName>emptyList()).appendTargetDNFilter(filter);
+        assertEquals("", filter.toString());
+    }
+
+    @Test
+    public void testAppendNotChangeInitiatorsFilter() throws InvalidNameException {
+        StringBuilder filter = new StringBuilder();
+        ChangeLogFilter.appendNotChangeInitiatorsFilter(filter, "changeInitiatorsName", singletonList(new LdapName("cn=idm,ou=apps")));
+        assertEquals("(!(changeInitiatorsName=cn=idm,ou=apps))", filter.toString());
+    }
+
+    @Test
+    public void testMayChangeAny() {
+        Set<String> attrs = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+        attrs.add("mail");
+        String modify = "replace: description\ndescription: mail\n-\nadd: MAIL\nmail: john@example.com\n-\n";
+        assertTrue(ChangeLogFilter.mayChangeAny("modify", modify, attrs));
+        assertFalse(ChangeLogFilter.mayChangeAny("modify", "replace: description\ndescription: mail\n-\n", attrs));
+        assertTrue(ChangeLogFilter.mayChangeAny("add", "cn: John\nmail: john@example.com\n", attrs));
+        assertFalse(ChangeLogFilter.mayChangeAny("add", "cn: mail\n", attrs));
+        assertFalse(ChangeLogFilter.mayChangeAny("modrdn", "", attrs));
+    }
+
+    @Test
+    public void testGetFirstValue() {
+        String modify = "replace: modifiersName\nmodifiersName: cn=idm\n-\nreplace: cn\ncn: x\n-\n";
+        assertEquals("cn=idm", ChangeLogFilter.getFirstValue(modify, "modifiersname"));
+        assertEquals("cn=idm", ChangeLogFilter.getFirstValue("cn: x\nmodifiersName: cn=idm\n", "modifiersName"));
+        assertNull(ChangeLogFilter.getFirstValue("replace: modifiersName\nmodifiersName:: Y249aWRt\n-\n", "modifiersName"));
+        assertNull(ChangeLogFilter.getFirstValue("replace: cn\ncn: x\n-\n", "modifiersName"));
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.sync.sunds;
+
+import static org.testng.AssertJUnit.assertEquals;
+
+import org.testng.annotations.Test;
+
+public class ChangeLogGapsTests {
+
+    @Test
+    public void testAdjacentRangesAreOneGap() {
+        ChangeLogGaps gaps = new ChangeLogGaps();
+        gaps.skipped(1, 100);
+        gaps.skipped(101, 150);
+        assertEquals(1, gaps.getCount());
+        assertEquals(150, gaps.getSkipped());
+        gaps.skipped(200, 3000000000L);
+        assertEquals(2, gaps.getCount());
+        assertEquals(150 + 3000000000L - 199, gaps.getSkipped());
+    }
+
+    @Test
+    public void testEmptyRangeIgnored() {
+        ChangeLogGaps gaps = new ChangeLogGaps();
+        gaps.skipped(10, 9);
+        assertEquals(0, gaps.getCount());
+        assertEquals(0, gaps.getSkipped());
+    }
+
+    @Test
+    public void testProbes() {
+        ChangeLogGaps gaps = new ChangeLogGaps();
+        gaps.probed();
+        gaps.probed();
+        assertEquals(2, gaps.getProbes());
+        assertEquals(0, gaps.getCount());
+    }
+}
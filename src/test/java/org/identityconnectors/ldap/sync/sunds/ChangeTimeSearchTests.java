@@ -0,0 +1,116 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.sync.sunds;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.ldap.LdapConfiguration;
+import org.identityconnectors.ldap.LdapConnection;
+import org.testng.annotations.Test;
+
+/**
+ * Tests finding the first change logged since a given time, with the change
+ * log held in memory.
+ */
+public class ChangeTimeSearchTests {
+
+    @Test
+    public void testFirstChangeSince() {
+        FakeChangeLogStrategy strategy = new FakeChangeLogStrategy();
+        // Change numbers 1 to 1000, one second apart, with 401 to 599 purged.
+        for (long i = 1; i <= 1000; i++) {
+            if (i <= 400 || i >= 600) {
+                strategy.changes.put(i, i * 1000);
+            }
+        }
+
+        assertEquals(1, strategy.findFirstChangeSince(0, 1, 1000));
+        assertEquals(1, strategy.findFirstChangeSince(1000, 1, 1000));
+        assertEquals(2, strategy.findFirstChangeSince(1001, 1, 1000));
+        assertEquals(400, strategy.findFirstChangeSince(400000, 1, 1000));
+        // The first change after the purged ones.
+        assertEquals(600, strategy.findFirstChangeSince(400001, 1, 1000));
+        assertEquals(600, strategy.findFirstChangeSince(500000, 1, 1000));
+        assertEquals(1000, strategy.findFirstChangeSince(1000000, 1, 1000));
+        assertEquals(-1, strategy.findFirstChangeSince(1000001, 1, 1000));
+    }
+
+    @Test
+    public void testReadsFewChanges() {
+        FakeChangeLogStrategy strategy = new FakeChangeLogStrategy();
+        for (long i = 1; i <= 1000000; i++) {
+            strategy.changes.put(i, i);
+        }
+
+        assertEquals(123457, strategy.findFirstChangeSince(123457, 1, 1000000));
+        // The change log is searched by halves.
+        assertTrue(String.valueOf(strategy.reads), strategy.reads <= 21);
+    }
+
+    @Test
+    public void testChangeWithoutTime() {
+        FakeChangeLogStrategy strategy = new FakeChangeLogStrategy();
+        strategy.changes.put(1L, 1000L);
+        strategy.changes.put(2L, Long.MAX_VALUE);
+        strategy.changes.put(3L, 3000L);
+
+        // A change without a time is not skipped.
+        assertEquals(2, strategy.findFirstChangeSince(2000, 1, 3));
+    }
+
+    @Test
+    public void testEmptyChangeLog() {
+        assertEquals(-1, new FakeChangeLogStrategy().findFirstChangeSince(0, 1, 0));
+    }
+
+    /**
+     * Reads the change numbers and times from a change log held in memory,
+     * and counts the reads.
+     */
+    private static final class FakeChangeLogStrategy extends SunDSChangeLogSyncStrategy {
+
+        final NavigableMap<Long, Long> changes = new TreeMap<Long, Long>();
+        int reads;
+
+        FakeChangeLogStrategy() {
+            super(new LdapConnection(new LdapConfiguration()), ObjectClass.ACCOUNT);
+        }
+
+        @Override
+        long[] readFirstChange(long from, long to) {
+            reads++;
+            Map.Entry<Long, Long> change = changes.ceilingEntry(from);
+            if (change == null || change.getKey() > to) {
+                return null;
+            }
+            return new long[] { change.getKey(), change.getValue() };
+        }
+    }
+}
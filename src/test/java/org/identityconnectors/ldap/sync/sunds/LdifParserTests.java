@@ -23,6 +23,7 @@
 package org.identityconnectors.ldap.sync.sunds;
 
 import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
 import static org.testng.AssertJUnit.assertTrue;
 import org.testng.annotations.Test;
 import java.util.Iterator;
@@ -85,6 +86,54 @@ public class LdifParserTests {
         assertTrue(lines.next() instanceof ChangeSeparator);
     }
 
+    @Test
+    public void testCursor() {
+        String ldif =
+                "replace: jpegPhoto\n" +
+                "jpegPhoto:: AAEC\n" +
+                " AwQF\n" +
+                "-\n" +
+                "-\n" +
+                "Add: member\n" +
+                "member: uid=1,ou=people\n" +
+                "not a line\n" +
+                "\n";
+
+        LdifParser.Cursor lines = new LdifParser(ldif).cursor();
+        assertTrue(lines.next());
+        assertTrue(lines.isNameValue());
+        assertTrue(lines.isName("REPLACE"));
+        assertEquals("jpegPhoto", lines.getValue().toString());
+        assertTrue(lines.next());
+        assertEquals("jpegPhoto", lines.getName().toString());
+        // The value is returned as written, and unfolded.
+        CharSequence photo = lines.getValue();
+        assertEquals(": AAECAwQF", photo.toString());
+        assertTrue(lines.next());
+        assertTrue(lines.isSeparator());
+        assertTrue(lines.next());
+        assertTrue(lines.isName("add"));
+        assertFalse(lines.isName("ad"));
+        assertTrue(lines.next());
+        CharSequence member = lines.getValue();
+        assertTrue(lines.next());
+        assertTrue(lines.isChangeSeparator());
+        assertFalse(lines.next());
+        assertFalse(lines.next());
+        // The values stay valid when the cursor moves.
+        assertEquals(": AAECAwQF", photo.toString());
+        assertEquals("uid=1,ou=people", member.toString());
+        assertEquals("ou=people", member.subSequence(6, 15).toString());
+    }
+
+    @Test
+    public void testCursorOnEmptyLdif() {
+        LdifParser.Cursor lines = new LdifParser("").cursor();
+        assertTrue(lines.next());
+        assertTrue(lines.isChangeSeparator());
+        assertFalse(lines.next());
+    }
+
     private static void assertLineEquals(Line expected, NameValue value) {
         assertTrue(expected instanceof NameValue);
         NameValue expectedValue = (NameValue) expected;
@@ -66,8 +66,8 @@ public class SunDSChangeLogSyncStrategyTests extends SunDSTestBase {
     }
 
     private static void waitForChangeLogToStabilize(LdapConnection conn) {
-        int lastChangeNumber = -1;
-        int previousLastChangeNumber;
+        long lastChangeNumber = -1;
+        long previousLastChangeNumber;
         do {
             if (lastChangeNumber > 0) {
                 log.ok("Waiting for change log to stabilize (last change number: {0})", lastChangeNumber);
@@ -0,0 +1,106 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.sync.syncrepl;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.util.Arrays;
+
+import org.testng.annotations.Test;
+
+import com.sun.jndi.ldap.BerEncoder;
+
+public class ContentSyncStrategyTests {
+
+    private static final byte[] UUID_BYTES = {
+        (byte) 0x12, (byte) 0x34, (byte) 0x56, (byte) 0x78, (byte) 0x9a, (byte) 0xbc, (byte) 0xde, (byte) 0xf0,
+        (byte) 0x01, (byte) 0x23, (byte) 0x45, (byte) 0x67, (byte) 0x89, (byte) 0xab, (byte) 0xcd, (byte) 0xef
+    };
+
+    @Test
+    public void testSyncStateControl() throws Exception {
+        BerEncoder ber = new BerEncoder(64);
+        ber.beginSeq(48);
+        ber.encodeInt(SyncStateControl.DELETE, 0x0A);
+        ber.encodeOctetString(UUID_BYTES, 4);
+        ber.encodeOctetString("rid=000,csn=1".getBytes("UTF-8"), 4);
+        ber.endSeq();
+
+        SyncStateControl control = new SyncStateControl(SyncStateControl.OID, false, ber.getTrimmedBuf());
+        assertEquals(SyncStateControl.DELETE, control.getState());
+        assertEquals("12345678-9abc-def0-0123-456789abcdef", control.getEntryUUID());
+        assertEquals("rid=000,csn=1", new String(control.getResponseCookie(), "UTF-8"));
+    }
+
+    @Test
+    public void testSyncStateControlWithoutCookie() throws Exception {
+        BerEncoder ber = new BerEncoder(64);
+        ber.beginSeq(48);
+        ber.encodeInt(SyncStateControl.ADD, 0x0A);
+        ber.encodeOctetString(UUID_BYTES, 4);
+        ber.endSeq();
+
+        SyncStateControl control = new SyncStateControl(SyncStateControl.OID, false, ber.getTrimmedBuf());
+        assertEquals(SyncStateControl.ADD, control.getState());
+        assertNull(control.getResponseCookie());
+        assertNull(SyncStateControl.toUUIDString(new byte[3]));
+    }
+
+    @Test
+    public void testSyncDoneControl() throws Exception {
+        BerEncoder ber = new BerEncoder(64);
+        ber.beginSeq(48);
+        ber.encodeOctetString("rid=000,csn=2".getBytes("UTF-8"), 4);
+        ber.encodeBoolean(true);
+        ber.endSeq();
+
+        SyncDoneControl control = new SyncDoneControl(SyncDoneControl.OID, false, ber.getTrimmedBuf());
+        assertEquals("rid=000,csn=2", new String(control.getResponseCookie(), "UTF-8"));
+        assertTrue(control.isRefreshDeletes());
+
+        ber = new BerEncoder(64);
+        ber.beginSeq(48);
+        ber.endSeq();
+        control = new SyncDoneControl(SyncDoneControl.OID, false, ber.getTrimmedBuf());
+        assertNull(control.getResponseCookie());
+        assertFalse(control.isRefreshDeletes());
+    }
+
+    @Test
+    public void testTokenRoundTrip() throws Exception {
+        byte[][] cookies = { "rid=000,csn=3".getBytes("UTF-8"), null };
+        byte[][] decoded = ContentSyncStrategy.decodeToken(ContentSyncStrategy.encodeToken(cookies), 2);
+        assertTrue(Arrays.equals(cookies[0], decoded[0]));
+        assertNull(decoded[1]);
+
+        // A base context added since the token was issued gets no cookie.
+        decoded = ContentSyncStrategy.decodeToken(ContentSyncStrategy.encodeToken(cookies), 3);
+        assertNull(decoded[2]);
+        // A token of another strategy is ignored.
+        assertNull(ContentSyncStrategy.decodeToken(Integer.valueOf(42), 1)[0]);
+    }
+}
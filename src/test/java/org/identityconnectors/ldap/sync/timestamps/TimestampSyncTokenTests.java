@@ -0,0 +1,81 @@
+/*
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright (c) 2015 ForgeRock AS. All Rights Reserved
+ *
+ * The contents of this file are subject to the terms
+ * of the Common Development and Distribution License
+ * (the License). You may not use this file except in
+ * compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://forgerock.org/license/CDDLv1.0.html
+ * See the License for the specific language governing
+ * permission and limitations under the License.
+ *
+ * When distributing Covered Code, include this CDDL
+ * Header Notice in each file and include the License file
+ * at http://forgerock.org/license/CDDLv1.0.html
+ * If applicable, add the following below the CDDL Header,
+ * with the fields enclosed by brackets [] replaced by
+ * your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ */
+package org.identityconnectors.ldap.sync.timestamps;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import org.testng.annotations.Test;
+
+public class TimestampSyncTokenTests {
+
+    @Test
+    public void testPlainTimestamp() {
+        TimestampSyncToken token = TimestampSyncToken.decode("20150102030405Z");
+        assertEquals("20150102030405Z", token.getTimestamp());
+        assertFalse(token.isDelivered("john", "20150102030405Z"));
+        assertEquals("20150102030405Z", token.encode());
+    }
+
+    @Test
+    public void testDeliveredEntries() {
+        TimestampSyncToken.Builder builder = new TimestampSyncToken.Builder("20150102030405Z", 1000, 0);
+        builder.add("john", "20150102030405Z", 1000);
+        builder.add("jane", "20150102030406Z", 2000);
+        builder.add("jack", "20150102030406Z", 2000);
+        TimestampSyncToken token = TimestampSyncToken.decode(builder.build().encode());
+        assertEquals("20150102030406Z", token.getTimestamp());
+        // Only the entries at the highest timestamp are read again.
+        assertFalse(token.isDelivered("john", "20150102030405Z"));
+        assertTrue(token.isDelivered("jane", "20150102030406Z"));
+        assertTrue(token.isDelivered("jack", "20150102030406Z"));
+        // A later change of the entry is delivered.
+        assertFalse(token.isDelivered("jane", "20150102030407Z"));
+    }
+
+    @Test
+    public void testOverlapWindow() {
+        TimestampSyncToken.Builder builder = new TimestampSyncToken.Builder("20150102030405Z", 1000, 2000);
+        builder.add("john", "20150102030405Z", 1000);
+        builder.add("jane", "20150102030406Z", 2000);
+        builder.add("jack", "20150102030408Z", 4000);
+        TimestampSyncToken token = builder.build();
+        assertEquals("20150102030408Z", token.getTimestamp());
+        assertEquals(2, token.size());
+        assertFalse(token.isDelivered("john", "20150102030405Z"));
+        assertTrue(token.isDelivered("jane", "20150102030406Z"));
+    }
+
+    @Test
+    public void testBoundedSize() {
+        TimestampSyncToken.Builder builder = new TimestampSyncToken.Builder("20150102030405Z", 1000, 0);
+        for (int i = 0; i < TimestampSyncToken.MAX_IDS + 10; i++) {
+            builder.add("user" + i, "20150102030405Z", 1000);
+        }
+        assertEquals(TimestampSyncToken.MAX_IDS, builder.build().size());
+        builder.add("john", "20150102030406Z", 2000);
+        assertEquals(1, builder.build().size());
+    }
+}